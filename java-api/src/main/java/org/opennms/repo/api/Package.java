@@ -0,0 +1,32 @@
+package org.opennms.repo.api;
+
+import java.nio.file.Path;
+
+/**
+ * A package file in a repository.
+ */
+public interface Package {
+    /**
+     * The package name.
+     * @return The name, eg. {@code opennms-core}.
+     */
+    public String getName();
+
+    /**
+     * The architecture the package was built for.
+     * @return The architecture, eg. {@code noarch} or {@code amd64}.
+     */
+    public String getArch();
+
+    /**
+     * The package version.
+     * @return A {@link Version}.
+     */
+    public Version getVersion();
+
+    /**
+     * The location of the package file.
+     * @return The package {@link Path}.
+     */
+    public Path getPath();
+}
@@ -19,4 +19,34 @@ public interface Repository {
      * Generate/update indexes for the repository.
      */
     public void index(final GPGInfo gpginfo) throws RepositoryIndexException;
+
+    /**
+     * Read the packages in the repository.
+     * @return The packages.
+     */
+    public Iterable<? extends Package> getPackages() throws RepositoryException;
+
+    /**
+     * Work out which packages sharing {@code source} into this repository would
+     * link: the newest version of each package in the source that is newer than
+     * the newest version here (or not here at all), except for package names
+     * listed in this repository's {@code .exclude-share} file.  Nothing is changed.
+     * @param source The repository to share packages from.
+     * @return The {@link SharePlan}.
+     */
+    public SharePlan planShare(final Repository source) throws RepositoryException;
+
+    /**
+     * Link the packages in a plan from {@link #planShare(Repository)} into this repository.
+     * The repository must be re-indexed afterwards.
+     * @param plan The plan to carry out.
+     */
+    public void share(final SharePlan plan) throws RepositoryException;
+
+    /**
+     * Start a transaction against the repository.  Changes made through the
+     * transaction's repository are not visible here until it is committed.
+     * @return A new {@link RepositoryTransaction}.
+     */
+    public RepositoryTransaction begin() throws RepositoryException;
 }
@@ -0,0 +1,58 @@
+package org.opennms.repo.api;
+
+import java.nio.file.Path;
+
+/**
+ * A set of changes to a repository that are staged outside of the live tree
+ * and published all at once.  Changes are made through {@link #getRepository()},
+ * which is rooted in the staging area; the original repository is untouched
+ * until {@link #commit()}.
+ *
+ * Closing a transaction that has not been committed aborts it.
+ */
+public interface RepositoryTransaction extends AutoCloseable {
+    /**
+     * The repository being changed.
+     * @return The original (live) repository.
+     */
+    public Repository getOriginal();
+
+    /**
+     * A view of the repository in the staging area.  Index, add or remove
+     * packages here.
+     * @return The staged repository.
+     */
+    public Repository getRepository();
+
+    /**
+     * Get a path in the staging area that is safe to write to in place, without
+     * affecting the original repository.  Staged files may share storage with
+     * the originals, so anything that modifies an existing file (rather than
+     * replacing it) must go through this first.
+     * @param path A path relative to the repository root.
+     * @return The writable staged path.
+     */
+    public Path prepareWrite(final Path path) throws RepositoryException;
+
+    /**
+     * Publish the staged repository in place of the original.
+     */
+    public void commit() throws RepositoryException;
+
+    /**
+     * Throw away the staged changes.
+     */
+    public void abort() throws RepositoryException;
+
+    /**
+     * Whether the transaction has been committed or aborted.
+     * @return true or false
+     */
+    public boolean isFinished();
+
+    /**
+     * Abort the transaction if it has not already been committed.
+     */
+    @Override
+    public void close() throws RepositoryException;
+}
@@ -0,0 +1,101 @@
+package org.opennms.repo.api;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The packages that sharing one repository into another would link, worked
+ * out ahead of time so it can be reviewed (a dry run) before anything on disk
+ * changes.
+ */
+public final class SharePlan {
+    /**
+     * A single package to be linked into the target repository.
+     */
+    public static final class Action {
+        private final Package m_package;
+        private final Path m_target;
+        private final Package m_replaces;
+
+        public Action(final Package pkg, final Path target, final Package replaces) {
+            m_package = pkg;
+            m_target = target;
+            m_replaces = replaces;
+        }
+
+        /**
+         * The package in the source repository.
+         * @return The source {@link Package}.
+         */
+        public Package getPackage() {
+            return m_package;
+        }
+
+        /**
+         * Where the package will be linked in the target repository.
+         * @return The target {@link Path}.
+         */
+        public Path getTarget() {
+            return m_target;
+        }
+
+        /**
+         * The newest existing version in the target repository, which the
+         * shared package supersedes.
+         * @return The older {@link Package}, or null if the target has none.
+         */
+        public Package getReplaces() {
+            return m_replaces;
+        }
+
+        @Override
+        public String toString() {
+            return m_package.getPath() + " -> " + m_target + (m_replaces == null ? " (new)" : " (replaces " + m_replaces.getVersion() + ")");
+        }
+    }
+
+    private final Repository m_source;
+    private final Repository m_target;
+    private final List<Action> m_actions;
+
+    public SharePlan(final Repository source, final Repository target, final List<Action> actions) {
+        m_source = source;
+        m_target = target;
+        m_actions = Collections.unmodifiableList(actions);
+    }
+
+    public Repository getSource() {
+        return m_source;
+    }
+
+    public Repository getTarget() {
+        return m_target;
+    }
+
+    /**
+     * The packages to link, in name/architecture order.
+     * @return A list of {@link Action}s.
+     */
+    public List<Action> getActions() {
+        return m_actions;
+    }
+
+    public boolean isEmpty() {
+        return m_actions.isEmpty();
+    }
+
+    public int size() {
+        return m_actions.size();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("share ").append(m_source.getRoot()).append(" -> ").append(m_target.getRoot()).append(": ").append(m_actions.size()).append(" package(s)");
+        for (final Action action : m_actions) {
+            sb.append("\n  ").append(action);
+        }
+        return sb.toString();
+    }
+}
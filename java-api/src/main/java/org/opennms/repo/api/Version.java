@@ -0,0 +1,42 @@
+package org.opennms.repo.api;
+
+/**
+ * A package version: epoch, version and release.  Versions sort oldest first.
+ */
+public interface Version extends Comparable<Version> {
+    /**
+     * The epoch.
+     * @return The epoch, or 0 if the package has none.
+     */
+    public int getEpoch();
+
+    /**
+     * The (upstream) version.
+     * @return The version string.
+     */
+    public String getVersion();
+
+    /**
+     * The release, as assigned by the packager.
+     * @return The release string, or null if there is none.
+     */
+    public String getRelease();
+
+    /**
+     * Whether this version is newer than another.
+     * @param other The version to compare to.
+     * @return true or false
+     */
+    public default boolean isNewerThan(final Version other) {
+        return compareTo(other) > 0;
+    }
+
+    /**
+     * Whether this version is older than another.
+     * @param other The version to compare to.
+     * @return true or false
+     */
+    public default boolean isOlderThan(final Version other) {
+        return compareTo(other) < 0;
+    }
+}
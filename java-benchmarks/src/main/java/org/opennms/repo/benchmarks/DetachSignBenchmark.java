@@ -0,0 +1,116 @@
+package org.opennms.repo.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.impl.GPGUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures detach-signing throughput across input sizes and digest algorithms.
+ * The {@code megabytes} secondary result is reported as MB/s.
+ *
+ * <pre>
+ * mvn -pl java-benchmarks -am package
+ * java -jar java-benchmarks/target/benchmarks.jar DetachSignBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DetachSignBenchmark {
+    @Param({"1", "16", "256"})
+    public int sizeInMegabytes;
+
+    @Param({"false", "true"})
+    public boolean sha256;
+
+    private GPGInfo m_gpginfo;
+    private Path m_input;
+    private Path m_output;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final String keyId = "benchmark@example.com";
+        final String passphrase = "12345";
+        final PGPSecretKey key = GPGUtils.generateKey(keyId, passphrase);
+        m_gpginfo = new GPGInfo(keyId, passphrase, key);
+
+        m_input = Files.createTempFile("detach-sign", ".bin");
+        m_output = Files.createTempFile("detach-sign", ".bin.asc");
+
+        final Random random = new Random(0);
+        final byte[] chunk = new byte[1024 * 1024];
+        try (final OutputStream os = Files.newOutputStream(m_input)) {
+            for (int i = 0; i < sizeInMegabytes; i++) {
+                random.nextBytes(chunk);
+                os.write(chunk);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(m_input);
+        Files.deleteIfExists(m_output);
+    }
+
+    @Benchmark
+    public void signFile(final Throughput throughput) throws Exception {
+        GPGUtils.detach_sign(m_input, m_output, m_gpginfo, sha256);
+        throughput.megabytes += sizeInMegabytes;
+    }
+
+    @Benchmark
+    public void signChannel(final Throughput throughput) throws Exception {
+        try (final FileChannel channel = FileChannel.open(m_input, StandardOpenOption.READ)) {
+            GPGUtils.detach_sign(channel, NullOutputStream.NULL_OUTPUT_STREAM, m_gpginfo, sha256);
+        }
+        throughput.megabytes += sizeInMegabytes;
+    }
+
+    @Benchmark
+    public void signStream(final Throughput throughput) throws Exception {
+        try (final InputStream is = Files.newInputStream(m_input)) {
+            GPGUtils.detach_sign(is, NullOutputStream.NULL_OUTPUT_STREAM, m_gpginfo, sha256);
+        }
+        throughput.megabytes += sizeInMegabytes;
+    }
+}
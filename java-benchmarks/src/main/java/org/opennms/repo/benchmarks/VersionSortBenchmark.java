@@ -0,0 +1,111 @@
+package org.opennms.repo.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.repo.impl.DebVersion;
+import org.opennms.repo.impl.RPMVersion;
+import org.opennms.repo.impl.SortKeys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sorting a large set of package versions, comparing
+ * {@code compareTo()} against precomputed byte-array sort keys.
+ *
+ * <pre>
+ * mvn -pl java-benchmarks -am package
+ * java -jar java-benchmarks/target/benchmarks.jar VersionSortBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersionSortBenchmark {
+    @Param({"100000"})
+    public int count;
+
+    private RPMVersion[] m_rpmVersions;
+    private DebVersion[] m_debVersions;
+    private byte[][] m_rpmKeys;
+    private byte[][] m_debKeys;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1234);
+        m_rpmVersions = new RPMVersion[count];
+        m_debVersions = new DebVersion[count];
+        for (int i = 0; i < count; i++) {
+            final int epoch = random.nextInt(20) == 0 ? 1 : 0;
+            final String version = randomVersion(random);
+            final String release = randomRelease(random);
+            m_rpmVersions[i] = new RPMVersion(epoch, version, release);
+            m_debVersions[i] = new DebVersion(epoch, version, release);
+        }
+        m_rpmKeys = new byte[count][];
+        m_debKeys = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            m_rpmKeys[i] = m_rpmVersions[i].getSortKey();
+            m_debKeys[i] = m_debVersions[i].getSortKey();
+        }
+    }
+
+    /* versions shaped like ours: 1.8.16, 19.1.0~rc1, 2.0.2 */
+    private static String randomVersion(final Random random) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(1 + random.nextInt(30)).append('.').append(random.nextInt(20)).append('.').append(random.nextInt(30));
+        if (random.nextInt(10) == 0) {
+            sb.append("~rc").append(1 + random.nextInt(3));
+        }
+        return sb.toString();
+    }
+
+    /* releases shaped like ours: 1, 0.20111220.1 */
+    private static String randomRelease(final Random random) {
+        if (random.nextBoolean()) {
+            return Integer.toString(1 + random.nextInt(3));
+        }
+        return "0." + (20110000 + random.nextInt(100000)) + "." + (1 + random.nextInt(500));
+    }
+
+    @Benchmark
+    public RPMVersion[] sortRpmCompareTo() {
+        final RPMVersion[] versions = m_rpmVersions.clone();
+        Arrays.sort(versions);
+        return versions;
+    }
+
+    @Benchmark
+    public byte[][] sortRpmSortKeys() {
+        final byte[][] keys = m_rpmKeys.clone();
+        Arrays.sort(keys, SortKeys.COMPARATOR);
+        return keys;
+    }
+
+    @Benchmark
+    public DebVersion[] sortDebCompareTo() {
+        final DebVersion[] versions = m_debVersions.clone();
+        Arrays.sort(versions);
+        return versions;
+    }
+
+    @Benchmark
+    public byte[][] sortDebSortKeys() {
+        final byte[][] keys = m_debKeys.clone();
+        Arrays.sort(keys, SortKeys.COMPARATOR);
+        return keys;
+    }
+}
@@ -0,0 +1,84 @@
+package org.opennms.repo.http;
+
+/**
+ * A single byte range from an HTTP {@code Range} header, resolved against the
+ * length of the file it applies to.
+ *
+ * Only one range is supported: a request for several is answered with the
+ * whole file, which RFC 7233 allows, and saves building a multipart body.
+ */
+public final class ByteRange {
+    private final long m_start;
+    private final long m_end;
+    private final long m_length;
+
+    private ByteRange(final long start, final long end, final long length) {
+        m_start = start;
+        m_end = end;
+        m_length = length;
+    }
+
+    /**
+     * @param header the {@code Range} header, or null
+     * @param length the length of the file
+     * @return the range, or null if the whole file should be sent
+     */
+    public static ByteRange parse(final String header, final long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = header.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // the last N bytes
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new ByteRange(length, length - 1, length);
+                }
+                return new ByteRange(Math.max(0, length - suffix), length - 1, length);
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            return new ByteRange(start, end, length);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Whether any of the range is within the file; if not, the answer is 416. */
+    public boolean isSatisfiable() {
+        return m_start < m_length && m_start <= m_end;
+    }
+
+    public long getStart() {
+        return m_start;
+    }
+
+    /** The last byte in the range, inclusive. */
+    public long getEnd() {
+        return m_end;
+    }
+
+    public long getCount() {
+        return m_end - m_start + 1;
+    }
+
+    /** The value of the {@code Content-Range} header for this range. */
+    public String getContentRange() {
+        return isSatisfiable() ? "bytes " + m_start + "-" + m_end + "/" + m_length : "bytes */" + m_length;
+    }
+
+    @Override
+    public String toString() {
+        return getContentRange();
+    }
+}
@@ -0,0 +1,137 @@
+package org.opennms.repo.http;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opennms.repo.impl.Digests;
+import org.opennms.repo.impl.FileIdentity;
+import org.opennms.repo.impl.IndexMetrics;
+import org.opennms.repo.impl.MetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a repository's small index files ({@code repodata/*}, {@code Release},
+ * {@code Packages.gz} and so on) in memory, since clients ask for them far more
+ * often than for any package.
+ *
+ * Each repository root has its own generation of entries.  When an index run
+ * for a root finishes (the cache listens to {@link org.opennms.repo.impl.IndexStats}),
+ * the whole generation is dropped in one step, so no request after the new
+ * indexes are published is answered from the old ones.  Entries are also
+ * checked against the file's size, modification time and inode on every hit,
+ * which catches index runs in other processes.
+ */
+public class MetadataCache implements MetricsListener {
+    private static final Logger LOG = LoggerFactory.getLogger(MetadataCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private final ConcurrentMap<Path,ConcurrentMap<Path,Entry>> m_generations = new ConcurrentHashMap<>();
+    private final int m_maxSize;
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize files larger than this many bytes are never cached
+     */
+    public MetadataCache(final int maxSize) {
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * Whether a file (relative to its repository root) is an index file rather than a package.
+     */
+    public static boolean isMetadata(final Path relative) {
+        if (relative.getNameCount() > 1 && "repodata".equals(relative.getName(0).toString())) {
+            return true;
+        }
+        final String name = relative.getFileName().toString();
+        return "Release".equals(name) || "Release.gpg".equals(name) || "InRelease".equals(name)
+                || name.startsWith("Packages") || name.startsWith("Sources") || name.startsWith("Contents");
+    }
+
+    /**
+     * The contents of an index file, from memory if it has not changed since it was read.
+     * @return the entry, or null if the file is too large to cache or changed while it was being read
+     */
+    public Entry get(final Path root, final Path file) throws IOException {
+        final FileIdentity identity = FileIdentity.of(file, file.toString());
+        if (identity.getSize() > m_maxSize) {
+            return null;
+        }
+        final ConcurrentMap<Path,Entry> generation = m_generations.computeIfAbsent(root, key -> new ConcurrentHashMap<>());
+        final Entry cached = generation.get(file);
+        if (cached != null && cached.getIdentity().equals(identity)) {
+            return cached;
+        }
+
+        final byte[] content = Files.readAllBytes(file);
+        if (!identity.equals(FileIdentity.of(file, file.toString()))) {
+            LOG.debug("{} changed while it was being read; not caching.", file);
+            return null;
+        }
+        final MessageDigest digest = Digests.getInstance(RepositoryServer.ETAG_ALGORITHM);
+        final Entry entry = new Entry(identity, content, Digests.toHex(digest.digest(content)));
+        // if the generation was dropped meanwhile, this goes into the old one and is never seen
+        generation.put(file, entry);
+        return entry;
+    }
+
+    /**
+     * Forget everything cached for a repository.
+     */
+    public void invalidate(final Path root) {
+        if (m_generations.remove(root.toAbsolutePath().normalize()) != null) {
+            LOG.debug("Dropped cached index files for {}", root);
+        }
+    }
+
+    public void clear() {
+        m_generations.clear();
+    }
+
+    /** How many files are held in memory. */
+    public int size() {
+        int size = 0;
+        for (final ConcurrentMap<Path,Entry> generation : m_generations.values()) {
+            size += generation.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void runFinished(final IndexMetrics.Report report) {
+        invalidate(report.getRoot());
+    }
+
+    public static final class Entry {
+        private final FileIdentity m_identity;
+        private final byte[] m_content;
+        private final String m_checksum;
+
+        private Entry(final FileIdentity identity, final byte[] content, final String checksum) {
+            m_identity = identity;
+            m_content = content;
+            m_checksum = checksum;
+        }
+
+        public FileIdentity getIdentity() {
+            return m_identity;
+        }
+
+        public byte[] getContent() {
+            return m_content;
+        }
+
+        public String getChecksum() {
+            return m_checksum;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.opennms.repo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.impl.FileChecksums;
+import org.opennms.repo.impl.FileHasher;
+import org.opennms.repo.impl.IndexStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves repositories over HTTP straight from the process that indexes them.
+ *
+ * Each repository is mounted at a path prefix and its files are served as they
+ * are on disk; hidden files (caches, transaction staging) and directory
+ * listings are not.  Index files come from a {@link MetadataCache}, which is
+ * dropped as soon as an index run publishes new ones.  Packages are streamed
+ * with {@link FileChannel#transferTo}, so they are not copied through the heap.
+ *
+ * Responses carry an {@code ETag} made from the file's SHA-1, which is one of
+ * the checksums the indexers compute: given the indexer's {@link FileHasher},
+ * packages are not read again to make one.  {@code If-None-Match},
+ * {@code If-Modified-Since}, single byte ranges and {@code If-Range} are
+ * supported, so clients can revalidate {@code repomd.xml} cheaply and resume
+ * large downloads.
+ */
+public class RepositoryServer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryServer.class);
+
+    public static final String ETAG_ALGORITHM = "SHA-1";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private final HttpServer m_server;
+    private final ExecutorService m_executor;
+    private final FileHasher m_hasher;
+    private final MetadataCache m_cache = new MetadataCache();
+    private final Map<String,Repository> m_repositories = new ConcurrentHashMap<>();
+
+    public RepositoryServer(final InetSocketAddress address, final FileHasher hasher) throws IOException {
+        this(address, hasher, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param threads how many requests are handled at a time
+     */
+    public RepositoryServer(final InetSocketAddress address, final FileHasher hasher, final int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        m_hasher = hasher;
+        m_server = HttpServer.create(address, 0);
+        final AtomicInteger count = new AtomicInteger();
+        m_executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "repository-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_server.setExecutor(m_executor);
+    }
+
+    /**
+     * Serve a repository's files under {@code /<path>/}.
+     */
+    public void addRepository(final String path, final Repository repo) {
+        final String prefix = "/" + path.replaceAll("^/+|/+$", "") + "/";
+        if (m_repositories.putIfAbsent(prefix, repo) != null) {
+            throw new IllegalArgumentException("A repository is already served at " + prefix);
+        }
+        m_server.createContext(prefix, exchange -> handle(exchange, prefix, repo));
+    }
+
+    public MetadataCache getCache() {
+        return m_cache;
+    }
+
+    /** The port the server is listening on (useful when it was created with port 0). */
+    public int getPort() {
+        return m_server.getAddress().getPort();
+    }
+
+    public void start() {
+        IndexStats.getInstance().addListener(m_cache);
+        m_server.start();
+        LOG.info("Serving {} repositories on port {}", m_repositories.size(), getPort());
+    }
+
+    @Override
+    public void close() {
+        IndexStats.getInstance().removeListener(m_cache);
+        m_server.stop(0);
+        m_executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange, final String prefix, final Repository repo) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final Path root = repo.getRoot().toAbsolutePath().normalize();
+            final Path file = resolve(root, exchange.getRequestURI().getPath().substring(prefix.length()));
+            if (file == null || !Files.isRegularFile(file)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            serve(exchange, root, file, "HEAD".equals(method));
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Failed to serve {}: {}", exchange.getRequestURI(), e.getMessage(), e);
+            if (exchange.getResponseCode() < 0) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the file, or null if the path leaves the root or names a hidden file
+     */
+    private static Path resolve(final Path root, final String path) {
+        Path file = root;
+        for (final String element : path.split("/")) {
+            if (element.isEmpty()) {
+                continue;
+            }
+            if (element.startsWith(".") || element.indexOf('\\') >= 0) {
+                return null;
+            }
+            file = file.resolve(element);
+        }
+        return file.normalize().startsWith(root) ? file : null;
+    }
+
+    private void serve(final HttpExchange exchange, final Path root, final Path file, final boolean head) throws IOException {
+        final MetadataCache.Entry cached = MetadataCache.isMetadata(root.relativize(file)) ? m_cache.get(root, file) : null;
+        final long length;
+        final long modified;
+        final String etag;
+        if (cached != null) {
+            length = cached.getContent().length;
+            modified = cached.getIdentity().getLastModified();
+            etag = "\"" + cached.getChecksum() + "\"";
+        } else {
+            final FileChecksums checksums = m_hasher.hash(file, ETAG_ALGORITHM);
+            length = checksums.getSize();
+            modified = checksums.getIdentity().getLastModified();
+            etag = "\"" + checksums.get(ETAG_ALGORITHM) + "\"";
+        }
+
+        final Headers request = exchange.getRequestHeaders();
+        final Headers response = exchange.getResponseHeaders();
+        response.set("ETag", etag);
+        response.set("Last-Modified", formatDate(modified));
+        response.set("Accept-Ranges", "bytes");
+        response.set("Content-Type", getContentType(file.getFileName().toString()));
+        if (isNotModified(request, etag, modified)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        ByteRange range = ByteRange.parse(request.getFirst("Range"), length);
+        if (range != null && !matchesIfRange(request.getFirst("If-Range"), etag, modified)) {
+            range = null;
+        }
+        if (range != null && !range.isSatisfiable()) {
+            response.set("Content-Range", range.getContentRange());
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+        final long start = range == null ? 0 : range.getStart();
+        final long count = range == null ? length : range.getCount();
+        if (range != null) {
+            response.set("Content-Range", range.getContentRange());
+        }
+        final int status = range == null ? 200 : 206;
+        if (head) {
+            response.set("Content-Length", Long.toString(count));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+        if (count == 0) {
+            return;
+        }
+
+        final OutputStream os = exchange.getResponseBody();
+        if (cached != null) {
+            os.write(cached.getContent(), (int)start, (int)count);
+        } else {
+            transfer(file, start, count, os);
+        }
+        os.flush();
+    }
+
+    private static void transfer(final Path file, final long start, final long count, final OutputStream os) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final WritableByteChannel out = Channels.newChannel(os);
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                final long sent = channel.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    throw new IOException(file + " was truncated while it was being sent");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    /*
+     * If-None-Match wins over If-Modified-Since when both are given (RFC 7232 section 6).
+     */
+    private static boolean isNotModified(final Headers request, final String etag, final long modified) {
+        final String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (final String tag : ifNoneMatch.split(",")) {
+                final String candidate = tag.trim();
+                if ("*".equals(candidate) || etag.equals(candidate.startsWith("W/") ? candidate.substring(2) : candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final Long since = parseDate(request.getFirst("If-Modified-Since"));
+        return since != null && modified / 1000 <= since / 1000;
+    }
+
+    private static boolean matchesIfRange(final String ifRange, final String etag, final long modified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag.equals(ifRange.trim());
+        }
+        final Long date = parseDate(ifRange);
+        return date != null && date / 1000 == modified / 1000;
+    }
+
+    private static String formatDate(final long millis) {
+        return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    private static Long parseDate(final String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (final DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String getContentType(final String name) {
+        if (name.endsWith(".rpm")) {
+            return "application/x-rpm";
+        } else if (name.endsWith(".deb")) {
+            return "application/vnd.debian.binary-package";
+        } else if (name.endsWith(".xml")) {
+            return "application/xml";
+        } else if (name.endsWith(".gz")) {
+            return "application/gzip";
+        } else if (name.endsWith(".xz")) {
+            return "application/x-xz";
+        } else if (name.endsWith(".zst")) {
+            return "application/zstd";
+        } else if (name.endsWith(".asc") || name.endsWith(".gpg") || name.equals("Release") || name.equals("InRelease") || (name.startsWith("Packages") && !name.contains("."))) {
+            return "text/plain";
+        }
+        return "application/octet-stream";
+    }
+}
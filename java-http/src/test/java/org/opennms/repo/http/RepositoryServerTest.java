@@ -0,0 +1,172 @@
+package org.opennms.repo.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.FileHasher;
+import org.opennms.repo.impl.RPMRepository;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+
+public class RepositoryServerTest {
+    private static final Path BASE = Paths.get("target/repositories/RepositoryServerTest").toAbsolutePath();
+    private static final String RPM = "opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String REPOMD = "repodata/repomd.xml";
+
+    private FileHasher m_hasher;
+    private RPMRepository m_repo;
+    private RepositoryServer m_server;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), BASE.toFile());
+        m_hasher = new FileHasher(2);
+        m_repo = new RPMRepository(BASE, IndexEngine.NATIVE);
+        m_repo.setHasher(m_hasher);
+        m_repo.index(null);
+        m_server = new RepositoryServer(new InetSocketAddress("127.0.0.1", 0), m_hasher, 2);
+        m_server.addRepository("bleeding/rhel5", m_repo);
+        m_server.start();
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_server != null) {
+            m_server.close();
+            m_hasher.close();
+        }
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    private HttpURLConnection open(final String path, final String... headers) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)new URL("http://127.0.0.1:" + m_server.getPort() + "/bleeding/rhel5/" + path).openConnection();
+        for (int i = 0; i < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        return connection;
+    }
+
+    private static byte[] read(final HttpURLConnection connection) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (final InputStream is = connection.getInputStream()) {
+            IOUtils.copy(is, baos);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        final HttpURLConnection rpm = open(RPM);
+        assertEquals(200, rpm.getResponseCode());
+        assertEquals("application/x-rpm", rpm.getContentType());
+        assertEquals("bytes", rpm.getHeaderField("Accept-Ranges"));
+        assertEquals("\"" + m_hasher.hash(BASE.resolve(RPM), "SHA-1").get("SHA-1") + "\"", rpm.getHeaderField("ETag"));
+        assertArrayEquals(Files.readAllBytes(BASE.resolve(RPM)), read(rpm));
+
+        final HttpURLConnection repomd = open(REPOMD);
+        assertEquals(200, repomd.getResponseCode());
+        assertArrayEquals(Files.readAllBytes(BASE.resolve(REPOMD)), read(repomd));
+        assertEquals(1, m_server.getCache().size());
+
+        final HttpURLConnection head = open(RPM);
+        head.setRequestMethod("HEAD");
+        assertEquals(200, head.getResponseCode());
+        assertEquals(Long.toString(Files.size(BASE.resolve(RPM))), head.getHeaderField("Content-Length"));
+
+        // hidden files, escaping the root and directories are not served
+        assertEquals(404, open(".repocache/state.properties").getResponseCode());
+        assertEquals(404, open("../rhel5/" + RPM).getResponseCode());
+        assertEquals(404, open("opennms/i386/").getResponseCode());
+        assertEquals(404, open("opennms/i386/missing.rpm").getResponseCode());
+
+        final HttpURLConnection post = open(RPM);
+        post.setRequestMethod("POST");
+        assertEquals(405, post.getResponseCode());
+    }
+
+    @Test
+    public void testConditional() throws Exception {
+        final HttpURLConnection first = open(REPOMD);
+        assertEquals(200, first.getResponseCode());
+        final String etag = first.getHeaderField("ETag");
+        final String modified = first.getHeaderField("Last-Modified");
+        assertNotNull(etag);
+        assertNotNull(modified);
+        read(first);
+
+        assertEquals(304, open(REPOMD, "If-None-Match", "\"other\", " + etag).getResponseCode());
+        assertEquals(304, open(REPOMD, "If-None-Match", "W/" + etag).getResponseCode());
+        assertEquals(304, open(REPOMD, "If-Modified-Since", modified).getResponseCode());
+        // If-None-Match takes precedence
+        assertEquals(200, open(REPOMD, "If-None-Match", "\"other\"", "If-Modified-Since", modified).getResponseCode());
+        assertEquals(200, open(REPOMD, "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT").getResponseCode());
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        final byte[] rpm = Files.readAllBytes(BASE.resolve(RPM));
+
+        final HttpURLConnection middle = open(RPM, "Range", "bytes=10-19");
+        assertEquals(206, middle.getResponseCode());
+        assertEquals("bytes 10-19/" + rpm.length, middle.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(rpm, 10, 20), read(middle));
+
+        final HttpURLConnection tail = open(RPM, "Range", "bytes=-5");
+        assertEquals(206, tail.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(rpm, rpm.length - 5, rpm.length), read(tail));
+
+        final HttpURLConnection resume = open(RPM, "Range", "bytes=" + (rpm.length - 100) + "-");
+        assertEquals(206, resume.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(rpm, rpm.length - 100, rpm.length), read(resume));
+
+        final HttpURLConnection beyond = open(RPM, "Range", "bytes=" + rpm.length + "-");
+        assertEquals(416, beyond.getResponseCode());
+        assertEquals("bytes */" + rpm.length, beyond.getHeaderField("Content-Range"));
+
+        // a stale If-Range gets the whole file
+        final HttpURLConnection stale = open(RPM, "Range", "bytes=10-19", "If-Range", "\"stale\"");
+        assertEquals(200, stale.getResponseCode());
+        assertEquals(rpm.length, read(stale).length);
+
+        // ranges work on cached index files too
+        final byte[] repomd = Files.readAllBytes(BASE.resolve(REPOMD));
+        final HttpURLConnection cached = open(REPOMD, "Range", "bytes=0-4");
+        assertEquals(206, cached.getResponseCode());
+        assertArrayEquals(Arrays.copyOf(repomd, 5), read(cached));
+    }
+
+    @Test
+    public void testReindexInvalidatesCache() throws Exception {
+        final byte[] before = read(open(REPOMD));
+        assertEquals(1, m_server.getCache().size());
+
+        Files.copy(Paths.get("../t/packages/rpm/stable/rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm"), BASE.resolve("opennms/i386/iplike-2.0.2-1.i386.rpm"));
+        m_repo.index(null);
+        assertEquals(0, m_server.getCache().size());
+
+        final byte[] after = read(open(REPOMD));
+        assertFalse(Arrays.equals(before, after));
+        assertArrayEquals(Files.readAllBytes(BASE.resolve(REPOMD)), after);
+        assertTrue(new String(after, "UTF-8").contains("repomd"));
+    }
+}
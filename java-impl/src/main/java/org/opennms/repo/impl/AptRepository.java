@@ -0,0 +1,572 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.api.RepositoryIndexException;
+import org.opennms.repo.api.RepositoryTransaction;
+import org.opennms.repo.api.SharePlan;
+import org.opennms.repo.impl.IndexMetrics.Counter;
+import org.opennms.repo.impl.IndexMetrics.Outcome;
+import org.opennms.repo.impl.IndexMetrics.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An APT repository for a single release, laid out like {@code AptRepo.pm}:
+ * packages live in {@code <base>/dists/<release>/main/binary-<arch>}.
+ *
+ * Indexing is done in-process instead of with {@code apt-ftparchive}.  Package
+ * control data and checksums are read in parallel, then {@code Packages} for each
+ * architecture is written while its checksums are computed, and compressed into
+ * each configured format in parallel; all of those checksums feed straight into
+ * {@code Release}.
+ * {@code Architecture: all} packages are listed in every architecture's index
+ * from where they already live, rather than symlinked into each directory.
+ */
+public class AptRepository implements Repository {
+    private static final Logger LOG = LoggerFactory.getLogger(AptRepository.class);
+
+    public static final List<String> ARCHITECTURES = Collections.unmodifiableList(Arrays.asList("amd64", "i386", "armhf"));
+
+    static final String COMPONENT = "main";
+    static final String ARCH_ALL = "all";
+
+    /* the field order apt-ftparchive uses, up to the file fields it adds */
+    private static final List<String> FIELD_ORDER = Arrays.asList(
+            "Package", "Package-Type", "Architecture", "Subarchitecture", "Version", "Revision", "Config-Version",
+            "Multi-Arch", "Priority", "Essential", "Installer-Menu-Item", "Section", "Source", "Origin", "Maintainer",
+            "Original-Maintainer", "Bugs", "Conffiles", "Triggers-Awaited", "Triggers-Pending", "Installed-Size",
+            "Provides", "Pre-Depends", "Depends", "Recommends", "Suggests", "Enhances", "Conflicts", "Breaks", "Replaces");
+
+    private static final String[] ALGORITHMS = { "MD5", "SHA-1", "SHA-256" };
+    private static final String[] RELEASE_HASHES = { "MD5Sum", "SHA1", "SHA256" };
+
+    private final Path m_base;
+    private final String m_release;
+    private final Path m_root;
+    private ForkJoinPool m_pool = ForkJoinPool.commonPool();
+    private FileHasher m_hasher = FileHasher.getDefault();
+    private List<Compression> m_compressions = Collections.singletonList(Compression.GZIP);
+
+    public AptRepository(final String base, final String release) {
+        this(Paths.get(base), release);
+    }
+
+    public AptRepository(final Path base, final String release) {
+        this(base, release, base.toAbsolutePath().resolve("dists").resolve(release));
+    }
+
+    /**
+     * A repository for {@code release} whose files live somewhere other than
+     * {@code <base>/dists/<release>} (eg. a transaction's staging area), but which
+     * should be indexed as if they were in the usual place.
+     */
+    private AptRepository(final Path base, final String release, final Path root) {
+        if (release == null || release.isEmpty()) {
+            throw new IllegalArgumentException("You must specify a release!");
+        }
+        m_base = base.toAbsolutePath();
+        m_release = release;
+        m_root = root.toAbsolutePath();
+    }
+
+    public Path getBase() {
+        return m_base;
+    }
+
+    public String getRelease() {
+        return m_release;
+    }
+
+    @Override
+    public Path getRoot() {
+        return m_root;
+    }
+
+    @Override
+    public boolean exists() {
+        return m_root.toFile().exists();
+    }
+
+    public void setPool(final ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    public FileHasher getHasher() {
+        return m_hasher;
+    }
+
+    public void setHasher(final FileHasher hasher) {
+        m_hasher = hasher;
+    }
+
+    public List<Compression> getCompressions() {
+        return m_compressions;
+    }
+
+    /**
+     * Which compressed copies of {@code Packages} and {@code Sources} to write
+     * next to the uncompressed ones; all are listed in {@code Release}, and apt
+     * fetches whichever it prefers.  Defaults to gzip.
+     */
+    public void setCompressions(final Compression... compressions) {
+        m_compressions = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(Arrays.asList(compressions))));
+    }
+
+    /**
+     * The codename, from the {@code .codename} file if there is one, or the release name.
+     */
+    public String getCodename() {
+        return readOverride(".codename");
+    }
+
+    /**
+     * The suite, from the {@code .suite} file if there is one, or the release name.
+     */
+    public String getSuite() {
+        return readOverride(".suite");
+    }
+
+    private String readOverride(final String filename) {
+        final Path file = m_root.resolve(filename);
+        if (Files.isRegularFile(file)) {
+            try {
+                final String value = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+                if (!value.isEmpty()) {
+                    return value;
+                }
+            } catch (final IOException e) {
+                LOG.warn("Unable to read {}", file, e);
+            }
+        }
+        return m_release;
+    }
+
+    /**
+     * Read the packages in this repository, from their control data only; the
+     * packages have no checksums, since those are only needed for indexing.
+     */
+    @Override
+    public PackageSet<DebPackage> getPackages() throws RepositoryException {
+        try {
+            return new PackageSet<>(readPackages(findPackages(true), false, new IndexMetrics(m_root)));
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to read packages in " + m_root, e);
+        }
+    }
+
+    /**
+     * Index the repository, unless neither its packages nor the indexing
+     * options have changed since the last time and {@code Release} is intact
+     * (see {@link RepositoryState}).
+     */
+    @Override
+    public void index(final GPGInfo gpginfo) throws RepositoryIndexException {
+        LOG.debug("indexing {}", m_root);
+        final IndexMetrics metrics = new IndexMetrics(m_root);
+        Outcome outcome = Outcome.FAILED;
+        try {
+            Files.createDirectories(m_root);
+
+            final Path[] outputs = gpginfo == null ? new Path[] { m_root.resolve("Release") } : new Path[] { m_root.resolve("Release"), m_root.resolve("Release.gpg") };
+            final RepositoryState state = new RepositoryState(m_root);
+            final String fingerprint;
+            final List<Path> paths;
+            try (final IndexMetrics.Timer timer = metrics.time(Phase.SCAN)) {
+                fingerprint = RepositoryState.fingerprint(Collections.singletonList(m_root), path -> path.getFileName().toString().endsWith(".deb"),
+                        m_compressions.toString(), getSuite(), getCodename(), gpginfo == null ? null : gpginfo.getKey());
+                if (state.isCurrent(fingerprint, outputs)) {
+                    LOG.info("{} is unchanged since it was last indexed; skipping.", m_root);
+                    outcome = Outcome.SKIPPED;
+                    return;
+                }
+                paths = findPackages();
+            }
+
+            final PackageSet<DebPackage> packages = new PackageSet<>(readPackages(paths, metrics));
+            metrics.add(Counter.PACKAGES, packages.size());
+            final List<DebPackage> allArch = packages.findNewest().stream().filter(p -> ARCH_ALL.equals(p.getArch())).collect(Collectors.toList());
+            final Set<String> arches = getArchitectures(packages);
+
+            final List<Future<List<IndexFile>>> tasks = new ArrayList<>();
+            for (final String arch : arches) {
+                final List<DebPackage> archPackages = new ArrayList<>(allArch);
+                for (final DebPackage pkg : packages) {
+                    if (arch.equals(pkg.getArch())) {
+                        archPackages.add(pkg);
+                    }
+                }
+                archPackages.sort(Comparator.comparing(DebPackage::getName).thenComparing(DebPackage::getVersion, Comparator.reverseOrder()));
+                tasks.add(m_pool.submit(() -> writeIndex(COMPONENT + "/binary-" + arch, "Packages", archPackages, metrics)));
+            }
+            tasks.add(m_pool.submit(() -> writeIndex(COMPONENT + "/source", "Sources", Collections.<DebPackage>emptyList(), metrics)));
+
+            final List<IndexFile> indexes = new ArrayList<>();
+            for (final Future<List<IndexFile>> task : tasks) {
+                indexes.addAll(get(task));
+            }
+            indexes.sort(Comparator.comparing(IndexFile::getPath));
+
+            final Path release = writeRelease(arches, indexes);
+
+            if (gpginfo == null) {
+                LOG.warn("Skipping Release signing!");
+            } else {
+                // signed into a temporary file and moved into place
+                try (final IndexMetrics.Timer timer = metrics.time(Phase.SIGN)) {
+                    GPGUtils.detach_sign(release, m_root.resolve("Release.gpg"), gpginfo, true);
+                }
+            }
+
+            state.save(fingerprint, outputs);
+            outcome = Outcome.INDEXED;
+        } catch (final RepositoryException | IOException | InterruptedException e) {
+            throw new RepositoryIndexException("Failed to generate APT indexes for " + m_root + "!", e);
+        } finally {
+            metrics.finish(outcome);
+        }
+    }
+
+    @Override
+    public SharePlan planShare(final Repository source) throws RepositoryException {
+        return PackageSharer.plan(source, this);
+    }
+
+    @Override
+    public void share(final SharePlan plan) throws RepositoryException {
+        PackageSharer.share(plan, m_pool);
+    }
+
+    @Override
+    public RepositoryTransaction begin() throws RepositoryException {
+        return new StagedTransaction(this, root -> {
+            final AptRepository staged = new AptRepository(m_base, m_release, root);
+            staged.setPool(m_pool);
+            staged.setHasher(m_hasher);
+            staged.setCompressions(m_compressions.toArray(new Compression[0]));
+            return staged;
+        });
+    }
+
+    /**
+     * The standard architectures, plus any others that have a {@code binary-<arch>}
+     * directory or a package.
+     */
+    private Set<String> getArchitectures(final PackageSet<DebPackage> packages) throws IOException {
+        final Set<String> extra = new TreeSet<>();
+        final Path component = m_root.resolve(COMPONENT);
+        if (Files.isDirectory(component)) {
+            try (final Stream<Path> dirs = Files.list(component)) {
+                dirs.filter(Files::isDirectory).map(dir -> dir.getFileName().toString()).filter(name -> name.startsWith("binary-")).forEach(name -> extra.add(name.substring("binary-".length())));
+            }
+        }
+        for (final DebPackage pkg : packages) {
+            extra.add(pkg.getArch());
+        }
+        extra.remove(ARCH_ALL);
+
+        final Set<String> arches = new LinkedHashSet<>(ARCHITECTURES);
+        arches.addAll(extra);
+        return arches;
+    }
+
+    protected List<Path> findPackages() throws IOException {
+        return findPackages(false);
+    }
+
+    /**
+     * @param readOnly use the saved scan without updating it
+     */
+    protected List<Path> findPackages(final boolean readOnly) throws IOException {
+        final RepositoryScanner scanner = new RepositoryScanner(m_root, ".deb", m_pool);
+        scanner.setReadOnly(readOnly);
+        return scanner.scan();
+    }
+
+    protected List<DebPackage> readPackages(final List<Path> paths, final IndexMetrics metrics) throws IOException {
+        return readPackages(paths, true, metrics);
+    }
+
+    /**
+     * @param checksum whether packages are checksummed
+     */
+    protected List<DebPackage> readPackages(final List<Path> paths, final boolean checksum, final IndexMetrics metrics) throws IOException {
+        final List<Future<DebPackage>> tasks = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            tasks.add(m_pool.submit(() -> readPackage(path, checksum, metrics)));
+        }
+        final List<DebPackage> packages = new ArrayList<>(paths.size());
+        for (final Future<DebPackage> task : tasks) {
+            final DebPackage pkg = get(task);
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+        }
+        return packages;
+    }
+
+    protected DebPackage readPackage(final Path path, final IndexMetrics metrics) throws IOException {
+        return readPackage(path, true, metrics);
+    }
+
+    protected DebPackage readPackage(final Path path, final boolean checksum, final IndexMetrics metrics) throws IOException {
+        final Map<String,String> control;
+        try (final IndexMetrics.Timer timer = metrics.time(Phase.PARSE)) {
+            control = DebControlReader.read(path);
+        } catch (final RepositoryException e) {
+            LOG.warn("Skipping unreadable package {}: {}", path, e.getMessage());
+            return null;
+        }
+        try {
+            if (!checksum) {
+                return new DebPackage(path, getFilename(path), control, Files.size(path), null, null, null);
+            }
+            final FileChecksums checksums;
+            try (final IndexMetrics.Timer timer = metrics.time(Phase.HASH)) {
+                checksums = m_hasher.hash(path, ALGORITHMS);
+            }
+            metrics.add(Counter.BYTES_HASHED, checksums.getSize());
+            return new DebPackage(path, getFilename(path), control, checksums.getSize(), checksums.get(ALGORITHMS[0]), checksums.get(ALGORITHMS[1]), checksums.get(ALGORITHMS[2]));
+        } catch (final IllegalArgumentException e) {
+            LOG.warn("Skipping invalid package {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The path of a package relative to the archive base, as it will be once published.
+     */
+    protected String getFilename(final Path path) {
+        final StringBuilder sb = new StringBuilder("dists/").append(m_release);
+        for (final Path element : m_root.relativize(path.toAbsolutePath())) {
+            sb.append('/').append(element.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write an index, then its compressed copies in parallel, returning their sizes and checksums.
+     */
+    private List<IndexFile> writeIndex(final String dir, final String name, final List<DebPackage> packages, final IndexMetrics metrics) throws IOException {
+        final Path directory = m_root.resolve(dir);
+        Files.createDirectories(directory);
+
+        final Path plainTemp = LinkUtils.createTempFile(directory.resolve(name));
+        try {
+            final ChecksumOutputStream plain;
+            try (
+                final IndexMetrics.Timer timer = metrics.time(Phase.WRITE);
+                final OutputStream plainFile = new BufferedOutputStream(Files.newOutputStream(plainTemp), 64 * 1024);
+                final ChecksumOutputStream plainSums = new ChecksumOutputStream(plainFile, digests());
+            ) {
+                plain = plainSums;
+                for (final DebPackage pkg : packages) {
+                    plainSums.write(toStanza(pkg).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            final List<Future<IndexFile>> tasks = new ArrayList<>(m_compressions.size());
+            for (final Compression compression : m_compressions) {
+                tasks.add(m_pool.submit(() -> compressIndex(dir, name, plainTemp, compression, metrics)));
+            }
+            metrics.add(Counter.BYTES_WRITTEN, plain.getCount());
+            final List<IndexFile> ret = new ArrayList<>(m_compressions.size() + 1);
+            ret.add(new IndexFile(dir + "/" + name, plain));
+            for (final Future<IndexFile> task : tasks) {
+                ret.add(get(task));
+            }
+
+            Files.move(plainTemp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (final Compression compression : Compression.values()) {
+                if (!m_compressions.contains(compression)) {
+                    // no longer listed in Release, so don't leave a stale copy behind
+                    Files.deleteIfExists(directory.resolve(name + "." + compression.getExtension()));
+                }
+            }
+            LOG.debug("Wrote {}/{} ({} packages)", dir, name, packages.size());
+            return ret;
+        } finally {
+            Files.deleteIfExists(plainTemp);
+        }
+    }
+
+    private IndexFile compressIndex(final String dir, final String name, final Path plain, final Compression compression, final IndexMetrics metrics) throws IOException {
+        final Path directory = m_root.resolve(dir);
+        final String filename = name + "." + compression.getExtension();
+        final Path temp = LinkUtils.createTempFile(directory.resolve(filename));
+        try {
+            final ChecksumOutputStream sums;
+            try (
+                final IndexMetrics.Timer timer = metrics.time(Phase.COMPRESS);
+                final OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024);
+                final ChecksumOutputStream cos = new ChecksumOutputStream(file, digests());
+            ) {
+                sums = cos;
+                new BlockCompressor(m_pool).compress(plain, compression, cos);
+            }
+            metrics.add(Counter.BYTES_COMPRESSED, sums.getCount());
+            Files.move(temp, directory.resolve(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new IndexFile(dir + "/" + filename, sums);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static String toStanza(final DebPackage pkg) {
+        final Map<String,String> control = pkg.getControl();
+        final StringBuilder sb = new StringBuilder(1024);
+        for (final String field : FIELD_ORDER) {
+            final String value = control.get(field);
+            if (value != null) {
+                appendField(sb, field, value);
+            }
+        }
+        appendField(sb, "Filename", pkg.getFilename());
+        appendField(sb, "Size", Long.toString(pkg.getSize()));
+        appendField(sb, "MD5sum", pkg.getMD5());
+        appendField(sb, "SHA1", pkg.getSHA1());
+        appendField(sb, "SHA256", pkg.getSHA256());
+        for (final Map.Entry<String,String> entry : control.entrySet()) {
+            final String field = entry.getKey();
+            if (!FIELD_ORDER.contains(field) && !"Description".equals(field) && !isFileField(field)) {
+                appendField(sb, field, entry.getValue());
+            }
+        }
+        if (control.containsKey("Description")) {
+            appendField(sb, "Description", control.get("Description"));
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static boolean isFileField(final String field) {
+        return "Filename".equals(field) || "Size".equals(field) || "MD5sum".equals(field) || "SHA1".equals(field) || "SHA256".equals(field);
+    }
+
+    private static void appendField(final StringBuilder sb, final String field, final String value) {
+        sb.append(field).append(':');
+        if (!value.isEmpty() && value.charAt(0) != '\n') {
+            sb.append(' ');
+        }
+        sb.append(value).append('\n');
+    }
+
+    private Path writeRelease(final Set<String> arches, final List<IndexFile> indexes) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Origin: OpenNMS\n");
+        sb.append("Label: OpenNMS Repository - ").append(m_release).append('\n');
+        sb.append("Suite: ").append(getSuite()).append('\n');
+        sb.append("Codename: ").append(getCodename()).append('\n');
+        sb.append("Date: ").append(format.format(new Date())).append('\n');
+        sb.append("Architectures: ").append(String.join(" ", arches)).append('\n');
+        sb.append("Components: ").append(COMPONENT).append('\n');
+        sb.append("Description: OpenNMS Repository - ").append(m_release).append('\n');
+        for (int i = 0; i < RELEASE_HASHES.length; i++) {
+            sb.append(RELEASE_HASHES[i]).append(":\n");
+            for (final IndexFile index : indexes) {
+                sb.append(' ').append(index.getChecksums()[i]).append(' ').append(String.format(Locale.US, "%16d", index.getSize())).append(' ').append(index.getPath()).append('\n');
+            }
+        }
+
+        final Path release = m_root.resolve("Release");
+        final Path temp = LinkUtils.createTempFile(release);
+        try {
+            Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, release, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return release;
+    }
+
+    private static MessageDigest[] digests() {
+        final MessageDigest[] digests = new MessageDigest[ALGORITHMS.length];
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            digests[i] = Digests.getInstance(ALGORITHMS[i]);
+        }
+        return digests;
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AptRepository[" + m_base + ":" + m_release + "]";
+    }
+
+    /**
+     * An index file as listed in {@code Release}.
+     */
+    private static final class IndexFile {
+        private final String m_path;
+        private final long m_size;
+        private final String[] m_checksums;
+
+        IndexFile(final String path, final ChecksumOutputStream stream) {
+            m_path = path;
+            m_size = stream.getCount();
+            m_checksums = new String[ALGORITHMS.length];
+            for (int i = 0; i < ALGORITHMS.length; i++) {
+                m_checksums[i] = stream.getChecksum(i);
+            }
+        }
+
+        String getPath() {
+            return m_path;
+        }
+
+        long getSize() {
+            return m_size;
+        }
+
+        String[] getChecksums() {
+            return m_checksums;
+        }
+    }
+}
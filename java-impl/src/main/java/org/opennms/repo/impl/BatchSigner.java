@@ -0,0 +1,245 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPPrivateKey;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes ASCII-armored detached signatures ({@code <file>.asc}) for many files
+ * at once.
+ *
+ * The private key is unlocked by {@link GPGInfo} and converted to a JCA key
+ * once, up front, instead of for every file.  Each pool thread keeps its own
+ * {@link PGPSignatureGenerator}, since generators are not thread-safe.  A
+ * file whose existing {@code .asc} is a valid signature by the same key is
+ * skipped; signatures by any other key are only looked at far enough to see
+ * the key ID, so re-signing after a key rotation does not read every file twice.
+ *
+ * Embedded RPM and Debian package signatures are not handled here.
+ */
+public class BatchSigner implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchSigner.class);
+
+    public static final String SUFFIX = ".asc";
+
+    public enum Outcome {
+        SIGNED, SKIPPED, FAILED
+    }
+
+    /**
+     * Told about each file as it finishes.  Called from pool threads.
+     */
+    public interface ProgressListener {
+        void progress(Path file, Outcome outcome, int completed, int total);
+    }
+
+    private final GPGInfo m_gpginfo;
+    private final PGPPublicKey m_publicKey;
+    private final PGPPrivateKey m_privateKey;
+    private final boolean m_sha256;
+    private final ExecutorService m_executor;
+    private final ThreadLocal<PGPSignatureGenerator> m_generator;
+
+    public BatchSigner(final GPGInfo gpginfo, final int threads) {
+        this(gpginfo, threads, true);
+    }
+
+    public BatchSigner(final GPGInfo gpginfo, final int threads, final boolean sha256) {
+        if (gpginfo.getPrivateKey() == null) {
+            throw new IllegalArgumentException("GPG info for " + gpginfo.getKey() + " has no private key!");
+        }
+        m_gpginfo = gpginfo;
+        m_publicKey = gpginfo.getPublicKey();
+        try {
+            m_privateKey = new JcaPGPPrivateKey(m_publicKey, new JcaPGPKeyConverter().setProvider("BC").getPrivateKey(gpginfo.getPrivateKey()));
+        } catch (final PGPException e) {
+            throw new RepositoryException("Failed to convert private key " + gpginfo.getKey(), e);
+        }
+        m_sha256 = sha256;
+        m_executor = Executors.newFixedThreadPool(threads);
+        m_generator = ThreadLocal.withInitial(() -> new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(m_publicKey.getAlgorithm(), m_sha256 ? PGPUtil.SHA256 : PGPUtil.SHA1).setProvider("BC")));
+    }
+
+    /** The detached signature file for {@code file}. */
+    public static Path getSignatureFile(final Path file) {
+        return Paths.get(file.toString() + SUFFIX);
+    }
+
+    /**
+     * Sign every file that does not already have a valid signature by this key.
+     */
+    public Report signAll(final Collection<Path> files, final ProgressListener listener) {
+        final int total = files.size();
+        final AtomicInteger completed = new AtomicInteger();
+        final Map<Path,Future<Outcome>> tasks = new LinkedHashMap<>();
+        for (final Path file : files) {
+            tasks.put(file, m_executor.submit(() -> {
+                Outcome outcome = Outcome.FAILED;
+                try {
+                    outcome = sign(file);
+                    return outcome;
+                } finally {
+                    if (listener != null) {
+                        listener.progress(file, outcome, completed.incrementAndGet(), total);
+                    }
+                }
+            }));
+        }
+
+        final Map<Path,Outcome> outcomes = new LinkedHashMap<>();
+        final Map<Path,Exception> failures = new LinkedHashMap<>();
+        for (final Map.Entry<Path,Future<Outcome>> entry : tasks.entrySet()) {
+            try {
+                outcomes.put(entry.getKey(), entry.getValue().get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while signing files.", e);
+            } catch (final ExecutionException e) {
+                LOG.warn("Failed to sign {}: {}", entry.getKey(), e.getCause().getMessage(), e.getCause());
+                outcomes.put(entry.getKey(), Outcome.FAILED);
+                failures.put(entry.getKey(), e.getCause() instanceof Exception ? (Exception)e.getCause() : new RepositoryException(e.getCause()));
+            }
+        }
+        return new Report(outcomes, failures);
+    }
+
+    /**
+     * Sign a single file on the calling thread, unless it already has a valid signature by this key.
+     */
+    public Outcome sign(final Path file) throws IOException {
+        final Path signature = getSignatureFile(file);
+        if (hasValidSignature(file, signature)) {
+            LOG.debug("{} is already signed by {}", file, m_gpginfo.getKey());
+            return Outcome.SKIPPED;
+        }
+
+        final PGPSignatureGenerator generator = m_generator.get();
+        try {
+            generator.init(PGPSignature.BINARY_DOCUMENT, m_privateKey);
+        } catch (final PGPException e) {
+            throw new RepositoryException("Failed to initialize signature generator for key " + m_gpginfo.getKey(), e);
+        }
+
+        final Path temp = LinkUtils.createTempFile(signature.toAbsolutePath());
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            GPGUtils.update(generator, channel);
+            try (final OutputStream os = Files.newOutputStream(temp)) {
+                GPGUtils.writeSignature(generator, os);
+            }
+            Files.move(temp, signature, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return Outcome.SIGNED;
+    }
+
+    /**
+     * Whether {@code signature} exists and is a valid detached signature of {@code file} by this key.
+     */
+    public boolean hasValidSignature(final Path file, final Path signature) throws IOException {
+        if (!Files.isRegularFile(signature)) {
+            return false;
+        }
+        final PGPSignature sig;
+        try (final InputStream is = PGPUtil.getDecoderStream(Files.newInputStream(signature))) {
+            final Object object = new JcaPGPObjectFactory(is).nextObject();
+            if (!(object instanceof PGPSignatureList) || ((PGPSignatureList)object).isEmpty()) {
+                return false;
+            }
+            sig = ((PGPSignatureList)object).get(0);
+        } catch (final IOException | RuntimeException e) {
+            LOG.debug("Unable to parse existing signature {}: {}", signature, e.getMessage());
+            return false;
+        }
+
+        // cheap check first: only a signature by this key can be kept
+        if (sig.getKeyID() != m_publicKey.getKeyID()) {
+            return false;
+        }
+        try {
+            sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), m_publicKey);
+            try (final InputStream is = Files.newInputStream(file)) {
+                final byte[] buffer = new byte[GPGUtils.BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    sig.update(buffer, 0, read);
+                }
+            }
+            return sig.verify();
+        } catch (final PGPException e) {
+            LOG.debug("Unable to verify existing signature {}: {}", signature, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        m_executor.shutdown();
+    }
+
+    /**
+     * What happened to each file in a batch.
+     */
+    public static final class Report {
+        private final Map<Path,Outcome> m_outcomes;
+        private final Map<Path,Exception> m_failures;
+
+        Report(final Map<Path,Outcome> outcomes, final Map<Path,Exception> failures) {
+            m_outcomes = Collections.unmodifiableMap(outcomes);
+            m_failures = Collections.unmodifiableMap(failures);
+        }
+
+        /** The outcome for each file, in the order they were given. */
+        public Map<Path,Outcome> getOutcomes() {
+            return m_outcomes;
+        }
+
+        public Map<Path,Exception> getFailures() {
+            return m_failures;
+        }
+
+        public List<Path> get(final Outcome outcome) {
+            final List<Path> ret = new ArrayList<>();
+            for (final Map.Entry<Path,Outcome> entry : m_outcomes.entrySet()) {
+                if (entry.getValue() == outcome) {
+                    ret.add(entry.getKey());
+                }
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.opennms.repo.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compresses files on a pool, a block at a time.
+ *
+ * Files larger than the block size are split, each block is compressed as a
+ * complete stream of its own in parallel, and the streams are written out in
+ * order.  gzip, xz and zstd readers all treat concatenated streams as one, so
+ * the result decompresses to the original file; it is only slightly larger
+ * than compressing in one pass, and takes a fraction of the time on a large
+ * {@code filelists.xml} or {@code Packages}.  Smaller files are compressed in
+ * one stream, exactly as before.
+ */
+public class BlockCompressor {
+    public static final int DEFAULT_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    private final ForkJoinPool m_pool;
+    private final int m_blockSize;
+
+    public BlockCompressor(final ForkJoinPool pool) {
+        this(pool, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockCompressor(final ForkJoinPool pool, final int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        }
+        m_pool = pool;
+        m_blockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return m_blockSize;
+    }
+
+    /**
+     * Compress {@code source} onto {@code out}.  {@code out} is not closed.
+     */
+    public void compress(final Path source, final Compression compression, final OutputStream out) throws IOException {
+        if (Files.size(source) <= m_blockSize) {
+            try (final InputStream is = Files.newInputStream(source)) {
+                final OutputStream cos = compression.compress(new NonClosingOutputStream(out));
+                IOUtils.copy(is, cos, 64 * 1024);
+                cos.close();
+            }
+            return;
+        }
+
+        // keep enough blocks in flight to use the whole pool, but no more
+        final int maxInFlight = m_pool.getParallelism() + 1;
+        final Deque<Future<byte[]>> inFlight = new ArrayDeque<>(maxInFlight);
+        try (final InputStream is = Files.newInputStream(source)) {
+            while (true) {
+                final byte[] block = new byte[m_blockSize];
+                final int read = IOUtils.read(is, block);
+                if (read == 0) {
+                    break;
+                }
+                final byte[] data = read == block.length ? block : Arrays.copyOf(block, read);
+                if (inFlight.size() == maxInFlight) {
+                    out.write(get(inFlight.removeFirst()));
+                }
+                inFlight.addLast(m_pool.submit(() -> compressBlock(data, compression)));
+                if (read < block.length) {
+                    break;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                out.write(get(inFlight.removeFirst()));
+            }
+        } finally {
+            for (final Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static byte[] compressBlock(final byte[] data, final Compression compression) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+        try (final OutputStream cos = compression.compress(baos)) {
+            cos.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] get(final Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Lets a compressor be closed (to write its trailer) without closing the stream under it.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.opennms.repo.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Digests and counts everything written through it, so a file's checksums
+ * and size are known as soon as it has been written.
+ */
+final class ChecksumOutputStream extends FilterOutputStream {
+    private final MessageDigest[] m_digests;
+    private long m_count;
+
+    ChecksumOutputStream(final OutputStream out, final MessageDigest... digests) {
+        super(out);
+        m_digests = digests;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        for (final MessageDigest digest : m_digests) {
+            digest.update((byte)b);
+        }
+        m_count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        for (final MessageDigest digest : m_digests) {
+            digest.update(b, off, len);
+        }
+        m_count += len;
+    }
+
+    long getCount() {
+        return m_count;
+    }
+
+    /** The hex digest of everything written so far.  Resets the digest. */
+    String getChecksum() {
+        return getChecksum(0);
+    }
+
+    /** The hex digest from the given digester.  Resets that digest. */
+    String getChecksum(final int index) {
+        return Digests.toHex(m_digests[index].digest());
+    }
+}
@@ -1,11 +1,6 @@
 package org.opennms.repo.impl;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.exec.CommandLine;
@@ -16,26 +11,12 @@ public abstract class Command extends CommandLine implements Runnable {
         super(which(executable));
     }
 
+    /**
+     * @return the absolute path of {@code executable}, or null if it is not installed
+     * @see ToolRegistry
+     */
     public static String which(final String executable) {
-        final String[] pathEntries;
-        if (OS.isFamilyWindows()) {
-            pathEntries = System.getenv("PATH").split(";");
-        } else {
-            pathEntries = System.getenv("PATH").split(":");
-        }
-
-        final List<String> searchPath = new ArrayList<>(Arrays.asList(pathEntries));
-        searchPath.add("/usr/local/bin");
-        searchPath.add("/usr/local/sbin");
-
-        for (final String path : searchPath) {
-            final Path exe = Paths.get(path).resolve(executable);
-            if (exe.toFile().exists()) {
-                return exe.toAbsolutePath().toString();
-            }
-        }
-
-        return null;
+        return ToolRegistry.getInstance().which(executable);
     }
 
     public static Map<String,String> getEnvironment() {
@@ -1,23 +1,149 @@
 package org.opennms.repo.impl;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.launcher.CommandLauncherFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Builds and runs an external command, on the {@link ProcessRunner}.
+ *
+ * Standard output and standard error are each read as the command runs and
+ * handed to a line consumer (by default, the debug log), so a chatty command
+ * can never block on a full pipe.  Standard input is closed straight away.
+ * The environment starts as {@link Command#getEnvironment()}.
+ */
 public class CommandBuilder {
-    private final CommandLine m_executable;
+    private static final Logger LOG = LoggerFactory.getLogger(CommandBuilder.class);
+
+    private final CommandLine m_commandLine;
+    private final Map<String,String> m_environment = Command.getEnvironment();
+    private Path m_directory;
+    private long m_timeout = 0;
+    private Consumer<String> m_stdout;
+    private Consumer<String> m_stderr;
 
     protected CommandBuilder(final String executable) {
-        m_executable = new CommandLine(executable);
+        this(new CommandLine(executable));
+    }
+
+    protected CommandBuilder(final CommandLine commandLine) {
+        m_commandLine = commandLine;
+        final String name = commandLine.getExecutable();
+        m_stdout = line -> LOG.debug("{}: {}", name, line);
+        m_stderr = line -> LOG.debug("{} (stderr): {}", name, line);
     }
-    
-    public CommandBuilder builder(final String executable) {
+
+    public static CommandBuilder builder(final String executable) {
         return new CommandBuilder(executable);
     }
 
-    public void run() throws IOException {
-        CommandLauncherFactory.createVMLauncher().exec(m_executable, Collections.emptyMap());
+    public CommandLine getCommandLine() {
+        return m_commandLine;
+    }
+
+    public CommandBuilder arg(final String... arguments) {
+        for (final String argument : arguments) {
+            m_commandLine.addArgument(argument, false);
+        }
+        return this;
+    }
+
+    /**
+     * Set (or, with a null value, remove) an environment variable.
+     */
+    public CommandBuilder env(final String name, final String value) {
+        if (value == null) {
+            m_environment.remove(name);
+        } else {
+            m_environment.put(name, value);
+        }
+        return this;
+    }
+
+    public CommandBuilder directory(final Path directory) {
+        m_directory = directory;
+        return this;
+    }
+
+    /**
+     * Kill the command if it has not finished in this long.  0 (the default) waits forever.
+     */
+    public CommandBuilder timeout(final long timeout, final TimeUnit unit) {
+        m_timeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    public CommandBuilder stdout(final Consumer<String> consumer) {
+        m_stdout = consumer;
+        return this;
+    }
+
+    public CommandBuilder stderr(final Consumer<String> consumer) {
+        m_stderr = consumer;
+        return this;
+    }
+
+    /**
+     * Start the command without waiting for it.
+     * @return the exit value, once the command has finished
+     * @throws IOException if the command could not be started
+     */
+    public CompletableFuture<Integer> start() throws IOException {
+        return ProcessRunner.getInstance().start(this);
+    }
+
+    /**
+     * Run the command and wait for it, and for its output, to finish.
+     * @return the exit value
+     * @throws IOException if the command could not be started or timed out
+     */
+    public int run() throws IOException {
+        final CompletableFuture<Integer> future = start();
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            final InterruptedIOException ioe = new InterruptedIOException("Interrupted while running " + m_commandLine.getExecutable());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    Map<String,String> getEnvironment() {
+        return m_environment;
+    }
+
+    Path getDirectory() {
+        return m_directory;
+    }
+
+    long getTimeout() {
+        return m_timeout;
+    }
+
+    Consumer<String> getStdout() {
+        return m_stdout;
+    }
+
+    Consumer<String> getStderr() {
+        return m_stderr;
     }
 }
@@ -0,0 +1,84 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * The compression formats index files can be published in.
+ *
+ * Every format here decompresses concatenated streams as one, which is what
+ * lets {@link BlockCompressor} compress large files in independent blocks.
+ */
+public enum Compression {
+    GZIP("gz") {
+        @Override
+        public OutputStream compress(final OutputStream os) throws IOException {
+            return new GZIPOutputStream(os, 64 * 1024);
+        }
+
+        @Override
+        public InputStream decompress(final InputStream is) throws IOException {
+            return new GZIPInputStream(is, 64 * 1024);
+        }
+    },
+    XZ("xz") {
+        @Override
+        public OutputStream compress(final OutputStream os) throws IOException {
+            return new XZOutputStream(os, new LZMA2Options(LZMA2Options.PRESET_DEFAULT));
+        }
+
+        @Override
+        public InputStream decompress(final InputStream is) throws IOException {
+            return new XZInputStream(is);
+        }
+    },
+    ZSTD("zst") {
+        @Override
+        public OutputStream compress(final OutputStream os) throws IOException {
+            return new ZstdOutputStream(os, 19);
+        }
+
+        @Override
+        public InputStream decompress(final InputStream is) throws IOException {
+            return new ZstdInputStream(is);
+        }
+    };
+
+    private final String m_extension;
+
+    private Compression(final String extension) {
+        m_extension = extension;
+    }
+
+    /** The file extension, without the dot. */
+    public String getExtension() {
+        return m_extension;
+    }
+
+    public abstract OutputStream compress(final OutputStream os) throws IOException;
+
+    public abstract InputStream decompress(final InputStream is) throws IOException;
+
+    /**
+     * Find the compression for a file name's extension.
+     * @return the compression, or null if the name has none of the known extensions
+     */
+    public static Compression forFilename(final String filename) {
+        for (final Compression compression : values()) {
+            if (filename.endsWith("." + compression.getExtension())) {
+                return compression;
+            }
+        }
+        return null;
+    }
+}
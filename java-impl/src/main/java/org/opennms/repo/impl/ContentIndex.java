@@ -0,0 +1,113 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The SHA-256 of files under a base directory, keyed by path relative to it,
+ * together with the {@link FileIdentity} each was computed from, so a digest
+ * can be reused for as long as the file is unchanged.
+ *
+ * Stored as one {@code <sha256> <size> <mtime> <inode> <path>} line per file.
+ */
+public final class ContentIndex {
+    public static final String ALGORITHM = "SHA-256";
+
+    public static final class Entry {
+        private final FileIdentity m_identity;
+        private final String m_sha256;
+
+        public Entry(final FileIdentity identity, final String sha256) {
+            m_identity = identity;
+            m_sha256 = sha256;
+        }
+
+        public FileIdentity getIdentity() {
+            return m_identity;
+        }
+
+        public String getSha256() {
+            return m_sha256;
+        }
+    }
+
+    private final SortedMap<String,Entry> m_entries = new ConcurrentSkipListMap<>();
+
+    public static ContentIndex read(final Path file) throws IOException {
+        final ContentIndex index = new ContentIndex();
+        if (!Files.exists(file)) {
+            return index;
+        }
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = line.split(" ", 5);
+            if (fields.length != 5) {
+                throw new IOException("Malformed content index line in " + file + ": " + line);
+            }
+            try {
+                final FileIdentity identity = new FileIdentity(fields[4], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                index.m_entries.put(fields[4], new Entry(identity, fields[0]));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Malformed content index line in " + file + ": " + line, e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write the index to a new file and move it into place, so readers never see half of it.
+     */
+    public void write(final Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String,Entry> entry : m_entries.entrySet()) {
+                final FileIdentity identity = entry.getValue().getIdentity();
+                writer.write(entry.getValue().getSha256() + " " + identity.getSize() + " " + identity.getLastModified() + " " + identity.getInode() + " " + entry.getKey() + "\n");
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The digest of a file, if it was recorded for exactly this version of it.
+     * @param identity the file as it is now, identified by its relative path
+     * @return the SHA-256, or null if the file is new or has changed
+     */
+    public String get(final FileIdentity identity) {
+        final Entry entry = m_entries.get(identity.getPath());
+        return entry != null && entry.getIdentity().equals(identity) ? entry.getSha256() : null;
+    }
+
+    public void put(final FileIdentity identity, final String sha256) {
+        m_entries.put(identity.getPath(), new Entry(identity, sha256));
+    }
+
+    /**
+     * Forget every file but the given ones.
+     */
+    public void retainAll(final Collection<String> paths) {
+        m_entries.keySet().retainAll(paths instanceof Set ? paths : new HashSet<>(paths));
+    }
+
+    public Map<String,Entry> getEntries() {
+        return new TreeMap<>(m_entries);
+    }
+
+    public int size() {
+        return m_entries.size();
+    }
+}
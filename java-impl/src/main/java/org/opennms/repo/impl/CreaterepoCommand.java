@@ -1,14 +1,16 @@
 package org.opennms.repo.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.launcher.CommandLauncherFactory;
 import org.opennms.repo.api.RepositoryException;
 import org.opennms.repo.api.RepositoryIndexException;
 import org.slf4j.Logger;
@@ -17,21 +19,19 @@ import org.slf4j.LoggerFactory;
 public class CreaterepoCommand extends Command {
     private static final Logger LOG = LoggerFactory.getLogger(CreaterepoCommand.class);
 
+    private static final int MAX_ERROR_LINES = 10;
+
     private final Path m_root;
 
     private boolean m_supportsChecksum;
-    //private boolean m_supportsDeltas;
+    private boolean m_supportsDeltas;
     private boolean m_supportsUpdate;
+    private long m_timeout = 0;
 
     public CreaterepoCommand(Path root) throws RepositoryException {
         super("createrepo");
         m_root = root;
-
-        try {
-            init();
-        } catch (final IOException | InterruptedException e) {
-            throw new RepositoryException(e);
-        }
+        init();
     }
 
     public CreaterepoCommand update(final boolean update) {
@@ -45,35 +45,53 @@ public class CreaterepoCommand extends Command {
         return this;
     }
 
-    private void init() throws IOException, InterruptedException {
-        LOG.debug("CreaterepoCommand.init()");
+    public boolean supportsUpdate() {
+        return m_supportsUpdate;
+    }
+
+    public boolean supportsDeltas() {
+        return m_supportsDeltas;
+    }
 
-        final CommandLine cl = new CommandLine("createrepo").addArgument("--help");
-        LOG.debug("CreaterepoCommand.init(): command line = {}", cl);
+    /**
+     * Generate delta RPMs against up to {@code numDeltas} older versions of each
+     * package, found in the repository and in {@code oldPackageDirs}.
+     */
+    public CreaterepoCommand deltas(final int numDeltas, final long maxDeltaRpmSize, final Collection<Path> oldPackageDirs) {
+        if (!m_supportsDeltas) {
+            throw new IllegalStateException("System createrepo doesn't support --deltas!");
+        }
+        this.addArgument("--deltas");
+        this.addArgument("--num-deltas");
+        this.addArgument(Integer.toString(numDeltas));
+        this.addArgument("--max-delta-rpm-size");
+        this.addArgument(Long.toString(maxDeltaRpmSize));
+        for (final Path dir : oldPackageDirs) {
+            this.addArgument("--oldpackagedirs");
+            this.addArgument(dir.toAbsolutePath().toString());
+        }
+        return this;
+    }
 
-        final Process p = CommandLauncherFactory.createVMLauncher().exec(cl, getEnvironment());
+    /**
+     * Keep createrepo's per-package checksum cache in the given directory.
+     */
+    public CreaterepoCommand cacheDir(final Path cacheDir) {
+        this.addArgument("--cachedir");
+        this.addArgument(cacheDir.toAbsolutePath().toString());
+        return this;
+    }
 
-        LOG.debug("CreaterepoCommand.init(): process created: {}", p);
-        try (final InputStream s = p.getInputStream(); final Reader r = new InputStreamReader(s); final BufferedReader br = new BufferedReader(r);) {
-            LOG.debug("s={}, r={}, br={}", s, r, br);
-            String line = null;
-            do {
-                line = br.readLine();
-                if (line == null) {
-                    break;
-                }
-                if (line.contains("--checksum=")) {
-                    m_supportsChecksum = true;
-                    /*
-                } else if (line.contains("--deltas")) {
-                    m_supportsDeltas = true;
-                     */
-                } else if (line.contains("--update")) {
-                    m_supportsUpdate = true;
-                }
-            } while (line != null);
+    private void init() {
+        // the options are read from `createrepo --help` once per install, not once per command
+        final ToolRegistry.Tool tool = ToolRegistry.getInstance().get("createrepo");
+        if (tool == null) {
+            throw new RepositoryException("createrepo is not installed!");
         }
-        p.waitFor();
+        m_supportsChecksum = tool.supports("--checksum");
+        m_supportsDeltas = tool.supports("--deltas");
+        m_supportsUpdate = tool.supports("--update");
+        LOG.debug("{}: checksum={}, deltas={}, update={}", tool, m_supportsChecksum, m_supportsDeltas, m_supportsUpdate);
 
         if (m_supportsChecksum) {
             this.addArgument("--checksum");
@@ -81,19 +99,84 @@ public class CreaterepoCommand extends Command {
         }
     }
 
-    public void run() {
+    /**
+     * Kill createrepo if it has not finished in this long.
+     */
+    public CreaterepoCommand timeout(final long timeout, final TimeUnit unit) {
+        m_timeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Start createrepo without waiting for it; several can run at once.
+     * @return completes when createrepo has succeeded, or fails with a {@link RepositoryIndexException}
+     */
+    public CompletableFuture<Void> start() {
         final String rootDirectory = m_root.toAbsolutePath().toString();
+        final CommandLine exec = new CommandLine(this.getExecutable());
+        exec.addArguments(this.getArguments());
+        exec.addArgument("--outputdir").addArgument(rootDirectory);
+        exec.addArgument(rootDirectory);
+        exec.setSubstitutionMap(this.getSubstitutionMap());
+
+        // keep the end of stderr for the exception, in case it fails
+        final Deque<String> errors = new ArrayDeque<>();
+        final CommandBuilder builder = new CommandBuilder(exec)
+                .stdout(line -> LOG.debug("createrepo: {}", line))
+                .stderr(line -> {
+                    LOG.info("createrepo: {}", line);
+                    synchronized (errors) {
+                        if (errors.size() == MAX_ERROR_LINES) {
+                            errors.removeFirst();
+                        }
+                        errors.addLast(line);
+                    }
+                });
+        if (m_timeout > 0) {
+            builder.timeout(m_timeout, TimeUnit.MILLISECONDS);
+        }
 
+        final CompletableFuture<Integer> process;
         try {
-            final CommandLine exec = new CommandLine(this.getExecutable());
-            exec.addArguments(this.getArguments());
-            exec.addArgument("--outputdir").addArgument(rootDirectory);
-            exec.addArgument(rootDirectory);
-            exec.setSubstitutionMap(this.getSubstitutionMap());
-            final Process p = CommandLauncherFactory.createVMLauncher().exec(exec, getEnvironment());
-            p.waitFor();
-        } catch (final IOException | InterruptedException e) {
-            throw new RepositoryIndexException(e);
+            process = builder.start();
+        } catch (final IOException e) {
+            final CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new RepositoryIndexException("Failed to start createrepo for " + m_root, e));
+            return failed;
+        }
+        final CompletableFuture<Void> result = process.handle((exitValue, t) -> {
+            if (t != null) {
+                throw new RepositoryIndexException("createrepo failed for " + m_root, t instanceof CompletionException ? t.getCause() : t);
+            }
+            if (exitValue != 0) {
+                synchronized (errors) {
+                    throw new RepositoryIndexException("createrepo failed for " + m_root + " with exit code " + exitValue + (errors.isEmpty() ? "" : ": " + String.join("\n", errors)));
+                }
+            }
+            return null;
+        });
+        // cancelling the result cancels (and kills) createrepo
+        result.whenComplete((ignored, t) -> {
+            if (result.isCancelled()) {
+                process.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public void run() {
+        final CompletableFuture<Void> result = start();
+        try {
+            result.get();
+        } catch (final InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RepositoryIndexException("Interrupted while running createrepo for " + m_root, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RepositoryIndexException) {
+                throw (RepositoryIndexException) e.getCause();
+            }
+            throw new RepositoryIndexException(e.getCause());
         }
     }
 }
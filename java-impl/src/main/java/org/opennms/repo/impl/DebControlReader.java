@@ -0,0 +1,202 @@
+package org.opennms.repo.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.opennms.repo.api.RepositoryException;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Reads the {@code control} file out of a {@code .deb} without unpacking it
+ * or forking {@code dpkg-deb}.
+ *
+ * A {@code .deb} is an {@code ar} archive; only the member headers are read
+ * until {@code control.tar[.gz|.xz|.zst]} is found, and that member is then
+ * decompressed and scanned for the {@code control} entry.  The (much larger)
+ * data member is never touched.
+ */
+public abstract class DebControlReader {
+    private static final byte[] AR_MAGIC = "!<arch>\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int AR_HEADER_SIZE = 60;
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /* control tarballs are tiny; anything bigger than this is not a real package */
+    private static final long MAX_CONTROL_SIZE = 64L * 1024 * 1024;
+
+    private DebControlReader() {
+    }
+
+    /**
+     * Read and parse the control file of the given package.
+     * @return the control fields, in file order
+     */
+    public static Map<String,String> read(final Path deb) throws RepositoryException {
+        try (final FileChannel channel = FileChannel.open(deb, StandardOpenOption.READ)) {
+            return parseControl(readControl(channel));
+        } catch (final IOException | RepositoryException e) {
+            throw new RepositoryException("Unable to read control data from " + deb + ": " + e.getMessage(), e);
+        }
+    }
+
+    static String readControl(final FileChannel channel) throws IOException {
+        final ByteBuffer magic = ByteBuffer.allocate(AR_MAGIC.length);
+        readFully(channel, magic, 0);
+        if (!magic.equals(ByteBuffer.wrap(AR_MAGIC))) {
+            throw new RepositoryException("Not an ar archive.");
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(AR_HEADER_SIZE);
+        long position = AR_MAGIC.length;
+        final long size = channel.size();
+        while (position + AR_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            final String name = ascii(header.array(), 0, 16).trim();
+            final long memberSize = parseLong(ascii(header.array(), 48, 10).trim(), 10);
+            position += AR_HEADER_SIZE;
+            if (memberSize < 0 || memberSize > size - position) {
+                throw new RepositoryException("Invalid size for member " + name + ": " + memberSize + " bytes.");
+            }
+
+            final String member = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+            if (member.startsWith("control.tar")) {
+                if (memberSize > MAX_CONTROL_SIZE) {
+                    throw new RepositoryException("Control member is too large: " + memberSize + " bytes.");
+                }
+                final ByteBuffer data = ByteBuffer.allocate((int)memberSize);
+                readFully(channel, data, position);
+                try (final InputStream is = decompress(member, new ByteArrayInputStream(data.array()))) {
+                    return findControl(is);
+                }
+            }
+            // members are padded to an even offset
+            position += memberSize + (memberSize & 1);
+        }
+        throw new RepositoryException("No control.tar member found.");
+    }
+
+    private static InputStream decompress(final String member, final InputStream is) throws IOException {
+        if (member.equals("control.tar")) {
+            return is;
+        } else if (member.equals("control.tar.gz")) {
+            return new GZIPInputStream(is);
+        } else if (member.equals("control.tar.xz")) {
+            return new XZInputStream(is);
+        } else if (member.equals("control.tar.zst")) {
+            return Compression.ZSTD.decompress(is);
+        }
+        throw new RepositoryException("Unsupported control member compression: " + member);
+    }
+
+    private static String findControl(final InputStream is) throws IOException {
+        final byte[] header = new byte[TAR_BLOCK_SIZE];
+        while (true) {
+            if (IOUtils.read(is, header) < TAR_BLOCK_SIZE || header[0] == 0) {
+                throw new RepositoryException("No control file found in control.tar.");
+            }
+            String name = cString(header, 0, 100);
+            final String prefix = cString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            final long size = parseLong(cString(header, 124, 12).trim(), 8);
+            if (size < 0) {
+                throw new RepositoryException("Invalid size for control.tar entry " + name + ": " + size + " bytes.");
+            }
+            final byte type = header[156];
+            final long padded = (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+
+            if ((type == '0' || type == 0) && (name.equals("./control") || name.equals("control"))) {
+                if (size > MAX_CONTROL_SIZE) {
+                    throw new RepositoryException("Control file is too large: " + size + " bytes.");
+                }
+                final byte[] control = new byte[(int)size];
+                IOUtils.readFully(is, control);
+                return new String(control, StandardCharsets.UTF_8);
+            }
+            IOUtils.skipFully(is, padded);
+        }
+    }
+
+    /**
+     * Parse a single control stanza.  Continuation lines are kept as-is
+     * (including their leading whitespace), so values can be written back out
+     * unchanged.
+     */
+    public static Map<String,String> parseControl(final String text) {
+        final Map<String,String> fields = new LinkedHashMap<>();
+        String field = null;
+        StringBuilder value = null;
+        for (final String line : text.split("\n")) {
+            if (line.isEmpty()) {
+                if (field != null) {
+                    break;
+                }
+                continue;
+            }
+            if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+                if (value == null) {
+                    throw new RepositoryException("Continuation line without a field: " + line);
+                }
+                value.append('\n').append(line);
+                continue;
+            }
+            final int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new RepositoryException("Invalid control line: " + line);
+            }
+            if (field != null) {
+                fields.put(field, value.toString());
+            }
+            field = line.substring(0, colon);
+            value = new StringBuilder(line.substring(colon + 1).trim());
+        }
+        if (field != null) {
+            fields.put(field, value.toString());
+        }
+        return fields;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + pos);
+            }
+            pos += read;
+        }
+        buffer.flip();
+    }
+
+    private static String ascii(final byte[] bytes, final int offset, final int length) {
+        return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    private static String cString(final byte[] bytes, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return ascii(bytes, offset, end - offset);
+    }
+
+    private static long parseLong(final String value, final int radix) {
+        try {
+            return value.isEmpty() ? 0 : Long.parseLong(value, radix);
+        } catch (final NumberFormatException e) {
+            throw new RepositoryException("Invalid number in archive header: " + value, e);
+        }
+    }
+}
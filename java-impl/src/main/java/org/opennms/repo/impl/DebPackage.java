@@ -0,0 +1,92 @@
+package org.opennms.repo.impl;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.opennms.repo.api.Package;
+
+/**
+ * A {@code .deb} file in an APT repository: its control fields plus the
+ * file-level facts (location, size, checksums) that {@code Packages} records.
+ */
+public final class DebPackage implements Package {
+    private final Path m_path;
+    private final String m_filename;
+    private final Map<String,String> m_control;
+    private final DebVersion m_version;
+    private final long m_size;
+    private final String m_md5;
+    private final String m_sha1;
+    private final String m_sha256;
+
+    public DebPackage(final Path path, final String filename, final Map<String,String> control, final long size, final String md5, final String sha1, final String sha256) {
+        m_path = path;
+        m_filename = filename;
+        m_control = Collections.unmodifiableMap(control);
+        m_size = size;
+        m_md5 = md5;
+        m_sha1 = sha1;
+        m_sha256 = sha256;
+
+        final String version = control.get("Version");
+        if (control.get("Package") == null || control.get("Architecture") == null || version == null) {
+            throw new IllegalArgumentException("Package, Version and Architecture are required in " + path);
+        }
+        m_version = DebVersion.parse(version);
+    }
+
+    @Override
+    public String getName() {
+        return m_control.get("Package");
+    }
+
+    @Override
+    public String getArch() {
+        return m_control.get("Architecture");
+    }
+
+    @Override
+    public DebVersion getVersion() {
+        return m_version;
+    }
+
+    @Override
+    public Path getPath() {
+        return m_path;
+    }
+
+    /**
+     * The package location relative to the archive root, as written to the
+     * {@code Filename} field, eg. {@code dists/stable/main/binary-all/foo_1.0_all.deb}.
+     */
+    public String getFilename() {
+        return m_filename;
+    }
+
+    /** The control fields, in the order they appear in the package. */
+    public Map<String,String> getControl() {
+        return m_control;
+    }
+
+    public long getSize() {
+        return m_size;
+    }
+
+    public String getMD5() {
+        return m_md5;
+    }
+
+    public String getSHA1() {
+        return m_sha1;
+    }
+
+    public String getSHA256() {
+        return m_sha256;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "_" + m_version + "_" + getArch();
+    }
+}
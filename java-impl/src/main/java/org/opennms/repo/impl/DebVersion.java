@@ -0,0 +1,248 @@
+package org.opennms.repo.impl;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.opennms.repo.api.Version;
+
+/**
+ * A Debian epoch/upstream version/revision, compared the way
+ * {@code dpkg --compare-versions} does.
+ *
+ * Each part is split once into alternating non-digit and digit runs, so
+ * comparisons walk two small int arrays and never allocate.
+ * {@link #getSortKey()} gives an equivalent byte-array key for bulk sorting
+ * with {@link SortKeys#compare(byte[], byte[])}.
+ */
+public final class DebVersion implements Version {
+    private static final int[] EMPTY_RUNS = new int[] { 0, 0, 0, 0 };
+
+    /* sort key bytes: '~' sorts before the end of a run, which sorts before everything else */
+    private static final int KEY_TILDE = 0x01;
+    private static final int KEY_END = 0x02;
+
+    private final int m_epoch;
+    private final String m_version;
+    private final String m_release;
+    private final int[] m_versionRuns;
+    private final int[] m_releaseRuns;
+    private byte[] m_sortKey;
+
+    public DebVersion(final int epoch, final String version, final String release) {
+        m_epoch = epoch;
+        m_version = version == null ? "" : version;
+        m_release = release;
+        m_versionRuns = split(m_version);
+        m_releaseRuns = release == null ? EMPTY_RUNS : split(release);
+    }
+
+    /**
+     * Parse a version in the form {@code [epoch:]upstream_version[-debian_revision]}.
+     */
+    public static DebVersion parse(final String fullVersion) {
+        String rest = fullVersion.trim();
+        int epoch = 0;
+        final int colon = rest.indexOf(':');
+        if (colon >= 0) {
+            try {
+                epoch = Integer.parseInt(rest.substring(0, colon));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid epoch in version " + fullVersion, e);
+            }
+            rest = rest.substring(colon + 1);
+        }
+        final int dash = rest.lastIndexOf('-');
+        if (dash >= 0) {
+            return new DebVersion(epoch, rest.substring(0, dash), rest.substring(dash + 1));
+        }
+        return new DebVersion(epoch, rest, null);
+    }
+
+    @Override
+    public int getEpoch() {
+        return m_epoch;
+    }
+
+    @Override
+    public String getVersion() {
+        return m_version;
+    }
+
+    @Override
+    public String getRelease() {
+        return m_release;
+    }
+
+    @Override
+    public int compareTo(final Version other) {
+        if (other instanceof DebVersion) {
+            return compareTo((DebVersion)other);
+        }
+        return compareTo(new DebVersion(other.getEpoch(), other.getVersion(), other.getRelease()));
+    }
+
+    public int compareTo(final DebVersion other) {
+        if (m_epoch != other.m_epoch) {
+            return m_epoch < other.m_epoch ? -1 : 1;
+        }
+        final int ret = verrevcmp(m_version, m_versionRuns, other.m_version, other.m_versionRuns);
+        if (ret != 0) {
+            return ret;
+        }
+        return verrevcmp(m_release, m_releaseRuns, other.m_release, other.m_releaseRuns);
+    }
+
+    /**
+     * A key that sorts (as unsigned bytes) the same way this version compares.
+     * It is built on first use and kept.
+     */
+    public byte[] getSortKey() {
+        byte[] key = m_sortKey;
+        if (key == null) {
+            final SortKeys.Builder builder = new SortKeys.Builder(8 + m_version.length() * 2 + (m_release == null ? 0 : m_release.length() * 2));
+            builder.putInt(m_epoch);
+            appendSortKey(builder, m_version, m_versionRuns);
+            appendSortKey(builder, m_release, m_releaseRuns);
+            key = builder.toByteArray();
+            m_sortKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Compare two version (or revision) strings like dpkg's {@code verrevcmp()}.
+     */
+    static int verrevcmp(final String a, final String b) {
+        return verrevcmp(a, split(a), b, split(b));
+    }
+
+    /*
+     * A string is stored as groups of four ints: the start and end of a non-digit
+     * run, then the start and end of the digit run that follows it (with leading
+     * zeros stripped).  Either run may be empty.
+     */
+    private static int[] split(final String s) {
+        final int length = s.length();
+        int[] runs = new int[8];
+        int count = 0;
+        int i = 0;
+        do {
+            final int textStart = i;
+            while (i < length && !isDigit(s.charAt(i))) i++;
+            final int textEnd = i;
+            while (i < length && s.charAt(i) == '0') i++;
+            final int digitStart = i;
+            while (i < length && isDigit(s.charAt(i))) i++;
+            if (count + 4 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[count++] = textStart;
+            runs[count++] = textEnd;
+            runs[count++] = digitStart;
+            runs[count++] = i;
+        } while (i < length);
+        return count == runs.length ? runs : Arrays.copyOf(runs, count);
+    }
+
+    private static int verrevcmp(final String a, final int[] ra, final String b, final int[] rb) {
+        final int groups = Math.max(ra.length, rb.length);
+        for (int g = 0; g < groups; g += 4) {
+            // non-digit runs, character by character; a run that ends early is padded with order 0
+            final int textStartA = g < ra.length ? ra[g] : 0;
+            final int textEndA = g < ra.length ? ra[g + 1] : 0;
+            final int textStartB = g < rb.length ? rb[g] : 0;
+            final int textEndB = g < rb.length ? rb[g + 1] : 0;
+            final int textLength = Math.max(textEndA - textStartA, textEndB - textStartB);
+            for (int k = 0; k < textLength; k++) {
+                final int ac = textStartA + k < textEndA ? order(a.charAt(textStartA + k)) : 0;
+                final int bc = textStartB + k < textEndB ? order(b.charAt(textStartB + k)) : 0;
+                if (ac != bc) {
+                    return ac < bc ? -1 : 1;
+                }
+            }
+
+            // digit runs, numerically
+            final int digitsA = g < ra.length ? ra[g + 3] - ra[g + 2] : 0;
+            final int digitsB = g < rb.length ? rb[g + 3] - rb[g + 2] : 0;
+            if (digitsA != digitsB) {
+                return digitsA < digitsB ? -1 : 1;
+            }
+            for (int k = 0; k < digitsA; k++) {
+                final char ac = a.charAt(ra[g + 2] + k);
+                final char bc = b.charAt(rb[g + 2] + k);
+                if (ac != bc) {
+                    return ac < bc ? -1 : 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int order(final char c) {
+        if (isDigit(c)) {
+            return 0;
+        } else if (isAlpha(c)) {
+            return c;
+        } else if (c == '~') {
+            return -1;
+        }
+        return c + 256;
+    }
+
+    private static void appendSortKey(final SortKeys.Builder builder, final String s, final int[] runs) {
+        for (int g = 0; g < runs.length; g += 4) {
+            for (int k = runs[g]; k < runs[g + 1]; k++) {
+                final char c = s.charAt(k);
+                if (c == '~') {
+                    builder.put(KEY_TILDE);
+                } else if (isAlpha(c)) {
+                    builder.put(c);
+                } else {
+                    builder.put(c < 0x80 ? 0x80 + c : 0xff);
+                }
+            }
+            builder.put(KEY_END);
+            builder.putNumber(s, runs[g + 2], runs[g + 3]);
+        }
+        builder.put(KEY_END);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlpha(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(m_epoch, m_version, m_release);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof DebVersion)) return false;
+        final DebVersion that = (DebVersion) obj;
+        return m_epoch == that.m_epoch &&
+                m_version.equals(that.m_version) &&
+                Objects.equals(m_release, that.m_release);
+    }
+
+    /**
+     * The version in the form {@code [epoch:]upstream_version[-debian_revision]}, omitting a zero epoch.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        if (m_epoch != 0) {
+            sb.append(m_epoch).append(':');
+        }
+        sb.append(m_version);
+        if (m_release != null) {
+            sb.append('-').append(m_release);
+        }
+        return sb.toString();
+    }
+}
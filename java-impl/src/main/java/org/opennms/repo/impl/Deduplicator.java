@@ -0,0 +1,368 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.io.FileUtils;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces identical packages across all the repositories under a base
+ * directory with hard links to one copy.  {@code Repo.copy_package} and
+ * {@code install_package} make real copies, so the same package often ends up
+ * stored once per release and platform.
+ *
+ * Packages are grouped by size first, and only files that share a size with a
+ * different file are checksummed at all.  Digests are kept in
+ * {@code .repocache/dedupe.index} under the base (see {@link ContentIndex})
+ * and reused while a file's size, modification time and inode are unchanged,
+ * so a later run only reads files that are new since the last one.  Only
+ * {@link #deduplicate()} saves the index and the repository scans;
+ * {@link #findDuplicates()} writes nothing.
+ *
+ * Within each set of identical files, the one with the most links is kept and
+ * each other path is replaced by linking the kept file to a temporary name in
+ * the same directory and renaming it over the path, so the path always refers
+ * to a complete package.  Before that, both files are checked to be unchanged
+ * since they were looked at and compared byte for byte, so neither a stale
+ * digest nor a file being written concurrently is ever replaced.  Files on
+ * different file systems cannot be linked and are left alone.  A linked path
+ * takes on the kept file's modification time and permissions.
+ */
+public class Deduplicator {
+    private static final Logger LOG = LoggerFactory.getLogger(Deduplicator.class);
+
+    public static final String INDEX_FILE = "dedupe.index";
+
+    private final Path m_base;
+    private final FileHasher m_hasher;
+    private final ForkJoinPool m_pool;
+    private final Path m_indexFile;
+
+    /**
+     * @param hasher checksums files that have no digest in the index yet
+     * @param pool repositories are scanned and files are replaced on this pool
+     */
+    public Deduplicator(final Path base, final FileHasher hasher, final ForkJoinPool pool) {
+        m_base = base.toAbsolutePath();
+        m_hasher = hasher;
+        m_pool = pool;
+        m_indexFile = m_base.resolve(PackageMetadataCache.CACHE_DIR).resolve(INDEX_FILE);
+    }
+
+    public Path getIndexFile() {
+        return m_indexFile;
+    }
+
+    /**
+     * Find the sets of identical files, without changing any of them.
+     */
+    public List<Group> findDuplicates() throws IOException {
+        return scan(true).m_groups;
+    }
+
+    /**
+     * Link every set of identical files to one copy.
+     */
+    public Result deduplicate() throws IOException {
+        final Scan scan = scan(false);
+        final List<Future<long[]>> tasks = new ArrayList<>(scan.m_groups.size());
+        for (final Group group : scan.m_groups) {
+            tasks.add(m_pool.submit(() -> consolidate(group, scan.m_index)));
+        }
+
+        int linked = 0;
+        long saved = 0;
+        RepositoryException failure = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                final long[] result = tasks.get(i).get();
+                linked += result[0];
+                saved += result[1];
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while linking duplicate packages.", e);
+            } catch (final ExecutionException e) {
+                final Group group = scan.m_groups.get(i);
+                if (failure == null) {
+                    failure = new RepositoryException("Failed to link copies of " + group.getKept(), e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        // save what was learned even if some links failed, so the next run need not hash again
+        scan.m_index.write(m_indexFile);
+        if (failure != null) {
+            throw failure;
+        }
+
+        final Result result = new Result(scan.m_files, scan.m_hashed, scan.m_groups, linked, saved);
+        LOG.info("Linked {} duplicate packages under {}, saving {} bytes ({} of {} files checksummed)", linked, m_base, saved, scan.m_hashed, scan.m_files);
+        return result;
+    }
+
+    private Scan scan(final boolean readOnly) throws IOException {
+        final Set<Path> files = new TreeSet<>();
+        for (final Repository repo : IndexOrchestrator.findRepositories(m_base)) {
+            final String suffix = repo instanceof AptRepository ? ".deb" : ".rpm";
+            final RepositoryScanner scanner = new RepositoryScanner(repo.getRoot(), suffix, m_pool);
+            scanner.setReadOnly(readOnly);
+            files.addAll(scanner.scan());
+        }
+
+        ContentIndex index;
+        try {
+            index = ContentIndex.read(m_indexFile);
+        } catch (final IOException e) {
+            LOG.warn("Ignoring unreadable content index {}: {}", m_indexFile, e.getMessage());
+            index = new ContentIndex();
+        }
+
+        // size -> inode -> paths; hard links to one inode are already deduplicated
+        final Map<Long,Map<Object,List<FileIdentity>>> bySize = new TreeMap<>();
+        final Set<String> seen = new HashSet<>();
+        for (final Path file : files) {
+            final FileIdentity identity;
+            try {
+                identity = FileIdentity.of(file, m_base.relativize(file.toAbsolutePath()).toString());
+            } catch (final NoSuchFileException e) {
+                continue;
+            }
+            seen.add(identity.getPath());
+            final Object inode = identity.getInode() == FileIdentity.UNKNOWN_INODE ? identity.getPath() : identity.getInode();
+            bySize.computeIfAbsent(identity.getSize(), size -> new LinkedHashMap<>()).computeIfAbsent(inode, key -> new ArrayList<>()).add(identity);
+        }
+        index.retainAll(seen);
+
+        // checksum one path per inode, and only where another file has the same size
+        final List<List<FileIdentity>> candidates = new ArrayList<>();
+        final List<Future<FileChecksums>> tasks = new ArrayList<>();
+        for (final Map<Object,List<FileIdentity>> inodes : bySize.values()) {
+            if (inodes.size() > 1) {
+                for (final List<FileIdentity> links : inodes.values()) {
+                    candidates.add(links);
+                    final String sha256 = index.get(links.get(0));
+                    tasks.add(sha256 == null ? m_hasher.submit(resolve(links.get(0)), ContentIndex.ALGORITHM) : null);
+                }
+            }
+        }
+
+        int hashed = 0;
+        final Map<String,List<List<FileIdentity>>> byDigest = new LinkedHashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            final List<FileIdentity> links = candidates.get(i);
+            String sha256 = index.get(links.get(0));
+            if (sha256 == null) {
+                sha256 = get(tasks.get(i)).get(ContentIndex.ALGORITHM);
+                hashed++;
+            }
+            for (final FileIdentity link : links) {
+                index.put(link, sha256);
+            }
+            byDigest.computeIfAbsent(links.get(0).getSize() + ":" + sha256, key -> new ArrayList<>()).add(links);
+        }
+
+        final List<Group> groups = new ArrayList<>();
+        for (final List<List<FileIdentity>> copies : byDigest.values()) {
+            if (copies.size() > 1) {
+                groups.add(new Group(copies, index.get(copies.get(0).get(0))));
+            }
+        }
+        LOG.debug("{}: {} packages, {} checksummed, {} sets of duplicates", m_base, files.size(), hashed, groups.size());
+        return new Scan(seen.size(), hashed, groups, index);
+    }
+
+    /**
+     * @return how many paths were replaced, and how many bytes that freed
+     */
+    private long[] consolidate(final Group group, final ContentIndex index) throws IOException {
+        final FileIdentity kept = group.m_copies.get(0).get(0);
+        long linked = 0;
+        long saved = 0;
+        for (final List<FileIdentity> links : group.m_copies.subList(1, group.m_copies.size())) {
+            final int linkCount = LinkUtils.getLinkCount(resolve(links.get(0)));
+            int replaced = 0;
+            for (final FileIdentity link : links) {
+                if (replace(kept, link)) {
+                    index.put(FileIdentity.of(resolve(link), link.getPath()), group.getSha256());
+                    replaced++;
+                }
+            }
+            linked += replaced;
+            if (replaced == linkCount) {
+                saved += kept.getSize();
+            }
+        }
+        return new long[] { linked, saved };
+    }
+
+    private boolean replace(final FileIdentity kept, final FileIdentity duplicate) throws IOException {
+        final Path source = resolve(kept);
+        final Path target = resolve(duplicate);
+        if (!kept.equals(FileIdentity.of(source, kept.getPath())) || !duplicate.equals(FileIdentity.of(target, duplicate.getPath()))) {
+            LOG.warn("Not linking {} to {}: one of them changed while deduplicating", target, source);
+            return false;
+        }
+        if (!FileUtils.contentEquals(source.toFile(), target.toFile())) {
+            LOG.warn("Not linking {} to {}: contents differ despite the same SHA-256", target, source);
+            return false;
+        }
+
+        final Path temp = target.resolveSibling("." + target.getFileName() + ".dedupe-" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        try {
+            Files.createLink(temp, source);
+        } catch (final UnsupportedOperationException | FileSystemException e) {
+            LOG.debug("Unable to link {} to {}: {}", target, source, e.getMessage());
+            return false;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        LOG.debug("Linked {} to {}", target, source);
+        return true;
+    }
+
+    private Path resolve(final FileIdentity identity) {
+        return m_base.resolve(identity.getPath());
+    }
+
+    private static FileChecksums get(final Future<FileChecksums> task) throws IOException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while checksumming packages.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new RepositoryException(e.getCause());
+        }
+    }
+
+    private static final class Scan {
+        private final int m_files;
+        private final int m_hashed;
+        private final List<Group> m_groups;
+        private final ContentIndex m_index;
+
+        private Scan(final int files, final int hashed, final List<Group> groups, final ContentIndex index) {
+            m_files = files;
+            m_hashed = hashed;
+            m_groups = groups;
+            m_index = index;
+        }
+    }
+
+    /**
+     * A set of identical files.  Each copy is a separate file on disk, listed
+     * with all of its paths; the first copy is the one the others are linked to.
+     */
+    public static final class Group {
+        private final List<List<FileIdentity>> m_copies;
+        private final String m_sha256;
+
+        private Group(final List<List<FileIdentity>> copies, final String sha256) {
+            final List<List<FileIdentity>> sorted = new ArrayList<>(copies);
+            // keep the copy that is already linked the most, so the fewest paths change
+            Collections.sort(sorted, (a, b) -> a.size() != b.size() ? b.size() - a.size() : a.get(0).getPath().compareTo(b.get(0).getPath()));
+            m_copies = Collections.unmodifiableList(sorted);
+            m_sha256 = sha256;
+        }
+
+        public String getSha256() {
+            return m_sha256;
+        }
+
+        public long getSize() {
+            return m_copies.get(0).get(0).getSize();
+        }
+
+        /** The path, relative to the base, of the copy that is kept. */
+        public String getKept() {
+            return m_copies.get(0).get(0).getPath();
+        }
+
+        /** The paths, relative to the base, that are replaced by links to the kept copy. */
+        public List<String> getDuplicates() {
+            final List<String> paths = new ArrayList<>();
+            for (final List<FileIdentity> links : m_copies.subList(1, m_copies.size())) {
+                for (final FileIdentity link : links) {
+                    paths.add(link.getPath());
+                }
+            }
+            return paths;
+        }
+
+        /** How many separate files have this content. */
+        public int getCopies() {
+            return m_copies.size();
+        }
+    }
+
+    /**
+     * What a deduplication run found and did.
+     */
+    public static final class Result {
+        private final int m_files;
+        private final int m_hashed;
+        private final List<Group> m_groups;
+        private final int m_linked;
+        private final long m_bytesSaved;
+
+        Result(final int files, final int hashed, final List<Group> groups, final int linked, final long bytesSaved) {
+            m_files = files;
+            m_hashed = hashed;
+            m_groups = Collections.unmodifiableList(groups);
+            m_linked = linked;
+            m_bytesSaved = bytesSaved;
+        }
+
+        /** How many packages were found. */
+        public int getFiles() {
+            return m_files;
+        }
+
+        /** How many files had to be read to checksum them, rather than using the index. */
+        public int getHashed() {
+            return m_hashed;
+        }
+
+        public List<Group> getGroups() {
+            return m_groups;
+        }
+
+        /** How many paths were replaced with links. */
+        public int getLinked() {
+            return m_linked;
+        }
+
+        /** Space freed: a file only counts once none of its paths are left. */
+        public long getBytesSaved() {
+            return m_bytesSaved;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.YumRepodataGenerator.ChecksumType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds delta RPMs for a YUM repository, the way {@code createrepo --deltas}
+ * does for {@code YumRepo.pm}.
+ *
+ * For the newest version of each package (by name and architecture) in the
+ * repository, the {@link #setNumDeltas(int) N} most recent older versions are
+ * picked from the repository itself and from the old package directories
+ * (usually the {@code stable} and {@code obsolete} trees for the same
+ * platform), and a delta from each is built in parallel into {@code drpms/}.
+ * Packages larger than {@link #setMaxDeltaRpmSize(long)} are skipped, as are
+ * deltas that turn out no smaller than the package itself.
+ *
+ * Built deltas are remembered in {@code .repocache/deltas.properties} along
+ * with the identity of the two packages they were made from, so unchanged
+ * pairs are not rebuilt on the next run.  Deltas that are no longer wanted are
+ * deleted.
+ */
+public class DeltaRpmGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(DeltaRpmGenerator.class);
+
+    public static final String DRPMS = "drpms";
+    static final String CACHE_FILE = "deltas.properties";
+
+    public static final int DEFAULT_NUM_DELTAS = 5;
+    public static final long DEFAULT_MAX_DELTA_RPM_SIZE = 400000000L;
+
+    /**
+     * Builds a single delta.
+     */
+    public interface DeltaBuilder {
+        /**
+         * Build a delta from {@code oldRpm} to {@code newRpm} in {@code delta}.
+         * @return the delta's sequence ID
+         */
+        String build(Path oldRpm, Path newRpm, Path delta) throws IOException;
+    }
+
+    private static final DeltaBuilder MAKEDELTARPM = (oldRpm, newRpm, delta) -> {
+        final MakedeltarpmCommand command = new MakedeltarpmCommand(oldRpm, newRpm, delta);
+        command.run();
+        return command.getSequence();
+    };
+
+    private final Path m_root;
+    private final List<Path> m_oldPackageDirs;
+    private int m_numDeltas = DEFAULT_NUM_DELTAS;
+    private long m_maxDeltaRpmSize = DEFAULT_MAX_DELTA_RPM_SIZE;
+    private ForkJoinPool m_pool = ForkJoinPool.commonPool();
+    private FileHasher m_hasher = FileHasher.getDefault();
+    private DeltaBuilder m_builder = MAKEDELTARPM;
+
+    public DeltaRpmGenerator(final Path root, final Collection<Path> oldPackageDirs) {
+        m_root = root.toAbsolutePath();
+        m_oldPackageDirs = new ArrayList<>();
+        for (final Path dir : oldPackageDirs) {
+            m_oldPackageDirs.add(dir.toAbsolutePath());
+        }
+    }
+
+    /**
+     * The {@code stable} and {@code obsolete} repositories for the same platform as
+     * a {@code <base>/<release>/<platform>} repository, if they exist.
+     */
+    public static List<Path> findOldPackageDirs(final Path root) {
+        final Path repo = root.toAbsolutePath().normalize();
+        final Path release = repo.getParent();
+        if (release == null || release.getParent() == null) {
+            return Collections.emptyList();
+        }
+        Path base = release.getParent();
+        if (base.getFileName() != null && "branches".equals(base.getFileName().toString()) && base.getParent() != null) {
+            base = base.getParent();
+        }
+        final List<Path> dirs = new ArrayList<>();
+        for (final String tree : new String[] { "stable", "obsolete" }) {
+            final Path dir = base.resolve(tree).resolve(repo.getFileName());
+            if (!dir.equals(repo) && Files.isDirectory(dir)) {
+                dirs.add(dir);
+            }
+        }
+        return dirs;
+    }
+
+    public List<Path> getOldPackageDirs() {
+        return Collections.unmodifiableList(m_oldPackageDirs);
+    }
+
+    public int getNumDeltas() {
+        return m_numDeltas;
+    }
+
+    /** How many older versions of each package to build deltas from. */
+    public void setNumDeltas(final int numDeltas) {
+        m_numDeltas = numDeltas;
+    }
+
+    public long getMaxDeltaRpmSize() {
+        return m_maxDeltaRpmSize;
+    }
+
+    /** Packages larger than this many bytes do not get deltas. */
+    public void setMaxDeltaRpmSize(final long maxDeltaRpmSize) {
+        m_maxDeltaRpmSize = maxDeltaRpmSize;
+    }
+
+    public void setPool(final ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    public void setHasher(final FileHasher hasher) {
+        m_hasher = hasher;
+    }
+
+    public void setBuilder(final DeltaBuilder builder) {
+        m_builder = builder;
+    }
+
+    /**
+     * Build (or reuse) deltas for the given packages, which must be the packages
+     * in this repository.
+     * @return the deltas to list in {@code prestodelta.xml}
+     */
+    public List<DeltaRpm> generate(final List<RPMPackage> packages, final ChecksumType checksumType) throws IOException {
+        final PackageSet<RPMPackage> candidates = new PackageSet<>(packages);
+        for (final Path dir : m_oldPackageDirs) {
+            candidates.addAll(readOldPackages(dir));
+        }
+
+        final Path drpms = m_root.resolve(DRPMS);
+        final Path cacheFile = m_root.resolve(PackageMetadataCache.CACHE_DIR).resolve(CACHE_FILE);
+        final Properties cache = loadCache(cacheFile);
+        final Properties updated = new Properties();
+
+        final List<Future<DeltaRpm>> tasks = new ArrayList<>();
+        for (final RPMPackage newest : new PackageSet<>(packages).findNewest()) {
+            if (newest.getSize() > m_maxDeltaRpmSize) {
+                LOG.debug("Not building deltas for {}: {} bytes is larger than {}", newest, newest.getSize(), m_maxDeltaRpmSize);
+                continue;
+            }
+            int count = 0;
+            final Set<RPMVersion> seen = new HashSet<>();
+            for (final RPMPackage old : candidates.findByNameAndArch(newest.getName(), newest.getArch())) {
+                if (count >= m_numDeltas) {
+                    break;
+                }
+                if (old.getVersion().compareTo(newest.getVersion()) >= 0 || !seen.add(old.getVersion())) {
+                    continue;
+                }
+                count++;
+                tasks.add(m_pool.submit(() -> buildDelta(drpms, old, newest, checksumType, cache)));
+            }
+        }
+
+        final List<DeltaRpm> deltas = new ArrayList<>();
+        for (final Future<DeltaRpm> task : tasks) {
+            final DeltaRpm delta = get(task);
+            if (delta != null) {
+                deltas.add(delta);
+                updated.setProperty(delta.getFilename(), delta.getCacheValue());
+            }
+        }
+
+        removeStaleDeltas(drpms, deltas);
+        saveCache(cacheFile, updated);
+        LOG.debug("{} deltas for {}", deltas.size(), m_root);
+        return deltas;
+    }
+
+    private DeltaRpm buildDelta(final Path drpms, final RPMPackage oldPkg, final RPMPackage newPkg, final ChecksumType checksumType, final Properties cache) throws IOException {
+        final String filename = DRPMS + "/" + getDeltaName(oldPkg, newPkg);
+        final Path delta = m_root.resolve(filename);
+        final String source = getSourceKey(oldPkg, newPkg);
+
+        String sequence = null;
+        final String cached = cache.getProperty(filename);
+        if (cached != null && Files.isRegularFile(delta)) {
+            final int tab = cached.lastIndexOf('\t');
+            if (tab > 0 && cached.substring(0, tab).equals(source)) {
+                sequence = cached.substring(tab + 1);
+                LOG.debug("Reusing delta {}", delta);
+            }
+        }
+
+        if (sequence == null) {
+            Files.createDirectories(drpms);
+            final Path temp = LinkUtils.createTempFile(delta);
+            try {
+                LOG.debug("Building delta {} from {}", delta, oldPkg.getPath());
+                sequence = m_builder.build(oldPkg.getPath(), newPkg.getPath(), temp);
+                if (Files.size(temp) >= newPkg.getSize()) {
+                    LOG.debug("Discarding delta {}: it is no smaller than {}", delta, newPkg.getPath());
+                    return null;
+                }
+                Files.move(temp, delta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException | RepositoryException e) {
+                LOG.warn("Failed to build delta from {} to {}: {}", oldPkg.getPath(), newPkg.getPath(), e.getMessage());
+                return null;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        final FileChecksums checksums = m_hasher.hash(delta, checksumType.getAlgorithm());
+        return new DeltaRpm(newPkg, oldPkg.getVersion(), filename, sequence, checksums.getSize(), checksumType.getName(), checksums.get(checksumType.getAlgorithm()), source);
+    }
+
+    /* <name>-<oldversion>-<oldrelease>_<newversion>-<newrelease>.<arch>.drpm, like createrepo */
+    static String getDeltaName(final RPMPackage oldPkg, final RPMPackage newPkg) {
+        return newPkg.getName() + "-" + evr(oldPkg.getVersion()) + "_" + evr(newPkg.getVersion()) + "." + newPkg.getArch() + ".drpm";
+    }
+
+    private static String evr(final RPMVersion version) {
+        return version.getVersion() + "-" + version.getRelease();
+    }
+
+    /*
+     * A delta is still good as long as neither package it was made from has changed.
+     * The new package is keyed by location, so a staged copy of the repository can reuse it.
+     */
+    private static String getSourceKey(final RPMPackage oldPkg, final RPMPackage newPkg) {
+        return oldPkg.getPath() + "\t" + oldPkg.getSize() + "\t" + oldPkg.getLastModified() + "\t"
+                + newPkg.getLocation() + "\t" + newPkg.getSize() + "\t" + newPkg.getLastModified();
+    }
+
+    /*
+     * Only the headers of old packages are needed to pick candidates, so they
+     * are not checksummed; nothing is cached in the old repositories either.
+     */
+    private List<RPMPackage> readOldPackages(final Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        final List<Path> paths;
+        try (final Stream<Path> stream = Files.find(dir, Integer.MAX_VALUE, (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().endsWith(".rpm") && !isHidden(dir, path))) {
+            paths = stream.sorted().collect(Collectors.toList());
+        }
+        final List<Future<RPMPackage>> tasks = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            tasks.add(m_pool.submit(() -> {
+                try {
+                    final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    return new RPMPackage(path, dir.relativize(path).toString(), RPMHeaderReader.read(path), attrs.size(), attrs.lastModifiedTime().toMillis(), null, null);
+                } catch (final RepositoryException e) {
+                    LOG.warn("Skipping unreadable package {}: {}", path, e.getMessage());
+                    return null;
+                }
+            }));
+        }
+        final List<RPMPackage> packages = new ArrayList<>(paths.size());
+        for (final Future<RPMPackage> task : tasks) {
+            final RPMPackage pkg = get(task);
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+        }
+        return packages;
+    }
+
+    private static boolean isHidden(final Path dir, final Path path) {
+        for (final Path element : dir.relativize(path)) {
+            if (element.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeStaleDeltas(final Path drpms, final List<DeltaRpm> deltas) throws IOException {
+        if (!Files.isDirectory(drpms)) {
+            return;
+        }
+        final Set<Path> keep = new LinkedHashSet<>();
+        for (final DeltaRpm delta : deltas) {
+            keep.add(m_root.resolve(delta.getFilename()));
+        }
+        try (final Stream<Path> stream = Files.list(drpms)) {
+            for (final Path path : stream.collect(Collectors.toList())) {
+                if (path.getFileName().toString().endsWith(".drpm") && !keep.contains(path)) {
+                    LOG.debug("Removing stale delta {}", path);
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static Properties loadCache(final Path cacheFile) {
+        final Properties cache = new Properties();
+        if (Files.exists(cacheFile)) {
+            try (final InputStream is = Files.newInputStream(cacheFile)) {
+                cache.load(is);
+            } catch (final IOException | IllegalArgumentException e) {
+                LOG.warn("Ignoring unreadable delta cache {}: {}", cacheFile, e.getMessage());
+                cache.clear();
+            }
+        }
+        return cache;
+    }
+
+    private static void saveCache(final Path cacheFile, final Properties cache) throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+        final Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (final OutputStream os = Files.newOutputStream(temp)) {
+            cache.store(os, "delta RPMs and the packages they were built from");
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building deltas.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A delta from an older version of a package to one in the repository.
+     */
+    public static final class DeltaRpm {
+        private final RPMPackage m_newPackage;
+        private final RPMVersion m_oldVersion;
+        private final String m_filename;
+        private final String m_sequence;
+        private final long m_size;
+        private final String m_checksumType;
+        private final String m_checksum;
+        private final String m_source;
+
+        DeltaRpm(final RPMPackage newPackage, final RPMVersion oldVersion, final String filename, final String sequence, final long size, final String checksumType, final String checksum, final String source) {
+            m_newPackage = newPackage;
+            m_oldVersion = oldVersion;
+            m_filename = filename;
+            m_sequence = sequence;
+            m_size = size;
+            m_checksumType = checksumType;
+            m_checksum = checksum;
+            m_source = source;
+        }
+
+        public RPMPackage getNewPackage() {
+            return m_newPackage;
+        }
+
+        public RPMVersion getOldVersion() {
+            return m_oldVersion;
+        }
+
+        /** The delta location relative to the repository root, eg. {@code drpms/foo-1.0-1_1.1-1.noarch.drpm}. */
+        public String getFilename() {
+            return m_filename;
+        }
+
+        public String getSequence() {
+            return m_sequence;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        public String getChecksumType() {
+            return m_checksumType;
+        }
+
+        public String getChecksum() {
+            return m_checksum;
+        }
+
+        String getCacheValue() {
+            return m_source + "\t" + m_sequence;
+        }
+
+        @Override
+        public String toString() {
+            return m_filename;
+        }
+    }
+}
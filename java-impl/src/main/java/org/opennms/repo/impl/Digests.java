@@ -0,0 +1,100 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.opennms.repo.api.RepositoryException;
+
+public abstract class Digests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long MAP_THRESHOLD = 4L * BUFFER_SIZE;
+    private static final long MAP_WINDOW = 256L * BUFFER_SIZE;
+
+    /* direct buffers are expensive to allocate, so each thread keeps one */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private Digests() {
+    }
+
+    public static MessageDigest getInstance(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RepositoryException("Digest algorithm " + algorithm + " is not available.", e);
+        }
+    }
+
+    /**
+     * Digest the contents of a file, returning the lower-case hex checksum.
+     */
+    public static String digest(final Path file, final String algorithm) throws IOException {
+        final MessageDigest digest = getInstance(algorithm);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Digest the contents of a file with several algorithms in a single read,
+     * returning the lower-case hex checksums in the same order as the algorithms.
+     * Large files are memory-mapped a window at a time; smaller ones are read
+     * through a reusable direct buffer.
+     */
+    public static String[] digestAll(final Path file, final String... algorithms) throws IOException {
+        final MessageDigest[] digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[i] = getInstance(algorithms[i]);
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    update(digests, channel.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+                }
+            } else {
+                final ByteBuffer buffer = BUFFER.get();
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    update(digests, buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        final String[] ret = new String[digests.length];
+        for (int i = 0; i < digests.length; i++) {
+            ret[i] = toHex(digests[i].digest());
+        }
+        return ret;
+    }
+
+    private static void update(final MessageDigest[] digests, final ByteBuffer buffer) {
+        for (final MessageDigest digest : digests) {
+            buffer.mark();
+            digest.update(buffer);
+            buffer.reset();
+        }
+    }
+
+    public static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
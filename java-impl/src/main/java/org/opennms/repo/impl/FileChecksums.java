@@ -0,0 +1,50 @@
+package org.opennms.repo.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The checksums of a particular version of a file, keyed by
+ * {@link java.security.MessageDigest} algorithm name (eg. {@code SHA-256}).
+ */
+public final class FileChecksums {
+    private final FileIdentity m_identity;
+    private final Map<String,String> m_checksums;
+
+    public FileChecksums(final FileIdentity identity, final Map<String,String> checksums) {
+        m_identity = identity;
+        m_checksums = Collections.unmodifiableMap(new LinkedHashMap<>(checksums));
+    }
+
+    public FileIdentity getIdentity() {
+        return m_identity;
+    }
+
+    public long getSize() {
+        return m_identity.getSize();
+    }
+
+    /** The lower-case hex checksum for the given algorithm, or null if it was not computed. */
+    public String get(final String algorithm) {
+        return m_checksums.get(algorithm);
+    }
+
+    public boolean contains(final String... algorithms) {
+        for (final String algorithm : algorithms) {
+            if (!m_checksums.containsKey(algorithm)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Map<String,String> getChecksums() {
+        return m_checksums;
+    }
+
+    @Override
+    public String toString() {
+        return m_identity + m_checksums.toString();
+    }
+}
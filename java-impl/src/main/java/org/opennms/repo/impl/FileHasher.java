@@ -0,0 +1,341 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checksums repository files, reading each file once no matter how many
+ * algorithms are asked for, and remembering the results by
+ * {@link FileIdentity} so that indexers and the signer can share them.
+ *
+ * A cached result is reused as long as the file's size, modification time
+ * and inode are unchanged.  If a caller asks for an algorithm that is not
+ * cached yet, only the missing algorithms are computed (still in a single
+ * read) and merged into the cached entry.
+ *
+ * Files are keyed by inode where possible, so hard links to the same package
+ * from several repositories are only read once.  Callers asking for the same
+ * file at the same time wait for the one reading it rather than reading it
+ * again, but nothing is locked while a file is read.  At most
+ * {@code maxEntries} results are kept, least recently used first out, so
+ * entries for files that have been removed or renamed do not pile up.
+ *
+ * {@link #hash(Path, String...)} runs on the calling thread, but no more than
+ * {@code threads} files are read at once however many callers there are, so
+ * many large packages do not saturate the disk with random reads.
+ * {@link #hashAll(Collection, String...)} spreads files across a pool of the
+ * same size.
+ */
+public class FileHasher implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FileHasher.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final FileHasher DEFAULT = new FileHasher(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private final int m_threads;
+    private final Map<Object,FileChecksums> m_cache;
+    private final Map<String,Object> m_keys;
+    private final Map<Object,CompletableFuture<FileChecksums>> m_reading = new ConcurrentHashMap<>();
+    private final Semaphore m_readPermits;
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_bytesRead = new AtomicLong();
+    private volatile ExecutorService m_executor;
+
+    public FileHasher(final int threads) {
+        this(threads, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries how many files' checksums to remember
+     */
+    public FileHasher(final int threads, final int maxEntries) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        m_threads = threads;
+        m_readPermits = new Semaphore(threads);
+        m_cache = lru(maxEntries);
+        m_keys = lru(maxEntries);
+    }
+
+    private static <K,V> Map<K,V> lru(final int maxEntries) {
+        return Collections.synchronizedMap(new LinkedHashMap<K,V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K,V> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * The process-wide hasher, shared by repositories that are not given one explicitly.
+     */
+    public static FileHasher getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Checksum a file with the given algorithms, using cached results where the file is unchanged.
+     * At most {@code threads} files are read at once, whichever thread calls this.
+     */
+    public FileChecksums hash(final Path file, final String... algorithms) throws IOException {
+        final Path path = file.toAbsolutePath().normalize();
+        final FileIdentity identity = FileIdentity.of(path, path.toString());
+        final Object key = cacheKey(identity);
+
+        while (true) {
+            final FileChecksums cached = m_cache.get(key);
+            final boolean current = cached != null && sameContent(cached.getIdentity(), identity);
+            if (current && cached.contains(algorithms)) {
+                m_hits.incrementAndGet();
+                return cached.getIdentity().equals(identity) ? cached : new FileChecksums(identity, cached.getChecksums());
+            }
+
+            // callers hashing the same content (eg. hard links shared between repositories) wait for each other
+            final CompletableFuture<FileChecksums> reading = new CompletableFuture<>();
+            final CompletableFuture<FileChecksums> other = m_reading.putIfAbsent(key, reading);
+            if (other != null) {
+                await(other, path);
+                continue;
+            }
+            try {
+                // someone may have finished reading it since we looked
+                final FileChecksums latest = m_cache.get(key);
+                final boolean latestCurrent = latest != null && sameContent(latest.getIdentity(), identity);
+                if (latest != cached && latestCurrent && latest.contains(algorithms)) {
+                    reading.complete(latest);
+                    continue;
+                }
+                final FileChecksums result = compute(path, identity, key, latestCurrent ? latest : null, algorithms);
+                reading.complete(result);
+                return result;
+            } catch (final IOException | RuntimeException e) {
+                reading.completeExceptionally(e);
+                throw e;
+            } finally {
+                m_reading.remove(key, reading);
+            }
+        }
+    }
+
+    /**
+     * Read the algorithms that {@code cached} (if any) is missing, and cache the result.
+     */
+    private FileChecksums compute(final Path path, final FileIdentity identity, final Object key, final FileChecksums cached, final String[] algorithms) throws IOException {
+        m_misses.incrementAndGet();
+
+        final Set<String> missing = new LinkedHashSet<>();
+        for (final String algorithm : algorithms) {
+            if (cached == null || cached.get(algorithm) == null) {
+                missing.add(algorithm);
+            }
+        }
+        final String[] toCompute = missing.toArray(new String[missing.size()]);
+        final String[] checksums = read(path, toCompute);
+        m_bytesRead.addAndGet(identity.getSize());
+
+        final Map<String,String> computed = cached != null ? new LinkedHashMap<>(cached.getChecksums()) : new LinkedHashMap<>();
+        for (int i = 0; i < toCompute.length; i++) {
+            computed.put(toCompute[i], checksums[i]);
+        }
+        final FileChecksums result = new FileChecksums(identity, computed);
+
+        // if the file changed while we were reading it, the result is not trustworthy enough to keep
+        if (identity.equals(FileIdentity.of(path, path.toString()))) {
+            m_cache.put(key, result);
+            final Object previous = m_keys.put(path.toString(), key);
+            if (previous != null && !previous.equals(key)) {
+                // this path used to be some other content; drop it rather than let it pile up
+                m_cache.remove(previous);
+            }
+        } else {
+            LOG.debug("{} changed while it was being checksummed; not caching.", path);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for another caller to finish reading a file.  If it failed, the
+     * caller will try again itself, so the failure is not reported here.
+     */
+    private static void await(final CompletableFuture<FileChecksums> reading, final Path path) {
+        try {
+            reading.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting to checksum " + path, e);
+        } catch (final ExecutionException e) {
+            LOG.debug("Another checksum of {} failed: {}", path, e.getCause().getMessage());
+        }
+    }
+
+    private String[] read(final Path path, final String[] algorithms) throws IOException {
+        try {
+            m_readPermits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting to checksum " + path, e);
+        }
+        try {
+            return Digests.digestAll(path, algorithms);
+        } finally {
+            m_readPermits.release();
+        }
+    }
+
+    /*
+     * Files are cached by inode where the filesystem has them, so hard links to
+     * the same package (common when releases share packages) are read only once.
+     * Size and modification time are part of the key so that a reused inode
+     * number is not mistaken for the old file.
+     */
+    private static Object cacheKey(final FileIdentity identity) {
+        if (identity.getInode() == FileIdentity.UNKNOWN_INODE) {
+            return identity.getPath();
+        }
+        return Arrays.asList(identity.getInode(), identity.getSize(), identity.getLastModified());
+    }
+
+    private static boolean sameContent(final FileIdentity a, final FileIdentity b) {
+        return a.getInode() == b.getInode() && a.getSize() == b.getSize() && a.getLastModified() == b.getLastModified()
+                && (a.getInode() != FileIdentity.UNKNOWN_INODE || a.getPath().equals(b.getPath()));
+    }
+
+    /**
+     * Checksum many files in parallel on this hasher's pool.
+     * @return the checksums, in the same order as {@code files}
+     */
+    public Map<Path,FileChecksums> hashAll(final Collection<Path> files, final String... algorithms) throws IOException {
+        final ExecutorService executor = getExecutor();
+        final List<Future<FileChecksums>> tasks = new ArrayList<>(files.size());
+        for (final Path file : files) {
+            tasks.add(executor.submit(() -> hash(file, algorithms)));
+        }
+        final Map<Path,FileChecksums> ret = new LinkedHashMap<>();
+        int i = 0;
+        for (final Path file : files) {
+            ret.put(file, get(tasks.get(i++)));
+        }
+        return ret;
+    }
+
+    /**
+     * Checksum a file on this hasher's pool.
+     */
+    public Future<FileChecksums> submit(final Path file, final String... algorithms) {
+        return getExecutor().submit(() -> hash(file, algorithms));
+    }
+
+    /** Forget any cached checksums for the given file. */
+    public void invalidate(final Path file) {
+        final Object key = m_keys.remove(file.toAbsolutePath().normalize().toString());
+        if (key != null) {
+            m_cache.remove(key);
+        }
+    }
+
+    public void clear() {
+        m_keys.clear();
+        m_cache.clear();
+    }
+
+    public int getCacheSize() {
+        return m_cache.size();
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /** The total number of file bytes read to compute checksums. */
+    public long getBytesRead() {
+        return m_bytesRead.get();
+    }
+
+    @Override
+    public void close() {
+        final ExecutorService executor = m_executor;
+        if (executor != null) {
+            executor.shutdown();
+            m_executor = null;
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService executor = m_executor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = m_executor;
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(m_threads, new HasherThreadFactory());
+                    m_executor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static FileChecksums get(final Future<FileChecksums> task) throws IOException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while checksumming files.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RepositoryException(cause);
+        }
+    }
+
+    private static final class HasherThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL = new AtomicInteger();
+        private final int m_pool = POOL.incrementAndGet();
+        private final AtomicInteger m_thread = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "file-hasher-" + m_pool + "-" + m_thread.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
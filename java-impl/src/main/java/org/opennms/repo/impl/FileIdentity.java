@@ -0,0 +1,82 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Identifies a particular version of a file by path, size, modification time and inode.
+ * If any of these change, anything derived from the file's contents must be recomputed.
+ */
+public final class FileIdentity {
+    public static final long UNKNOWN_INODE = -1;
+
+    private final String m_path;
+    private final long m_size;
+    private final long m_lastModified;
+    private final long m_inode;
+
+    public FileIdentity(final String path, final long size, final long lastModified, final long inode) {
+        m_path = path;
+        m_size = size;
+        m_lastModified = lastModified;
+        m_inode = inode;
+    }
+
+    /**
+     * Stat a file, using the given key as its path.  The key is usually relative to a
+     * repository root so that identities survive the repository moving on disk.
+     */
+    public static FileIdentity of(final Path file, final String key) throws IOException {
+        try {
+            final Map<String,Object> attrs = Files.readAttributes(file, "unix:size,lastModifiedTime,ino");
+            return new FileIdentity(key, (Long)attrs.get("size"), ((FileTime)attrs.get("lastModifiedTime")).toMillis(), (Long)attrs.get("ino"));
+        } catch (final UnsupportedOperationException e) {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return new FileIdentity(key, attrs.size(), attrs.lastModifiedTime().toMillis(), UNKNOWN_INODE);
+        }
+    }
+
+    public String getPath() {
+        return m_path;
+    }
+
+    public long getSize() {
+        return m_size;
+    }
+
+    /** Last-modified time, in milliseconds since the epoch. */
+    public long getLastModified() {
+        return m_lastModified;
+    }
+
+    /** The inode number, or {@link #UNKNOWN_INODE} if the filesystem does not expose one. */
+    public long getInode() {
+        return m_inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(m_path, m_size, m_lastModified, m_inode);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof FileIdentity)) return false;
+        final FileIdentity that = (FileIdentity) obj;
+        return m_size == that.m_size &&
+                m_lastModified == that.m_lastModified &&
+                m_inode == that.m_inode &&
+                Objects.equals(m_path, that.m_path);
+    }
+
+    @Override
+    public String toString() {
+        return m_path + "[size=" + m_size + ",mtime=" + m_lastModified + ",ino=" + m_inode + "]";
+    }
+}
@@ -1,16 +1,24 @@
 package org.opennms.repo.impl;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.util.Date;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
@@ -36,6 +44,14 @@ import org.slf4j.LoggerFactory;
 
 public abstract class GPGUtils {
     private static final Logger LOG = LoggerFactory.getLogger(GPGUtils.class);
+
+    /** Size of the chunks fed to the signature generator. */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** Files at least this large are memory-mapped instead of read through a heap buffer. */
+    static final long MAP_THRESHOLD = 1024L * 1024L;
+    /** Maximum size of a single mapped region. */
+    static final long MAP_WINDOW = 64L * 1024L * 1024L;
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
@@ -61,38 +77,139 @@ public abstract class GPGUtils {
     public static void detach_sign(final Path inputFile, final Path outputFile, final GPGInfo gpginfo, final boolean sha256) throws IOException, InterruptedException {
         LOG.debug("Detach-signing {} with key {}", inputFile, gpginfo.getKey());
 
-        try (
-            final FileInputStream sFis = new FileInputStream(inputFile.toFile());
-            final BufferedInputStream sBis = new BufferedInputStream(sFis);
-            final FileOutputStream os = new FileOutputStream(outputFile.toFile());
-            final ArmoredOutputStream aos = new ArmoredOutputStream(os);
-        ) {
-            final PGPPublicKey publicKey = gpginfo.getPublicKey();
-            LOG.debug("publicKey: {}", publicKey);
-            final PGPSecretKey secretKey = gpginfo.getSecretKey();
-            LOG.debug("secretKey: {}", secretKey);
-            final PGPPrivateKey privateKey = gpginfo.getPrivateKey();
-            LOG.debug("privateKey: {}", privateKey);
-            final PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(publicKey.getAlgorithm(), sha256? PGPUtil.SHA256 : PGPUtil.SHA1).setProvider("BC"));
-            LOG.debug("generator: {}", generator);
+        // sign into a temporary file, so a failure never leaves a truncated signature behind
+        final Path temp = LinkUtils.createTempFile(outputFile.toAbsolutePath());
+        try {
+            try (
+                final FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ);
+                final OutputStream os = Files.newOutputStream(temp);
+            ) {
+                detach_sign(channel, os, gpginfo, sha256);
+            }
+            Files.move(temp, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final RepositoryException e) {
+            throw new RepositoryException("Failed to detach-sign " + inputFile + ": " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Detach-sign the remaining contents of a file channel, writing an ASCII-armored
+     * signature to the output stream.  Large files are memory-mapped a window at a
+     * time rather than copied through the heap.  The output stream is not closed.
+     */
+    public static void detach_sign(final FileChannel input, final OutputStream output, final GPGInfo gpginfo, final boolean sha256) throws IOException {
+        final PGPSignatureGenerator generator = createSignatureGenerator(gpginfo, sha256);
+        update(generator, input);
+        writeSignature(generator, output);
+    }
 
+    /**
+     * Detach-sign everything readable from a channel, writing an ASCII-armored
+     * signature to the output stream.  The output stream is not closed.
+     */
+    public static void detach_sign(final ReadableByteChannel input, final OutputStream output, final GPGInfo gpginfo, final boolean sha256) throws IOException {
+        final PGPSignatureGenerator generator = createSignatureGenerator(gpginfo, sha256);
+        update(generator, input);
+        writeSignature(generator, output);
+    }
+
+    /**
+     * Detach-sign everything readable from an already-open stream, writing an
+     * ASCII-armored signature to the output stream.  Neither stream is closed.
+     */
+    public static void detach_sign(final InputStream input, final OutputStream output, final GPGInfo gpginfo, final boolean sha256) throws IOException {
+        final PGPSignatureGenerator generator = createSignatureGenerator(gpginfo, sha256);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            generator.update(buffer, 0, read);
+        }
+        writeSignature(generator, output);
+    }
+
+    /**
+     * Detach-sign the remaining bytes of a buffer (heap, direct, or mapped), writing
+     * an ASCII-armored signature to the output stream.  The output stream is not closed.
+     */
+    public static void detach_sign(final ByteBuffer input, final OutputStream output, final GPGInfo gpginfo, final boolean sha256) throws IOException {
+        final PGPSignatureGenerator generator = createSignatureGenerator(gpginfo, sha256);
+        update(generator, input, new byte[BUFFER_SIZE]);
+        writeSignature(generator, output);
+    }
+
+    static PGPSignatureGenerator createSignatureGenerator(final GPGInfo gpginfo, final boolean sha256) {
+        final PGPPublicKey publicKey = gpginfo.getPublicKey();
+        LOG.debug("publicKey: {}", publicKey);
+        final PGPPrivateKey privateKey = gpginfo.getPrivateKey();
+        LOG.debug("privateKey: {}", privateKey);
+        if (privateKey == null) {
+            throw new RepositoryException("GPG info for " + gpginfo.getKey() + " has no private key!");
+        }
+        try {
+            final PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(publicKey.getAlgorithm(), sha256? PGPUtil.SHA256 : PGPUtil.SHA1).setProvider("BC"));
             generator.init(PGPSignature.BINARY_DOCUMENT, privateKey);
             LOG.debug("Generator initialized.");
-            BCPGOutputStream out = new BCPGOutputStream(aos);
-
-            int ch;
-            while ((ch = sBis.read()) >= 0) {
-                generator.update((byte)ch);
-            }
-            sBis.close();
+            return generator;
+        } catch (final PGPException e) {
+            LOG.debug("PGP exception: {}", e.getMessage(), e);
+            throw new RepositoryException("Failed to initialize signature generator for key " + gpginfo.getKey(), e);
+        }
+    }
 
-            LOG.debug("Encoding to output.");
+    static void writeSignature(final PGPSignatureGenerator generator, final OutputStream output) throws IOException {
+        LOG.debug("Encoding to output.");
+        try (
+            final ArmoredOutputStream aos = new ArmoredOutputStream(new CloseShieldOutputStream(output));
+            final BCPGOutputStream out = new BCPGOutputStream(aos);
+        ) {
             generator.generate().encode(out);
-            LOG.debug("Finished.");
-            out.close();
         } catch (final PGPException e) {
             LOG.debug("PGP exception: {}", e.getMessage(), e);
-            throw new RepositoryException("Failed to detach-sign " + inputFile, e);
+            throw new RepositoryException("Failed to generate detached signature", e);
+        }
+        output.flush();
+        LOG.debug("Finished.");
+    }
+
+    static void update(final PGPSignatureGenerator generator, final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        long position = channel.position();
+        if (size - position < MAP_THRESHOLD) {
+            update(generator, (ReadableByteChannel)channel);
+            return;
+        }
+
+        final byte[] scratch = new byte[BUFFER_SIZE];
+        while (position < size) {
+            final long length = Math.min(MAP_WINDOW, size - position);
+            final MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, length);
+            update(generator, window, scratch);
+            position += length;
+        }
+        channel.position(position);
+    }
+
+    private static void update(final PGPSignatureGenerator generator, final ReadableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final byte[] array = buffer.array();
+        while (channel.read(buffer) >= 0) {
+            generator.update(array, 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    private static void update(final PGPSignatureGenerator generator, final ByteBuffer buffer, final byte[] scratch) {
+        if (buffer.hasArray()) {
+            generator.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, length);
+            generator.update(scratch, 0, length);
         }
     }
 }
@@ -0,0 +1,325 @@
+package org.opennms.repo.impl;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.IndexOrchestrator.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps repositories indexed as packages arrive, rather than waiting for the
+ * next {@code update-yum-repo.pl} or {@code nightly.pl} run.
+ *
+ * Every directory under each repository root is watched.  A change schedules
+ * the repository to be indexed once it has been quiet for the debounce
+ * window, so a burst of uploads is indexed once; a steady trickle of uploads
+ * is still indexed at least every max delay.  A repository is only ever
+ * indexed by one thread at a time (changes made while it is being indexed
+ * queue one more run), while different repositories are indexed in parallel,
+ * up to the orchestrator's CPU budget.  Changes to the indexes themselves and
+ * to hidden files are ignored, and an index run that finds nothing changed
+ * (see {@link RepositoryState}) does no work, so a spurious wakeup is cheap.
+ */
+public class IndexDaemon implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexDaemon.class);
+
+    public static final long DEFAULT_DEBOUNCE = 2000;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private static final Set<String> INDEX_FILES = new HashSet<>(Arrays.asList(YumRepodataGenerator.REPODATA, "Release", "Release.gpg", "InRelease"));
+    private static final Set<String> INDEX_PREFIXES = new HashSet<>(Arrays.asList("Packages", "Sources", "Contents"));
+
+    private final IndexOrchestrator m_orchestrator;
+    private final GPGInfo m_gpginfo;
+    private final WatchService m_watcher;
+    private final ScheduledExecutorService m_executor;
+    private final Map<Path,Watched> m_repositories = new ConcurrentHashMap<>();
+    private final Map<WatchKey,Path> m_keys = new ConcurrentHashMap<>();
+    private final List<Consumer<Result>> m_listeners = new CopyOnWriteArrayList<>();
+
+    private volatile long m_debounce = DEFAULT_DEBOUNCE;
+    private volatile long m_maxDelay = DEFAULT_MAX_DELAY;
+    private volatile boolean m_closed = false;
+    private Thread m_thread;
+
+    /**
+     * @param orchestrator indexes the repositories; its CPU budget is how many are indexed at once
+     * @param gpginfo the key to sign the indexes with, or null
+     */
+    public IndexDaemon(final IndexOrchestrator orchestrator, final GPGInfo gpginfo) throws IOException {
+        m_orchestrator = orchestrator;
+        m_gpginfo = gpginfo;
+        m_watcher = FileSystems.getDefault().newWatchService();
+        m_executor = Executors.newScheduledThreadPool(orchestrator.getCpuBudget());
+    }
+
+    public long getDebounce() {
+        return m_debounce;
+    }
+
+    /** How long a repository must be quiet before it is indexed, in milliseconds. */
+    public void setDebounce(final long debounce) {
+        m_debounce = debounce;
+    }
+
+    public long getMaxDelay() {
+        return m_maxDelay;
+    }
+
+    /** The longest a change waits to be indexed while more changes keep coming, in milliseconds. */
+    public void setMaxDelay(final long maxDelay) {
+        m_maxDelay = maxDelay;
+    }
+
+    /**
+     * Call {@code listener} with the result of every index run.
+     */
+    public void addListener(final Consumer<Result> listener) {
+        m_listeners.add(listener);
+    }
+
+    /**
+     * Watch every repository under {@code base}.
+     */
+    public void watchAll(final Path base) throws IOException {
+        for (final Repository repo : IndexOrchestrator.findRepositories(base)) {
+            watch(repo);
+        }
+    }
+
+    /**
+     * Watch a repository, and index it (if it changed since it was last indexed) once the daemon is started.
+     */
+    public void watch(final Repository repo) throws IOException {
+        final Path root = repo.getRoot().toAbsolutePath().normalize();
+        if (m_repositories.putIfAbsent(root, new Watched(repo)) != null) {
+            LOG.debug("{} is already being watched", root);
+            return;
+        }
+        register(root);
+        if (m_thread != null) {
+            m_repositories.get(root).changed();
+        }
+    }
+
+    public Set<Path> getWatched() {
+        return m_repositories.keySet();
+    }
+
+    /**
+     * Start watching, and catch up on anything that changed while we were not.
+     */
+    public synchronized void start() {
+        if (m_thread != null) {
+            throw new IllegalStateException("already started");
+        }
+        m_thread = new Thread(this::run, "repo-index-daemon");
+        m_thread.setDaemon(true);
+        m_thread.start();
+        for (final Watched watched : m_repositories.values()) {
+            watched.changed();
+        }
+        LOG.info("Watching {} repositories", m_repositories.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_closed = true;
+        m_watcher.close();
+        m_executor.shutdownNow();
+        try {
+            m_executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Watch dir and everything under it, except hidden directories and the indexes.
+     */
+    private void register(final Path dir) throws IOException {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path subdir, final BasicFileAttributes attrs) throws IOException {
+                    if (!subdir.equals(dir) && isIgnored(subdir.getFileName().toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    m_keys.put(subdir.register(m_watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), subdir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+                    // removed while we were looking
+                    return e instanceof NoSuchFileException ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+            });
+        } catch (final ClosedWatchServiceException e) {
+            LOG.debug("Not watching {}: the daemon is closed", dir);
+        }
+    }
+
+    private static boolean isIgnored(final String name) {
+        if (name.startsWith(".") || INDEX_FILES.contains(name)) {
+            return true;
+        }
+        final int dot = name.indexOf('.');
+        return INDEX_PREFIXES.contains(dot < 0 ? name : name.substring(0, dot));
+    }
+
+    private void run() {
+        while (!m_closed) {
+            final WatchKey key;
+            try {
+                key = m_watcher.take();
+            } catch (final InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            final Path dir = m_keys.get(key);
+            if (dir != null) {
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        handle(dir, event);
+                    } catch (final IOException | RuntimeException e) {
+                        LOG.warn("Failed to handle {} in {}: {}", event.kind(), dir, e.getMessage(), e);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                m_keys.remove(key);
+            }
+        }
+        LOG.debug("No longer watching repositories");
+    }
+
+    private void handle(final Path dir, final WatchEvent<?> event) throws IOException {
+        if (event.kind() == OVERFLOW) {
+            // events were lost; pick up any new directories and assume everything changed
+            LOG.debug("Missed events in {}", dir);
+            register(dir);
+            changed(dir);
+            return;
+        }
+        final Path child = dir.resolve((Path)event.context());
+        if (isIgnored(child.getFileName().toString())) {
+            return;
+        }
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            register(child);
+        }
+        LOG.trace("{}: {}", event.kind(), child);
+        changed(child);
+    }
+
+    private void changed(final Path path) {
+        for (final Map.Entry<Path,Watched> entry : m_repositories.entrySet()) {
+            if (path.startsWith(entry.getKey())) {
+                entry.getValue().changed();
+            }
+        }
+    }
+
+    /**
+     * The indexing state of one watched repository.
+     */
+    private final class Watched {
+        private final Repository m_repository;
+        private ScheduledFuture<?> m_pending;
+        private long m_firstChange = -1;
+        private boolean m_indexing = false;
+        private boolean m_changedWhileIndexing = false;
+
+        private Watched(final Repository repository) {
+            m_repository = repository;
+        }
+
+        private synchronized void changed() {
+            if (m_indexing) {
+                m_changedWhileIndexing = true;
+                return;
+            }
+            final long now = System.nanoTime();
+            if (m_firstChange < 0) {
+                m_firstChange = now;
+            }
+            if (m_pending != null) {
+                m_pending.cancel(false);
+            }
+            final long waited = TimeUnit.NANOSECONDS.toMillis(now - m_firstChange);
+            final long delay = Math.max(0, Math.min(m_debounce, m_maxDelay - waited));
+            try {
+                m_pending = m_executor.schedule(this::index, delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                if (!m_closed) {
+                    throw e;
+                }
+            }
+        }
+
+        private void index() {
+            synchronized (this) {
+                if (m_indexing) {
+                    m_changedWhileIndexing = true;
+                    return;
+                }
+                m_indexing = true;
+                m_pending = null;
+                m_firstChange = -1;
+            }
+            Result result = null;
+            try {
+                LOG.debug("Indexing {}", m_repository.getRoot());
+                result = m_orchestrator.index(m_repository, m_gpginfo);
+            } catch (final RepositoryException e) {
+                LOG.warn("Failed to index {}: {}", m_repository.getRoot(), e.getMessage(), e);
+            } finally {
+                synchronized (this) {
+                    m_indexing = false;
+                    if (m_changedWhileIndexing && !m_closed) {
+                        m_changedWhileIndexing = false;
+                        changed();
+                    }
+                }
+            }
+            if (result != null) {
+                for (final Consumer<Result> listener : m_listeners) {
+                    listener.accept(result);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the time goes in one index run of one repository.
+ *
+ * Phase timers add up the time spent in each phase on every thread, so with
+ * a parallel pool they can add up to more than the run's elapsed time.
+ * Counters track packages, bytes and package cache hits.  Recording is a
+ * couple of {@link LongAdder} updates, cheap enough for per-package calls.
+ *
+ * {@link #finish(Outcome)} writes the run's {@link Report} to
+ * {@code .repocache/index-report.json} and hands it to {@link IndexStats},
+ * which keeps the totals for JMX and passes the report on to every
+ * {@link MetricsListener}.
+ */
+public class IndexMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexMetrics.class);
+
+    public static final String REPORT_FILE = "index-report.json";
+
+    public enum Phase {
+        /** Finding packages, and checking whether anything changed. */
+        SCAN,
+        /** Reading package headers. */
+        PARSE,
+        /** Checksumming packages. */
+        HASH,
+        /** Compressing index files. */
+        COMPRESS,
+        /** Writing index files (or running {@code createrepo}). */
+        WRITE,
+        /** Signing {@code repomd.xml} or {@code Release}. */
+        SIGN
+    }
+
+    public enum Counter {
+        PACKAGES,
+        BYTES_HASHED,
+        BYTES_WRITTEN,
+        BYTES_COMPRESSED,
+        CACHE_HITS,
+        CACHE_MISSES
+    }
+
+    public enum Outcome {
+        INDEXED,
+        SKIPPED,
+        FAILED
+    }
+
+    private final Path m_root;
+    private final long m_startTime = System.currentTimeMillis();
+    private final long m_start = System.nanoTime();
+    private final Map<Phase,LongAdder> m_phases = new EnumMap<>(Phase.class);
+    private final Map<Counter,LongAdder> m_counters = new EnumMap<>(Counter.class);
+
+    public IndexMetrics(final Path root) {
+        m_root = root;
+        for (final Phase phase : Phase.values()) {
+            m_phases.put(phase, new LongAdder());
+        }
+        for (final Counter counter : Counter.values()) {
+            m_counters.put(counter, new LongAdder());
+        }
+    }
+
+    public Path getRoot() {
+        return m_root;
+    }
+
+    /**
+     * Time a phase: {@code try (final Timer t = metrics.time(Phase.HASH)) { ... }}
+     */
+    public Timer time(final Phase phase) {
+        return new Timer(m_phases.get(phase));
+    }
+
+    public void add(final Counter counter, final long amount) {
+        m_counters.get(counter).add(amount);
+    }
+
+    public void increment(final Counter counter) {
+        m_counters.get(counter).increment();
+    }
+
+    public long getNanos(final Phase phase) {
+        return m_phases.get(phase).sum();
+    }
+
+    public long getCount(final Counter counter) {
+        return m_counters.get(counter).sum();
+    }
+
+    /**
+     * End the run: write the report file and publish the report.
+     */
+    public Report finish(final Outcome outcome) {
+        final Map<Phase,Long> phases = new EnumMap<>(Phase.class);
+        for (final Map.Entry<Phase,LongAdder> entry : m_phases.entrySet()) {
+            phases.put(entry.getKey(), entry.getValue().sum());
+        }
+        final Map<Counter,Long> counters = new EnumMap<>(Counter.class);
+        for (final Map.Entry<Counter,LongAdder> entry : m_counters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().sum());
+        }
+        final Report report = new Report(m_root, m_startTime, System.nanoTime() - m_start, outcome, phases, counters);
+        LOG.debug("{}: {}", m_root, report.toJson());
+        writeReport(report);
+        IndexStats.getInstance().record(report);
+        return report;
+    }
+
+    private void writeReport(final Report report) {
+        final Path file = m_root.resolve(PackageMetadataCache.CACHE_DIR).resolve(REPORT_FILE);
+        try {
+            Files.createDirectories(file.getParent());
+            final Path temp = Files.createTempFile(file.getParent(), REPORT_FILE, ".tmp");
+            try {
+                try (final Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    writer.write(report.toJson());
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Unable to write index report {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the time until it is closed to a phase.
+     */
+    public static final class Timer implements AutoCloseable {
+        private final LongAdder m_total;
+        private final long m_start = System.nanoTime();
+
+        private Timer(final LongAdder total) {
+            m_total = total;
+        }
+
+        @Override
+        public void close() {
+            m_total.add(System.nanoTime() - m_start);
+        }
+    }
+
+    /**
+     * The numbers for a finished run.
+     */
+    public static final class Report {
+        private final Path m_root;
+        private final long m_startTime;
+        private final long m_elapsed;
+        private final Outcome m_outcome;
+        private final Map<Phase,Long> m_phases;
+        private final Map<Counter,Long> m_counters;
+
+        Report(final Path root, final long startTime, final long elapsed, final Outcome outcome, final Map<Phase,Long> phases, final Map<Counter,Long> counters) {
+            m_root = root;
+            m_startTime = startTime;
+            m_elapsed = elapsed;
+            m_outcome = outcome;
+            m_phases = Collections.unmodifiableMap(phases);
+            m_counters = Collections.unmodifiableMap(counters);
+        }
+
+        public Path getRoot() {
+            return m_root;
+        }
+
+        /** When the run started, in milliseconds since the epoch. */
+        public long getStartTime() {
+            return m_startTime;
+        }
+
+        /** Wall-clock time for the run, in nanoseconds. */
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        public Outcome getOutcome() {
+            return m_outcome;
+        }
+
+        /** Time spent in each phase, in nanoseconds, summed over threads. */
+        public Map<Phase,Long> getPhases() {
+            return m_phases;
+        }
+
+        public Map<Counter,Long> getCounters() {
+            return m_counters;
+        }
+
+        /** The fraction of packages read from the package cache, or NaN if there was no cache. */
+        public double getCacheHitRate() {
+            return hitRate(m_counters.get(Counter.CACHE_HITS), m_counters.get(Counter.CACHE_MISSES));
+        }
+
+        static double hitRate(final long hits, final long misses) {
+            return hits + misses == 0 ? Double.NaN : (double)hits / (hits + misses);
+        }
+
+        public String toJson() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            sb.append("  \"repository\": \"").append(escape(m_root.toString())).append("\",\n");
+            sb.append("  \"started\": \"").append(Instant.ofEpochMilli(m_startTime)).append("\",\n");
+            sb.append("  \"outcome\": \"").append(m_outcome.name().toLowerCase(Locale.ROOT)).append("\",\n");
+            sb.append("  \"elapsedMillis\": ").append(millis(m_elapsed)).append(",\n");
+            sb.append("  \"phaseMillis\": {");
+            String separator = "\n";
+            for (final Map.Entry<Phase,Long> entry : m_phases.entrySet()) {
+                sb.append(separator).append("    \"").append(entry.getKey().name().toLowerCase(Locale.ROOT)).append("\": ").append(millis(entry.getValue()));
+                separator = ",\n";
+            }
+            sb.append("\n  },\n");
+            sb.append("  \"counters\": {");
+            separator = "\n";
+            for (final Map.Entry<Counter,Long> entry : m_counters.entrySet()) {
+                sb.append(separator).append("    \"").append(entry.getKey().name().toLowerCase(Locale.ROOT)).append("\": ").append(entry.getValue());
+                separator = ",\n";
+            }
+            sb.append("\n  },\n");
+            final double hitRate = getCacheHitRate();
+            sb.append("  \"cacheHitRate\": ").append(Double.isNaN(hitRate) ? "null" : String.format(Locale.ROOT, "%.4f", hitRate)).append("\n");
+            sb.append("}\n");
+            return sb.toString();
+        }
+
+        private static String millis(final long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / (double)TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        private static String escape(final String s) {
+            final StringBuilder sb = new StringBuilder(s.length());
+            for (final char c : s.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int)c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Report[" + m_root + ": " + m_outcome + " in " + millis(m_elapsed) + "ms]";
+        }
+    }
+}
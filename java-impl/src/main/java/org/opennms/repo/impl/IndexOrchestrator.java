@@ -0,0 +1,331 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds every repository under a base directory and indexes them all at once,
+ * like {@code update-yum-repo.pl} and {@code nightly.pl} do one after another.
+ *
+ * Two budgets bound the work: the CPU budget is both how many repositories are
+ * indexed at a time and the parallelism of the pool their packages are read and
+ * their metadata written on; the IO budget is how many package files are read
+ * at a time.  All repositories share one {@link FileHasher}, so a package that
+ * is hard-linked into several releases is only checksummed once.
+ *
+ * The pool and hasher are only used by in-process indexing: a YUM repository
+ * using {@link IndexEngine#CREATEREPO} forks {@code createrepo}, which does its
+ * own reading.  Discovered YUM repositories are indexed with
+ * {@link #getIndexEngine()}, {@link IndexEngine#NATIVE} by default.
+ */
+public class IndexOrchestrator implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexOrchestrator.class);
+
+    private final int m_cpuBudget;
+    private final ForkJoinPool m_pool;
+    private final FileHasher m_hasher;
+    private final boolean m_ownsHasher;
+    private IndexEngine m_indexEngine = IndexEngine.NATIVE;
+
+    public IndexOrchestrator() {
+        this(Runtime.getRuntime().availableProcessors(), Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    }
+
+    public IndexOrchestrator(final int cpuBudget, final int ioBudget) {
+        this(cpuBudget, new FileHasher(ioBudget), true);
+    }
+
+    /**
+     * Use an existing hasher (eg. one shared with the signer); its size is the IO budget.
+     */
+    public IndexOrchestrator(final int cpuBudget, final FileHasher hasher) {
+        this(cpuBudget, hasher, false);
+    }
+
+    private IndexOrchestrator(final int cpuBudget, final FileHasher hasher, final boolean ownsHasher) {
+        if (cpuBudget < 1) {
+            throw new IllegalArgumentException("cpuBudget must be at least 1");
+        }
+        m_cpuBudget = cpuBudget;
+        m_pool = new ForkJoinPool(cpuBudget);
+        m_hasher = hasher;
+        m_ownsHasher = ownsHasher;
+    }
+
+    /** How many repositories are indexed at a time. */
+    public int getCpuBudget() {
+        return m_cpuBudget;
+    }
+
+    public FileHasher getHasher() {
+        return m_hasher;
+    }
+
+    public IndexEngine getIndexEngine() {
+        return m_indexEngine;
+    }
+
+    /**
+     * How YUM repositories found by {@link #index(Path, GPGInfo)} are indexed.
+     * Repositories passed in explicitly keep their own engine.
+     */
+    public void setIndexEngine(final IndexEngine indexEngine) {
+        m_indexEngine = indexEngine;
+    }
+
+    /**
+     * Find all YUM and APT repositories under {@code base}, sorted by path.
+     */
+    public static List<Repository> findRepositories(final Path base) throws IOException {
+        final List<Repository> repos = new ArrayList<>();
+        repos.addAll(findYumRepositories(base));
+        repos.addAll(findAptRepositories(base));
+        Collections.sort(repos, Comparator.comparing(Repository::getRoot));
+        return repos;
+    }
+
+    /**
+     * Find every directory under {@code base} that has a {@code repodata} directory.
+     * The repositories are indexed in-process ({@link IndexEngine#NATIVE}).
+     */
+    public static List<RPMRepository> findYumRepositories(final Path base) throws IOException {
+        final List<RPMRepository> repos = new ArrayList<>();
+        walk(base, dir -> {
+            if (Files.isDirectory(dir.resolve("repodata"), LinkOption.NOFOLLOW_LINKS)) {
+                repos.add(new RPMRepository(dir, IndexEngine.NATIVE));
+            }
+        });
+        Collections.sort(repos, Comparator.comparing(Repository::getRoot));
+        return repos;
+    }
+
+    /**
+     * Find every {@code dists/<release>} directory under {@code base} that has a {@code Release} file.
+     */
+    public static List<AptRepository> findAptRepositories(final Path base) throws IOException {
+        final List<AptRepository> repos = new ArrayList<>();
+        walk(base, dir -> {
+            final Path parent = dir.getParent();
+            if (parent != null && parent.getFileName() != null && "dists".equals(parent.getFileName().toString())
+                    && Files.isRegularFile(dir.resolve("Release"), LinkOption.NOFOLLOW_LINKS)) {
+                repos.add(new AptRepository(parent.getParent(), dir.getFileName().toString()));
+            }
+        });
+        Collections.sort(repos, Comparator.comparing(Repository::getRoot));
+        return repos;
+    }
+
+    private interface DirectoryVisitor {
+        void visit(Path dir) throws IOException;
+    }
+
+    /*
+     * Symbolic links are not followed (a linked repository would be indexed twice),
+     * and hidden directories such as caches and transaction staging areas are skipped.
+     */
+    private static void walk(final Path base, final DirectoryVisitor visitor) throws IOException {
+        if (!Files.isDirectory(base)) {
+            throw new RepositoryException("Base " + base + " does not exist or is not a directory!");
+        }
+        final Path root = base.toAbsolutePath().normalize();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                final String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                if (!dir.equals(root) && (name.startsWith(".") || name.equals("repodata"))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                visitor.visit(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Index every repository under {@code base}.
+     */
+    public Report index(final Path base, final GPGInfo gpginfo) throws IOException {
+        final List<Repository> repos = findRepositories(base);
+        for (final Repository repo : repos) {
+            if (repo instanceof RPMRepository) {
+                ((RPMRepository)repo).setIndexEngine(m_indexEngine);
+            }
+        }
+        return index(repos, gpginfo);
+    }
+
+    /**
+     * Index the given repositories concurrently.  A failure in one repository does
+     * not stop the others; check {@link Report#getFailures()}.
+     */
+    public Report index(final Collection<? extends Repository> repositories, final GPGInfo gpginfo) {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(m_cpuBudget, repositories.size())));
+        try {
+            final List<Future<Result>> tasks = new ArrayList<>(repositories.size());
+            for (final Repository repo : repositories) {
+                configure(repo);
+                tasks.add(executor.submit(() -> indexRepository(repo, gpginfo)));
+            }
+            final List<Result> results = new ArrayList<>(tasks.size());
+            for (final Future<Result> task : tasks) {
+                results.add(get(task));
+            }
+            final Report report = new Report(results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            LOG.info("Indexed {} repositories in {}ms ({} failed)", results.size(), report.getElapsed(), report.getFailures().size());
+            return report;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Index one repository on this orchestrator's pool and hasher, in the calling thread.
+     */
+    public Result index(final Repository repo, final GPGInfo gpginfo) {
+        configure(repo);
+        return indexRepository(repo, gpginfo);
+    }
+
+    private void configure(final Repository repo) {
+        if (repo instanceof RPMRepository) {
+            ((RPMRepository)repo).setPool(m_pool);
+            ((RPMRepository)repo).setHasher(m_hasher);
+        } else if (repo instanceof AptRepository) {
+            ((AptRepository)repo).setPool(m_pool);
+            ((AptRepository)repo).setHasher(m_hasher);
+        }
+    }
+
+    private static Result indexRepository(final Repository repo, final GPGInfo gpginfo) {
+        final long start = System.nanoTime();
+        Exception failure = null;
+        try {
+            repo.index(gpginfo);
+        } catch (final Exception e) {
+            LOG.warn("Failed to index {}: {}", repo.getRoot(), e.getMessage(), e);
+            failure = e;
+        }
+        final Result result = new Result(repo, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failure);
+        LOG.info("Indexed {} in {}ms", repo.getRoot(), result.getElapsed());
+        return result;
+    }
+
+    private static Result get(final Future<Result> task) {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while indexing repositories.", e);
+        } catch (final ExecutionException e) {
+            throw new RepositoryException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        m_pool.shutdown();
+        if (m_ownsHasher) {
+            m_hasher.close();
+        }
+    }
+
+    /**
+     * The outcome of indexing one repository.
+     */
+    public static final class Result {
+        private final Repository m_repository;
+        private final long m_elapsed;
+        private final Exception m_failure;
+
+        Result(final Repository repository, final long elapsed, final Exception failure) {
+            m_repository = repository;
+            m_elapsed = elapsed;
+            m_failure = failure;
+        }
+
+        public Repository getRepository() {
+            return m_repository;
+        }
+
+        /** How long indexing (including signing) took, in milliseconds. */
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        /** Why indexing failed, or null if it succeeded. */
+        public Exception getFailure() {
+            return m_failure;
+        }
+
+        public boolean isSuccess() {
+            return m_failure == null;
+        }
+    }
+
+    /**
+     * Per-repository timings for an orchestrated run.
+     */
+    public static final class Report {
+        private final List<Result> m_results;
+        private final long m_elapsed;
+
+        Report(final List<Result> results, final long elapsed) {
+            m_results = Collections.unmodifiableList(results);
+            m_elapsed = elapsed;
+        }
+
+        /** The results, in the order the repositories were given. */
+        public List<Result> getResults() {
+            return m_results;
+        }
+
+        public List<Result> getFailures() {
+            final List<Result> failures = new ArrayList<>();
+            for (final Result result : m_results) {
+                if (!result.isSuccess()) {
+                    failures.add(result);
+                }
+            }
+            return failures;
+        }
+
+        /** Wall-clock time for the whole run, in milliseconds. */
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (final Result result : m_results) {
+                sb.append(String.format("%8dms %s %s%n", result.getElapsed(), result.isSuccess() ? "ok    " : "FAILED", result.getRepository().getRoot()));
+            }
+            sb.append(String.format("%8dms total", m_elapsed));
+            return sb.toString();
+        }
+    }
+}
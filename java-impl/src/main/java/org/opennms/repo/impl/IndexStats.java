@@ -0,0 +1,178 @@
+package org.opennms.repo.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.opennms.repo.impl.IndexMetrics.Counter;
+import org.opennms.repo.impl.IndexMetrics.Outcome;
+import org.opennms.repo.impl.IndexMetrics.Phase;
+import org.opennms.repo.impl.IndexMetrics.Report;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds up the {@link IndexMetrics} of every run in the JVM, publishes the
+ * totals over JMX, and passes each run's report on to the
+ * {@link MetricsListener}s.
+ */
+public class IndexStats implements IndexStatsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexStats.class);
+
+    public static final String OBJECT_NAME = "org.opennms.repo:type=IndexStats";
+
+    private static final IndexStats INSTANCE = new IndexStats();
+
+    static {
+        INSTANCE.register();
+    }
+
+    private final Map<Outcome,LongAdder> m_runs = new EnumMap<>(Outcome.class);
+    private final Map<Phase,LongAdder> m_phases = new EnumMap<>(Phase.class);
+    private final Map<Counter,LongAdder> m_counters = new EnumMap<>(Counter.class);
+    private final List<MetricsListener> m_listeners = new CopyOnWriteArrayList<>();
+    private volatile Report m_last;
+
+    IndexStats() {
+        for (final Outcome outcome : Outcome.values()) {
+            m_runs.put(outcome, new LongAdder());
+        }
+        for (final Phase phase : Phase.values()) {
+            m_phases.put(phase, new LongAdder());
+        }
+        for (final Counter counter : Counter.values()) {
+            m_counters.put(counter, new LongAdder());
+        }
+        for (final MetricsListener listener : ServiceLoader.load(MetricsListener.class)) {
+            LOG.debug("Loaded metrics listener {}", listener);
+            m_listeners.add(listener);
+        }
+    }
+
+    public static IndexStats getInstance() {
+        return INSTANCE;
+    }
+
+    private void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (final JMException | SecurityException e) {
+            LOG.warn("Unable to register {} with JMX: {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    public void addListener(final MetricsListener listener) {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(final MetricsListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    void record(final Report report) {
+        m_runs.get(report.getOutcome()).increment();
+        for (final Map.Entry<Phase,Long> entry : report.getPhases().entrySet()) {
+            m_phases.get(entry.getKey()).add(entry.getValue());
+        }
+        for (final Map.Entry<Counter,Long> entry : report.getCounters().entrySet()) {
+            m_counters.get(entry.getKey()).add(entry.getValue());
+        }
+        m_last = report;
+        for (final MetricsListener listener : m_listeners) {
+            try {
+                listener.runFinished(report);
+            } catch (final RuntimeException e) {
+                LOG.warn("Metrics listener {} failed: {}", listener, e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public long getRuns() {
+        long total = 0;
+        for (final LongAdder runs : m_runs.values()) {
+            total += runs.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSkippedRuns() {
+        return m_runs.get(Outcome.SKIPPED).sum();
+    }
+
+    @Override
+    public long getFailedRuns() {
+        return m_runs.get(Outcome.FAILED).sum();
+    }
+
+    @Override
+    public Map<String,Long> getPhaseMillis() {
+        final Map<String,Long> ret = new TreeMap<>();
+        for (final Map.Entry<Phase,LongAdder> entry : m_phases.entrySet()) {
+            ret.put(entry.getKey().name().toLowerCase(Locale.ROOT), TimeUnit.NANOSECONDS.toMillis(entry.getValue().sum()));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String,Long> getCounters() {
+        final Map<String,Long> ret = new TreeMap<>();
+        for (final Map.Entry<Counter,LongAdder> entry : m_counters.entrySet()) {
+            ret.put(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        return Report.hitRate(m_counters.get(Counter.CACHE_HITS).sum(), m_counters.get(Counter.CACHE_MISSES).sum());
+    }
+
+    @Override
+    public String getLastRepository() {
+        final Report last = m_last;
+        return last == null ? null : last.getRoot().toString();
+    }
+
+    @Override
+    public String getLastOutcome() {
+        final Report last = m_last;
+        return last == null ? null : last.getOutcome().name();
+    }
+
+    @Override
+    public long getLastRunMillis() {
+        final Report last = m_last;
+        return last == null ? 0 : TimeUnit.NANOSECONDS.toMillis(last.getElapsed());
+    }
+
+    @Override
+    public void reset() {
+        for (final LongAdder runs : m_runs.values()) {
+            runs.reset();
+        }
+        for (final LongAdder phase : m_phases.values()) {
+            phase.reset();
+        }
+        for (final LongAdder counter : m_counters.values()) {
+            counter.reset();
+        }
+        m_last = null;
+    }
+}
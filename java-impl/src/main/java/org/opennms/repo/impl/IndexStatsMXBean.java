@@ -0,0 +1,32 @@
+package org.opennms.repo.impl;
+
+import java.util.Map;
+
+/**
+ * Indexing totals since the JVM started, published over JMX as
+ * {@value IndexStats#OBJECT_NAME}.
+ */
+public interface IndexStatsMXBean {
+    long getRuns();
+
+    long getSkippedRuns();
+
+    long getFailedRuns();
+
+    /** Total time spent in each phase, in milliseconds, summed over threads. */
+    Map<String,Long> getPhaseMillis();
+
+    Map<String,Long> getCounters();
+
+    /** The fraction of packages read from package caches, or NaN if none were used. */
+    double getCacheHitRate();
+
+    String getLastRepository();
+
+    String getLastOutcome();
+
+    /** How long the last run took, in milliseconds. */
+    long getLastRunMillis();
+
+    void reset();
+}
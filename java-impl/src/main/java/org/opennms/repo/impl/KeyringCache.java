@@ -0,0 +1,150 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPPublicKeyRingCollection;
+import org.opennms.repo.api.GPGInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Public keys for checking signatures, indexed by key ID.
+ *
+ * Keyring files (armored or binary) are parsed once; loading the same file
+ * again is a stat unless it has changed since.  Subkeys are indexed as well as
+ * primary keys, since packages are often signed with a signing subkey.  A key
+ * that is loaded again replaces the one already known, so reloading a changed
+ * keyring picks up revocations and new expiry dates, and keys that have been
+ * removed from a keyring file are forgotten when it is reloaded.
+ */
+public class KeyringCache {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyringCache.class);
+
+    private final ConcurrentMap<Long,PGPPublicKey> m_keys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long,Long> m_primaries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path,FileIdentity> m_loaded = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path,Set<Long>> m_fileKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Add the keys in a keyring file, unless it was already loaded and has not changed.
+     * @return the number of keys that were not known before
+     */
+    public synchronized int load(final Path keyring) throws IOException {
+        final Path path = keyring.toAbsolutePath().normalize();
+        final FileIdentity identity = FileIdentity.of(path, path.toString());
+        if (identity.equals(m_loaded.get(path))) {
+            return 0;
+        }
+        final Set<Long> ids = new HashSet<>();
+        final int added;
+        try (final InputStream is = Files.newInputStream(path)) {
+            added = load(is, ids);
+        }
+        final Set<Long> previous = m_fileKeys.put(path, ids);
+        if (previous != null) {
+            previous.removeAll(ids);
+            for (final Long id : previous) {
+                if (!isInKeyringFile(id)) {
+                    LOG.info("Key {} is no longer in {}", toString(id), path);
+                    m_keys.remove(id);
+                    m_primaries.remove(id);
+                }
+            }
+        }
+        m_loaded.put(path, identity);
+        LOG.debug("Loaded {} keys from {}", added, path);
+        return added;
+    }
+
+    /**
+     * Add (or replace) the keys in an armored or binary keyring.
+     * @return the number of keys that were not known before
+     */
+    public int load(final InputStream keyring) throws IOException {
+        return load(keyring, new HashSet<Long>());
+    }
+
+    private int load(final InputStream keyring, final Set<Long> ids) throws IOException {
+        final JcaPGPPublicKeyRingCollection collection;
+        try {
+            collection = new JcaPGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyring));
+        } catch (final PGPException e) {
+            throw new IOException("Unable to read public keyring: " + e.getMessage(), e);
+        }
+        int added = 0;
+        for (final Iterator<PGPPublicKeyRing> rings = collection.getKeyRings(); rings.hasNext();) {
+            final PGPPublicKeyRing ring = rings.next();
+            final long primary = ring.getPublicKey().getKeyID();
+            for (final Iterator<PGPPublicKey> keys = ring.getPublicKeys(); keys.hasNext();) {
+                final PGPPublicKey key = keys.next();
+                if (add(key)) {
+                    added++;
+                }
+                m_primaries.put(key.getKeyID(), primary);
+                ids.add(key.getKeyID());
+            }
+        }
+        return added;
+    }
+
+    private boolean isInKeyringFile(final Long keyId) {
+        for (final Set<Long> ids : m_fileKeys.values()) {
+            if (ids.contains(keyId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the public key of a signing key, so whatever it signs can be checked.
+     */
+    public boolean add(final GPGInfo gpginfo) {
+        return add(gpginfo.getPublicKey());
+    }
+
+    /**
+     * Add a key, replacing any known key with the same ID.
+     * @return true if the key was not already known
+     */
+    public boolean add(final PGPPublicKey key) {
+        return m_keys.put(key.getKeyID(), key) == null;
+    }
+
+    /**
+     * @return the key, or null if it is not known
+     */
+    public PGPPublicKey getKey(final long keyId) {
+        return m_keys.get(keyId);
+    }
+
+    /**
+     * @return the primary key of the keyring a key was loaded from (the key
+     *         itself, if it is a primary key), or null if that is not known
+     */
+    public PGPPublicKey getPrimaryKey(final long keyId) {
+        final Long primary = m_primaries.get(keyId);
+        return primary == null ? null : m_keys.get(primary);
+    }
+
+    public int size() {
+        return m_keys.size();
+    }
+
+    /** A key ID the way {@code gpg} prints it. */
+    public static String toString(final long keyId) {
+        return String.format("%016X", keyId);
+    }
+}
@@ -0,0 +1,126 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hard-link helpers for building cheap copies of repository trees, and for
+ * replacing files in them safely.
+ */
+public abstract class LinkUtils {
+    private static final Logger LOG = LoggerFactory.getLogger(LinkUtils.class);
+
+    /* published files are world-readable, whatever createTempFile makes them */
+    private static final Set<PosixFilePermission> PUBLISHED_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+    private LinkUtils() {
+    }
+
+    /**
+     * Hard-link {@code target} to {@code source}, falling back to a copy if the
+     * filesystem does not support links (or they are on different filesystems).
+     * @return true if a link was made, false if the file was copied
+     */
+    public static boolean linkOrCopy(final Path source, final Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (final UnsupportedOperationException | FileSystemException e) {
+            if (Files.exists(target)) {
+                throw e;
+            }
+            LOG.debug("Unable to link {} to {}, copying instead: {}", target, source, e.getMessage());
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+            return false;
+        }
+    }
+
+    /**
+     * Recreate the tree under {@code source} at {@code target}, hard-linking files.
+     * Files matching {@code copy} (given their path relative to {@code source}) are
+     * copied instead, for things that are known to be modified in place.
+     * @return the number of files that were linked rather than copied
+     */
+    public static int linkTree(final Path source, final Path target, final Predicate<Path> copy) throws IOException {
+        final int[] linked = new int[1];
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                final Path relative = source.relativize(file);
+                final Path dest = target.resolve(relative.toString());
+                if (copy.test(relative)) {
+                    Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES);
+                } else if (linkOrCopy(file, dest)) {
+                    linked[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return linked[0];
+    }
+
+    /**
+     * The number of hard links to a file, or 1 if the filesystem can't tell us.
+     */
+    public static int getLinkCount(final Path file) throws IOException {
+        try {
+            return (Integer)Files.getAttribute(file, "unix:nlink");
+        } catch (final UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Make sure {@code file} is not shared with any other path, by replacing it with
+     * a private copy if it has more than one link.  After this it is safe to modify
+     * the file in place.
+     * @return true if the file was copied
+     */
+    public static boolean breakLink(final Path file) throws IOException {
+        if (!Files.isRegularFile(file) || getLinkCount(file) <= 1) {
+            return false;
+        }
+        final Path temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Create a uniquely-named temporary file next to {@code target}, to be written
+     * and then moved over it, so concurrent writers of the same target never share
+     * a temporary file.  It is made {@code rw-r--r--}, like the files it replaces.
+     */
+    public static Path createTempFile(final Path target) throws IOException {
+        final Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        final PosixFileAttributeView view = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(PUBLISHED_PERMISSIONS);
+        }
+        return temp;
+    }
+}
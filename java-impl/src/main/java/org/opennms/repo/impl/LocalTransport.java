@@ -0,0 +1,108 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RemoteTransport} to a directory on a local (or network-mounted)
+ * filesystem, like {@code MockSFTPRepo.pm}.  Useful for mirroring to an NFS
+ * export and for testing remote sync without an SSH server.
+ */
+public class LocalTransport implements RemoteTransport {
+    private final Path m_root;
+    private final AtomicLong m_bytesWritten;
+
+    public LocalTransport(final Path root) {
+        this(root, new AtomicLong());
+    }
+
+    /**
+     * @param bytesWritten counts the bytes uploaded through this transport
+     */
+    public LocalTransport(final Path root, final AtomicLong bytesWritten) {
+        m_root = root.toAbsolutePath();
+        m_bytesWritten = bytesWritten;
+    }
+
+    /**
+     * A factory whose transports all count their uploads in {@code bytesWritten}.
+     */
+    public static Factory factory(final Path root, final AtomicLong bytesWritten) {
+        return () -> new LocalTransport(root, bytesWritten);
+    }
+
+    public Path getRoot() {
+        return m_root;
+    }
+
+    private Path resolve(final String path) throws IOException {
+        final Path resolved = m_root.resolve(path).normalize();
+        if (!resolved.startsWith(m_root)) {
+            throw new IOException(path + " is outside of " + m_root);
+        }
+        return resolved;
+    }
+
+    @Override
+    public long size(final String path) throws IOException {
+        final Path file = resolve(path);
+        return Files.isRegularFile(file) ? Files.size(file) : -1;
+    }
+
+    @Override
+    public boolean download(final String path, final Path local) throws IOException {
+        final Path file = resolve(path);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        Files.copy(file, local, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    @Override
+    public void upload(final Path local, final String path, final long offset) throws IOException {
+        final Path file = resolve(path);
+        try (final FileChannel in = FileChannel.open(local, StandardOpenOption.READ);
+                final FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (offset > 0 && out.size() != offset) {
+                throw new IOException("Cannot resume " + path + " at " + offset + ": remote file is " + out.size() + " bytes");
+            }
+            out.truncate(offset);
+            final long size = in.size();
+            long position = offset;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out.position(position));
+            }
+            m_bytesWritten.addAndGet(size - offset);
+        }
+    }
+
+    @Override
+    public void rename(final String from, final String to) throws IOException {
+        Files.move(resolve(from), resolve(to), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void delete(final String path) throws IOException {
+        Files.deleteIfExists(resolve(path));
+    }
+
+    @Override
+    public void mkdirs(final String path) throws IOException {
+        Files.createDirectories(resolve(path));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return "file://" + m_root;
+    }
+}
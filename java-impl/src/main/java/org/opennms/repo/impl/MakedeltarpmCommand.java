@@ -0,0 +1,70 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.exec.CommandLine;
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@code makedeltarpm} to build a delta between two RPMs, recording the
+ * delta's sequence ID so it can go into {@code prestodelta.xml}.
+ */
+public class MakedeltarpmCommand extends Command {
+    private static final Logger LOG = LoggerFactory.getLogger(MakedeltarpmCommand.class);
+
+    private final Path m_oldRpm;
+    private final Path m_newRpm;
+    private final Path m_delta;
+    private String m_sequence;
+
+    public MakedeltarpmCommand(final Path oldRpm, final Path newRpm, final Path delta) {
+        super("makedeltarpm");
+        m_oldRpm = oldRpm;
+        m_newRpm = newRpm;
+        m_delta = delta;
+    }
+
+    public static boolean isAvailable() {
+        return which("makedeltarpm") != null;
+    }
+
+    /**
+     * The sequence ID of the delta ({@code <old nevr>-<hex>}), once it has been built.
+     */
+    public String getSequence() {
+        return m_sequence;
+    }
+
+    public void run() {
+        Path seqfile = null;
+        try {
+            seqfile = Files.createTempFile(m_delta.getParent(), ".seq", ".tmp");
+            final CommandLine exec = new CommandLine(this.getExecutable());
+            exec.addArguments(this.getArguments());
+            exec.addArgument("-s").addArgument(seqfile.toAbsolutePath().toString(), false);
+            exec.addArgument(m_oldRpm.toAbsolutePath().toString(), false);
+            exec.addArgument(m_newRpm.toAbsolutePath().toString(), false);
+            exec.addArgument(m_delta.toAbsolutePath().toString(), false);
+            final int exitValue = new CommandBuilder(exec).stderr(line -> LOG.info("makedeltarpm: {}", line)).run();
+            if (exitValue != 0) {
+                throw new RepositoryException("makedeltarpm " + m_oldRpm + " " + m_newRpm + " failed with exit code " + exitValue);
+            }
+            m_sequence = new String(Files.readAllBytes(seqfile), StandardCharsets.UTF_8).trim();
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to run makedeltarpm for " + m_newRpm, e);
+        } finally {
+            if (seqfile != null) {
+                try {
+                    Files.deleteIfExists(seqfile);
+                } catch (final IOException e) {
+                    LOG.debug("Failed to delete {}", seqfile, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.opennms.repo.impl;
+
+/**
+ * Receives the report for every index run, to forward to a metrics system.
+ *
+ * Implementations named in {@code META-INF/services/org.opennms.repo.impl.MetricsListener}
+ * are loaded automatically; others can be added with {@link IndexStats#addListener(MetricsListener)}.
+ * Listeners are called on the indexing thread, so they should be quick.
+ */
+public interface MetricsListener {
+    void runFinished(IndexMetrics.Report report);
+}
@@ -0,0 +1,332 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.Package;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.IndexOrchestrator.Report;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes obsolete packages according to a {@link RetentionPolicy}, like
+ * {@code clean-repo.pl} does for one repository at a time.
+ *
+ * Every repository's packages are loaded concurrently and the policy is
+ * evaluated for all of them in one pass, producing a {@link Plan}.  Because
+ * releases share packages by hard-linking them, deleting a path does not
+ * necessarily free any space: the plan only counts a file's size as
+ * reclaimable when every one of its links is being deleted.  Carrying out the
+ * plan deletes the files in parallel and then re-indexes just the repositories
+ * that lost packages, incrementally, so their unchanged packages are not
+ * re-read.
+ */
+public class PackageCollector {
+    private static final Logger LOG = LoggerFactory.getLogger(PackageCollector.class);
+
+    private final RetentionPolicy m_policy;
+    private final IndexOrchestrator m_orchestrator;
+
+    /**
+     * @param orchestrator indexes the repositories packages are removed from; its CPU budget also bounds how many files are deleted at a time
+     */
+    public PackageCollector(final RetentionPolicy policy, final IndexOrchestrator orchestrator) {
+        m_policy = policy;
+        m_orchestrator = orchestrator;
+    }
+
+    public RetentionPolicy getPolicy() {
+        return m_policy;
+    }
+
+    public Plan plan(final Collection<? extends Repository> repositories) throws RepositoryException {
+        return plan(repositories, System.currentTimeMillis());
+    }
+
+    /**
+     * Work out what the policy removes, as of {@code now}.  Nothing is changed on disk.
+     */
+    public Plan plan(final Collection<? extends Repository> repositories, final long now) throws RepositoryException {
+        final List<Future<List<Deletion>>> tasks = new ArrayList<>(repositories.size());
+        final ExecutorService executor = newExecutor(repositories.size());
+        try {
+            for (final Repository repo : repositories) {
+                tasks.add(executor.submit(() -> evaluate(repo, now)));
+            }
+            final List<Deletion> deletions = new ArrayList<>();
+            for (final Future<List<Deletion>> task : tasks) {
+                deletions.addAll(get(task, "Interrupted while evaluating the retention policy."));
+            }
+            return new Plan(deletions);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<Deletion> evaluate(final Repository repo, final long now) throws IOException {
+        final PackageSet<Package> packages = new PackageSet<>();
+        for (final Package pkg : repo.getPackages()) {
+            packages.add(pkg);
+        }
+
+        final List<Deletion> deletions = new ArrayList<>();
+        for (final Package newest : packages.findNewest()) {
+            if (m_policy.getRule(newest.getName()) == null) {
+                continue;
+            }
+            final List<Package> versions = packages.findByNameAndArch(newest.getName(), newest.getArch());
+            for (int i = 1; i < versions.size(); i++) {
+                final Package pkg = versions.get(i);
+                final BasicFileAttributes attrs = Files.readAttributes(pkg.getPath(), BasicFileAttributes.class);
+                if (m_policy.isExpired(pkg.getName(), i, attrs.lastModifiedTime().toMillis(), now)) {
+                    final Object key = attrs.fileKey() == null ? pkg.getPath().toAbsolutePath() : attrs.fileKey();
+                    deletions.add(new Deletion(repo, pkg, attrs.size(), key, LinkUtils.getLinkCount(pkg.getPath())));
+                }
+            }
+        }
+        LOG.debug("{}: {} packages to remove", repo.getRoot(), deletions.size());
+        return deletions;
+    }
+
+    /**
+     * Delete the packages in a plan, then re-index the repositories they were in.
+     * A failure to delete one package does not stop the others; all failures are
+     * thrown together once the rest are done and re-indexed.
+     */
+    public Result collect(final Plan plan, final GPGInfo gpginfo) throws RepositoryException {
+        LOG.debug("{}", plan);
+        final List<Deletion> deletions = plan.getDeletions();
+        final List<Future<Boolean>> tasks = new ArrayList<>(deletions.size());
+        final List<Deletion> deleted = new ArrayList<>(deletions.size());
+        final Set<Repository> affected = new LinkedHashSet<>();
+        RepositoryException failure = null;
+        final ExecutorService executor = newExecutor(deletions.size());
+        try {
+            for (final Deletion deletion : deletions) {
+                tasks.add(executor.submit(() -> Files.deleteIfExists(deletion.getPackage().getPath())));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                final Deletion deletion = deletions.get(i);
+                try {
+                    if (get(tasks.get(i), "Interrupted while removing packages.")) {
+                        deleted.add(deletion);
+                        affected.add(deletion.getRepository());
+                    }
+                } catch (final RepositoryException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    final Throwable cause = e.getCause() == null ? e : e.getCause();
+                    if (failure == null) {
+                        failure = new RepositoryException("Failed to remove " + deletion.getPackage().getPath(), cause);
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // only a few packages went away, so re-index from the cache; but only for this run
+        final Map<RPMRepository,Boolean> incremental = new HashMap<>();
+        for (final Repository repo : affected) {
+            if (repo instanceof RPMRepository) {
+                final RPMRepository rpmRepo = (RPMRepository)repo;
+                incremental.put(rpmRepo, rpmRepo.isIncremental());
+                rpmRepo.setIncremental(true);
+            }
+        }
+        final Report report;
+        try {
+            report = m_orchestrator.index(affected, gpginfo);
+        } finally {
+            for (final Map.Entry<RPMRepository,Boolean> entry : incremental.entrySet()) {
+                entry.getKey().setIncremental(entry.getValue());
+            }
+        }
+        for (final IndexOrchestrator.Result result : report.getFailures()) {
+            if (failure == null) {
+                failure = new RepositoryException("Failed to re-index " + result.getRepository().getRoot(), result.getFailure());
+            } else {
+                failure.addSuppressed(result.getFailure());
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        final Result result = new Result(deleted, reclaimable(deleted), report);
+        LOG.info("Removed {} packages from {} repositories, reclaiming {} bytes", deleted.size(), affected.size(), result.getBytesReclaimed());
+        return result;
+    }
+
+    /**
+     * The bytes freed by deleting the given paths: a file only counts once all of its links are gone.
+     */
+    private static long reclaimable(final List<Deletion> deletions) {
+        final Map<Object,Integer> doomed = new HashMap<>();
+        for (final Deletion deletion : deletions) {
+            doomed.merge(deletion.getFileKey(), 1, Integer::sum);
+        }
+        long bytes = 0;
+        for (final Deletion deletion : deletions) {
+            // count each file once, on whichever of its links we see first
+            final Integer links = doomed.remove(deletion.getFileKey());
+            if (links != null && links >= deletion.getLinkCount()) {
+                bytes += deletion.getSize();
+            }
+        }
+        return bytes;
+    }
+
+    private ExecutorService newExecutor(final int tasks) {
+        return Executors.newFixedThreadPool(Math.max(1, Math.min(m_orchestrator.getCpuBudget(), tasks)));
+    }
+
+    private static <T> T get(final Future<T> task, final String interrupted) throws RepositoryException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(interrupted, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException)e.getCause();
+            }
+            throw new RepositoryException(e.getCause());
+        }
+    }
+
+    /**
+     * One package the policy removes.
+     */
+    public static final class Deletion {
+        private final Repository m_repository;
+        private final Package m_package;
+        private final long m_size;
+        private final Object m_fileKey;
+        private final int m_linkCount;
+
+        Deletion(final Repository repository, final Package pkg, final long size, final Object fileKey, final int linkCount) {
+            m_repository = repository;
+            m_package = pkg;
+            m_size = size;
+            m_fileKey = fileKey;
+            m_linkCount = linkCount;
+        }
+
+        public Repository getRepository() {
+            return m_repository;
+        }
+
+        public Package getPackage() {
+            return m_package;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        /** Identifies the file on disk; links to the same file have the same key. */
+        public Object getFileKey() {
+            return m_fileKey;
+        }
+
+        /** How many links the file had when the plan was made. */
+        public int getLinkCount() {
+            return m_linkCount;
+        }
+    }
+
+    /**
+     * What a policy removes, and how much space that gives back.
+     */
+    public static final class Plan {
+        private final List<Deletion> m_deletions;
+        private final long m_reclaimable;
+
+        Plan(final List<Deletion> deletions) {
+            m_deletions = Collections.unmodifiableList(deletions);
+            m_reclaimable = reclaimable(deletions);
+        }
+
+        public List<Deletion> getDeletions() {
+            return m_deletions;
+        }
+
+        public int size() {
+            return m_deletions.size();
+        }
+
+        /** The total size of the paths being deleted, whether or not they are linked elsewhere. */
+        public long getBytesDeleted() {
+            long bytes = 0;
+            for (final Deletion deletion : m_deletions) {
+                bytes += deletion.getSize();
+            }
+            return bytes;
+        }
+
+        /** The space actually freed: only files with no links left count. */
+        public long getBytesReclaimable() {
+            return m_reclaimable;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (final Deletion deletion : m_deletions) {
+                sb.append(String.format("%12d %s%n", deletion.getSize(), deletion.getPackage().getPath()));
+            }
+            sb.append(String.format("%d packages, %d bytes, %d reclaimable", m_deletions.size(), getBytesDeleted(), m_reclaimable));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * What carrying out a plan did.
+     */
+    public static final class Result {
+        private final List<Deletion> m_deleted;
+        private final long m_reclaimed;
+        private final Report m_report;
+
+        Result(final List<Deletion> deleted, final long reclaimed, final Report report) {
+            m_deleted = Collections.unmodifiableList(deleted);
+            m_reclaimed = reclaimed;
+            m_report = report;
+        }
+
+        /** The packages that were removed; ones already gone are not included. */
+        public List<Deletion> getDeleted() {
+            return m_deleted;
+        }
+
+        public long getBytesReclaimed() {
+            return m_reclaimed;
+        }
+
+        /** How re-indexing the affected repositories went. */
+        public Report getIndexReport() {
+            return m_report;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of parsed package headers and checksums, keyed by
+ * {@link FileIdentity}, so re-indexing a repository only has to read and
+ * checksum packages that were added or changed since the last run.
+ *
+ * The cache is a single binary file of length-prefixed records.  It is
+ * memory-mapped on load and only the record index is decoded up front;
+ * headers are decoded on a hit, and records for unchanged packages are
+ * copied back out verbatim when the cache is saved.
+ */
+public class PackageMetadataCache {
+    private static final Logger LOG = LoggerFactory.getLogger(PackageMetadataCache.class);
+
+    public static final String CACHE_DIR = ".repocache";
+    public static final String CACHE_FILE = "packages.bin";
+
+    private static final int MAGIC = 0x52504d43; // "RPMC"
+    private static final int VERSION = 1;
+
+    private final Path m_file;
+    private final Map<String,Entry> m_previous = new ConcurrentHashMap<>();
+    private final Map<String,Entry> m_current = new ConcurrentHashMap<>();
+    private final AtomicInteger m_hits = new AtomicInteger();
+    private final AtomicInteger m_misses = new AtomicInteger();
+
+    public PackageMetadataCache(final Path file) {
+        m_file = file;
+    }
+
+    /**
+     * The default cache location for the repository at the given root.
+     */
+    public static PackageMetadataCache forRepository(final Path root) {
+        return new PackageMetadataCache(root.resolve(CACHE_DIR).resolve(CACHE_FILE));
+    }
+
+    public Path getFile() {
+        return m_file;
+    }
+
+    public int getHits() {
+        return m_hits.get();
+    }
+
+    public int getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Load the cache from disk.  A missing, truncated or incompatible cache
+     * file is treated as empty.
+     */
+    public void load() throws IOException {
+        m_previous.clear();
+        m_current.clear();
+        m_hits.set(0);
+        m_misses.set(0);
+
+        if (!Files.isRegularFile(m_file)) {
+            return;
+        }
+
+        final MappedByteBuffer buffer;
+        try (final FileChannel channel = FileChannel.open(m_file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOG.info("Ignoring incompatible package cache {}", m_file);
+                return;
+            }
+            final int count = readCount(buffer);
+            for (int i = 0; i < count; i++) {
+                final int length = buffer.getInt();
+                final ByteBuffer record = buffer.slice();
+                record.limit(length);
+                buffer.position(buffer.position() + length);
+
+                final ByteBuffer in = record.duplicate();
+                final FileIdentity identity = new FileIdentity(readRequiredString(in), in.getLong(), in.getLong(), in.getLong());
+                final String checksumType = readRequiredString(in);
+                final String checksum = readRequiredString(in);
+                m_previous.put(identity.getPath(), new Entry(identity, checksumType, checksum, record, in.slice(), null));
+            }
+            LOG.debug("Loaded {} cached packages from {}", m_previous.size(), m_file);
+        } catch (final RuntimeException e) {
+            LOG.warn("Ignoring corrupt package cache {}: {}", m_file, e.toString());
+            m_previous.clear();
+        }
+    }
+
+    /**
+     * Get the cached package for the given file, or null if the file has changed
+     * since it was cached, or was cached with a different checksum type.
+     */
+    public RPMPackage get(final Path path, final FileIdentity identity, final String checksumType) {
+        final Entry entry = m_previous.get(identity.getPath());
+        if (entry == null || !entry.getIdentity().equals(identity) || !entry.getChecksumType().equals(checksumType)) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        final RPMHeader header;
+        try {
+            header = new RPMHeader(entry.getHeaderBytes().duplicate());
+        } catch (final RuntimeException e) {
+            // whatever a damaged record decodes to, the package is just read again
+            LOG.warn("Ignoring corrupt cache entry for {}: {}", identity.getPath(), e.toString());
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_current.put(identity.getPath(), entry);
+        m_hits.incrementAndGet();
+        return new RPMPackage(path, identity.getPath(), header, identity.getSize(), identity.getLastModified(), entry.getChecksumType(), entry.getChecksum());
+    }
+
+    /**
+     * Record a freshly-read package.
+     */
+    public void put(final FileIdentity identity, final RPMPackage pkg) {
+        m_current.put(identity.getPath(), new Entry(identity, pkg.getChecksumType(), pkg.getChecksum(), null, null, pkg.getHeader()));
+    }
+
+    /**
+     * Write every package seen since {@link #load()} back to disk.  Packages that
+     * were cached but not seen in this run are dropped.  The file is replaced atomically.
+     */
+    public void save() throws IOException {
+        Files.createDirectories(m_file.getParent());
+        final Path temp = Files.createTempFile(m_file.getParent(), CACHE_FILE, ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                final List<Entry> entries = new ArrayList<>(new TreeMap<>(m_current).values());
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                final ByteArrayOutputStream record = new ByteArrayOutputStream(64 * 1024);
+                final DataOutputStream recordOut = new DataOutputStream(record);
+                for (final Entry entry : entries) {
+                    record.reset();
+                    if (entry.getRecord() != null) {
+                        final ByteBuffer bytes = entry.getRecord().duplicate();
+                        final byte[] copy = new byte[bytes.remaining()];
+                        bytes.get(copy);
+                        record.write(copy);
+                    } else {
+                        entry.write(recordOut);
+                        recordOut.flush();
+                    }
+                    out.writeInt(record.size());
+                    record.writeTo(out);
+                }
+            }
+            Files.move(temp, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Saved {} packages to {}", m_current.size(), m_file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void writeString(final DataOutput out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(final ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            final byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Read a string that must be present; a corrupt record may claim it is null.
+     */
+    static String readRequiredString(final ByteBuffer in) {
+        final String value = readString(in);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing string in cache record");
+        }
+        return value;
+    }
+
+    /**
+     * Read an element count.  Every element takes at least one byte, so a count
+     * larger than what is left of the record (or a negative one) is corrupt.
+     */
+    static int readCount(final ByteBuffer in) {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid count " + count + " in cache record");
+        }
+        return count;
+    }
+
+    private static final class Entry {
+        private final FileIdentity m_identity;
+        private final String m_checksumType;
+        private final String m_checksum;
+        private final ByteBuffer m_record;
+        private final ByteBuffer m_headerBytes;
+        private final RPMHeader m_header;
+
+        Entry(final FileIdentity identity, final String checksumType, final String checksum, final ByteBuffer record, final ByteBuffer headerBytes, final RPMHeader header) {
+            m_identity = identity;
+            m_checksumType = checksumType;
+            m_checksum = checksum;
+            m_record = record;
+            m_headerBytes = headerBytes;
+            m_header = header;
+        }
+
+        FileIdentity getIdentity() {
+            return m_identity;
+        }
+
+        String getChecksumType() {
+            return m_checksumType;
+        }
+
+        String getChecksum() {
+            return m_checksum;
+        }
+
+        /** The raw on-disk record, if this entry was loaded from the cache file. */
+        ByteBuffer getRecord() {
+            return m_record;
+        }
+
+        ByteBuffer getHeaderBytes() {
+            return m_headerBytes;
+        }
+
+        void write(final DataOutput out) throws IOException {
+            writeString(out, m_identity.getPath());
+            out.writeLong(m_identity.getSize());
+            out.writeLong(m_identity.getLastModified());
+            out.writeLong(m_identity.getInode());
+            writeString(out, m_checksumType);
+            writeString(out, m_checksum);
+            m_header.write(out);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.opennms.repo.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.opennms.repo.api.Package;
+
+/**
+ * A set of packages, indexed by name and architecture.
+ *
+ * Each (name, arch) pair has its own bucket, kept sorted newest-first as
+ * packages are added, so finding the newest package is a lookup and finding
+ * obsolete packages is a single pass with no sorting.  Packages are identified
+ * by path: adding a package with the same path as an existing one replaces it.
+ *
+ * Results are ordered by name, then architecture, then newest-first, like
+ * {@code OpenNMS::Release::PackageSet}.  This class is not thread-safe.
+ */
+public class PackageSet<T extends Package> implements Iterable<T> {
+    private final Map<String,Map<String,Bucket<T>>> m_packages = new TreeMap<>();
+    private int m_size = 0;
+
+    public PackageSet() {
+    }
+
+    public PackageSet(final Collection<? extends T> packages) {
+        addAll(packages);
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public void add(final T pkg) {
+        remove(pkg);
+        Map<String,Bucket<T>> arches = m_packages.get(pkg.getName());
+        if (arches == null) {
+            arches = new TreeMap<>();
+            m_packages.put(pkg.getName(), arches);
+        }
+        Bucket<T> bucket = arches.get(pkg.getArch());
+        if (bucket == null) {
+            bucket = new Bucket<>();
+            arches.put(pkg.getArch(), bucket);
+        }
+        bucket.add(pkg);
+        m_size++;
+    }
+
+    public void addAll(final Collection<? extends T> packages) {
+        for (final T pkg : packages) {
+            add(pkg);
+        }
+    }
+
+    /**
+     * Remove the package with the same name, architecture and path as the given package.
+     * @return true if a package was removed
+     */
+    public boolean remove(final Package pkg) {
+        final Map<String,Bucket<T>> arches = m_packages.get(pkg.getName());
+        if (arches == null) {
+            return false;
+        }
+        final Bucket<T> bucket = arches.get(pkg.getArch());
+        if (bucket == null || !bucket.remove(pkg)) {
+            return false;
+        }
+        m_size--;
+        if (bucket.size() == 0) {
+            arches.remove(pkg.getArch());
+            if (arches.isEmpty()) {
+                m_packages.remove(pkg.getName());
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        m_packages.clear();
+        m_size = 0;
+    }
+
+    /**
+     * Replace the contents of this set.
+     */
+    public void set(final Collection<? extends T> packages) {
+        clear();
+        addAll(packages);
+    }
+
+    public List<T> findAll() {
+        final List<T> ret = new ArrayList<>(m_size);
+        for (final Map<String,Bucket<T>> arches : m_packages.values()) {
+            for (final Bucket<T> bucket : arches.values()) {
+                bucket.addTo(ret, bucket.size());
+            }
+        }
+        return ret;
+    }
+
+    public List<T> findByName(final String name) {
+        final Map<String,Bucket<T>> arches = m_packages.get(name);
+        if (arches == null) {
+            return Collections.emptyList();
+        }
+        final List<T> ret = new ArrayList<>();
+        for (final Bucket<T> bucket : arches.values()) {
+            bucket.addTo(ret, bucket.size());
+        }
+        return ret;
+    }
+
+    /**
+     * Every version of the package with the given name and architecture, newest first.
+     */
+    public List<T> findByNameAndArch(final String name, final String arch) {
+        final Bucket<T> bucket = getBucket(name, arch);
+        if (bucket == null) {
+            return Collections.emptyList();
+        }
+        final List<T> ret = new ArrayList<>(bucket.size());
+        bucket.addTo(ret, bucket.size());
+        return ret;
+    }
+
+    /**
+     * The newest package for each name and architecture.
+     */
+    public List<T> findNewest() {
+        final List<T> ret = new ArrayList<>();
+        for (final Map<String,Bucket<T>> arches : m_packages.values()) {
+            for (final Bucket<T> bucket : arches.values()) {
+                ret.add(bucket.newest());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The newest package with the given name, for each architecture.
+     */
+    public List<T> findNewestByName(final String name) {
+        final Map<String,Bucket<T>> arches = m_packages.get(name);
+        if (arches == null) {
+            return Collections.emptyList();
+        }
+        final List<T> ret = new ArrayList<>(arches.size());
+        for (final Bucket<T> bucket : arches.values()) {
+            ret.add(bucket.newest());
+        }
+        return ret;
+    }
+
+    /**
+     * The newest package with the given name and architecture, or null if there is none.
+     */
+    public T findNewestByNameAndArch(final String name, final String arch) {
+        final Bucket<T> bucket = getBucket(name, arch);
+        return bucket == null ? null : bucket.newest();
+    }
+
+    /**
+     * Every package that has a newer version with the same name and architecture in this set.
+     */
+    public List<T> findObsolete() {
+        final List<T> ret = new ArrayList<>();
+        for (final Map<String,Bucket<T>> arches : m_packages.values()) {
+            for (final Bucket<T> bucket : arches.values()) {
+                bucket.addObsoleteTo(ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Whether this set contains a newer version of the given package (which need not be in the set).
+     */
+    public boolean isObsolete(final Package pkg) {
+        final T newest = findNewestByNameAndArch(pkg.getName(), pkg.getArch());
+        return newest != null && newest.getVersion().isNewerThan(pkg.getVersion());
+    }
+
+    /**
+     * Whether this set has any package that is missing from, or newer than the newest
+     * version in, the other set.
+     */
+    public boolean hasNewerThan(final PackageSet<? extends Package> other) {
+        for (final Map<String,Bucket<T>> arches : m_packages.values()) {
+            for (final Bucket<T> bucket : arches.values()) {
+                final T pkg = bucket.newest();
+                final Package otherPackage = other.findNewestByNameAndArch(pkg.getName(), pkg.getArch());
+                if (otherPackage == null || pkg.getVersion().isNewerThan(otherPackage.getVersion())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableList(findAll()).iterator();
+    }
+
+    private Bucket<T> getBucket(final String name, final String arch) {
+        final Map<String,Bucket<T>> arches = m_packages.get(name);
+        return arches == null ? null : arches.get(arch);
+    }
+
+    @Override
+    public String toString() {
+        return "PackageSet" + findAll();
+    }
+
+    /**
+     * The packages for a single name and architecture, sorted newest-first.
+     * Packages with equal versions stay in the order they were added.
+     */
+    private static final class Bucket<T extends Package> {
+        private Package[] m_entries = new Package[2];
+        private int m_size = 0;
+
+        int size() {
+            return m_size;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(final int index) {
+            return (T)m_entries[index];
+        }
+
+        T newest() {
+            return get(0);
+        }
+
+        void add(final T pkg) {
+            // binary search for the first entry strictly older than pkg
+            int low = 0;
+            int high = m_size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (m_entries[mid].getVersion().compareTo(pkg.getVersion()) >= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (m_size == m_entries.length) {
+                m_entries = Arrays.copyOf(m_entries, m_size * 2);
+            }
+            System.arraycopy(m_entries, low, m_entries, low + 1, m_size - low);
+            m_entries[low] = pkg;
+            m_size++;
+        }
+
+        boolean remove(final Package pkg) {
+            for (int i = 0; i < m_size; i++) {
+                if (Objects.equals(m_entries[i].getPath(), pkg.getPath())) {
+                    System.arraycopy(m_entries, i + 1, m_entries, i, m_size - i - 1);
+                    m_entries[--m_size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addTo(final List<T> list, final int count) {
+            for (int i = 0; i < count; i++) {
+                list.add(get(i));
+            }
+        }
+
+        void addObsoleteTo(final List<T> list) {
+            final Package newest = m_entries[0];
+            int i = 1;
+            while (i < m_size && m_entries[i].getVersion().compareTo(newest.getVersion()) == 0) {
+                i++;
+            }
+            for (; i < m_size; i++) {
+                list.add(get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opennms.repo.api.Package;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.api.SharePlan;
+import org.opennms.repo.api.SharePlan.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares packages from one repository into another, like {@code Repo.pm}'s
+ * {@code share_all_packages}.
+ *
+ * Both repositories' packages are loaded into {@link PackageSet}s once, so each
+ * source package is matched against the target with a sorted lookup instead of
+ * a scan of every target package.  Links are then made in parallel; anything
+ * that cannot be hard-linked (eg. across filesystems) is copied.
+ */
+public abstract class PackageSharer {
+    private static final Logger LOG = LoggerFactory.getLogger(PackageSharer.class);
+
+    /** Package names listed in this file in a target repository are never shared into it. */
+    public static final String EXCLUDE_SHARE = ".exclude-share";
+
+    private PackageSharer() {
+    }
+
+    /**
+     * The package names listed in a repository's {@code .exclude-share} file, one per line.
+     */
+    public static Set<String> getExcludeShare(final Path root) throws IOException {
+        final Path file = root.resolve(EXCLUDE_SHARE);
+        if (!Files.exists(file)) {
+            return Collections.emptySet();
+        }
+        final Set<String> names = new LinkedHashSet<>();
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String name = line.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    public static SharePlan plan(final Repository source, final Repository target) throws RepositoryException {
+        final PackageSet<Package> sourcePackages = toPackageSet(source.getPackages());
+        final PackageSet<Package> targetPackages = toPackageSet(target.getPackages());
+        final Set<String> excluded;
+        try {
+            excluded = getExcludeShare(target.getRoot());
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to read " + EXCLUDE_SHARE + " in " + target.getRoot(), e);
+        }
+
+        final List<Action> actions = new ArrayList<>();
+        for (final Package pkg : sourcePackages.findNewest()) {
+            if (excluded.contains(pkg.getName())) {
+                LOG.debug("{} is excluded from sharing into {}", pkg.getName(), target.getRoot());
+                continue;
+            }
+            final Package local = targetPackages.findNewestByNameAndArch(pkg.getName(), pkg.getArch());
+            if (local != null && !pkg.getVersion().isNewerThan(local.getVersion())) {
+                continue;
+            }
+            final Path dest = target.getRoot().resolve(source.getRoot().relativize(pkg.getPath()).toString());
+            if (Files.exists(dest)) {
+                // a file we could not read as a package; don't clobber it
+                LOG.warn("Not sharing {}: {} already exists", pkg.getPath(), dest);
+                continue;
+            }
+            actions.add(new Action(pkg, dest, local));
+        }
+        return new SharePlan(source, target, actions);
+    }
+
+    /**
+     * Carry out a plan on the given pool.
+     * @return the number of packages that were hard-linked (the rest were copied)
+     */
+    public static int share(final SharePlan plan, final ForkJoinPool pool) throws RepositoryException {
+        LOG.debug("{}", plan);
+        final List<Future<Boolean>> tasks = new ArrayList<>(plan.size());
+        for (final Action action : plan.getActions()) {
+            tasks.add(pool.submit(() -> {
+                Files.createDirectories(action.getTarget().getParent());
+                return LinkUtils.linkOrCopy(action.getPackage().getPath(), action.getTarget());
+            }));
+        }
+
+        int linked = 0;
+        RepositoryException failure = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                if (tasks.get(i).get()) {
+                    linked++;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while sharing packages.", e);
+            } catch (final ExecutionException e) {
+                final Action action = plan.getActions().get(i);
+                if (failure == null) {
+                    failure = new RepositoryException("Failed to share " + action.getPackage().getPath() + " to " + action.getTarget(), e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        LOG.info("Shared {} packages from {} to {} ({} linked)", plan.size(), plan.getSource().getRoot(), plan.getTarget().getRoot(), linked);
+        return linked;
+    }
+
+    private static PackageSet<Package> toPackageSet(final Iterable<? extends Package> packages) {
+        if (packages instanceof PackageSet) {
+            @SuppressWarnings("unchecked")
+            final PackageSet<Package> set = (PackageSet<Package>)packages;
+            return set;
+        }
+        final PackageSet<Package> set = new PackageSet<>();
+        for (final Package pkg : packages) {
+            set.add(pkg);
+        }
+        return set;
+    }
+}
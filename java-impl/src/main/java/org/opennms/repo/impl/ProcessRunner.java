@@ -0,0 +1,134 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.commons.exec.launcher.CommandLauncherFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs external commands without tying up the caller.
+ *
+ * {@link #start(CommandBuilder)} launches the process and returns straight
+ * away with a future for its exit value.  Each process's standard output and
+ * standard error are pumped, a line at a time, to the builder's consumers on
+ * a shared pool of daemon threads, and a further thread waits for it to exit,
+ * so any number of commands (several {@code createrepo} runs for different
+ * repositories, say) can be in flight at once and none of them can block on
+ * a full pipe.  The future completes once the process has exited and all of
+ * its output has been read.
+ *
+ * If the builder has a timeout, the process is killed when it runs out and
+ * the future fails with an {@link IOException}.  Cancelling the future kills
+ * the process too.
+ */
+public class ProcessRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessRunner.class);
+
+    private static final ProcessRunner INSTANCE = new ProcessRunner();
+
+    private final ExecutorService m_threads;
+    private final ScheduledThreadPoolExecutor m_timer;
+
+    ProcessRunner() {
+        m_threads = Executors.newCachedThreadPool(daemonThreads("process-io"));
+        m_timer = new ScheduledThreadPoolExecutor(1, daemonThreads("process-timeout"));
+        m_timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static ProcessRunner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Launch the command.
+     * @return the exit value, once the process has exited and its output has been read
+     * @throws IOException if the process could not be started
+     */
+    public CompletableFuture<Integer> start(final CommandBuilder command) throws IOException {
+        final String name = command.getCommandLine().getExecutable();
+        LOG.debug("running: {}", command.getCommandLine());
+        final Process p = CommandLauncherFactory.createVMLauncher().exec(command.getCommandLine(), command.getEnvironment(), command.getDirectory() == null ? null : command.getDirectory().toFile());
+        p.getOutputStream().close();
+
+        final CompletableFuture<Void> stdout = CompletableFuture.runAsync(() -> pump(p.getInputStream(), command.getStdout(), name, "stdout"), m_threads);
+        final CompletableFuture<Void> stderr = CompletableFuture.runAsync(() -> pump(p.getErrorStream(), command.getStderr(), name, "stderr"), m_threads);
+        final CompletableFuture<Integer> exit = CompletableFuture.supplyAsync(() -> waitFor(p), m_threads);
+
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        CompletableFuture.allOf(stdout, stderr, exit).whenComplete((ignored, t) -> {
+            if (t == null) {
+                result.complete(exit.join());
+            } else {
+                result.completeExceptionally(t);
+            }
+        });
+
+        final ScheduledFuture<?> timeout;
+        if (command.getTimeout() > 0) {
+            timeout = m_timer.schedule(() -> {
+                if (result.completeExceptionally(new IOException(name + " did not finish within " + command.getTimeout() + "ms"))) {
+                    LOG.warn("Killing {}: it did not finish within {}ms", name, command.getTimeout());
+                }
+            }, command.getTimeout(), TimeUnit.MILLISECONDS);
+        } else {
+            timeout = null;
+        }
+
+        // timed out, cancelled, or the output could not be read: don't leave the process behind
+        result.whenComplete((exitValue, t) -> {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (t != null && p.isAlive()) {
+                p.destroyForcibly();
+            }
+        });
+        return result;
+    }
+
+    private static Integer waitFor(final Process p) {
+        while (true) {
+            try {
+                return p.waitFor();
+            } catch (final InterruptedException e) {
+                // only the pool shutting down interrupts us; the process is still ours to wait for
+                LOG.trace("Interrupted waiting for {}", p);
+            }
+        }
+    }
+
+    private static void pump(final InputStream is, final Consumer<String> consumer, final String name, final String stream) {
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(line);
+            }
+        } catch (final IOException e) {
+            // the process was killed
+            LOG.trace("Stopped reading {} of {}: {}", stream, name, e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package org.opennms.repo.impl;
+
+import java.util.Objects;
+
+/**
+ * A single provides/requires/conflicts/obsoletes entry from an RPM header.
+ */
+public final class RPMDependency {
+    public static final int RPMSENSE_LESS = 0x02;
+    public static final int RPMSENSE_GREATER = 0x04;
+    public static final int RPMSENSE_EQUAL = 0x08;
+    public static final int RPMSENSE_PREREQ = 0x40;
+    public static final int RPMSENSE_SCRIPT_PRE = 0x200;
+    public static final int RPMSENSE_SCRIPT_POST = 0x400;
+
+    private static final int RPMSENSE_SENSEMASK = 0x0f;
+
+    private final String m_name;
+    private final int m_flags;
+    private final String m_epoch;
+    private final String m_version;
+    private final String m_release;
+
+    public RPMDependency(final String name, final int flags, final String evr) {
+        m_name = name;
+        m_flags = flags;
+
+        if (evr == null || evr.isEmpty()) {
+            m_epoch = null;
+            m_version = null;
+            m_release = null;
+            return;
+        }
+
+        String rest = evr;
+        final int colon = rest.indexOf(':');
+        if (colon > 0) {
+            m_epoch = rest.substring(0, colon);
+            rest = rest.substring(colon + 1);
+        } else {
+            m_epoch = null;
+        }
+        final int dash = rest.lastIndexOf('-');
+        if (dash >= 0) {
+            m_version = rest.substring(0, dash);
+            m_release = rest.substring(dash + 1);
+        } else {
+            m_version = rest;
+            m_release = null;
+        }
+    }
+
+    RPMDependency(final String name, final int flags, final String epoch, final String version, final String release) {
+        m_name = name;
+        m_flags = flags;
+        m_epoch = epoch;
+        m_version = version;
+        m_release = release;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public int getFlags() {
+        return m_flags;
+    }
+
+    public String getEpoch() {
+        return m_epoch;
+    }
+
+    public String getVersion() {
+        return m_version;
+    }
+
+    public String getRelease() {
+        return m_release;
+    }
+
+    /**
+     * The comparison operator in the form used by YUM metadata
+     * ({@code EQ}, {@code LT}, {@code LE}, {@code GT}, {@code GE}),
+     * or null if this dependency is unversioned.
+     */
+    public String getComparison() {
+        switch (m_flags & RPMSENSE_SENSEMASK) {
+            case RPMSENSE_EQUAL: return "EQ";
+            case RPMSENSE_LESS: return "LT";
+            case RPMSENSE_LESS | RPMSENSE_EQUAL: return "LE";
+            case RPMSENSE_GREATER: return "GT";
+            case RPMSENSE_GREATER | RPMSENSE_EQUAL: return "GE";
+            default: return null;
+        }
+    }
+
+    /**
+     * Whether this dependency must be satisfied before install scriptlets run.
+     */
+    public boolean isPre() {
+        return (m_flags & (RPMSENSE_PREREQ | RPMSENSE_SCRIPT_PRE | RPMSENSE_SCRIPT_POST)) != 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(m_name, m_flags, m_epoch, m_version, m_release);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof RPMDependency)) return false;
+        final RPMDependency that = (RPMDependency) obj;
+        return m_flags == that.m_flags &&
+                Objects.equals(m_name, that.m_name) &&
+                Objects.equals(m_epoch, that.m_epoch) &&
+                Objects.equals(m_version, that.m_version) &&
+                Objects.equals(m_release, that.m_release);
+    }
+
+    @Override
+    public String toString() {
+        final String comparison = getComparison();
+        if (comparison == null) {
+            return m_name;
+        }
+        final StringBuilder sb = new StringBuilder(m_name).append(' ').append(comparison).append(' ');
+        if (m_epoch != null) {
+            sb.append(m_epoch).append(':');
+        }
+        sb.append(m_version);
+        if (m_release != null) {
+            sb.append('-').append(m_release);
+        }
+        return sb.toString();
+    }
+}
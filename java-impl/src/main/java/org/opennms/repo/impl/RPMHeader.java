@@ -0,0 +1,434 @@
+package org.opennms.repo.impl;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.repo.api.RepositoryException;
+
+/**
+ * Immutable package metadata read from an RPM's lead, signature and main headers.
+ * Created by {@link RPMHeaderReader}; never touches the payload.
+ */
+public final class RPMHeader {
+    public enum FileType {
+        FILE, DIR, GHOST
+    }
+
+    public static final class Changelog {
+        private final long m_time;
+        private final String m_author;
+        private final String m_text;
+
+        public Changelog(final long time, final String author, final String text) {
+            m_time = time;
+            m_author = author;
+            m_text = text;
+        }
+
+        /** Changelog entry date, in seconds since the epoch. */
+        public long getTime() {
+            return m_time;
+        }
+
+        public String getAuthor() {
+            return m_author;
+        }
+
+        public String getText() {
+            return m_text;
+        }
+    }
+
+    private static final FileType[] FILE_TYPES = FileType.values();
+
+    private final String m_name;
+    private final Integer m_epoch;
+    private final String m_version;
+    private final String m_release;
+    private final String m_arch;
+
+    private final String m_summary;
+    private final String m_description;
+    private final String m_url;
+    private final String m_license;
+    private final String m_vendor;
+    private final String m_group;
+    private final String m_buildHost;
+    private final String m_sourceRpm;
+    private final String m_packager;
+    private final long m_buildTime;
+    private final long m_installedSize;
+    private final long m_archiveSize;
+
+    private final long m_headerStart;
+    private final long m_headerEnd;
+
+    private final List<RPMDependency> m_provides;
+    private final List<RPMDependency> m_requires;
+    private final List<RPMDependency> m_conflicts;
+    private final List<RPMDependency> m_obsoletes;
+
+    private final String[] m_files;
+    private final byte[] m_fileTypes;
+    private final List<Changelog> m_changelogs;
+
+    RPMHeader(final RPMHeaderReader.TagTable tags, final long headerStart, final long headerEnd, final long archiveSize) {
+        m_name = tags.getString(RPMHeaderReader.RPMTAG_NAME);
+        m_epoch = tags.getInteger(RPMHeaderReader.RPMTAG_EPOCH);
+        m_version = tags.getString(RPMHeaderReader.RPMTAG_VERSION);
+        m_release = tags.getString(RPMHeaderReader.RPMTAG_RELEASE);
+        m_arch = tags.getString(RPMHeaderReader.RPMTAG_ARCH);
+
+        m_summary = tags.getString(RPMHeaderReader.RPMTAG_SUMMARY);
+        m_description = tags.getString(RPMHeaderReader.RPMTAG_DESCRIPTION);
+        m_url = tags.getString(RPMHeaderReader.RPMTAG_URL);
+        m_license = tags.getString(RPMHeaderReader.RPMTAG_LICENSE);
+        m_vendor = tags.getString(RPMHeaderReader.RPMTAG_VENDOR);
+        m_group = tags.getString(RPMHeaderReader.RPMTAG_GROUP);
+        m_buildHost = tags.getString(RPMHeaderReader.RPMTAG_BUILDHOST);
+        m_sourceRpm = tags.getString(RPMHeaderReader.RPMTAG_SOURCERPM);
+        m_packager = tags.getString(RPMHeaderReader.RPMTAG_PACKAGER);
+        m_buildTime = tags.getLong(RPMHeaderReader.RPMTAG_BUILDTIME, 0);
+        m_installedSize = tags.getLong(RPMHeaderReader.RPMTAG_SIZE, 0);
+        m_archiveSize = archiveSize;
+
+        m_headerStart = headerStart;
+        m_headerEnd = headerEnd;
+
+        m_provides = dependencies(tags, RPMHeaderReader.RPMTAG_PROVIDENAME, RPMHeaderReader.RPMTAG_PROVIDEFLAGS, RPMHeaderReader.RPMTAG_PROVIDEVERSION);
+        m_requires = dependencies(tags, RPMHeaderReader.RPMTAG_REQUIRENAME, RPMHeaderReader.RPMTAG_REQUIREFLAGS, RPMHeaderReader.RPMTAG_REQUIREVERSION);
+        m_conflicts = dependencies(tags, RPMHeaderReader.RPMTAG_CONFLICTNAME, RPMHeaderReader.RPMTAG_CONFLICTFLAGS, RPMHeaderReader.RPMTAG_CONFLICTVERSION);
+        m_obsoletes = dependencies(tags, RPMHeaderReader.RPMTAG_OBSOLETENAME, RPMHeaderReader.RPMTAG_OBSOLETEFLAGS, RPMHeaderReader.RPMTAG_OBSOLETEVERSION);
+
+        final String[] basenames = tags.getStringArray(RPMHeaderReader.RPMTAG_BASENAMES);
+        if (basenames.length > 0) {
+            final String[] dirnames = tags.getStringArray(RPMHeaderReader.RPMTAG_DIRNAMES);
+            final int[] dirindexes = tags.getIntArray(RPMHeaderReader.RPMTAG_DIRINDEXES);
+            if (dirindexes.length < basenames.length) {
+                throw new RepositoryException("Header has " + basenames.length + " file names but only " + dirindexes.length + " directory indexes.");
+            }
+            m_files = new String[basenames.length];
+            for (int i = 0; i < basenames.length; i++) {
+                final int dirindex = dirindexes[i];
+                if (dirindex < 0 || dirindex >= dirnames.length) {
+                    throw new RepositoryException("File " + basenames[i] + " has an invalid directory index (" + dirindex + ").");
+                }
+                m_files[i] = dirnames[dirindex].concat(basenames[i]);
+            }
+        } else {
+            m_files = tags.getStringArray(RPMHeaderReader.RPMTAG_OLDFILENAMES);
+        }
+
+        final int[] modes = tags.getIntArray(RPMHeaderReader.RPMTAG_FILEMODES);
+        final int[] flags = tags.getIntArray(RPMHeaderReader.RPMTAG_FILEFLAGS);
+        m_fileTypes = new byte[m_files.length];
+        for (int i = 0; i < m_files.length; i++) {
+            if (i < flags.length && (flags[i] & RPMHeaderReader.RPMFILE_GHOST) != 0) {
+                m_fileTypes[i] = (byte) FileType.GHOST.ordinal();
+            } else if (i < modes.length && (modes[i] & RPMHeaderReader.S_IFMT) == RPMHeaderReader.S_IFDIR) {
+                m_fileTypes[i] = (byte) FileType.DIR.ordinal();
+            } else {
+                m_fileTypes[i] = (byte) FileType.FILE.ordinal();
+            }
+        }
+
+        final int[] times = tags.getIntArray(RPMHeaderReader.RPMTAG_CHANGELOGTIME);
+        final String[] authors = tags.getStringArray(RPMHeaderReader.RPMTAG_CHANGELOGNAME);
+        final String[] texts = tags.getStringArray(RPMHeaderReader.RPMTAG_CHANGELOGTEXT);
+        final int changelogCount = Math.min(times.length, Math.min(authors.length, texts.length));
+        final List<Changelog> changelogs = new ArrayList<>(changelogCount);
+        for (int i = 0; i < changelogCount; i++) {
+            changelogs.add(new Changelog(times[i] & 0xffffffffL, authors[i], texts[i]));
+        }
+        m_changelogs = Collections.unmodifiableList(changelogs);
+    }
+
+    /**
+     * Decode a header previously written with {@link #write(DataOutput)}.
+     * @throws RuntimeException if the record is damaged
+     */
+    RPMHeader(final ByteBuffer in) {
+        m_name = PackageMetadataCache.readString(in);
+        final int epoch = in.getInt();
+        m_epoch = epoch < 0 ? null : epoch;
+        m_version = PackageMetadataCache.readString(in);
+        m_release = PackageMetadataCache.readString(in);
+        m_arch = PackageMetadataCache.readString(in);
+
+        m_summary = PackageMetadataCache.readString(in);
+        m_description = PackageMetadataCache.readString(in);
+        m_url = PackageMetadataCache.readString(in);
+        m_license = PackageMetadataCache.readString(in);
+        m_vendor = PackageMetadataCache.readString(in);
+        m_group = PackageMetadataCache.readString(in);
+        m_buildHost = PackageMetadataCache.readString(in);
+        m_sourceRpm = PackageMetadataCache.readString(in);
+        m_packager = PackageMetadataCache.readString(in);
+        m_buildTime = in.getLong();
+        m_installedSize = in.getLong();
+        m_archiveSize = in.getLong();
+
+        m_headerStart = in.getLong();
+        m_headerEnd = in.getLong();
+
+        m_provides = readDependencies(in);
+        m_requires = readDependencies(in);
+        m_conflicts = readDependencies(in);
+        m_obsoletes = readDependencies(in);
+
+        final String[] dirs = new String[PackageMetadataCache.readCount(in)];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = PackageMetadataCache.readRequiredString(in);
+        }
+        m_files = new String[PackageMetadataCache.readCount(in)];
+        m_fileTypes = new byte[m_files.length];
+        for (int i = 0; i < m_files.length; i++) {
+            final int dir = in.getInt();
+            if (dir < 0 || dir >= dirs.length) {
+                throw new IllegalArgumentException("Invalid directory index " + dir + " in cache record");
+            }
+            m_files[i] = dirs[dir].concat(PackageMetadataCache.readRequiredString(in));
+            m_fileTypes[i] = in.get();
+        }
+
+        final int changelogCount = PackageMetadataCache.readCount(in);
+        final List<Changelog> changelogs = new ArrayList<>(changelogCount);
+        for (int i = 0; i < changelogCount; i++) {
+            changelogs.add(new Changelog(in.getLong(), PackageMetadataCache.readString(in), PackageMetadataCache.readString(in)));
+        }
+        m_changelogs = Collections.unmodifiableList(changelogs);
+    }
+
+    /**
+     * Encode this header in the compact form used by {@link PackageMetadataCache}.
+     * File paths are split into a shared directory table and basenames, like RPM does.
+     */
+    void write(final DataOutput out) throws IOException {
+        PackageMetadataCache.writeString(out, m_name);
+        out.writeInt(m_epoch == null ? -1 : m_epoch);
+        PackageMetadataCache.writeString(out, m_version);
+        PackageMetadataCache.writeString(out, m_release);
+        PackageMetadataCache.writeString(out, m_arch);
+
+        PackageMetadataCache.writeString(out, m_summary);
+        PackageMetadataCache.writeString(out, m_description);
+        PackageMetadataCache.writeString(out, m_url);
+        PackageMetadataCache.writeString(out, m_license);
+        PackageMetadataCache.writeString(out, m_vendor);
+        PackageMetadataCache.writeString(out, m_group);
+        PackageMetadataCache.writeString(out, m_buildHost);
+        PackageMetadataCache.writeString(out, m_sourceRpm);
+        PackageMetadataCache.writeString(out, m_packager);
+        out.writeLong(m_buildTime);
+        out.writeLong(m_installedSize);
+        out.writeLong(m_archiveSize);
+
+        out.writeLong(m_headerStart);
+        out.writeLong(m_headerEnd);
+
+        writeDependencies(out, m_provides);
+        writeDependencies(out, m_requires);
+        writeDependencies(out, m_conflicts);
+        writeDependencies(out, m_obsoletes);
+
+        final Map<String,Integer> dirIndexes = new HashMap<>();
+        final List<String> dirs = new ArrayList<>();
+        final int[] fileDirs = new int[m_files.length];
+        for (int i = 0; i < m_files.length; i++) {
+            final String dir = m_files[i].substring(0, m_files[i].lastIndexOf('/') + 1);
+            Integer index = dirIndexes.get(dir);
+            if (index == null) {
+                index = dirs.size();
+                dirIndexes.put(dir, index);
+                dirs.add(dir);
+            }
+            fileDirs[i] = index;
+        }
+        out.writeInt(dirs.size());
+        for (final String dir : dirs) {
+            PackageMetadataCache.writeString(out, dir);
+        }
+        out.writeInt(m_files.length);
+        for (int i = 0; i < m_files.length; i++) {
+            out.writeInt(fileDirs[i]);
+            PackageMetadataCache.writeString(out, m_files[i].substring(dirs.get(fileDirs[i]).length()));
+            out.writeByte(m_fileTypes[i]);
+        }
+
+        out.writeInt(m_changelogs.size());
+        for (final Changelog changelog : m_changelogs) {
+            out.writeLong(changelog.getTime());
+            PackageMetadataCache.writeString(out, changelog.getAuthor());
+            PackageMetadataCache.writeString(out, changelog.getText());
+        }
+    }
+
+    private static List<RPMDependency> readDependencies(final ByteBuffer in) {
+        final int count = PackageMetadataCache.readCount(in);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        final RPMDependency[] deps = new RPMDependency[count];
+        for (int i = 0; i < count; i++) {
+            final String name = PackageMetadataCache.readRequiredString(in);
+            final int flags = in.getInt();
+            deps[i] = new RPMDependency(name, flags, PackageMetadataCache.readString(in), PackageMetadataCache.readString(in), PackageMetadataCache.readString(in));
+        }
+        return Collections.unmodifiableList(Arrays.asList(deps));
+    }
+
+    private static void writeDependencies(final DataOutput out, final List<RPMDependency> deps) throws IOException {
+        out.writeInt(deps.size());
+        for (final RPMDependency dep : deps) {
+            PackageMetadataCache.writeString(out, dep.getName());
+            out.writeInt(dep.getFlags());
+            PackageMetadataCache.writeString(out, dep.getEpoch());
+            PackageMetadataCache.writeString(out, dep.getVersion());
+            PackageMetadataCache.writeString(out, dep.getRelease());
+        }
+    }
+
+    private static List<RPMDependency> dependencies(final RPMHeaderReader.TagTable tags, final int nameTag, final int flagsTag, final int versionTag) {
+        final String[] names = tags.getStringArray(nameTag);
+        if (names.length == 0) {
+            return Collections.emptyList();
+        }
+        final int[] flags = tags.getIntArray(flagsTag);
+        final String[] versions = tags.getStringArray(versionTag);
+        final RPMDependency[] deps = new RPMDependency[names.length];
+        for (int i = 0; i < names.length; i++) {
+            deps[i] = new RPMDependency(names[i], i < flags.length ? flags[i] : 0, i < versions.length ? versions[i] : null);
+        }
+        return Collections.unmodifiableList(Arrays.asList(deps));
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /** The package epoch, or null if the header does not define one. */
+    public Integer getEpoch() {
+        return m_epoch;
+    }
+
+    public String getVersion() {
+        return m_version;
+    }
+
+    public String getRelease() {
+        return m_release;
+    }
+
+    public String getArch() {
+        return m_arch;
+    }
+
+    public String getSummary() {
+        return m_summary;
+    }
+
+    public String getDescription() {
+        return m_description;
+    }
+
+    public String getUrl() {
+        return m_url;
+    }
+
+    public String getLicense() {
+        return m_license;
+    }
+
+    public String getVendor() {
+        return m_vendor;
+    }
+
+    public String getGroup() {
+        return m_group;
+    }
+
+    public String getBuildHost() {
+        return m_buildHost;
+    }
+
+    public String getSourceRpm() {
+        return m_sourceRpm;
+    }
+
+    public String getPackager() {
+        return m_packager;
+    }
+
+    /** Build time, in seconds since the epoch. */
+    public long getBuildTime() {
+        return m_buildTime;
+    }
+
+    /** Total size of the installed files, in bytes. */
+    public long getInstalledSize() {
+        return m_installedSize;
+    }
+
+    /** Uncompressed size of the payload archive, in bytes. */
+    public long getArchiveSize() {
+        return m_archiveSize;
+    }
+
+    /** File offset of the main header (after the lead and signature). */
+    public long getHeaderStart() {
+        return m_headerStart;
+    }
+
+    /** File offset of the end of the main header (start of the payload). */
+    public long getHeaderEnd() {
+        return m_headerEnd;
+    }
+
+    public List<RPMDependency> getProvides() {
+        return m_provides;
+    }
+
+    public List<RPMDependency> getRequires() {
+        return m_requires;
+    }
+
+    public List<RPMDependency> getConflicts() {
+        return m_conflicts;
+    }
+
+    public List<RPMDependency> getObsoletes() {
+        return m_obsoletes;
+    }
+
+    public List<String> getFiles() {
+        return Collections.unmodifiableList(Arrays.asList(m_files));
+    }
+
+    public FileType getFileType(final int index) {
+        return FILE_TYPES[m_fileTypes[index]];
+    }
+
+    public List<Changelog> getChangelogs() {
+        return m_changelogs;
+    }
+
+    /**
+     * The version in {@code epoch:version-release} form, with the epoch omitted if unset.
+     */
+    public String getFullVersion() {
+        final String vr = m_version + "-" + m_release;
+        return m_epoch == null ? vr : m_epoch + ":" + vr;
+    }
+
+    @Override
+    public String toString() {
+        return m_name + "-" + getFullVersion() + "." + m_arch;
+    }
+}
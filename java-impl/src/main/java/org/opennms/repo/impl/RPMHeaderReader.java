@@ -0,0 +1,337 @@
+package org.opennms.repo.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the lead, signature and main header of an RPM file without
+ * forking {@code rpm} and without reading any of the payload.
+ */
+public abstract class RPMHeaderReader {
+    private static final Logger LOG = LoggerFactory.getLogger(RPMHeaderReader.class);
+
+    static final int LEAD_SIZE = 96;
+    static final int LEAD_MAGIC = 0xedabeedb;
+    static final int HEADER_MAGIC = 0x8eade8;
+    static final int HEADER_INTRO_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    /* rpm's own sanity limits (HEADER_TAGS_MAX, HEADER_DATA_MAX) */
+    static final int MAX_TAGS = 0xffff;
+    static final int MAX_DATA = 256 * 1024 * 1024;
+
+    static final int RPM_NULL_TYPE = 0;
+    static final int RPM_CHAR_TYPE = 1;
+    static final int RPM_INT8_TYPE = 2;
+    static final int RPM_INT16_TYPE = 3;
+    static final int RPM_INT32_TYPE = 4;
+    static final int RPM_INT64_TYPE = 5;
+    static final int RPM_STRING_TYPE = 6;
+    static final int RPM_BIN_TYPE = 7;
+    static final int RPM_STRING_ARRAY_TYPE = 8;
+    static final int RPM_I18NSTRING_TYPE = 9;
+
+    /* OpenPGP signatures of the main header alone */
+    static final int RPMSIGTAG_DSA = 267;
+    static final int RPMSIGTAG_RSA = 268;
+
+    static final int RPMSIGTAG_SIZE = 1000;
+    /* OpenPGP signatures of the main header and the payload */
+    static final int RPMSIGTAG_PGP = 1002;
+    static final int RPMSIGTAG_GPG = 1005;
+    static final int RPMSIGTAG_PAYLOADSIZE = 1007;
+
+    static final int RPMTAG_NAME = 1000;
+    static final int RPMTAG_VERSION = 1001;
+    static final int RPMTAG_RELEASE = 1002;
+    static final int RPMTAG_EPOCH = 1003;
+    static final int RPMTAG_SUMMARY = 1004;
+    static final int RPMTAG_DESCRIPTION = 1005;
+    static final int RPMTAG_BUILDTIME = 1006;
+    static final int RPMTAG_BUILDHOST = 1007;
+    static final int RPMTAG_SIZE = 1009;
+    static final int RPMTAG_VENDOR = 1011;
+    static final int RPMTAG_LICENSE = 1014;
+    static final int RPMTAG_PACKAGER = 1015;
+    static final int RPMTAG_GROUP = 1016;
+    static final int RPMTAG_URL = 1020;
+    static final int RPMTAG_ARCH = 1022;
+    static final int RPMTAG_OLDFILENAMES = 1027;
+    static final int RPMTAG_FILEMODES = 1030;
+    static final int RPMTAG_FILEFLAGS = 1037;
+    static final int RPMTAG_SOURCERPM = 1044;
+    static final int RPMTAG_ARCHIVESIZE = 1046;
+    static final int RPMTAG_PROVIDENAME = 1047;
+    static final int RPMTAG_REQUIREFLAGS = 1048;
+    static final int RPMTAG_REQUIRENAME = 1049;
+    static final int RPMTAG_REQUIREVERSION = 1050;
+    static final int RPMTAG_CONFLICTFLAGS = 1053;
+    static final int RPMTAG_CONFLICTNAME = 1054;
+    static final int RPMTAG_CONFLICTVERSION = 1055;
+    static final int RPMTAG_CHANGELOGTIME = 1080;
+    static final int RPMTAG_CHANGELOGNAME = 1081;
+    static final int RPMTAG_CHANGELOGTEXT = 1082;
+    static final int RPMTAG_OBSOLETENAME = 1090;
+    static final int RPMTAG_PROVIDEFLAGS = 1112;
+    static final int RPMTAG_PROVIDEVERSION = 1113;
+    static final int RPMTAG_OBSOLETEFLAGS = 1114;
+    static final int RPMTAG_OBSOLETEVERSION = 1115;
+    static final int RPMTAG_DIRINDEXES = 1116;
+    static final int RPMTAG_BASENAMES = 1117;
+    static final int RPMTAG_DIRNAMES = 1118;
+
+    static final int RPMFILE_GHOST = 0x40;
+    static final int S_IFMT = 0170000;
+    static final int S_IFDIR = 0040000;
+
+    private static final String[] EMPTY_STRINGS = new String[0];
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private RPMHeaderReader() {
+    }
+
+    public static RPMHeader read(final Path rpmFile) throws IOException {
+        LOG.debug("Reading RPM header from {}", rpmFile);
+        try (final FileChannel channel = FileChannel.open(rpmFile, StandardOpenOption.READ)) {
+            return read(channel);
+        } catch (final RepositoryException e) {
+            throw new RepositoryException("Failed to read RPM header from " + rpmFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the RPM headers from the start of the given channel.  Only the lead, signature
+     * and main header are read; the channel's position is not modified.
+     */
+    public static RPMHeader read(final FileChannel channel) throws IOException {
+        final ByteBuffer lead = readFully(channel, 0, LEAD_SIZE);
+        if (lead.getInt(0) != LEAD_MAGIC) {
+            throw new RepositoryException("Not an RPM file (bad lead magic).");
+        }
+
+        final TagTable signature = readHeader(channel, LEAD_SIZE);
+        // the signature header is padded to an 8-byte boundary
+        final long headerStart = (signature.getEnd() + 7) & ~7L;
+        final TagTable header = readHeader(channel, headerStart);
+
+        final long archiveSize = header.getLong(RPMTAG_ARCHIVESIZE, signature.getLong(RPMSIGTAG_PAYLOADSIZE, 0));
+        return new RPMHeader(header, headerStart, header.getEnd(), archiveSize);
+    }
+
+    static TagTable readHeader(final FileChannel channel, final long position) throws IOException {
+        final ByteBuffer intro = readFully(channel, position, HEADER_INTRO_SIZE);
+        if ((intro.getInt(0) >>> 8) != HEADER_MAGIC) {
+            throw new RepositoryException("Bad header magic at offset " + position + ".");
+        }
+        final int entries = intro.getInt(8);
+        final int dataSize = intro.getInt(12);
+        if (entries < 0 || entries > MAX_TAGS || dataSize < 0 || dataSize > MAX_DATA) {
+            throw new RepositoryException("Header at offset " + position + " is too large (" + entries + " tags, " + dataSize + " bytes).");
+        }
+
+        final int length = entries * INDEX_ENTRY_SIZE + dataSize;
+        final ByteBuffer body = readFully(channel, position + HEADER_INTRO_SIZE, length);
+        return new TagTable(body, entries, position + HEADER_INTRO_SIZE + length);
+    }
+
+    private static ByteBuffer readFully(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + offset + ".");
+            }
+            offset += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A decoded header index plus its data store.
+     */
+    static final class TagTable {
+        private final int[] m_tags;
+        private final int[] m_types;
+        private final int[] m_offsets;
+        private final int[] m_counts;
+        private final byte[] m_store;
+        private final long m_end;
+
+        TagTable(final ByteBuffer body, final int entries, final long end) {
+            m_tags = new int[entries];
+            m_types = new int[entries];
+            m_offsets = new int[entries];
+            m_counts = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                m_tags[i] = body.getInt();
+                m_types[i] = body.getInt();
+                m_offsets[i] = body.getInt();
+                m_counts[i] = body.getInt();
+            }
+            m_store = new byte[body.remaining()];
+            body.get(m_store);
+            m_end = end;
+        }
+
+        /** File offset just past this header's data store. */
+        long getEnd() {
+            return m_end;
+        }
+
+        private int find(final int tag) {
+            for (int i = 0; i < m_tags.length; i++) {
+                if (m_tags[i] == tag) {
+                    final int offset = m_offsets[i];
+                    if (offset < 0 || offset > m_store.length) {
+                        throw new RepositoryException("Tag " + tag + " points outside of the header data.");
+                    }
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String getString(final int tag) {
+            final int i = find(tag);
+            if (i < 0) {
+                return null;
+            }
+            switch (m_types[i]) {
+                case RPM_STRING_TYPE:
+                case RPM_STRING_ARRAY_TYPE:
+                case RPM_I18NSTRING_TYPE:
+                    return readString(m_offsets[i]);
+                default:
+                    throw new RepositoryException("Tag " + tag + " is not a string (type " + m_types[i] + ").");
+            }
+        }
+
+        String[] getStringArray(final int tag) {
+            final int i = find(tag);
+            if (i < 0) {
+                return EMPTY_STRINGS;
+            }
+            if (m_types[i] == RPM_STRING_TYPE) {
+                return new String[] { readString(m_offsets[i]) };
+            }
+            if (m_types[i] != RPM_STRING_ARRAY_TYPE && m_types[i] != RPM_I18NSTRING_TYPE) {
+                throw new RepositoryException("Tag " + tag + " is not a string array (type " + m_types[i] + ").");
+            }
+            final String[] ret = new String[count(i)];
+            int offset = m_offsets[i];
+            for (int j = 0; j < ret.length; j++) {
+                final int end = terminator(offset);
+                ret[j] = new String(m_store, offset, end - offset, StandardCharsets.UTF_8);
+                offset = end + 1;
+            }
+            return ret;
+        }
+
+        int[] getIntArray(final int tag) {
+            final int i = find(tag);
+            if (i < 0) {
+                return EMPTY_INTS;
+            }
+            final int count = count(i);
+            final int offset = m_offsets[i];
+            final ByteBuffer data = ByteBuffer.wrap(m_store);
+            final int[] ret = new int[count];
+            switch (m_types[i]) {
+                case RPM_CHAR_TYPE:
+                case RPM_INT8_TYPE:
+                    checkBounds(tag, offset, count);
+                    for (int j = 0; j < count; j++) ret[j] = m_store[offset + j] & 0xff;
+                    return ret;
+                case RPM_INT16_TYPE:
+                    checkBounds(tag, offset, count * 2L);
+                    for (int j = 0; j < count; j++) ret[j] = data.getShort(offset + j * 2) & 0xffff;
+                    return ret;
+                case RPM_INT32_TYPE:
+                    checkBounds(tag, offset, count * 4L);
+                    for (int j = 0; j < count; j++) ret[j] = data.getInt(offset + j * 4);
+                    return ret;
+                default:
+                    throw new RepositoryException("Tag " + tag + " is not an integer array (type " + m_types[i] + ").");
+            }
+        }
+
+        /**
+         * The raw value of a binary tag, or null if it is not present.
+         */
+        byte[] getBytes(final int tag) {
+            final int i = find(tag);
+            if (i < 0) {
+                return null;
+            }
+            if (m_types[i] != RPM_BIN_TYPE) {
+                throw new RepositoryException("Tag " + tag + " is not binary (type " + m_types[i] + ").");
+            }
+            final int count = count(i);
+            checkBounds(tag, m_offsets[i], count);
+            return Arrays.copyOfRange(m_store, m_offsets[i], m_offsets[i] + count);
+        }
+
+        Integer getInteger(final int tag) {
+            final int[] values = getIntArray(tag);
+            return values.length == 0 ? null : values[0];
+        }
+
+        long getLong(final int tag, final long defaultValue) {
+            final int i = find(tag);
+            if (i < 0) {
+                return defaultValue;
+            }
+            if (m_types[i] == RPM_INT64_TYPE) {
+                checkBounds(tag, m_offsets[i], 8);
+                return ByteBuffer.wrap(m_store).getLong(m_offsets[i]);
+            }
+            final int[] values = getIntArray(tag);
+            return values.length == 0 ? defaultValue : values[0] & 0xffffffffL;
+        }
+
+        /**
+         * The element count of an index entry.  Every element takes at least one byte
+         * of the data store, so a count larger than the store is corrupt; checking it
+         * here keeps a bad header from sizing arrays before the bounds are checked.
+         */
+        private int count(final int i) {
+            final int count = m_counts[i];
+            if (count < 0 || count > m_store.length) {
+                throw new RepositoryException("Tag " + m_tags[i] + " has an invalid count (" + count + ").");
+            }
+            return count;
+        }
+
+        private String readString(final int offset) {
+            final int end = terminator(offset);
+            return new String(m_store, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private int terminator(final int offset) {
+            for (int i = offset; i < m_store.length; i++) {
+                if (m_store[i] == 0) {
+                    return i;
+                }
+            }
+            throw new RepositoryException("Unterminated string at header offset " + offset + ".");
+        }
+
+        private void checkBounds(final int tag, final int offset, final long length) {
+            if (offset < 0 || length < 0 || offset + length > m_store.length) {
+                throw new RepositoryException("Tag " + tag + " extends past the end of the header data.");
+            }
+        }
+    }
+}
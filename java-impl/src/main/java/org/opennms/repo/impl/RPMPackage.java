@@ -0,0 +1,86 @@
+package org.opennms.repo.impl;
+
+import java.nio.file.Path;
+
+import org.opennms.repo.api.Package;
+
+/**
+ * An RPM file in a repository: its parsed header plus the file-level facts
+ * (location, size, modification time, checksum) that YUM metadata records.
+ */
+public final class RPMPackage implements Package {
+    private final Path m_path;
+    private final String m_location;
+    private final RPMHeader m_header;
+    private final long m_size;
+    private final long m_lastModified;
+    private final String m_checksumType;
+    private final String m_checksum;
+    private final RPMVersion m_version;
+
+    public RPMPackage(final Path path, final String location, final RPMHeader header, final long size, final long lastModified, final String checksumType, final String checksum) {
+        m_path = path;
+        m_location = location;
+        m_header = header;
+        m_size = size;
+        m_lastModified = lastModified;
+        m_checksumType = checksumType;
+        m_checksum = checksum;
+        m_version = new RPMVersion(header.getEpoch() == null ? 0 : header.getEpoch(), header.getVersion(), header.getRelease());
+    }
+
+    @Override
+    public String getName() {
+        return m_header.getName();
+    }
+
+    @Override
+    public String getArch() {
+        return m_header.getArch();
+    }
+
+    @Override
+    public RPMVersion getVersion() {
+        return m_version;
+    }
+
+    @Override
+    public Path getPath() {
+        return m_path;
+    }
+
+    /**
+     * The package location relative to the repository root, using {@code /} separators.
+     */
+    public String getLocation() {
+        return m_location;
+    }
+
+    public RPMHeader getHeader() {
+        return m_header;
+    }
+
+    public long getSize() {
+        return m_size;
+    }
+
+    /** Last-modified time of the package file, in milliseconds since the epoch. */
+    public long getLastModified() {
+        return m_lastModified;
+    }
+
+    /** The checksum type, using YUM naming ({@code sha}, {@code sha256}), or null if there is no checksum. */
+    public String getChecksumType() {
+        return m_checksumType;
+    }
+
+    /** The package checksum, or null if it was read without one (see {@link RPMRepository#getPackages()}). */
+    public String getChecksum() {
+        return m_checksum;
+    }
+
+    @Override
+    public String toString() {
+        return m_location;
+    }
+}
@@ -1,10 +1,16 @@
 package org.opennms.repo.impl;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
@@ -12,13 +18,35 @@ import org.opennms.repo.api.GPGInfo;
 import org.opennms.repo.api.Repository;
 import org.opennms.repo.api.RepositoryException;
 import org.opennms.repo.api.RepositoryIndexException;
+import org.opennms.repo.api.RepositoryTransaction;
+import org.opennms.repo.api.SharePlan;
+import org.opennms.repo.impl.IndexMetrics.Outcome;
+import org.opennms.repo.impl.IndexMetrics.Phase;
+import org.opennms.repo.impl.YumRepodataGenerator.ChecksumType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RPMRepository implements Repository {
     private static final Logger LOG = LoggerFactory.getLogger(RPMRepository.class);
 
+    /**
+     * How repository metadata is generated.
+     */
+    public enum IndexEngine {
+        /** Fork the system {@code createrepo}. */
+        CREATEREPO,
+        /** Generate metadata in-process with {@link YumRepodataGenerator}. */
+        NATIVE
+    }
+
     private final Path m_root;
+    private IndexEngine m_indexEngine = IndexEngine.CREATEREPO;
+    private boolean m_incremental = false;
+    private FileHasher m_hasher = FileHasher.getDefault();
+    private ForkJoinPool m_pool = ForkJoinPool.commonPool();
+    private boolean m_deltas = false;
+    private Compression[] m_compressions = { Compression.GZIP };
+    private List<Path> m_oldPackageDirs;
 
     public RPMRepository(final String path) {
         m_root = Paths.get(path).toAbsolutePath();
@@ -28,6 +56,11 @@ public class RPMRepository implements Repository {
         m_root = path.toAbsolutePath();
     }
 
+    public RPMRepository(final Path path, final IndexEngine indexEngine) {
+        this(path);
+        m_indexEngine = indexEngine;
+    }
+
     @Override
     public Path getRoot() {
         return m_root;
@@ -38,31 +71,242 @@ public class RPMRepository implements Repository {
         return m_root.toFile().exists();
     }
 
+    public IndexEngine getIndexEngine() {
+        return m_indexEngine;
+    }
+
+    public void setIndexEngine(final IndexEngine indexEngine) {
+        m_indexEngine = indexEngine;
+    }
+
+    public boolean isIncremental() {
+        return m_incremental;
+    }
+
+    /**
+     * When incremental, package metadata is cached in {@code .repocache} under the
+     * repository root and only new or changed packages are re-read on the next index.
+     */
+    public void setIncremental(final boolean incremental) {
+        m_incremental = incremental;
+    }
+
+    public FileHasher getHasher() {
+        return m_hasher;
+    }
+
+    /**
+     * The hasher used to checksum packages when indexing natively.  Sharing one
+     * between repositories (and the signer) lets unchanged files be checksummed once.
+     */
+    public void setHasher(final FileHasher hasher) {
+        m_hasher = hasher;
+    }
+
+    public boolean isDeltas() {
+        return m_deltas;
+    }
+
+    /**
+     * When enabled, delta RPMs are built against up to
+     * {@link DeltaRpmGenerator#DEFAULT_NUM_DELTAS} older versions of each package
+     * and listed in {@code prestodelta.xml}, like {@code YumRepo.enable_deltas}.
+     */
+    public void setDeltas(final boolean deltas) {
+        m_deltas = deltas;
+    }
+
+    public List<Compression> getCompressions() {
+        return Collections.unmodifiableList(Arrays.asList(m_compressions));
+    }
+
+    /**
+     * Which compressed copies of the metadata native indexing writes; see
+     * {@link YumRepodataGenerator#setCompressions(Compression...)}.
+     */
+    public void setCompressions(final Compression... compressions) {
+        if (compressions.length == 0) {
+            throw new IllegalArgumentException("At least one compression is required.");
+        }
+        m_compressions = compressions.clone();
+    }
+
+    /**
+     * Where older versions of packages are looked for when building deltas; by default,
+     * the {@code stable} and {@code obsolete} repositories for the same platform.
+     */
+    public List<Path> getOldPackageDirs() {
+        return m_oldPackageDirs == null ? DeltaRpmGenerator.findOldPackageDirs(m_root) : m_oldPackageDirs;
+    }
+
+    public void setOldPackageDirs(final List<Path> oldPackageDirs) {
+        m_oldPackageDirs = oldPackageDirs;
+    }
+
+    /**
+     * The pool native indexing reads packages and writes metadata on.
+     */
+    public void setPool(final ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Index the repository, unless neither its packages nor the indexing
+     * options have changed since the last time and the repodata is intact
+     * (see {@link RepositoryState}).  {@code repomd.xml} is only re-signed if
+     * its existing signature no longer matches.
+     */
     @Override
     public void index(final GPGInfo gpginfo) throws RepositoryIndexException {
-        LOG.debug("indexing {}", m_root);
+        LOG.debug("indexing {} using {}", m_root, m_indexEngine);
+        final IndexMetrics metrics = new IndexMetrics(m_root);
+        Outcome outcome = Outcome.FAILED;
         try {
             if (!m_root.toFile().exists()) {
                 Files.createDirectories(m_root);
             }
-            final CreaterepoCommand command = new CreaterepoCommand(m_root);
-            command.run();
+
+            final Path repomdfile = m_root.resolve("repodata/repomd.xml");
+            final Path signfile = BatchSigner.getSignatureFile(repomdfile);
+            final Path keyfile = Paths.get(repomdfile.toString() + ".key");
+            final Path[] outputs = gpginfo == null ? new Path[] { repomdfile } : new Path[] { repomdfile, signfile, keyfile };
+
+            final RepositoryState state = new RepositoryState(m_root);
+            final String fingerprint;
+            try (final IndexMetrics.Timer timer = metrics.time(Phase.SCAN)) {
+                fingerprint = getFingerprint(gpginfo);
+                if (state.isCurrent(fingerprint, outputs)) {
+                    LOG.info("{} is unchanged since it was last indexed; skipping.", m_root);
+                    outcome = Outcome.SKIPPED;
+                    return;
+                }
+            }
+
+            generateMetadata(metrics);
 
             if (gpginfo == null) {
                 LOG.warn("Skipping repomd.xml signing!");
             } else {
-                final Path repomdfile = m_root.resolve("repodata/repomd.xml");
-
-                final Path signfile = Paths.get(repomdfile.toString() + ".asc");
-                GPGUtils.detach_sign(repomdfile, signfile, gpginfo, false);
+                try (final IndexMetrics.Timer timer = metrics.time(Phase.SIGN); final BatchSigner signer = new BatchSigner(gpginfo, 1, false)) {
+                    signer.sign(repomdfile);
+                }
 
-                final Path keyfile = Paths.get(repomdfile.toString() + ".key");
-                try(final FileWriter fw = new FileWriter(keyfile.toFile()); final PemWriter writer = new PemWriter(fw);) {
+                final StringWriter key = new StringWriter();
+                try (final PemWriter writer = new PemWriter(key)) {
                     writer.writeObject(new PemObject("PGP PUBLIC KEY BLOCK", gpginfo.getPublicKey().getEncoded()));
                 }
+                final byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+                if (!Files.isRegularFile(keyfile) || !Arrays.equals(keyBytes, Files.readAllBytes(keyfile))) {
+                    Files.write(keyfile, keyBytes);
+                }
             }
-        } catch (final RepositoryException | IOException | InterruptedException e) {
-            throw new RepositoryIndexException("Failed to run `createrepo`!", e);
+
+            state.save(fingerprint, outputs);
+            outcome = Outcome.INDEXED;
+        } catch (final RepositoryException | IOException e) {
+            if (m_indexEngine == IndexEngine.CREATEREPO) {
+                throw new RepositoryIndexException("Failed to run `createrepo`!", e);
+            }
+            throw new RepositoryIndexException("Failed to generate repodata for " + m_root + "!", e);
+        } finally {
+            metrics.finish(outcome);
+        }
+    }
+
+    /**
+     * The {@link RepositoryState} fingerprint: the packages here (and, with
+     * deltas, the older packages they are built against) and every option
+     * that changes the repodata.
+     */
+    private String getFingerprint(final GPGInfo gpginfo) throws IOException {
+        final List<Path> dirs = new ArrayList<>();
+        dirs.add(m_root);
+        if (m_deltas) {
+            dirs.addAll(getOldPackageDirs());
+        }
+        return RepositoryState.fingerprint(dirs, path -> path.getFileName().toString().endsWith(".rpm"),
+                m_indexEngine.name(), Arrays.toString(m_compressions), Boolean.toString(m_deltas), gpginfo == null ? null : gpginfo.getKey());
+    }
+
+    /**
+     * Read the packages in this repository, from their headers only; packages
+     * that have not been indexed incrementally have no checksum.
+     */
+    @Override
+    public PackageSet<RPMPackage> getPackages() throws RepositoryException {
+        try {
+            return new PackageSet<>(newGenerator().getPackages());
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to read packages in " + m_root, e);
+        }
+    }
+
+    @Override
+    public SharePlan planShare(final Repository source) throws RepositoryException {
+        return PackageSharer.plan(source, this);
+    }
+
+    @Override
+    public void share(final SharePlan plan) throws RepositoryException {
+        PackageSharer.share(plan, m_pool);
+    }
+
+    @Override
+    public RepositoryTransaction begin() throws RepositoryException {
+        return new StagedTransaction(this, root -> {
+            final RPMRepository staged = new RPMRepository(root, m_indexEngine);
+            staged.setIncremental(m_incremental);
+            staged.setHasher(m_hasher);
+            staged.setPool(m_pool);
+            staged.setDeltas(m_deltas);
+            staged.setCompressions(m_compressions);
+            // the staged root is not where the repository really lives, so resolve siblings here
+            staged.setOldPackageDirs(getOldPackageDirs());
+            return staged;
+        });
+    }
+
+    private YumRepodataGenerator newGenerator() {
+        final YumRepodataGenerator generator = new YumRepodataGenerator(m_root, ChecksumType.SHA, m_pool);
+        generator.setHasher(m_hasher);
+        generator.setCompressions(m_compressions);
+        if (m_incremental) {
+            generator.setCache(PackageMetadataCache.forRepository(m_root));
+        }
+        if (m_deltas) {
+            final DeltaRpmGenerator deltas = new DeltaRpmGenerator(m_root, getOldPackageDirs());
+            deltas.setPool(m_pool);
+            deltas.setHasher(m_hasher);
+            generator.setDeltaGenerator(deltas);
+        }
+        return generator;
+    }
+
+    private void generateMetadata(final IndexMetrics metrics) throws IOException {
+        switch (m_indexEngine) {
+            case NATIVE:
+                final YumRepodataGenerator generator = newGenerator();
+                generator.setMetrics(metrics);
+                generator.generate();
+                break;
+            case CREATEREPO:
+            default:
+                final CreaterepoCommand command = new CreaterepoCommand(m_root);
+                if (m_incremental) {
+                    command.update(command.supportsUpdate() && Files.exists(m_root.resolve("repodata/repomd.xml")));
+                    command.cacheDir(m_root.resolve(PackageMetadataCache.CACHE_DIR).resolve("createrepo"));
+                }
+                if (m_deltas) {
+                    if (command.supportsDeltas()) {
+                        command.deltas(DeltaRpmGenerator.DEFAULT_NUM_DELTAS, DeltaRpmGenerator.DEFAULT_MAX_DELTA_RPM_SIZE, getOldPackageDirs());
+                    } else {
+                        LOG.warn("System createrepo doesn't support --deltas; skipping deltas for {}", m_root);
+                    }
+                }
+                try (final IndexMetrics.Timer timer = metrics.time(Phase.WRITE)) {
+                    command.run();
+                }
+                break;
         }
     }
 
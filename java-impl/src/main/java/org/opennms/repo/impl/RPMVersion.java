@@ -0,0 +1,284 @@
+package org.opennms.repo.impl;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.opennms.repo.api.Version;
+
+/**
+ * An RPM epoch/version/release, compared the way {@code rpm} does
+ * ({@code rpmvercmp}, including {@code ~} and {@code ^} handling).
+ *
+ * The version and release are split into segments once, when the object is
+ * created, so comparisons walk two small int arrays and never allocate.
+ * {@link #getSortKey()} gives an equivalent byte-array key for bulk sorting
+ * with {@link SortKeys#compare(byte[], byte[])}.
+ */
+public final class RPMVersion implements Version {
+    /* segment types, in sort order; END is the end of a version or release */
+    private static final int TILDE = 1;
+    private static final int END = 2;
+    private static final int CARET = 3;
+    private static final int ALPHA = 4;
+    private static final int NUMERIC = 5;
+
+    private static final int[] NO_TOKENS = new int[0];
+
+    private final int m_epoch;
+    private final String m_version;
+    private final String m_release;
+    private final int[] m_versionTokens;
+    private final int[] m_releaseTokens;
+    private byte[] m_sortKey;
+
+    public RPMVersion(final int epoch, final String version, final String release) {
+        m_epoch = epoch;
+        m_version = version == null ? "" : version;
+        m_release = release;
+        m_versionTokens = tokenize(m_version);
+        m_releaseTokens = release == null ? NO_TOKENS : tokenize(release);
+    }
+
+    /**
+     * Parse a version in the form {@code [epoch:]version[-release]}.
+     */
+    public static RPMVersion parse(final String fullVersion) {
+        String rest = fullVersion;
+        int epoch = 0;
+        final int colon = rest.indexOf(':');
+        if (colon >= 0) {
+            try {
+                epoch = Integer.parseInt(rest.substring(0, colon));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid epoch in version " + fullVersion, e);
+            }
+            rest = rest.substring(colon + 1);
+        }
+        final int dash = rest.lastIndexOf('-');
+        if (dash >= 0) {
+            return new RPMVersion(epoch, rest.substring(0, dash), rest.substring(dash + 1));
+        }
+        return new RPMVersion(epoch, rest, null);
+    }
+
+    @Override
+    public int getEpoch() {
+        return m_epoch;
+    }
+
+    @Override
+    public String getVersion() {
+        return m_version;
+    }
+
+    @Override
+    public String getRelease() {
+        return m_release;
+    }
+
+    @Override
+    public int compareTo(final Version other) {
+        if (other instanceof RPMVersion) {
+            return compareTo((RPMVersion)other);
+        }
+        return compareTo(new RPMVersion(other.getEpoch(), other.getVersion(), other.getRelease()));
+    }
+
+    public int compareTo(final RPMVersion other) {
+        if (m_epoch != other.m_epoch) {
+            return m_epoch < other.m_epoch ? -1 : 1;
+        }
+        final int ret = compare(m_version, m_versionTokens, other.m_version, other.m_versionTokens);
+        if (ret != 0) {
+            return ret;
+        }
+        return compare(m_release, m_releaseTokens, other.m_release, other.m_releaseTokens);
+    }
+
+    /**
+     * A key that sorts (as unsigned bytes) the same way this version compares.
+     * It is built on first use and kept.
+     */
+    public byte[] getSortKey() {
+        byte[] key = m_sortKey;
+        if (key == null) {
+            final SortKeys.Builder builder = new SortKeys.Builder(8 + m_version.length() * 2 + (m_release == null ? 0 : m_release.length() * 2));
+            builder.putInt(m_epoch);
+            appendSortKey(builder, m_version, m_versionTokens);
+            appendSortKey(builder, m_release, m_releaseTokens);
+            key = builder.toByteArray();
+            m_sortKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Compare two version (or release) strings, segment by segment, like {@code rpmvercmp(3)}.
+     */
+    static int rpmvercmp(final String a, final String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        return compare(a, tokenize(a), b, tokenize(b));
+    }
+
+    /*
+     * Tokens are stored as pairs of ints: the start offset, then (end offset << 3 | type).
+     * Separators are dropped and numeric segments have their leading zeros stripped.
+     */
+    private static int[] tokenize(final String s) {
+        final int length = s.length();
+        int[] tokens = new int[8];
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            final char c = s.charAt(i);
+            final int start;
+            final int type;
+            if (c == '~' || c == '^') {
+                start = i++;
+                type = c == '~' ? TILDE : CARET;
+            } else if (isDigit(c)) {
+                while (i < length && s.charAt(i) == '0') i++;
+                start = i;
+                while (i < length && isDigit(s.charAt(i))) i++;
+                type = NUMERIC;
+            } else if (isAlpha(c)) {
+                start = i;
+                while (i < length && isAlpha(s.charAt(i))) i++;
+                type = ALPHA;
+            } else {
+                i++;
+                continue;
+            }
+            if (count + 2 > tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[count++] = start;
+            tokens[count++] = (i << 3) | type;
+        }
+        return count == 0 ? NO_TOKENS : Arrays.copyOf(tokens, count);
+    }
+
+    private static int compare(final String a, final int[] ta, final String b, final int[] tb) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            final int typeA = i < ta.length ? ta[i + 1] & 0x7 : END;
+            final int typeB = j < tb.length ? tb[j + 1] & 0x7 : END;
+
+            // tilde sorts before everything, even the end of the string
+            if (typeA == TILDE || typeB == TILDE) {
+                if (typeA != TILDE) return 1;
+                if (typeB != TILDE) return -1;
+                i += 2;
+                j += 2;
+                continue;
+            }
+
+            // caret sorts after the end of the string, but before anything else
+            if (typeA == CARET || typeB == CARET) {
+                if (typeA == END) return -1;
+                if (typeB == END) return 1;
+                if (typeA != CARET) return 1;
+                if (typeB != CARET) return -1;
+                i += 2;
+                j += 2;
+                continue;
+            }
+
+            if (typeA == END || typeB == END) {
+                if (typeA == typeB) return 0;
+                return typeA == END ? -1 : 1;
+            }
+
+            // different segment types; numeric segments are newer
+            if (typeA != typeB) {
+                return typeA == NUMERIC ? 1 : -1;
+            }
+
+            final int startA = ta[i];
+            final int endA = ta[i + 1] >>> 3;
+            final int startB = tb[j];
+            final int endB = tb[j + 1] >>> 3;
+            if (typeA == NUMERIC && endA - startA != endB - startB) {
+                return endA - startA < endB - startB ? -1 : 1;
+            }
+            final int ret = compareRegion(a, startA, endA, b, startB, endB);
+            if (ret != 0) {
+                return ret < 0 ? -1 : 1;
+            }
+            i += 2;
+            j += 2;
+        }
+    }
+
+    private static void appendSortKey(final SortKeys.Builder builder, final String s, final int[] tokens) {
+        for (int i = 0; i < tokens.length; i += 2) {
+            final int type = tokens[i + 1] & 0x7;
+            final int start = tokens[i];
+            final int end = tokens[i + 1] >>> 3;
+            builder.put(type);
+            if (type == NUMERIC) {
+                builder.putNumber(s, start, end);
+            } else if (type == ALPHA) {
+                for (int k = start; k < end; k++) {
+                    builder.put(s.charAt(k));
+                }
+                builder.put(0);
+            }
+        }
+        builder.put(END);
+    }
+
+    private static int compareRegion(final String a, final int startA, final int endA, final String b, final int startB, final int endB) {
+        final int len = Math.min(endA - startA, endB - startB);
+        for (int i = 0; i < len; i++) {
+            final char ca = a.charAt(startA + i);
+            final char cb = b.charAt(startB + i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return (endA - startA) - (endB - startB);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlpha(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(m_epoch, m_version, m_release);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof RPMVersion)) return false;
+        final RPMVersion that = (RPMVersion) obj;
+        return m_epoch == that.m_epoch &&
+                m_version.equals(that.m_version) &&
+                Objects.equals(m_release, that.m_release);
+    }
+
+    /**
+     * The version in the form {@code [epoch:]version-release}, omitting a zero epoch.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        if (m_epoch != 0) {
+            sb.append(m_epoch).append(':');
+        }
+        sb.append(m_version);
+        if (m_release != null) {
+            sb.append('-').append(m_release);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,178 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The size and SHA-256 of every file in a repository, keyed by '/'-separated
+ * path relative to the root.  A copy is kept next to each mirrored repository
+ * so the next sync can tell what changed without reading the remote files.
+ *
+ * Stored as one {@code <sha256> <size> <path>} line per file.
+ */
+public final class RemoteManifest {
+    public static final String ALGORITHM = "SHA-256";
+
+    public static final class Entry {
+        private final long m_size;
+        private final String m_sha256;
+
+        public Entry(final long size, final String sha256) {
+            m_size = size;
+            m_sha256 = sha256;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        public String getSha256() {
+            return m_sha256;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry)obj;
+            return m_size == other.m_size && m_sha256.equals(other.m_sha256);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_size, m_sha256);
+        }
+    }
+
+    private final SortedMap<String,Entry> m_entries;
+
+    public RemoteManifest() {
+        this(new TreeMap<>());
+    }
+
+    private RemoteManifest(final SortedMap<String,Entry> entries) {
+        m_entries = entries;
+    }
+
+    /**
+     * Build a manifest of the files under {@code root}, skipping hidden files
+     * and directories (caches, transaction staging, {@code .exclude-share}).
+     */
+    public static RemoteManifest of(final Path root, final FileHasher hasher) throws IOException {
+        final List<Path> files;
+        try (final Stream<Path> stream = Files.walk(root)) {
+            files = stream.filter(Files::isRegularFile).filter(path -> !isHidden(root.relativize(path))).collect(Collectors.toList());
+        }
+        final SortedMap<String,Entry> entries = new TreeMap<>();
+        for (final Map.Entry<Path,FileChecksums> entry : hasher.hashAll(files, ALGORITHM).entrySet()) {
+            entries.put(toString(root.relativize(entry.getKey())), new Entry(entry.getValue().getSize(), entry.getValue().get(ALGORITHM)));
+        }
+        return new RemoteManifest(entries);
+    }
+
+    public static RemoteManifest read(final Path file) throws IOException {
+        final SortedMap<String,Entry> entries = new TreeMap<>();
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = line.split(" ", 3);
+            if (fields.length != 3) {
+                throw new IOException("Malformed manifest line in " + file + ": " + line);
+            }
+            try {
+                entries.put(fields[2], new Entry(Long.parseLong(fields[1]), fields[0]));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Malformed manifest line in " + file + ": " + line, e);
+            }
+        }
+        return new RemoteManifest(entries);
+    }
+
+    public void write(final Path file) throws IOException {
+        try (final BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String,Entry> entry : m_entries.entrySet()) {
+                writer.write(entry.getValue().getSha256() + " " + entry.getValue().getSize() + " " + entry.getKey() + "\n");
+            }
+        }
+    }
+
+    public Entry get(final String path) {
+        return m_entries.get(path);
+    }
+
+    public void put(final String path, final Entry entry) {
+        m_entries.put(path, entry);
+    }
+
+    public void remove(final String path) {
+        m_entries.remove(path);
+    }
+
+    public Map<String,Entry> getEntries() {
+        return Collections.unmodifiableSortedMap(m_entries);
+    }
+
+    public int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * The paths in this manifest that are missing or different in {@code other}.
+     */
+    public List<String> changedFrom(final RemoteManifest other) {
+        final List<String> changed = new ArrayList<>();
+        for (final Map.Entry<String,Entry> entry : m_entries.entrySet()) {
+            if (!entry.getValue().equals(other.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The paths in {@code other} that are not in this manifest.
+     */
+    public List<String> removedFrom(final RemoteManifest other) {
+        final List<String> removed = new ArrayList<>();
+        for (final String path : other.m_entries.keySet()) {
+            if (!m_entries.containsKey(path)) {
+                removed.add(path);
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isHidden(final Path relative) {
+        for (final Path element : relative) {
+            if (element.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toString(final Path relative) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Path element : relative) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(element.toString());
+        }
+        return sb.toString();
+    }
+}
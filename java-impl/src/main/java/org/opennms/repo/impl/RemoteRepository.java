@@ -0,0 +1,463 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.Package;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.api.RepositoryIndexException;
+import org.opennms.repo.api.RepositoryTransaction;
+import org.opennms.repo.api.SharePlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A repository that lives on another host, like {@code SFTPRepo.pm}.
+ *
+ * Changes are made to (and indexes built in) a local copy, then
+ * {@link #sync()} mirrors the local copy to the remote tree.  Indexing and
+ * committing a transaction both sync afterwards, so unlike {@code SFTPRepo.pm}
+ * a remote repository can be indexed.
+ *
+ * A sync compares a manifest of the local files against a manifest, kept on
+ * the remote host, of what earlier syncs put there, so only new or changed
+ * files are sent, over
+ * several channels at once.  Every file is uploaded under a temporary name
+ * that includes its checksum and renamed into place, so an interrupted upload
+ * is resumed by the next sync and clients never see a partial file.  Packages
+ * go first, then repodata, then the top-level indexes ({@code repomd.xml},
+ * {@code Release}) that point at them, and only then are old files deleted:
+ * a client always sees either the old repository or the new one.
+ */
+public class RemoteRepository implements Repository {
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteRepository.class);
+
+    /** What earlier syncs (including ones that failed part-way) put on the remote host, at the remote root. */
+    public static final String MANIFEST = ".repo-manifest";
+    public static final int DEFAULT_CHANNELS = 4;
+
+    private static final Set<String> TOP_INDEXES = new HashSet<>(Arrays.asList("repomd.xml", "repomd.xml.asc", "repomd.xml.key", "Release", "Release.gpg", "InRelease"));
+    private static final Set<String> INDEXES = new HashSet<>(Arrays.asList("Packages", "Sources", "Contents"));
+
+    private final Repository m_local;
+    private final RemoteTransport.Factory m_transports;
+    private int m_channels = DEFAULT_CHANNELS;
+    private FileHasher m_hasher = FileHasher.getDefault();
+
+    /**
+     * @param local the local copy of the repository
+     * @param transports opens connections to the remote repository root
+     */
+    public RemoteRepository(final Repository local, final RemoteTransport.Factory transports) {
+        m_local = local;
+        m_transports = transports;
+    }
+
+    public Repository getLocal() {
+        return m_local;
+    }
+
+    public int getChannels() {
+        return m_channels;
+    }
+
+    /**
+     * How many connections to upload over at once.
+     */
+    public void setChannels(final int channels) {
+        if (channels < 1) {
+            throw new IllegalArgumentException("channels must be at least 1");
+        }
+        m_channels = channels;
+    }
+
+    public FileHasher getHasher() {
+        return m_hasher;
+    }
+
+    public void setHasher(final FileHasher hasher) {
+        m_hasher = hasher;
+    }
+
+    /**
+     * The root of the local copy.
+     */
+    @Override
+    public Path getRoot() {
+        return m_local.getRoot();
+    }
+
+    @Override
+    public boolean exists() {
+        return m_local.exists();
+    }
+
+    /**
+     * Index the local copy and sync it to the remote host.
+     */
+    @Override
+    public void index(final GPGInfo gpginfo) throws RepositoryIndexException {
+        m_local.index(gpginfo);
+        try {
+            sync();
+        } catch (final RepositoryIndexException e) {
+            throw e;
+        } catch (final RepositoryException e) {
+            throw new RepositoryIndexException("Indexed " + getRoot() + " but failed to sync it!", e);
+        }
+    }
+
+    @Override
+    public Iterable<? extends Package> getPackages() throws RepositoryException {
+        return m_local.getPackages();
+    }
+
+    @Override
+    public SharePlan planShare(final Repository source) throws RepositoryException {
+        return m_local.planShare(source);
+    }
+
+    @Override
+    public void share(final SharePlan plan) throws RepositoryException {
+        m_local.share(plan);
+    }
+
+    /**
+     * Start a transaction on the local copy; committing it also syncs.
+     */
+    @Override
+    public RepositoryTransaction begin() throws RepositoryException {
+        return new SyncingTransaction(m_local.begin());
+    }
+
+    /**
+     * Mirror the local copy to the remote host.
+     */
+    public SyncResult sync() throws RepositoryException {
+        final long start = System.currentTimeMillis();
+        final Path root = getRoot();
+        final RemoteManifest local;
+        try {
+            local = RemoteManifest.of(root, m_hasher);
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to read " + root, e);
+        }
+
+        final BlockingQueue<RemoteTransport> transports = new ArrayBlockingQueue<>(m_channels);
+        final ExecutorService executor = Executors.newFixedThreadPool(m_channels);
+        try {
+            for (int i = 0; i < m_channels; i++) {
+                transports.add(m_transports.open());
+            }
+
+            final RemoteManifest remote = readManifest(transports.peek());
+            final List<String> changed = local.changedFrom(remote);
+            final List<String> removed = local.removedFrom(remote);
+            LOG.debug("Syncing {}: {} changed, {} removed", root, changed.size(), removed.size());
+
+            final List<String> packages = new ArrayList<>();
+            final List<String> indexes = new ArrayList<>();
+            final List<String> topIndexes = new ArrayList<>();
+            for (final String path : changed) {
+                if (TOP_INDEXES.contains(getFileName(path))) {
+                    topIndexes.add(path);
+                } else if (isIndex(path)) {
+                    indexes.add(path);
+                } else {
+                    packages.add(path);
+                }
+            }
+
+            final RemoteTransport first = transports.peek();
+            for (final String dir : getNewDirectories(changed, remote)) {
+                first.mkdirs(dir);
+            }
+
+            final SyncResult result = new SyncResult();
+            try {
+                run(executor, transports, packages, "upload", (transport, path) -> upload(transport, root.resolve(path), path, local.get(path), result));
+                run(executor, transports, indexes, "upload", (transport, path) -> upload(transport, root.resolve(path), path, local.get(path), result));
+                run(executor, transports, topIndexes, "upload", (transport, path) -> upload(transport, root.resolve(path), path, local.get(path), result));
+                run(executor, transports, removed, "delete", (transport, path) -> {
+                    transport.delete(path);
+                    result.m_deleted.add(path);
+                });
+            } catch (final RepositoryException e) {
+                // record whatever made it, so a retry does not send it again
+                try {
+                    saveManifest(first, remote, local, result);
+                } catch (final IOException saveFailure) {
+                    e.addSuppressed(saveFailure);
+                }
+                throw e;
+            }
+            saveManifest(first, remote, local, result);
+
+            result.m_elapsed = System.currentTimeMillis() - start;
+            LOG.info("Synced {} to {}: {}", root, first, result);
+            return result;
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to sync " + root, e);
+        } finally {
+            executor.shutdownNow();
+            for (final RemoteTransport transport : transports) {
+                try {
+                    transport.close();
+                } catch (final IOException e) {
+                    LOG.debug("Failed to close {}", transport, e);
+                }
+            }
+        }
+    }
+
+    private static RemoteManifest readManifest(final RemoteTransport transport) throws IOException {
+        final Path file = Files.createTempFile("repo-manifest", ".tmp");
+        try {
+            if (transport.download(MANIFEST, file)) {
+                return RemoteManifest.read(file);
+            }
+            LOG.info("No {} on {}; uploading everything.", MANIFEST, transport);
+            return new RemoteManifest();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Update the remote manifest with what a sync uploaded and deleted.
+     */
+    private static void saveManifest(final RemoteTransport transport, final RemoteManifest remote, final RemoteManifest local, final SyncResult result) throws IOException {
+        if (result.m_uploaded.isEmpty() && result.m_deleted.isEmpty()) {
+            return;
+        }
+        for (final String path : result.getUploaded()) {
+            remote.put(path, local.get(path));
+        }
+        for (final String path : result.getDeleted()) {
+            remote.remove(path);
+        }
+        final Path file = Files.createTempFile("repo-manifest", ".tmp");
+        try {
+            remote.write(file);
+            final String part = getPartName(MANIFEST, "");
+            transport.upload(file, part, 0);
+            transport.rename(part, MANIFEST);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Upload through a temporary file named for the content, resuming it if a
+     * previous sync left part of it behind, then rename it into place.
+     */
+    private static void upload(final RemoteTransport transport, final Path local, final String path, final RemoteManifest.Entry entry, final SyncResult result) throws IOException {
+        final String part = getPartName(path, entry.getSha256());
+        long offset = transport.size(part);
+        if (offset > entry.getSize()) {
+            offset = 0;
+        }
+        if (offset == entry.getSize()) {
+            LOG.debug("{} was already uploaded", part);
+        } else {
+            if (offset > 0) {
+                LOG.debug("Resuming {} at {}/{} bytes", path, offset, entry.getSize());
+            } else {
+                offset = 0;
+            }
+            transport.upload(local, part, offset);
+        }
+        transport.rename(part, path);
+        result.m_uploaded.add(path);
+        result.m_bytesUploaded.addAndGet(entry.getSize() - offset);
+        result.m_bytesResumed.addAndGet(offset);
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run(final RemoteTransport transport, final String path) throws IOException;
+    }
+
+    private void run(final ExecutorService executor, final BlockingQueue<RemoteTransport> transports, final List<String> paths, final String operation, final Operation task) throws RepositoryException {
+        final List<Future<Void>> futures = new ArrayList<>(paths.size());
+        for (final String path : paths) {
+            futures.add(executor.submit(() -> {
+                final RemoteTransport transport = transports.take();
+                try {
+                    task.run(transport, path);
+                } finally {
+                    transports.put(transport);
+                }
+                return null;
+            }));
+        }
+
+        RepositoryException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while syncing " + getRoot(), e);
+            } catch (final ExecutionException e) {
+                if (failure == null) {
+                    failure = new RepositoryException("Failed to " + operation + " " + paths.get(i) + " while syncing " + getRoot(), e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            // don't go on to the next phase; sync() records what did make it in the manifest, so the next sync only sends the rest
+            throw failure;
+        }
+    }
+
+    private static boolean isIndex(final String path) {
+        if (path.startsWith(YumRepodataGenerator.REPODATA + "/")) {
+            return true;
+        }
+        final String name = getFileName(path);
+        final int dot = name.indexOf('.');
+        return INDEXES.contains(dot < 0 ? name : name.substring(0, dot));
+    }
+
+    private static Collection<String> getNewDirectories(final Collection<String> paths, final RemoteManifest remote) {
+        final Set<String> existing = new HashSet<>();
+        for (final String path : remote.getEntries().keySet()) {
+            existing.add(getParent(path));
+        }
+        final Set<String> dirs = new TreeSet<>();
+        for (final String path : paths) {
+            final String parent = getParent(path);
+            if (!parent.isEmpty() && !existing.contains(parent)) {
+                dirs.add(parent);
+            }
+        }
+        return dirs;
+    }
+
+    static String getPartName(final String path, final String sha256) {
+        final String parent = getParent(path);
+        final String name = (path.startsWith(".") ? "" : ".") + getFileName(path) + (sha256.isEmpty() ? "" : "." + sha256.substring(0, Math.min(16, sha256.length()))) + ".part";
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+
+    private static String getParent(final String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static String getFileName(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * What a {@link RemoteRepository#sync()} did.
+     */
+    public static final class SyncResult {
+        private final List<String> m_uploaded = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> m_deleted = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong m_bytesUploaded = new AtomicLong();
+        private final AtomicLong m_bytesResumed = new AtomicLong();
+        private long m_elapsed;
+
+        /**
+         * The paths that were uploaded, in the order they were put in place.
+         */
+        public List<String> getUploaded() {
+            return Collections.unmodifiableList(m_uploaded);
+        }
+
+        public List<String> getDeleted() {
+            return Collections.unmodifiableList(m_deleted);
+        }
+
+        public long getBytesUploaded() {
+            return m_bytesUploaded.get();
+        }
+
+        /**
+         * Bytes that did not need to be sent because a previous sync had already uploaded them.
+         */
+        public long getBytesResumed() {
+            return m_bytesResumed.get();
+        }
+
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return m_uploaded.size() + " uploaded (" + m_bytesUploaded.get() + " bytes, " + m_bytesResumed.get() + " resumed), " + m_deleted.size() + " deleted in " + m_elapsed + "ms";
+        }
+    }
+
+    private final class SyncingTransaction implements RepositoryTransaction {
+        private final RepositoryTransaction m_transaction;
+
+        private SyncingTransaction(final RepositoryTransaction transaction) {
+            m_transaction = transaction;
+        }
+
+        @Override
+        public Repository getOriginal() {
+            return RemoteRepository.this;
+        }
+
+        @Override
+        public Repository getRepository() {
+            return m_transaction.getRepository();
+        }
+
+        @Override
+        public Path prepareWrite(final Path path) throws RepositoryException {
+            return m_transaction.prepareWrite(path);
+        }
+
+        @Override
+        public void commit() throws RepositoryException {
+            m_transaction.commit();
+            sync();
+        }
+
+        @Override
+        public void abort() throws RepositoryException {
+            m_transaction.abort();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return m_transaction.isFinished();
+        }
+
+        @Override
+        public void close() throws RepositoryException {
+            m_transaction.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteRepository[" + getRoot() + "]";
+    }
+}
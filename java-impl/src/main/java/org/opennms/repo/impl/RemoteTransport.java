@@ -0,0 +1,60 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A connection to a remote file tree that a {@link RemoteRepository} is
+ * mirrored to.  Paths are '/'-separated and relative to the remote repository
+ * root.
+ *
+ * A transport is used by one thread at a time; {@link RemoteRepository} opens
+ * one per channel from a {@link Factory}.
+ */
+public interface RemoteTransport extends AutoCloseable {
+    /**
+     * Opens new connections to the same remote tree.
+     */
+    @FunctionalInterface
+    public interface Factory {
+        public RemoteTransport open() throws IOException;
+    }
+
+    /**
+     * The size of a remote file.
+     * @return the size in bytes, or -1 if the file does not exist
+     */
+    public long size(final String path) throws IOException;
+
+    /**
+     * Copy a remote file to a local path.
+     * @return false if the remote file does not exist
+     */
+    public boolean download(final String path, final Path local) throws IOException;
+
+    /**
+     * Write {@code local} to {@code path}, starting at {@code offset}.  When
+     * the offset is 0 the remote file is created or truncated; otherwise the
+     * remote file must already be {@code offset} bytes long and the rest of the
+     * local file is appended to it.
+     */
+    public void upload(final Path local, final String path, final long offset) throws IOException;
+
+    /**
+     * Rename a remote file, atomically replacing {@code to} if it exists.
+     */
+    public void rename(final String from, final String to) throws IOException;
+
+    /**
+     * Remove a remote file.  Removing a file that does not exist is not an error.
+     */
+    public void delete(final String path) throws IOException;
+
+    /**
+     * Create a remote directory and any missing parents.
+     */
+    public void mkdirs(final String path) throws IOException;
+
+    @Override
+    public void close() throws IOException;
+}
@@ -0,0 +1,461 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the packages in a repository, remembering what it found so the next
+ * scan only has to look at directories that changed.
+ *
+ * Each directory is listed with {@link Files#walkFileTree} to a depth of one,
+ * which gets the attributes of every entry from a single stat, and
+ * subdirectories are listed in parallel on the pool.  The result is saved in
+ * {@code .repocache/scan.bin}: one length-prefixed record per directory,
+ * holding its modification time, its subdirectories and its packages.
+ *
+ * On the next scan the file is memory-mapped and each directory is stat'ed
+ * (also in parallel).  Adding, removing or renaming an entry changes its
+ * directory's change time, so a directory whose time is unchanged is taken
+ * from the file without being listed, and its packages are only decoded from
+ * the mapped record when the paths are built; unchanged records are written
+ * back out verbatim.  Opening an unchanged repository costs one stat per
+ * directory rather than one per package.  The inode change time is used
+ * where the file system has one, since copying with preserved dates (as
+ * {@code cp -p} and {@code rsync -t} do) sets a directory's modification
+ * time back.  As with git's index, a directory changed too close to the
+ * previous scan to tell the difference is always listed again.
+ *
+ * Hidden files and directories are skipped, and symbolic links to
+ * directories are not followed.  A read-only scanner (see
+ * {@link #setReadOnly(boolean)}) uses the saved scan but never writes one, so
+ * listing a repository does not change it.
+ */
+public class RepositoryScanner {
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryScanner.class);
+
+    public static final String SCAN_FILE = "scan.bin";
+
+    private static final int MAGIC = 0x5253434e; // "RSCN"
+    private static final int VERSION = 1;
+
+    private static final boolean HAS_CTIME = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private final Path m_root;
+    private final String m_suffix;
+    private final ForkJoinPool m_pool;
+    private final Path m_file;
+    private final AtomicInteger m_listed = new AtomicInteger();
+
+    /* directory times this close to the previous scan may hide a change made during it */
+    private long m_racyMillis = 2000;
+    private boolean m_readOnly = false;
+
+    /**
+     * @param suffix the file name suffix of a package, eg. {@code .rpm}
+     */
+    public RepositoryScanner(final Path root, final String suffix, final ForkJoinPool pool) {
+        m_root = root.toAbsolutePath();
+        m_suffix = suffix;
+        m_pool = pool;
+        m_file = m_root.resolve(PackageMetadataCache.CACHE_DIR).resolve(SCAN_FILE);
+    }
+
+    public Path getFile() {
+        return m_file;
+    }
+
+    void setRacyMillis(final long racyMillis) {
+        m_racyMillis = racyMillis;
+    }
+
+    public boolean isReadOnly() {
+        return m_readOnly;
+    }
+
+    /**
+     * Don't save the result of a scan; for callers that only read the repository.
+     */
+    public void setReadOnly(final boolean readOnly) {
+        m_readOnly = readOnly;
+    }
+
+    /**
+     * How many directories the last scan had to list (the rest came from the saved scan).
+     */
+    public int getListed() {
+        return m_listed.get();
+    }
+
+    /**
+     * Find every package under the root, sorted by path.
+     */
+    public List<Path> scan() throws IOException {
+        m_listed.set(0);
+        if (!Files.isDirectory(m_root)) {
+            return Collections.emptyList();
+        }
+
+        if (!m_readOnly) {
+            // creating the cache directory changes the root, so do it before the scan starts
+            Files.createDirectories(m_file.getParent());
+        }
+        final long scanTime = System.currentTimeMillis();
+        final Previous previous = load();
+        final Map<String,Directory> current = new ConcurrentHashMap<>();
+        try {
+            m_pool.invoke(new ScanTask("", previous, current));
+        } catch (final ScanException e) {
+            throw e.getCause();
+        }
+
+        final List<Path> packages = new ArrayList<>();
+        for (final Directory dir : current.values()) {
+            final Path path = dir.getPath().isEmpty() ? m_root : m_root.resolve(dir.getPath());
+            for (final String name : dir.getPackages()) {
+                packages.add(path.resolve(name));
+            }
+        }
+        Collections.sort(packages);
+
+        if (!m_readOnly && (m_listed.get() > 0 || current.size() != previous.size())) {
+            try {
+                save(current, scanTime);
+            } catch (final IOException e) {
+                LOG.warn("Unable to save the scan of {}: {}", m_root, e.getMessage());
+            }
+        }
+        LOG.debug("Scanned {}: {} packages in {} directories, {} listed", m_root, packages.size(), current.size(), m_listed.get());
+        return packages;
+    }
+
+    private final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String m_path;
+        private final transient Previous m_previous;
+        private final transient Map<String,Directory> m_current;
+
+        private ScanTask(final String path, final Previous previous, final Map<String,Directory> current) {
+            m_path = path;
+            m_previous = previous;
+            m_current = current;
+        }
+
+        @Override
+        protected void compute() {
+            final Path dir = m_path.isEmpty() ? m_root : m_root.resolve(m_path);
+            final Directory directory;
+            try {
+                final long changed;
+                try {
+                    changed = getChangeTime(dir);
+                } catch (final NoSuchFileException e) {
+                    // removed since its parent was listed
+                    return;
+                }
+                final Directory saved = m_previous.get(m_path);
+                if (saved != null && saved.getChanged() == changed && changed < m_previous.getScanTime() - m_racyMillis && saved.hasReadablePackages()) {
+                    directory = saved;
+                } else {
+                    directory = list(dir, m_path, changed);
+                    m_listed.incrementAndGet();
+                }
+            } catch (final IOException e) {
+                throw new ScanException(e);
+            }
+            m_current.put(m_path, directory);
+
+            final List<ScanTask> subtasks = new ArrayList<>();
+            for (final String subdir : directory.getSubdirectories()) {
+                subtasks.add(new ScanTask(m_path.isEmpty() ? subdir : m_path + "/" + subdir, m_previous, m_current));
+            }
+            ForkJoinTask.invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * When a directory last changed, in milliseconds: the later of its modification and inode change times.
+     */
+    private static long getChangeTime(final Path dir) throws IOException {
+        if (HAS_CTIME) {
+            final Map<String,Object> attrs = Files.readAttributes(dir, "unix:lastModifiedTime,ctime", LinkOption.NOFOLLOW_LINKS);
+            return Math.max(((FileTime)attrs.get("lastModifiedTime")).toMillis(), ((FileTime)attrs.get("ctime")).toMillis());
+        }
+        return Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+    }
+
+    private Directory list(final Path dir, final String path, final long changed) throws IOException {
+        final List<String> subdirectories = new ArrayList<>();
+        final List<String> packages = new ArrayList<>();
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(".")) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (attrs.isDirectory()) {
+                    subdirectories.add(name);
+                } else if (name.endsWith(m_suffix) && (attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(file)))) {
+                    packages.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+        Collections.sort(subdirectories);
+        Collections.sort(packages);
+        return new Directory(path, changed, subdirectories, packages, null);
+    }
+
+    private Previous load() {
+        if (!Files.isRegularFile(m_file)) {
+            return Previous.EMPTY;
+        }
+        try {
+            final MappedByteBuffer buffer;
+            try (final FileChannel channel = FileChannel.open(m_file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !m_suffix.equals(PackageMetadataCache.readString(buffer))) {
+                LOG.info("Ignoring incompatible scan {}", m_file);
+                return Previous.EMPTY;
+            }
+            final long scanTime = buffer.getLong();
+            final int count = PackageMetadataCache.readCount(buffer);
+            final Map<String,Directory> directories = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final int length = buffer.getInt();
+                final ByteBuffer record = buffer.slice();
+                record.limit(length);
+                buffer.position(buffer.position() + length);
+
+                final ByteBuffer in = record.duplicate();
+                final String path = PackageMetadataCache.readRequiredString(in);
+                final long changed = in.getLong();
+                final int subdirCount = PackageMetadataCache.readCount(in);
+                final List<String> subdirectories = new ArrayList<>(subdirCount);
+                for (int j = 0; j < subdirCount; j++) {
+                    subdirectories.add(readName(in));
+                }
+                directories.put(path, new Directory(path, changed, subdirectories, in.slice(), record));
+            }
+            return new Previous(scanTime, directories);
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable scan {}: {}", m_file, e.toString());
+            return Previous.EMPTY;
+        }
+    }
+
+    /**
+     * Read a file name from a saved scan.  Names were listed from the file system,
+     * so one that is not a single valid path component means the record is damaged.
+     */
+    private static String readName(final ByteBuffer in) {
+        final String name = PackageMetadataCache.readRequiredString(in);
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid name in scan record: " + name);
+        }
+        // throws InvalidPathException if it can't be a file name at all
+        Paths.get(name);
+        return name;
+    }
+
+    private void save(final Map<String,Directory> directories, final long scanTime) throws IOException {
+        Files.createDirectories(m_file.getParent());
+        final Path temp = Files.createTempFile(m_file.getParent(), SCAN_FILE, ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                PackageMetadataCache.writeString(out, m_suffix);
+                out.writeLong(scanTime);
+                out.writeInt(directories.size());
+                final ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+                final DataOutputStream recordOut = new DataOutputStream(record);
+                for (final Directory dir : new TreeMap<>(directories).values()) {
+                    record.reset();
+                    dir.write(recordOut);
+                    recordOut.flush();
+                    out.writeInt(record.size());
+                    record.writeTo(out);
+                }
+            }
+            Files.move(temp, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The directories from the saved scan.
+     */
+    private static final class Previous {
+        private static final Previous EMPTY = new Previous(0, Collections.<String,Directory>emptyMap());
+
+        private final long m_scanTime;
+        private final Map<String,Directory> m_directories;
+
+        private Previous(final long scanTime, final Map<String,Directory> directories) {
+            m_scanTime = scanTime;
+            m_directories = directories;
+        }
+
+        long getScanTime() {
+            return m_scanTime;
+        }
+
+        Directory get(final String path) {
+            return m_directories.get(path);
+        }
+
+        int size() {
+            return m_directories.size();
+        }
+    }
+
+    /**
+     * One directory: either freshly listed, or a record in the saved scan
+     * whose packages have not been decoded yet.
+     */
+    private static final class Directory {
+        private final String m_path;
+        private final long m_changed;
+        private final List<String> m_subdirectories;
+        private List<String> m_packages;
+        private final ByteBuffer m_packageBytes;
+        private final ByteBuffer m_record;
+
+        Directory(final String path, final long changed, final List<String> subdirectories, final List<String> packages, final ByteBuffer record) {
+            this(path, changed, subdirectories, packages, null, record);
+        }
+
+        Directory(final String path, final long changed, final List<String> subdirectories, final ByteBuffer packageBytes, final ByteBuffer record) {
+            this(path, changed, subdirectories, null, packageBytes, record);
+        }
+
+        private Directory(final String path, final long changed, final List<String> subdirectories, final List<String> packages, final ByteBuffer packageBytes, final ByteBuffer record) {
+            m_path = path;
+            m_changed = changed;
+            m_subdirectories = subdirectories;
+            m_packages = packages;
+            m_packageBytes = packageBytes;
+            m_record = record;
+        }
+
+        String getPath() {
+            return m_path;
+        }
+
+        long getChanged() {
+            return m_changed;
+        }
+
+        List<String> getSubdirectories() {
+            return m_subdirectories;
+        }
+
+        synchronized List<String> getPackages() {
+            if (m_packages == null) {
+                final ByteBuffer in = m_packageBytes.duplicate();
+                final int count = PackageMetadataCache.readCount(in);
+                final List<String> packages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    packages.add(readName(in));
+                }
+                m_packages = packages;
+            }
+            return m_packages;
+        }
+
+        /**
+         * Decode the packages of a saved directory now, so a damaged record is
+         * listed again instead of failing the scan later.
+         */
+        boolean hasReadablePackages() {
+            try {
+                getPackages();
+                return true;
+            } catch (final RuntimeException e) {
+                LOG.warn("Ignoring unreadable scan record for {}: {}", m_path.isEmpty() ? "/" : m_path, e.toString());
+                return false;
+            }
+        }
+
+        void write(final DataOutputStream out) throws IOException {
+            if (m_record != null) {
+                final ByteBuffer bytes = m_record.duplicate();
+                final byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                out.write(copy);
+                return;
+            }
+            PackageMetadataCache.writeString(out, m_path);
+            out.writeLong(m_changed);
+            out.writeInt(m_subdirectories.size());
+            for (final String subdir : m_subdirectories) {
+                PackageMetadataCache.writeString(out, subdir);
+            }
+            out.writeInt(m_packages.size());
+            for (final String name : m_packages) {
+                PackageMetadataCache.writeString(out, name);
+            }
+        }
+    }
+
+    /**
+     * Carries an {@link IOException} out of a {@link ScanTask}.
+     */
+    private static final class ScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ScanException(final IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers what a repository looked like when it was last indexed, so an
+ * index run can be skipped when nothing has changed, like
+ * {@code Repo.index_if_necessary} does with its in-memory dirty flag.
+ *
+ * The fingerprint is a Merkle-style digest: each package contributes its name,
+ * size, modification time and file key, each directory digests its sorted
+ * children, and the root digest also covers whatever indexing options affect
+ * the output.  Computing it only stats files, so checking an unchanged
+ * repository costs a directory walk rather than a checksum of every package.
+ * Directories with no packages under them do not contribute, so the indexes
+ * themselves never make the fingerprint change.
+ *
+ * The state is stored in {@code .repocache/state.properties} together with
+ * the checksum of each index file, so indexes that were removed or edited
+ * since are regenerated too.
+ */
+public class RepositoryState {
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryState.class);
+
+    public static final String STATE_FILE = "state.properties";
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String OUTPUT_PREFIX = "output.";
+    private static final String ALGORITHM = "SHA-256";
+
+    private final Path m_root;
+    private final Path m_file;
+
+    public RepositoryState(final Path root) {
+        m_root = root.toAbsolutePath();
+        m_file = m_root.resolve(PackageMetadataCache.CACHE_DIR).resolve(STATE_FILE);
+    }
+
+    public Path getFile() {
+        return m_file;
+    }
+
+    /**
+     * The fingerprint of the packages under {@code dirs} and the given indexing options.
+     * @param isPackage which files are packages
+     * @param options anything else that changes the indexes (engine, compression, signing key...)
+     */
+    public static String fingerprint(final List<Path> dirs, final Predicate<Path> isPackage, final String... options) throws IOException {
+        final MessageDigest digest = Digests.getInstance(ALGORITHM);
+        for (final String option : options) {
+            update(digest, "option", String.valueOf(option));
+        }
+        for (int i = 0; i < dirs.size(); i++) {
+            // not the path itself: a staged copy of the repository should have the same fingerprint
+            final byte[] dirDigest = digestDirectory(dirs.get(i).toAbsolutePath(), isPackage);
+            update(digest, "root", Integer.toString(i));
+            if (dirDigest != null) {
+                digest.update(dirDigest);
+            }
+        }
+        return Digests.toHex(digest.digest());
+    }
+
+    /**
+     * @return the directory's digest, or null if there are no packages under it
+     */
+    private static byte[] digestDirectory(final Path dir, final Predicate<Path> isPackage) throws IOException {
+        final List<Path> children = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (final Path child : stream) {
+                if (!child.getFileName().toString().startsWith(".")) {
+                    children.add(child);
+                }
+            }
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+        Collections.sort(children);
+
+        final MessageDigest digest = Digests.getInstance(ALGORITHM);
+        boolean empty = true;
+        for (final Path child : children) {
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child, BasicFileAttributes.class);
+            } catch (final NoSuchFileException e) {
+                // removed (or a dangling link) while we were looking
+                continue;
+            }
+            final String name = child.getFileName().toString();
+            if (attrs.isDirectory() && !Files.isSymbolicLink(child)) {
+                final byte[] childDigest = digestDirectory(child, isPackage);
+                if (childDigest != null) {
+                    update(digest, "dir", name);
+                    digest.update(childDigest);
+                    empty = false;
+                }
+            } else if (attrs.isRegularFile() && isPackage.test(child)) {
+                update(digest, "file", name, Long.toString(attrs.size()), Long.toString(attrs.lastModifiedTime().toMillis()), String.valueOf(attrs.fileKey()));
+                empty = false;
+            }
+        }
+        return empty ? null : digest.digest();
+    }
+
+    private static void update(final MessageDigest digest, final String... fields) {
+        for (final String field : fields) {
+            digest.update(field.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+        }
+        digest.update((byte)'\n');
+    }
+
+    /**
+     * Whether the repository was last indexed with this fingerprint, and the
+     * given index files are still exactly what that run wrote.
+     */
+    public boolean isCurrent(final String fingerprint, final Path... outputs) throws IOException {
+        final Properties state = load();
+        if (!fingerprint.equals(state.getProperty(FINGERPRINT))) {
+            return false;
+        }
+        for (final Path output : outputs) {
+            final String expected = state.getProperty(OUTPUT_PREFIX + m_root.relativize(output.toAbsolutePath()));
+            if (expected == null || !Files.isRegularFile(output) || !expected.equals(Digests.digest(output, ALGORITHM))) {
+                LOG.debug("{} is missing or has changed since {} was indexed", output, m_root);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a successful index run.
+     */
+    public void save(final String fingerprint, final Path... outputs) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty(FINGERPRINT, fingerprint);
+        for (final Path output : outputs) {
+            if (Files.isRegularFile(output)) {
+                state.setProperty(OUTPUT_PREFIX + m_root.relativize(output.toAbsolutePath()), Digests.digest(output, ALGORITHM));
+            }
+        }
+
+        // write a new file rather than over the old one: in a transaction it is hard-linked to the original's
+        Files.createDirectories(m_file.getParent());
+        final Path temp = m_file.resolveSibling(m_file.getFileName() + ".tmp");
+        try (final OutputStream os = Files.newOutputStream(temp)) {
+            state.store(os, "repository state as of the last index");
+        }
+        Files.move(temp, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forget the saved state, so the next index run does the work.
+     */
+    public void invalidate() throws IOException {
+        Files.deleteIfExists(m_file);
+    }
+
+    private Properties load() {
+        final Properties state = new Properties();
+        if (Files.exists(m_file, LinkOption.NOFOLLOW_LINKS)) {
+            try (final InputStream is = Files.newInputStream(m_file)) {
+                state.load(is);
+            } catch (final IOException | IllegalArgumentException e) {
+                LOG.warn("Ignoring unreadable repository state {}: {}", m_file, e.getMessage());
+                state.clear();
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,176 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Declarative rules for how many old versions of a package to keep.
+ *
+ * Rules are written one per line, and the first rule whose package name
+ * glob matches a package applies to it; packages no rule matches are kept:
+ *
+ * <pre>
+ * # name        how many versions   how old a version may get
+ * opennms-*     keep=3              max-age=30d
+ * iplike*       max-age=12h
+ * *             keep=5
+ * </pre>
+ *
+ * Versions are counted per package name and architecture, newest first.  A
+ * version is removed if it is beyond the number to keep, or older (by file
+ * modification time) than the maximum age; the newest version is always kept.
+ */
+public class RetentionPolicy {
+    private final List<Rule> m_rules;
+
+    public RetentionPolicy(final List<Rule> rules) {
+        m_rules = Collections.unmodifiableList(new ArrayList<>(rules));
+    }
+
+    public static RetentionPolicy read(final Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static RetentionPolicy parse(final List<String> lines) {
+        final List<Rule> rules = new ArrayList<>();
+        for (final String line : lines) {
+            final int hash = line.indexOf('#');
+            final String text = (hash < 0 ? line : line.substring(0, hash)).trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            final String[] fields = text.split("\\s+");
+            int keep = -1;
+            long maxAge = -1;
+            for (int i = 1; i < fields.length; i++) {
+                if (fields[i].startsWith("keep=")) {
+                    keep = Integer.parseInt(fields[i].substring(5));
+                } else if (fields[i].startsWith("max-age=")) {
+                    maxAge = parseAge(fields[i].substring(8));
+                } else {
+                    throw new IllegalArgumentException("Unknown retention setting '" + fields[i] + "' in: " + line);
+                }
+            }
+            rules.add(new Rule(fields[0], keep, maxAge));
+        }
+        return new RetentionPolicy(rules);
+    }
+
+    private static long parseAge(final String age) {
+        if (age.isEmpty()) {
+            throw new IllegalArgumentException("Empty max-age");
+        }
+        final TimeUnit unit;
+        switch (age.charAt(age.length() - 1)) {
+            case 'd': unit = TimeUnit.DAYS; break;
+            case 'h': unit = TimeUnit.HOURS; break;
+            case 'm': unit = TimeUnit.MINUTES; break;
+            case 's': unit = TimeUnit.SECONDS; break;
+            default: throw new IllegalArgumentException("max-age needs a unit (d, h, m or s): " + age);
+        }
+        return unit.toMillis(Long.parseLong(age.substring(0, age.length() - 1)));
+    }
+
+    public List<Rule> getRules() {
+        return m_rules;
+    }
+
+    /**
+     * The rule for packages with the given name, or null if they are all kept.
+     */
+    public Rule getRule(final String name) {
+        for (final Rule rule : m_rules) {
+            if (rule.matches(name)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the version of a package at {@code index} (0 being the newest),
+     * last modified at {@code modified}, should be removed at time {@code now}.
+     */
+    public boolean isExpired(final String name, final int index, final long modified, final long now) {
+        if (index == 0) {
+            return false;
+        }
+        final Rule rule = getRule(name);
+        if (rule == null) {
+            return false;
+        }
+        return (rule.getKeep() > 0 && index >= rule.getKeep()) || (rule.getMaxAge() >= 0 && now - modified > rule.getMaxAge());
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy" + m_rules;
+    }
+
+    public static final class Rule {
+        private final String m_glob;
+        private final Pattern m_pattern;
+        private final int m_keep;
+        private final long m_maxAge;
+
+        /**
+         * @param glob the package names the rule applies to; {@code *} and {@code ?} are wildcards
+         * @param keep how many versions to keep, or -1 for no limit
+         * @param maxAge the age (in milliseconds) beyond which old versions are removed, or -1 for no limit
+         */
+        public Rule(final String glob, final int keep, final long maxAge) {
+            if (keep == 0 || keep < -1) {
+                throw new IllegalArgumentException("keep must be at least 1: " + keep);
+            }
+            m_glob = glob;
+            m_pattern = toPattern(glob);
+            m_keep = keep;
+            m_maxAge = maxAge;
+        }
+
+        private static Pattern toPattern(final String glob) {
+            final StringBuilder sb = new StringBuilder();
+            for (final char c : glob.toCharArray()) {
+                if (c == '*') {
+                    sb.append(".*");
+                } else if (c == '?') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(sb.toString());
+        }
+
+        public boolean matches(final String name) {
+            return m_pattern.matcher(name).matches();
+        }
+
+        public String getGlob() {
+            return m_glob;
+        }
+
+        public int getKeep() {
+            return m_keep;
+        }
+
+        public long getMaxAge() {
+            return m_maxAge;
+        }
+
+        @Override
+        public String toString() {
+            return m_glob + (m_keep > 0 ? " keep=" + m_keep : "") + (m_maxAge >= 0 ? " max-age=" + TimeUnit.MILLISECONDS.toSeconds(m_maxAge) + "s" : "");
+        }
+    }
+}
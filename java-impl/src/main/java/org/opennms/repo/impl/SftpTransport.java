@@ -0,0 +1,217 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link RemoteTransport} that drives an OpenSSH {@code sftp} client in batch
+ * mode, like {@code SFTPRepo.pm} does with {@code Net::SFTP::Foreign}.
+ *
+ * Each transport keeps one {@code sftp} session open and feeds it commands on
+ * stdin, so consecutive operations do not pay for a new SSH handshake; after
+ * every command a {@code pwd} is sent, and its reply marks where that
+ * command's output ends.  Commands that fail make {@code sftp} exit, which is
+ * reported as an {@link IOException} and the next command starts a new
+ * session.  Renames use the {@code posix-rename} extension where the server has
+ * it, so they replace their target atomically.
+ */
+public class SftpTransport implements RemoteTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(SftpTransport.class);
+    private static final String DONE = "Remote working directory: ";
+    private static final int MAX_ERROR_LINES = 20;
+
+    private final String m_destination;
+    private final String m_base;
+    private final List<String> m_options;
+
+    private Process m_process;
+    private Writer m_input;
+    private BufferedReader m_output;
+
+    /**
+     * @param destination the host to connect to, as {@code [user@]host}
+     * @param base the repository root on the host
+     * @param options extra arguments for {@code sftp} (eg. {@code -P 2222}, {@code -i key})
+     */
+    public SftpTransport(final String destination, final String base, final List<String> options) {
+        m_destination = destination;
+        m_base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        m_options = options == null ? Collections.<String>emptyList() : new ArrayList<>(options);
+    }
+
+    public static Factory factory(final String destination, final String base, final List<String> options) {
+        return () -> new SftpTransport(destination, base, options);
+    }
+
+    public static boolean isAvailable() {
+        return Command.which("sftp") != null;
+    }
+
+    @Override
+    public long size(final String path) throws IOException {
+        for (final String line : run("-ls -ln " + quote(remote(path)))) {
+            // -rw-r--r--    1 1000     1000         1234 Jan  1 00:00 /path
+            final String[] fields = line.trim().split("\\s+");
+            if (line.startsWith("-") && fields.length > 4) {
+                try {
+                    return Long.parseLong(fields[4]);
+                } catch (final NumberFormatException e) {
+                    LOG.debug("Unexpected ls output: {}", line);
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean download(final String path, final Path local) throws IOException {
+        if (size(path) < 0) {
+            return false;
+        }
+        run("get " + quote(remote(path)) + " " + quote(local.toAbsolutePath().toString()));
+        return true;
+    }
+
+    @Override
+    public void upload(final Path local, final String path, final long offset) throws IOException {
+        // reput picks up from the remote file's current length
+        run((offset > 0 ? "reput " : "put ") + quote(local.toAbsolutePath().toString()) + " " + quote(remote(path)));
+    }
+
+    @Override
+    public void rename(final String from, final String to) throws IOException {
+        run("rename " + quote(remote(from)) + " " + quote(remote(to)));
+    }
+
+    @Override
+    public void delete(final String path) throws IOException {
+        run("-rm " + quote(remote(path)));
+    }
+
+    @Override
+    public void mkdirs(final String path) throws IOException {
+        final StringBuilder dir = new StringBuilder(m_base);
+        for (final String element : path.split("/")) {
+            if (element.isEmpty()) {
+                continue;
+            }
+            dir.append('/').append(element);
+            run("-mkdir " + quote(dir.toString()));
+        }
+    }
+
+    private String remote(final String path) {
+        return m_base + "/" + path;
+    }
+
+    private static String quote(final String arg) {
+        return '"' + arg.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private synchronized List<String> run(final String command) throws IOException {
+        if (m_process == null) {
+            start();
+        }
+        LOG.trace("sftp {}: {}", m_destination, command);
+        final List<String> lines = new ArrayList<>();
+        final LinkedList<String> recent = new LinkedList<>();
+        try {
+            m_input.write(command + "\npwd\n");
+            m_input.flush();
+            String line;
+            while ((line = m_output.readLine()) != null) {
+                if (line.startsWith(DONE)) {
+                    return lines;
+                }
+                if (!line.startsWith("sftp>")) {
+                    lines.add(line);
+                }
+                recent.add(line);
+                if (recent.size() > MAX_ERROR_LINES) {
+                    recent.removeFirst();
+                }
+            }
+        } catch (final IOException e) {
+            LOG.debug("sftp {} session failed", m_destination, e);
+        }
+
+        final int exitValue = stop();
+        throw new IOException("sftp " + m_destination + " failed (exit code " + exitValue + ") running: " + command + "\n" + String.join("\n", recent));
+    }
+
+    private void start() throws IOException {
+        final String sftp = Command.which("sftp");
+        if (sftp == null) {
+            throw new IOException("sftp is not installed!");
+        }
+        final List<String> args = new ArrayList<>();
+        args.add(sftp);
+        args.add("-b");
+        args.add("-");
+        args.addAll(m_options);
+        args.add(m_destination);
+        LOG.debug("running: {}", args);
+
+        final ProcessBuilder builder = new ProcessBuilder(args);
+        builder.environment().putAll(Command.getEnvironment());
+        builder.redirectErrorStream(true);
+        m_process = builder.start();
+        m_input = new OutputStreamWriter(m_process.getOutputStream(), StandardCharsets.UTF_8);
+        m_output = new BufferedReader(new InputStreamReader(m_process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private int stop() {
+        final Process process = m_process;
+        m_process = null;
+        m_input = null;
+        m_output = null;
+        if (process == null) {
+            return 0;
+        }
+        try {
+            process.getOutputStream().close();
+        } catch (final IOException e) {
+            LOG.trace("Failed to close sftp stdin", e);
+        }
+        try {
+            if (process.waitFor(10, TimeUnit.SECONDS)) {
+                return process.exitValue();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        process.destroyForcibly();
+        return -1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (m_process != null) {
+            try {
+                m_input.write("bye\n");
+                m_input.flush();
+            } catch (final IOException e) {
+                LOG.trace("Failed to end sftp session", e);
+            }
+            stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sftp://" + m_destination + m_base;
+    }
+}
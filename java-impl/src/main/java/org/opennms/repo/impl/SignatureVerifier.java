@@ -0,0 +1,418 @@
+package org.opennms.repo.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.opennms.repo.api.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the signatures in a repository tree before it is published: the
+ * detached signatures written for {@code repomd.xml} and {@code Release}, and
+ * the signatures embedded in each RPM's signature header.
+ *
+ * Keys come from a {@link KeyringCache}, so keyrings are parsed once however
+ * many files are checked.  Files are checked in parallel, each on one pool
+ * thread, and read in chunks rather than all at once.  An RPM is read once
+ * however many signatures it has: the header-only signatures ({@code DSA},
+ * {@code RSA}) are fed the main header as it goes past, and the header and
+ * payload signatures ({@code PGP}, {@code GPG}) the rest of the file.
+ *
+ * A file passes if at least one of its signatures is valid and none is bad.
+ * A signature by a key that has been revoked, or that had expired when the
+ * signature was made, is bad whether or not it matches; so is one by a subkey
+ * whose primary key has been revoked or had expired.
+ * A signature by a key that is not in the cache does not fail a file that has
+ * a valid one, since old packages often carry signatures by retired keys too.
+ * {@code InRelease} (clear-signed) and embedded Debian signatures are not checked.
+ */
+public class SignatureVerifier implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    public enum Status {
+        VALID, BAD, UNKNOWN_KEY, UNSIGNED, ERROR
+    }
+
+    /** What a signature covers. */
+    public enum Scope {
+        FILE, RPM_HEADER, RPM_HEADER_AND_PAYLOAD
+    }
+
+    private final KeyringCache m_keys;
+    private final ExecutorService m_executor;
+
+    public SignatureVerifier(final KeyringCache keys, final int threads) {
+        m_keys = keys;
+        m_executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * The detached signature that should accompany a file.
+     */
+    public static Path getSignatureFile(final Path file) {
+        if ("Release".equals(file.getFileName().toString())) {
+            return file.resolveSibling("Release.gpg");
+        }
+        return BatchSigner.getSignatureFile(file);
+    }
+
+    /**
+     * Check everything under {@code root} that should be signed: every RPM, every
+     * {@code repomd.xml} and {@code Release}, and any other file with a {@code .asc}
+     * next to it.  Hidden files and directories are skipped.
+     */
+    public Report verifyTree(final Path root) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                return !dir.equals(root) && dir.getFileName().toString().startsWith(".") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                final String name = file.getFileName().toString();
+                if (!name.startsWith(".") && attrs.isRegularFile() && (name.endsWith(".rpm") || "repomd.xml".equals(name) || "Release".equals(name)
+                        || (!name.endsWith(BatchSigner.SUFFIX) && Files.exists(BatchSigner.getSignatureFile(file))))) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return verifyAll(files);
+    }
+
+    /**
+     * Check many files in parallel.  A file that cannot be read is reported as an
+     * {@link Status#ERROR} rather than stopping the others.
+     */
+    public Report verifyAll(final Collection<Path> files) {
+        final long start = System.nanoTime();
+        final Map<Path,Future<List<Verification>>> tasks = new LinkedHashMap<>();
+        for (final Path file : files) {
+            tasks.put(file, m_executor.submit(() -> verify(file)));
+        }
+
+        final Map<Path,List<Verification>> results = new LinkedHashMap<>();
+        for (final Map.Entry<Path,Future<List<Verification>>> entry : tasks.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while verifying signatures.", e);
+            } catch (final ExecutionException e) {
+                LOG.debug("Unable to verify {}: {}", entry.getKey(), e.getCause().getMessage(), e.getCause());
+                results.put(entry.getKey(), Collections.singletonList(new Verification(Scope.FILE, Status.ERROR, 0, e.getCause().toString())));
+            }
+        }
+        final Report report = new Report(results, (System.nanoTime() - start) / 1000000);
+        LOG.info("Verified {} files in {}ms ({} failed)", results.size(), report.getElapsed(), report.getFailures().size());
+        return report;
+    }
+
+    /**
+     * Check one file on the calling thread: its embedded signatures if it is an
+     * RPM, otherwise its detached signature.
+     */
+    public List<Verification> verify(final Path file) throws IOException {
+        if (file.getFileName().toString().endsWith(".rpm")) {
+            return verifyRpm(file);
+        }
+        return verifyDetached(file, getSignatureFile(file));
+    }
+
+    public List<Verification> verifyDetached(final Path file, final Path signature) throws IOException {
+        if (!Files.isRegularFile(signature)) {
+            return Collections.singletonList(new Verification(Scope.FILE, Status.UNSIGNED, 0, signature.getFileName() + " is missing"));
+        }
+        final List<Pending> pending = new ArrayList<>();
+        final List<Verification> results = new ArrayList<>();
+        try (final InputStream is = Files.newInputStream(signature)) {
+            prepare(parse(is), Scope.FILE, Long.MAX_VALUE, pending, results);
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return finish(channel, 0, pending, results);
+        }
+    }
+
+    public List<Verification> verifyRpm(final Path rpm) throws IOException {
+        try (final FileChannel channel = FileChannel.open(rpm, StandardOpenOption.READ)) {
+            final RPMHeader header = RPMHeaderReader.read(channel);
+            final RPMHeaderReader.TagTable signatures = RPMHeaderReader.readHeader(channel, RPMHeaderReader.LEAD_SIZE);
+
+            final List<Pending> pending = new ArrayList<>();
+            final List<Verification> results = new ArrayList<>();
+            for (final int tag : new int[] { RPMHeaderReader.RPMSIGTAG_DSA, RPMHeaderReader.RPMSIGTAG_RSA }) {
+                prepare(signatures.getBytes(tag), Scope.RPM_HEADER, header.getHeaderEnd(), pending, results);
+            }
+            for (final int tag : new int[] { RPMHeaderReader.RPMSIGTAG_PGP, RPMHeaderReader.RPMSIGTAG_GPG }) {
+                prepare(signatures.getBytes(tag), Scope.RPM_HEADER_AND_PAYLOAD, channel.size(), pending, results);
+            }
+            if (pending.isEmpty() && results.isEmpty()) {
+                return Collections.singletonList(new Verification(Scope.RPM_HEADER, Status.UNSIGNED, 0, "no OpenPGP signatures"));
+            }
+            return finish(channel, header.getHeaderStart(), pending, results);
+        }
+    }
+
+    private void prepare(final byte[] data, final Scope scope, final long end, final List<Pending> pending, final List<Verification> results) throws IOException {
+        if (data != null) {
+            prepare(parse(new ByteArrayInputStream(data)), scope, end, pending, results);
+        }
+    }
+
+    private void prepare(final List<PGPSignature> signatures, final Scope scope, final long end, final List<Pending> pending, final List<Verification> results) {
+        if (signatures.isEmpty()) {
+            results.add(new Verification(scope, Status.ERROR, 0, "no signature packets"));
+        }
+        for (final PGPSignature signature : signatures) {
+            final PGPPublicKey key = m_keys.getKey(signature.getKeyID());
+            if (key == null) {
+                results.add(new Verification(scope, Status.UNKNOWN_KEY, signature.getKeyID(), null));
+                continue;
+            }
+            String unusable = getUnusableReason(key, signature);
+            final PGPPublicKey primary = m_keys.getPrimaryKey(key.getKeyID());
+            if (unusable == null && primary != null && primary.getKeyID() != key.getKeyID()) {
+                // a subkey is only as good as the primary key that certified it
+                unusable = getUnusableReason(primary, signature);
+            }
+            if (unusable != null) {
+                results.add(new Verification(scope, Status.BAD, signature.getKeyID(), unusable));
+                continue;
+            }
+            try {
+                signature.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), key);
+                pending.add(new Pending(signature, scope, end));
+            } catch (final PGPException e) {
+                results.add(new Verification(scope, Status.ERROR, signature.getKeyID(), e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Why a key can't be trusted for a signature, or null if it can.
+     */
+    private static String getUnusableReason(final PGPPublicKey key, final PGPSignature signature) {
+        if (key.hasRevocation()) {
+            return "key " + KeyringCache.toString(key.getKeyID()) + " has been revoked";
+        }
+        final long validSeconds = key.getValidSeconds();
+        if (validSeconds > 0) {
+            final long expires = key.getCreationTime().getTime() + validSeconds * 1000;
+            if (signature.getCreationTime().getTime() > expires) {
+                return "key " + KeyringCache.toString(key.getKeyID()) + " expired on " + new Date(expires);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream the file from {@code start} past every pending signature once, then check them.
+     */
+    private static List<Verification> finish(final FileChannel channel, final long start, final List<Pending> pending, final List<Verification> results) throws IOException {
+        long end = start;
+        for (final Pending p : pending) {
+            p.m_end = Math.min(p.m_end, channel.size());
+            end = Math.max(end, p.m_end);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(GPGUtils.BUFFER_SIZE);
+        final byte[] array = buffer.array();
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - position));
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + position + ".");
+            }
+            for (final Pending p : pending) {
+                if (p.m_end > position) {
+                    p.m_signature.update(array, 0, (int)Math.min(read, p.m_end - position));
+                }
+            }
+            position += read;
+        }
+
+        for (final Pending p : pending) {
+            try {
+                results.add(new Verification(p.m_scope, p.m_signature.verify() ? Status.VALID : Status.BAD, p.m_signature.getKeyID(), null));
+            } catch (final PGPException e) {
+                results.add(new Verification(p.m_scope, Status.ERROR, p.m_signature.getKeyID(), e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    private static List<PGPSignature> parse(final InputStream is) throws IOException {
+        final List<PGPSignature> signatures = new ArrayList<>();
+        final JcaPGPObjectFactory factory = new JcaPGPObjectFactory(PGPUtil.getDecoderStream(is));
+        Object object;
+        while ((object = factory.nextObject()) != null) {
+            if (object instanceof PGPSignatureList) {
+                for (final PGPSignature signature : (PGPSignatureList)object) {
+                    signatures.add(signature);
+                }
+            }
+        }
+        return signatures;
+    }
+
+    @Override
+    public void close() {
+        m_executor.shutdown();
+    }
+
+    private static final class Pending {
+        private final PGPSignature m_signature;
+        private final Scope m_scope;
+        private long m_end;
+
+        private Pending(final PGPSignature signature, final Scope scope, final long end) {
+            m_signature = signature;
+            m_scope = scope;
+            m_end = end;
+        }
+    }
+
+    /**
+     * The result of checking one signature.
+     */
+    public static final class Verification {
+        private final Scope m_scope;
+        private final Status m_status;
+        private final long m_keyId;
+        private final String m_message;
+
+        Verification(final Scope scope, final Status status, final long keyId, final String message) {
+            m_scope = scope;
+            m_status = status;
+            m_keyId = keyId;
+            m_message = message;
+        }
+
+        public Scope getScope() {
+            return m_scope;
+        }
+
+        public Status getStatus() {
+            return m_status;
+        }
+
+        /** The ID of the key that made the signature, or 0 if there is none. */
+        public long getKeyId() {
+            return m_keyId;
+        }
+
+        /** Why the signature could not be checked, or null. */
+        public String getMessage() {
+            return m_message;
+        }
+
+        @Override
+        public String toString() {
+            return m_status + " " + m_scope + (m_keyId == 0 ? "" : " " + KeyringCache.toString(m_keyId)) + (m_message == null ? "" : ": " + m_message);
+        }
+    }
+
+    /**
+     * Every signature checked in a batch, by file.
+     */
+    public static final class Report {
+        private final Map<Path,List<Verification>> m_results;
+        private final long m_elapsed;
+
+        Report(final Map<Path,List<Verification>> results, final long elapsed) {
+            m_results = Collections.unmodifiableMap(results);
+            m_elapsed = elapsed;
+        }
+
+        /** The signatures of each file, in the order the files were given. */
+        public Map<Path,List<Verification>> getResults() {
+            return m_results;
+        }
+
+        /** The files that do not pass: no valid signature, or a bad one. */
+        public List<Path> getFailures() {
+            final List<Path> failures = new ArrayList<>();
+            for (final Map.Entry<Path,List<Verification>> entry : m_results.entrySet()) {
+                if (!passes(entry.getValue())) {
+                    failures.add(entry.getKey());
+                }
+            }
+            return failures;
+        }
+
+        public boolean isValid() {
+            return getFailures().isEmpty();
+        }
+
+        /** Wall-clock time for the batch, in milliseconds. */
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        private static boolean passes(final List<Verification> verifications) {
+            boolean valid = false;
+            for (final Verification verification : verifications) {
+                switch (verification.getStatus()) {
+                    case VALID:
+                        valid = true;
+                        break;
+                    case UNKNOWN_KEY:
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            return valid;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (final Path file : getFailures()) {
+                sb.append(String.format("FAILED %s %s%n", file, m_results.get(file)));
+            }
+            sb.append(String.format("%d files checked in %dms, %d failed", m_results.size(), m_elapsed, getFailures().size()));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.opennms.repo.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Helpers for byte-array sort keys, which order the same way as the objects
+ * they were built from when compared as unsigned bytes ({@code memcmp}-style).
+ */
+public abstract class SortKeys {
+    public static final Comparator<byte[]> COMPARATOR = SortKeys::compare;
+
+    private SortKeys() {
+    }
+
+    /**
+     * Compare two sort keys as unsigned bytes; a key that is a prefix of another sorts first.
+     */
+    public static int compare(final byte[] a, final byte[] b) {
+        final int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xff) < (b[i] & 0xff) ? -1 : 1;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * A minimal growable byte buffer for building keys.
+     */
+    static final class Builder {
+        private byte[] m_bytes;
+        private int m_length = 0;
+
+        Builder(final int capacity) {
+            m_bytes = new byte[capacity];
+        }
+
+        Builder put(final int b) {
+            if (m_length == m_bytes.length) {
+                m_bytes = Arrays.copyOf(m_bytes, m_bytes.length * 2 + 1);
+            }
+            m_bytes[m_length++] = (byte)b;
+            return this;
+        }
+
+        /** A signed int, biased so that negative numbers sort first. */
+        Builder putInt(final int value) {
+            final int biased = value ^ 0x80000000;
+            return put(biased >>> 24).put(biased >>> 16).put(biased >>> 8).put(biased);
+        }
+
+        /** A run of ASCII digits, with leading zeros already stripped, as a numeric value. */
+        Builder putNumber(final String s, final int start, final int end) {
+            final int length = end - start;
+            put(length >>> 8).put(length);
+            for (int i = start; i < end; i++) {
+                put(s.charAt(i));
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(m_bytes, m_length);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.function.Function;
+
+import org.apache.commons.io.FileUtils;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.api.RepositoryTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link RepositoryTransaction} that stages changes in a sibling directory
+ * of the repository root.
+ *
+ * The staging tree is built from hard links to the original files, so starting
+ * a transaction costs one link per file rather than a copy of the repository.
+ * Repodata is copied, since signing writes into it in place; anything else that
+ * is modified in place must go through {@link #prepareWrite(Path)}, which breaks
+ * the link first.  The staging directory is given the permissions and owner of
+ * the repository root (or of its parent, for a new repository) before anything
+ * is published.
+ *
+ * Publishing does not depend on repository size.  If the repository root is a
+ * symbolic link to a directory beside it, committing points a new link at the
+ * staging tree and renames it over the old one, so readers always see either
+ * the old or the new repository; the previous directory is then removed.
+ * Otherwise committing renames the original out of the way and the staging
+ * tree into its place, and between those two renames the root does not exist:
+ * readers that find it missing should retry.
+ */
+public class StagedTransaction implements RepositoryTransaction {
+    private static final Logger LOG = LoggerFactory.getLogger(StagedTransaction.class);
+
+    private final Repository m_original;
+    private final Path m_staging;
+    private final Repository m_repository;
+    private boolean m_finished = false;
+
+    /**
+     * @param original the repository to change
+     * @param factory creates a repository of the same type rooted at the given path
+     */
+    public StagedTransaction(final Repository original, final Function<Path,Repository> factory) throws RepositoryException {
+        m_original = original;
+
+        final Path root = original.getRoot().toAbsolutePath();
+        try {
+            Files.createDirectories(root.getParent());
+            m_staging = Files.createTempDirectory(root.getParent(), "." + root.getFileName() + ".txn-");
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to create staging directory for " + root, e);
+        }
+
+        try {
+            if (Files.isDirectory(root)) {
+                copyOwnership(root, m_staging);
+                final long start = System.currentTimeMillis();
+                final int linked = LinkUtils.linkTree(root.toRealPath(), m_staging, path -> path.startsWith(YumRepodataGenerator.REPODATA));
+                LOG.debug("Staged {} in {} ({} files linked, {}ms)", root, m_staging, linked, System.currentTimeMillis() - start);
+            } else {
+                copyOwnership(root.getParent(), m_staging);
+            }
+        } catch (final IOException | RuntimeException e) {
+            delete(m_staging);
+            throw new RepositoryException("Failed to stage " + root + " in " + m_staging, e);
+        }
+
+        m_repository = factory.apply(m_staging);
+    }
+
+    @Override
+    public Repository getOriginal() {
+        return m_original;
+    }
+
+    @Override
+    public Repository getRepository() {
+        return m_repository;
+    }
+
+    public Path getStagingRoot() {
+        return m_staging;
+    }
+
+    @Override
+    public synchronized Path prepareWrite(final Path path) throws RepositoryException {
+        assertActive();
+        final Path staged = m_staging.resolve(path.toString());
+        if (!staged.normalize().startsWith(m_staging)) {
+            throw new RepositoryException(path + " is outside of the repository!");
+        }
+        try {
+            LinkUtils.breakLink(staged);
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to prepare " + staged + " for writing", e);
+        }
+        return staged;
+    }
+
+    @Override
+    public synchronized void commit() throws RepositoryException {
+        assertActive();
+
+        final Path root = m_original.getRoot().toAbsolutePath();
+        if (Files.isSymbolicLink(root)) {
+            commitLink(root);
+            return;
+        }
+
+        final Path backup = m_staging.resolveSibling(m_staging.getFileName() + ".old");
+        final boolean exists = Files.exists(root);
+        try {
+            if (exists) {
+                Files.move(root, backup, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try {
+                Files.move(m_staging, root, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException e) {
+                if (exists) {
+                    Files.move(backup, root, StandardCopyOption.ATOMIC_MOVE);
+                }
+                throw e;
+            }
+        } catch (final IOException e) {
+            throw new RepositoryException("Failed to commit " + m_staging + " to " + root, e);
+        }
+        m_finished = true;
+        LOG.debug("Committed {} to {}", m_staging, root);
+
+        if (exists) {
+            delete(backup);
+        }
+    }
+
+    /**
+     * Publish by renaming a new link to the staging tree over the root link.
+     */
+    private void commitLink(final Path root) throws RepositoryException {
+        final Path link = m_staging.resolveSibling(m_staging.getFileName() + ".link");
+        final Path previous;
+        try {
+            previous = root.resolveSibling(Files.readSymbolicLink(root)).normalize();
+            Files.createSymbolicLink(link, m_staging.getFileName());
+            Files.move(link, root, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            try {
+                Files.deleteIfExists(link);
+            } catch (final IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new RepositoryException("Failed to commit " + m_staging + " to " + root, e);
+        }
+        m_finished = true;
+        LOG.debug("Committed {} to {} (previously {})", m_staging, root, previous);
+
+        // only clean up a previous directory that lives beside the link
+        if (root.getParent().equals(previous.getParent()) && Files.isDirectory(previous, LinkOption.NOFOLLOW_LINKS)) {
+            delete(previous);
+        }
+    }
+
+    @Override
+    public synchronized void abort() throws RepositoryException {
+        assertActive();
+        m_finished = true;
+        if (!delete(m_staging)) {
+            throw new RepositoryException("Failed to remove staging directory " + m_staging);
+        }
+        LOG.debug("Aborted transaction on {}", m_original.getRoot());
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return m_finished;
+    }
+
+    @Override
+    public synchronized void close() throws RepositoryException {
+        if (!m_finished) {
+            abort();
+        }
+    }
+
+    private void assertActive() {
+        if (m_finished) {
+            throw new IllegalStateException("Transaction on " + m_original.getRoot() + " is already finished!");
+        }
+    }
+
+    /**
+     * Give {@code target} the POSIX permissions, owner and group of {@code source}.
+     * Changing the owner usually needs privileges; if that fails the staging tree
+     * keeps ours, and we say so.
+     */
+    private static void copyOwnership(final Path source, final Path target) throws IOException {
+        final PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        final PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (sourceView == null || targetView == null) {
+            return;
+        }
+        final PosixFileAttributes attributes = sourceView.readAttributes();
+        final PosixFileAttributes current = targetView.readAttributes();
+        try {
+            if (!attributes.owner().equals(current.owner())) {
+                targetView.setOwner(attributes.owner());
+            }
+            if (!attributes.group().equals(current.group())) {
+                targetView.setGroup(attributes.group());
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to give {} the owner of {}: {}", target, source, e.getMessage());
+        }
+        // after the owner, since changing it may clear set-id bits
+        targetView.setPermissions(attributes.permissions());
+    }
+
+    private static boolean delete(final Path dir) {
+        try {
+            FileUtils.deleteDirectory(dir.toFile());
+            return true;
+        } catch (final IOException e) {
+            LOG.warn("Failed to delete {}", dir, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StagedTransaction[" + m_original.getRoot() + " -> " + m_staging + "]";
+    }
+}
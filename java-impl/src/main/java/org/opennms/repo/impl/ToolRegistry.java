@@ -0,0 +1,251 @@
+package org.opennms.repo.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.OS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds external tools ({@code createrepo}, {@code makedeltarpm}, {@code sftp}...)
+ * once per process, rather than once per command.
+ *
+ * A tool is looked up on the {@code PATH} (plus {@code /usr/local/bin} and
+ * {@code /usr/local/sbin}) the first time it is asked for; after that, asking
+ * again only stats the binary, and the tool is looked up again if it has been
+ * replaced or removed.  The options a tool supports are read from its
+ * {@code --help} output the first time they are needed, so {@code createrepo
+ * --help} is forked once per install rather than once per repository.  Tools
+ * that are not found are remembered for a minute.
+ */
+public class ToolRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(ToolRegistry.class);
+
+    private static final ToolRegistry INSTANCE = new ToolRegistry(ToolRegistry::getSearchPath);
+
+    private static final Pattern OPTION = Pattern.compile("(?<![\\w-])(--?[A-Za-z0-9][A-Za-z0-9-]*)");
+    private static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long MISSING_TTL = TimeUnit.MINUTES.toNanos(1);
+
+    private final Supplier<List<Path>> m_searchPath;
+    private final Map<String,Tool> m_tools = new ConcurrentHashMap<>();
+    private final Map<String,Long> m_missing = new ConcurrentHashMap<>();
+
+    ToolRegistry(final Supplier<List<Path>> searchPath) {
+        m_searchPath = searchPath;
+    }
+
+    public static ToolRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find a tool.
+     * @return the tool, or null if it is not installed
+     */
+    public Tool get(final String name) {
+        final Tool cached = m_tools.get(name);
+        if (cached != null) {
+            if (cached.isCurrent()) {
+                return cached;
+            }
+            LOG.debug("{} has changed since it was last looked up", cached.getPath());
+            m_tools.remove(name, cached);
+        }
+        final Long missingSince = m_missing.get(name);
+        if (missingSince != null && System.nanoTime() - missingSince < MISSING_TTL) {
+            return null;
+        }
+
+        final Tool tool = resolve(name);
+        if (tool == null) {
+            m_missing.put(name, System.nanoTime());
+            return null;
+        }
+        m_missing.remove(name);
+        final Tool existing = m_tools.putIfAbsent(name, tool);
+        return existing == null ? tool : existing;
+    }
+
+    /**
+     * @return the absolute path of the tool, or null if it is not installed
+     */
+    public String which(final String name) {
+        final Tool tool = get(name);
+        return tool == null ? null : tool.getPath().toString();
+    }
+
+    /**
+     * Forget everything, so each tool is looked up and probed again.
+     */
+    public void clear() {
+        m_tools.clear();
+        m_missing.clear();
+    }
+
+    private Tool resolve(final String name) {
+        for (final Path dir : m_searchPath.get()) {
+            final Path exe = dir.resolve(name).toAbsolutePath();
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(exe, BasicFileAttributes.class);
+                LOG.debug("Found {} at {}", name, exe);
+                return new Tool(name, exe, attrs);
+            } catch (final IOException e) {
+                // not in this directory
+            }
+        }
+        LOG.debug("{} is not installed", name);
+        return null;
+    }
+
+    static List<Path> getSearchPath() {
+        final String path = System.getenv("PATH");
+        final List<Path> searchPath = new ArrayList<>();
+        if (path != null) {
+            for (final String entry : path.split(OS.isFamilyWindows() ? ";" : ":")) {
+                if (!entry.isEmpty()) {
+                    searchPath.add(Paths.get(entry));
+                }
+            }
+        }
+        searchPath.add(Paths.get("/usr/local/bin"));
+        searchPath.add(Paths.get("/usr/local/sbin"));
+        return searchPath;
+    }
+
+    /**
+     * An installed tool, as it was when it was found.
+     */
+    public static final class Tool {
+        private final String m_name;
+        private final Path m_path;
+        private final long m_lastModified;
+        private final long m_size;
+        private final CommandLine m_template;
+        private volatile Set<String> m_options;
+
+        private Tool(final String name, final Path path, final BasicFileAttributes attrs) {
+            m_name = name;
+            m_path = path;
+            m_lastModified = attrs.lastModifiedTime().toMillis();
+            m_size = attrs.size();
+            m_template = new CommandLine(path.toString());
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public Path getPath() {
+            return m_path;
+        }
+
+        /**
+         * A new command line for this tool, with no arguments yet.
+         */
+        public CommandLine newCommandLine() {
+            return new CommandLine(m_template);
+        }
+
+        /**
+         * A new builder for running this tool.
+         */
+        public CommandBuilder newCommand() {
+            return new CommandBuilder(newCommandLine());
+        }
+
+        /**
+         * Whether the tool's {@code --help} output mentions {@code option}
+         * (eg. {@code --update}).  The first call runs {@code --help}.
+         */
+        public boolean supports(final String option) {
+            return getOptions().contains(option);
+        }
+
+        /**
+         * Every option the tool's {@code --help} output mentions.  If
+         * {@code --help} could not be run or timed out, no options are
+         * returned, and the next call tries again.
+         */
+        public Set<String> getOptions() {
+            Set<String> options = m_options;
+            if (options == null) {
+                synchronized (this) {
+                    options = m_options;
+                    if (options == null) {
+                        options = probe();
+                        if (options == null) {
+                            return Collections.emptySet();
+                        }
+                        m_options = options;
+                    }
+                }
+            }
+            return options;
+        }
+
+        /**
+         * The options {@code --help} mentions, or null if it failed.
+         */
+        private Set<String> probe() {
+            // stdout and stderr are pumped by different threads
+            final StringBuffer help = new StringBuffer();
+            try {
+                final int exitValue = newCommand().arg("--help")
+                        .stdout(line -> help.append(line).append('\n'))
+                        .stderr(line -> help.append(line).append('\n'))
+                        .timeout(PROBE_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .run();
+                LOG.debug("{} --help exited with {}", m_path, exitValue);
+                if (exitValue != 0 && help.length() == 0) {
+                    LOG.warn("{} --help exited with {} and no output", m_path, exitValue);
+                    return null;
+                }
+            } catch (final IOException e) {
+                LOG.warn("Unable to run {} --help: {}", m_path, e.getMessage());
+                return null;
+            }
+            final Set<String> options = new TreeSet<>();
+            final Matcher m = OPTION.matcher(help);
+            while (m.find()) {
+                options.add(m.group(1));
+            }
+            LOG.debug("{} supports {}", m_path, options);
+            return Collections.unmodifiableSet(options);
+        }
+
+        /**
+         * Whether the binary is still the one that was found.
+         */
+        private boolean isCurrent() {
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(m_path, BasicFileAttributes.class);
+                return attrs.lastModifiedTime().toMillis() == m_lastModified && attrs.size() == m_size;
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return m_name + "[" + m_path + "]";
+        }
+    }
+}
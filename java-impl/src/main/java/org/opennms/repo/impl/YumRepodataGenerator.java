@@ -0,0 +1,751 @@
+package org.opennms.repo.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.IndexMetrics.Counter;
+import org.opennms.repo.impl.IndexMetrics.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates YUM repodata ({@code primary}, {@code filelists}, {@code other} and
+ * {@code repomd.xml}) in-process, as an alternative to forking {@code createrepo}.
+ *
+ * Package headers are read and checksummed in parallel on a fork-join pool, and
+ * each metadata file is streamed through StAX while its uncompressed checksum is
+ * computed, then compressed into every configured format at once.  The new repodata is built
+ * in {@code .repodata} and swapped into place when complete, like createrepo does.
+ */
+public class YumRepodataGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(YumRepodataGenerator.class);
+
+    public enum ChecksumType {
+        SHA("sha", "SHA-1"),
+        SHA256("sha256", "SHA-256");
+
+        private final String m_name;
+        private final String m_algorithm;
+
+        private ChecksumType(final String name, final String algorithm) {
+            m_name = name;
+            m_algorithm = algorithm;
+        }
+
+        /** The checksum type as written in YUM metadata. */
+        public String getName() {
+            return m_name;
+        }
+
+        /** The {@link java.security.MessageDigest} algorithm name. */
+        public String getAlgorithm() {
+            return m_algorithm;
+        }
+    }
+
+    static final String REPODATA = "repodata";
+    static final String STAGING = ".repodata";
+    static final String OLDDATA = ".olddata";
+
+    static final String NS_COMMON = "http://linux.duke.edu/metadata/common";
+    static final String NS_RPM = "http://linux.duke.edu/metadata/rpm";
+    static final String NS_FILELISTS = "http://linux.duke.edu/metadata/filelists";
+    static final String NS_OTHER = "http://linux.duke.edu/metadata/other";
+    static final String NS_REPO = "http://linux.duke.edu/metadata/repo";
+
+    /* the same file list subset createrepo puts in primary.xml */
+    private static final Pattern PRIMARY_FILES = Pattern.compile("^(.*bin/.*|/etc/.*|/usr/lib/sendmail)$");
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final Path m_root;
+    private final ChecksumType m_checksumType;
+    private final ForkJoinPool m_pool;
+    private PackageMetadataCache m_cache;
+    private FileHasher m_hasher = FileHasher.getDefault();
+    private DeltaRpmGenerator m_deltas;
+    private List<Compression> m_compressions = Collections.singletonList(Compression.GZIP);
+    private IndexMetrics m_metrics;
+
+    public YumRepodataGenerator(final Path root) {
+        this(root, ChecksumType.SHA, ForkJoinPool.commonPool());
+    }
+
+    public YumRepodataGenerator(final Path root, final ChecksumType checksumType, final ForkJoinPool pool) {
+        m_root = root.toAbsolutePath();
+        m_checksumType = checksumType;
+        m_pool = pool;
+        m_metrics = new IndexMetrics(m_root);
+    }
+
+    public Path getRoot() {
+        return m_root;
+    }
+
+    public ChecksumType getChecksumType() {
+        return m_checksumType;
+    }
+
+    public PackageMetadataCache getCache() {
+        return m_cache;
+    }
+
+    /**
+     * Use a persistent cache of package metadata, so that only new or changed
+     * packages are read and checksummed.  Pass null to disable caching.
+     */
+    public void setCache(final PackageMetadataCache cache) {
+        m_cache = cache;
+    }
+
+    public FileHasher getHasher() {
+        return m_hasher;
+    }
+
+    public void setHasher(final FileHasher hasher) {
+        m_hasher = hasher;
+    }
+
+    public DeltaRpmGenerator getDeltaGenerator() {
+        return m_deltas;
+    }
+
+    /**
+     * Build delta RPMs and list them in {@code prestodelta.xml}.  Pass null to disable deltas.
+     */
+    public void setDeltaGenerator(final DeltaRpmGenerator deltas) {
+        m_deltas = deltas;
+    }
+
+    public List<Compression> getCompressions() {
+        return m_compressions;
+    }
+
+    /**
+     * Which compressed copies of each metadata file to write.  The first is
+     * listed under the usual type ({@code primary}); the others are listed as
+     * {@code primary_xz}, {@code primary_zst} and so on, which clients that
+     * don't know them ignore.  Defaults to gzip, which every yum can read.
+     */
+    public void setCompressions(final Compression... compressions) {
+        if (compressions.length == 0) {
+            throw new IllegalArgumentException("At least one compression is required.");
+        }
+        m_compressions = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(Arrays.asList(compressions))));
+    }
+
+    public IndexMetrics getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Where to record timings and counts; by default they are not reported anywhere.
+     */
+    public void setMetrics(final IndexMetrics metrics) {
+        m_metrics = metrics;
+    }
+
+    public void generate() throws IOException {
+        LOG.debug("Generating repodata for {}", m_root);
+
+        if (m_cache != null) {
+            m_cache.load();
+        }
+
+        final List<Path> paths;
+        try (final IndexMetrics.Timer timer = m_metrics.time(Phase.SCAN)) {
+            paths = findPackages();
+        }
+        final List<RPMPackage> packages = readPackages(paths);
+        m_metrics.add(Counter.PACKAGES, packages.size());
+        LOG.debug("Found {} packages in {}", packages.size(), m_root);
+        if (m_cache != null) {
+            LOG.debug("Package cache for {}: {} hits, {} misses", m_root, m_cache.getHits(), m_cache.getMisses());
+        }
+
+        final Path staging = m_root.resolve(STAGING);
+        FileUtils.deleteDirectory(staging.toFile());
+        Files.createDirectories(staging);
+
+        final Future<List<RepomdEntry>> primary = m_pool.submit(() -> writeMetadata(staging, "primary", packages, this::writePrimary));
+        final Future<List<RepomdEntry>> filelists = m_pool.submit(() -> writeMetadata(staging, "filelists", packages, this::writeFilelists));
+        final Future<List<RepomdEntry>> other = m_pool.submit(() -> writeMetadata(staging, "other", packages, this::writeOther));
+
+        final List<RepomdEntry> entries = new ArrayList<>();
+        entries.addAll(get(primary));
+        entries.addAll(get(filelists));
+        entries.addAll(get(other));
+        if (m_deltas != null) {
+            final List<DeltaRpmGenerator.DeltaRpm> deltas = m_deltas.generate(packages, m_checksumType);
+            entries.addAll(writeMetadata(staging, "prestodelta", deltas, this::writePrestodelta));
+        }
+        writeRepomd(staging, entries);
+
+        publish(staging);
+
+        if (m_cache != null) {
+            m_cache.save();
+        }
+    }
+
+    /**
+     * Read every package in the repository, using the cache if one is set.
+     * Only headers are read: a package that is not in the cache has no
+     * checksum, since those are only needed to write metadata.
+     */
+    public List<RPMPackage> getPackages() throws IOException {
+        if (m_cache != null) {
+            m_cache.load();
+        }
+        return readPackages(findPackages(true), false);
+    }
+
+    /**
+     * Find every package file under the repository root, sorted by location.
+     * Hidden directories (including the staging and old repodata directories) are skipped.
+     * @see RepositoryScanner
+     */
+    protected List<Path> findPackages() throws IOException {
+        return findPackages(false);
+    }
+
+    /**
+     * @param readOnly use the saved scan without updating it
+     */
+    protected List<Path> findPackages(final boolean readOnly) throws IOException {
+        final RepositoryScanner scanner = new RepositoryScanner(m_root, ".rpm", m_pool);
+        scanner.setReadOnly(readOnly);
+        return scanner.scan();
+    }
+
+    protected List<RPMPackage> readPackages(final List<Path> paths) throws IOException {
+        return readPackages(paths, true);
+    }
+
+    /**
+     * @param checksum whether packages that are not cached are checksummed
+     */
+    protected List<RPMPackage> readPackages(final List<Path> paths, final boolean checksum) throws IOException {
+        final List<Future<RPMPackage>> tasks = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            tasks.add(m_pool.submit(() -> readPackage(path, checksum)));
+        }
+        final List<RPMPackage> packages = new ArrayList<>(paths.size());
+        for (final Future<RPMPackage> task : tasks) {
+            final RPMPackage pkg = get(task);
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+        }
+        return packages;
+    }
+
+    protected RPMPackage readPackage(final Path path) throws IOException {
+        return readPackage(path, true);
+    }
+
+    protected RPMPackage readPackage(final Path path, final boolean checksum) throws IOException {
+        final String location = getLocation(path);
+        FileIdentity identity = null;
+        if (m_cache != null) {
+            identity = FileIdentity.of(path, location);
+            final RPMPackage cached = m_cache.get(path, identity, m_checksumType.getName());
+            if (cached != null) {
+                m_metrics.increment(Counter.CACHE_HITS);
+                return cached;
+            }
+            m_metrics.increment(Counter.CACHE_MISSES);
+        }
+
+        final RPMHeader header;
+        try (final IndexMetrics.Timer timer = m_metrics.time(Phase.PARSE)) {
+            header = RPMHeaderReader.read(path);
+        } catch (final RepositoryException e) {
+            LOG.warn("Skipping unreadable package {}: {}", path, e.getMessage());
+            return null;
+        }
+        final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!checksum) {
+            // not cached either, since the cache only holds complete entries
+            return new RPMPackage(path, location, header, attrs.size(), attrs.lastModifiedTime().toMillis(), null, null);
+        }
+        final String sum;
+        try (final IndexMetrics.Timer timer = m_metrics.time(Phase.HASH)) {
+            sum = m_hasher.hash(path, m_checksumType.getAlgorithm()).get(m_checksumType.getAlgorithm());
+        }
+        m_metrics.add(Counter.BYTES_HASHED, attrs.size());
+        final RPMPackage pkg = new RPMPackage(path, location, header, attrs.size(), attrs.lastModifiedTime().toMillis(), m_checksumType.getName(), sum);
+        if (m_cache != null) {
+            m_cache.put(identity, pkg);
+        }
+        return pkg;
+    }
+
+    protected String getLocation(final Path path) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Path element : m_root.relativize(path.toAbsolutePath())) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(element.toString());
+        }
+        return sb.toString();
+    }
+
+    private interface MetadataWriter<T> {
+        void write(XMLStreamWriter xml, List<T> items) throws XMLStreamException;
+    }
+
+    private <T> List<RepomdEntry> writeMetadata(final Path staging, final String type, final List<T> items, final MetadataWriter<T> writer) throws IOException {
+        final Path open = staging.resolve(type + ".xml");
+        final ChecksumOutputStream openSums;
+        try (
+            final IndexMetrics.Timer timer = m_metrics.time(Phase.WRITE);
+            final OutputStream fos = new BufferedOutputStream(Files.newOutputStream(open), 64 * 1024);
+            final ChecksumOutputStream oos = new ChecksumOutputStream(fos, Digests.getInstance(m_checksumType.getAlgorithm()));
+        ) {
+            openSums = oos;
+            final XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(oos, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            writer.write(xml, items);
+            xml.writeEndDocument();
+            xml.writeCharacters("\n");
+            xml.close();
+        } catch (final XMLStreamException e) {
+            throw new IOException("Failed to write " + type + " metadata for " + m_root, e);
+        }
+
+        final String openChecksum = openSums.getChecksum();
+        final long openSize = openSums.getCount();
+        m_metrics.add(Counter.BYTES_WRITTEN, openSize);
+        try {
+            // the first compression is the one clients look for; the rest are listed as <type>_<ext>
+            final List<Future<RepomdEntry>> tasks = new ArrayList<>(m_compressions.size());
+            for (int i = 0; i < m_compressions.size(); i++) {
+                final Compression compression = m_compressions.get(i);
+                final String variant = i == 0 ? type : type + "_" + compression.getExtension();
+                tasks.add(m_pool.submit(() -> compressMetadata(staging, type, variant, open, openChecksum, openSize, compression)));
+            }
+            final List<RepomdEntry> entries = new ArrayList<>(tasks.size());
+            for (final Future<RepomdEntry> task : tasks) {
+                entries.add(get(task));
+            }
+            return entries;
+        } finally {
+            Files.deleteIfExists(open);
+        }
+    }
+
+    private RepomdEntry compressMetadata(final Path staging, final String type, final String variant, final Path open, final String openChecksum, final long openSize, final Compression compression) throws IOException {
+        final Path temp = staging.resolve(type + ".xml." + compression.getExtension());
+        final ChecksumOutputStream compressed;
+        try (
+            final IndexMetrics.Timer timer = m_metrics.time(Phase.COMPRESS);
+            final OutputStream fos = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024);
+            final ChecksumOutputStream cos = new ChecksumOutputStream(fos, Digests.getInstance(m_checksumType.getAlgorithm()));
+        ) {
+            compressed = cos;
+            new BlockCompressor(m_pool).compress(open, compression, cos);
+        }
+
+        final String checksum = compressed.getChecksum();
+        m_metrics.add(Counter.BYTES_COMPRESSED, compressed.getCount());
+        final String filename = checksum + "-" + type + ".xml." + compression.getExtension();
+        Files.move(temp, staging.resolve(filename), StandardCopyOption.REPLACE_EXISTING);
+        LOG.debug("Wrote {} ({} bytes, {} uncompressed)", filename, compressed.getCount(), openSize);
+
+        return new RepomdEntry(variant, REPODATA + "/" + filename, checksum, compressed.getCount(), openChecksum, openSize);
+    }
+
+    private void writePrimary(final XMLStreamWriter xml, final List<RPMPackage> packages) throws XMLStreamException {
+        xml.writeStartElement("metadata");
+        xml.writeDefaultNamespace(NS_COMMON);
+        xml.writeNamespace("rpm", NS_RPM);
+        xml.writeAttribute("packages", Integer.toString(packages.size()));
+        xml.writeCharacters("\n");
+
+        for (final RPMPackage pkg : packages) {
+            final RPMHeader header = pkg.getHeader();
+            xml.writeStartElement("package");
+            xml.writeAttribute("type", "rpm");
+            element(xml, "name", header.getName());
+            element(xml, "arch", header.getArch());
+            writeVersion(xml, header);
+
+            xml.writeStartElement("checksum");
+            xml.writeAttribute("type", pkg.getChecksumType());
+            xml.writeAttribute("pkgid", "YES");
+            xml.writeCharacters(pkg.getChecksum());
+            xml.writeEndElement();
+
+            element(xml, "summary", header.getSummary());
+            element(xml, "description", header.getDescription());
+            element(xml, "packager", header.getPackager());
+            element(xml, "url", header.getUrl());
+
+            xml.writeEmptyElement("time");
+            xml.writeAttribute("file", Long.toString(pkg.getLastModified() / 1000));
+            xml.writeAttribute("build", Long.toString(header.getBuildTime()));
+
+            xml.writeEmptyElement("size");
+            xml.writeAttribute("package", Long.toString(pkg.getSize()));
+            xml.writeAttribute("installed", Long.toString(header.getInstalledSize()));
+            xml.writeAttribute("archive", Long.toString(header.getArchiveSize()));
+
+            xml.writeEmptyElement("location");
+            xml.writeAttribute("href", pkg.getLocation());
+
+            xml.writeStartElement("format");
+            rpmElement(xml, "license", header.getLicense());
+            rpmElement(xml, "vendor", header.getVendor());
+            rpmElement(xml, "group", header.getGroup());
+            rpmElement(xml, "buildhost", header.getBuildHost());
+            rpmElement(xml, "sourcerpm", header.getSourceRpm());
+
+            xml.writeEmptyElement("rpm", "header-range", NS_RPM);
+            xml.writeAttribute("start", Long.toString(header.getHeaderStart()));
+            xml.writeAttribute("end", Long.toString(header.getHeaderEnd()));
+
+            writeDependencies(xml, "provides", header.getProvides(), false);
+            writeDependencies(xml, "requires", header.getRequires(), true);
+            writeDependencies(xml, "conflicts", header.getConflicts(), false);
+            writeDependencies(xml, "obsoletes", header.getObsoletes(), false);
+
+            final List<String> files = header.getFiles();
+            for (int i = 0; i < files.size(); i++) {
+                if (PRIMARY_FILES.matcher(files.get(i)).matches()) {
+                    writeFile(xml, files.get(i), header.getFileType(i));
+                }
+            }
+            xml.writeEndElement(); // format
+
+            xml.writeEndElement(); // package
+            xml.writeCharacters("\n");
+        }
+
+        xml.writeEndElement();
+    }
+
+    private void writeFilelists(final XMLStreamWriter xml, final List<RPMPackage> packages) throws XMLStreamException {
+        xml.writeStartElement("filelists");
+        xml.writeDefaultNamespace(NS_FILELISTS);
+        xml.writeAttribute("packages", Integer.toString(packages.size()));
+        xml.writeCharacters("\n");
+
+        for (final RPMPackage pkg : packages) {
+            final RPMHeader header = pkg.getHeader();
+            writePackageStart(xml, pkg);
+            final List<String> files = header.getFiles();
+            for (int i = 0; i < files.size(); i++) {
+                writeFile(xml, files.get(i), header.getFileType(i));
+            }
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+        }
+
+        xml.writeEndElement();
+    }
+
+    private void writeOther(final XMLStreamWriter xml, final List<RPMPackage> packages) throws XMLStreamException {
+        xml.writeStartElement("otherdata");
+        xml.writeDefaultNamespace(NS_OTHER);
+        xml.writeAttribute("packages", Integer.toString(packages.size()));
+        xml.writeCharacters("\n");
+
+        for (final RPMPackage pkg : packages) {
+            writePackageStart(xml, pkg);
+            for (final RPMHeader.Changelog changelog : pkg.getHeader().getChangelogs()) {
+                xml.writeStartElement("changelog");
+                xml.writeAttribute("author", sanitize(changelog.getAuthor()));
+                xml.writeAttribute("date", Long.toString(changelog.getTime()));
+                xml.writeCharacters(sanitize(changelog.getText()));
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+        }
+
+        xml.writeEndElement();
+    }
+
+    private void writePrestodelta(final XMLStreamWriter xml, final List<DeltaRpmGenerator.DeltaRpm> deltas) throws XMLStreamException {
+        xml.writeStartElement("prestodelta");
+        RPMPackage current = null;
+        for (final DeltaRpmGenerator.DeltaRpm delta : deltas) {
+            if (delta.getNewPackage() != current) {
+                if (current != null) {
+                    xml.writeCharacters("\n  ");
+                    xml.writeEndElement();
+                }
+                current = delta.getNewPackage();
+                final RPMHeader header = current.getHeader();
+                xml.writeCharacters("\n  ");
+                xml.writeStartElement("newpackage");
+                xml.writeAttribute("name", header.getName());
+                xml.writeAttribute("epoch", header.getEpoch() == null ? "0" : header.getEpoch().toString());
+                xml.writeAttribute("version", header.getVersion());
+                xml.writeAttribute("release", header.getRelease());
+                xml.writeAttribute("arch", header.getArch());
+            }
+            xml.writeCharacters("\n    ");
+            xml.writeStartElement("delta");
+            xml.writeAttribute("oldepoch", Integer.toString(delta.getOldVersion().getEpoch()));
+            xml.writeAttribute("oldversion", delta.getOldVersion().getVersion());
+            xml.writeAttribute("oldrelease", delta.getOldVersion().getRelease());
+            xml.writeCharacters("\n      ");
+            element(xml, "filename", delta.getFilename());
+            xml.writeCharacters("\n      ");
+            element(xml, "sequence", delta.getSequence());
+            xml.writeCharacters("\n      ");
+            element(xml, "size", Long.toString(delta.getSize()));
+            xml.writeCharacters("\n      ");
+            xml.writeStartElement("checksum");
+            xml.writeAttribute("type", delta.getChecksumType());
+            xml.writeCharacters(delta.getChecksum());
+            xml.writeEndElement();
+            xml.writeCharacters("\n    ");
+            xml.writeEndElement();
+        }
+        if (current != null) {
+            xml.writeCharacters("\n  ");
+            xml.writeEndElement();
+        }
+        xml.writeCharacters("\n");
+        xml.writeEndElement();
+    }
+
+    private void writeRepomd(final Path staging, final List<RepomdEntry> entries) throws IOException {
+        final long now = System.currentTimeMillis() / 1000;
+        try (final OutputStream os = new BufferedOutputStream(Files.newOutputStream(staging.resolve("repomd.xml")))) {
+            final XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(os, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.writeStartElement("repomd");
+            xml.writeDefaultNamespace(NS_REPO);
+            xml.writeNamespace("rpm", NS_RPM);
+            xml.writeCharacters("\n  ");
+            element(xml, "revision", Long.toString(now));
+            for (final RepomdEntry entry : entries) {
+                xml.writeCharacters("\n  ");
+                xml.writeStartElement("data");
+                xml.writeAttribute("type", entry.getType());
+                xml.writeCharacters("\n    ");
+                xml.writeStartElement("checksum");
+                xml.writeAttribute("type", m_checksumType.getName());
+                xml.writeCharacters(entry.getChecksum());
+                xml.writeEndElement();
+                xml.writeCharacters("\n    ");
+                xml.writeStartElement("open-checksum");
+                xml.writeAttribute("type", m_checksumType.getName());
+                xml.writeCharacters(entry.getOpenChecksum());
+                xml.writeEndElement();
+                xml.writeCharacters("\n    ");
+                xml.writeEmptyElement("location");
+                xml.writeAttribute("href", entry.getLocation());
+                xml.writeCharacters("\n    ");
+                element(xml, "timestamp", Long.toString(now));
+                xml.writeCharacters("\n    ");
+                element(xml, "size", Long.toString(entry.getSize()));
+                xml.writeCharacters("\n    ");
+                element(xml, "open-size", Long.toString(entry.getOpenSize()));
+                xml.writeCharacters("\n  ");
+                xml.writeEndElement();
+            }
+            xml.writeCharacters("\n");
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.writeCharacters("\n");
+            xml.close();
+        } catch (final XMLStreamException e) {
+            throw new IOException("Failed to write repomd.xml for " + m_root, e);
+        }
+    }
+
+    /**
+     * Swap the staged repodata into place, keeping the old copy until the new one is live.
+     */
+    private void publish(final Path staging) throws IOException {
+        final Path repodata = m_root.resolve(REPODATA);
+        final Path olddata = m_root.resolve(OLDDATA);
+        FileUtils.deleteDirectory(olddata.toFile());
+        if (Files.exists(repodata)) {
+            Files.move(repodata, olddata, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(staging, repodata, StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.deleteDirectory(olddata.toFile());
+    }
+
+    private static void writePackageStart(final XMLStreamWriter xml, final RPMPackage pkg) throws XMLStreamException {
+        final RPMHeader header = pkg.getHeader();
+        xml.writeStartElement("package");
+        xml.writeAttribute("pkgid", pkg.getChecksum());
+        xml.writeAttribute("name", header.getName());
+        xml.writeAttribute("arch", header.getArch());
+        writeVersion(xml, header);
+    }
+
+    private static void writeVersion(final XMLStreamWriter xml, final RPMHeader header) throws XMLStreamException {
+        xml.writeEmptyElement("version");
+        xml.writeAttribute("epoch", header.getEpoch() == null ? "0" : header.getEpoch().toString());
+        xml.writeAttribute("ver", header.getVersion());
+        xml.writeAttribute("rel", header.getRelease());
+    }
+
+    private static void writeDependencies(final XMLStreamWriter xml, final String type, final List<RPMDependency> dependencies, final boolean requires) throws XMLStreamException {
+        final Set<RPMDependency> unique = new LinkedHashSet<>();
+        for (final RPMDependency dep : dependencies) {
+            if (requires && dep.getName().startsWith("rpmlib(")) {
+                continue;
+            }
+            unique.add(dep);
+        }
+        if (unique.isEmpty()) {
+            return;
+        }
+
+        xml.writeStartElement("rpm", type, NS_RPM);
+        for (final RPMDependency dep : unique) {
+            xml.writeEmptyElement("rpm", "entry", NS_RPM);
+            xml.writeAttribute("name", dep.getName());
+            final String comparison = dep.getComparison();
+            if (comparison != null) {
+                xml.writeAttribute("flags", comparison);
+                xml.writeAttribute("epoch", dep.getEpoch() == null ? "0" : dep.getEpoch());
+                xml.writeAttribute("ver", dep.getVersion());
+                if (dep.getRelease() != null) {
+                    xml.writeAttribute("rel", dep.getRelease());
+                }
+            }
+            if (requires && dep.isPre()) {
+                xml.writeAttribute("pre", "1");
+            }
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeFile(final XMLStreamWriter xml, final String file, final RPMHeader.FileType type) throws XMLStreamException {
+        xml.writeStartElement("file");
+        if (type == RPMHeader.FileType.DIR) {
+            xml.writeAttribute("type", "dir");
+        } else if (type == RPMHeader.FileType.GHOST) {
+            xml.writeAttribute("type", "ghost");
+        }
+        xml.writeCharacters(sanitize(file));
+        xml.writeEndElement();
+    }
+
+    private static void element(final XMLStreamWriter xml, final String name, final String text) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(sanitize(text));
+        xml.writeEndElement();
+    }
+
+    private static void rpmElement(final XMLStreamWriter xml, final String name, final String text) throws XMLStreamException {
+        xml.writeStartElement("rpm", name, NS_RPM);
+        xml.writeCharacters(sanitize(text));
+        xml.writeEndElement();
+    }
+
+    /**
+     * Strip characters that are not allowed in XML 1.0 documents.
+     */
+    static String sanitize(final String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            final boolean valid = c == '\t' || c == '\n' || c == '\r' || (c >= 0x20 && c <= 0xfffd);
+            if (!valid) {
+                if (sb == null) {
+                    sb = new StringBuilder(text.length()).append(text, 0, i);
+                }
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? text : sb.toString();
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating repodata.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static final class RepomdEntry {
+        private final String m_type;
+        private final String m_location;
+        private final String m_checksum;
+        private final long m_size;
+        private final String m_openChecksum;
+        private final long m_openSize;
+
+        RepomdEntry(final String type, final String location, final String checksum, final long size, final String openChecksum, final long openSize) {
+            m_type = type;
+            m_location = location;
+            m_checksum = checksum;
+            m_size = size;
+            m_openChecksum = openChecksum;
+            m_openSize = openSize;
+        }
+
+        String getType() {
+            return m_type;
+        }
+
+        String getLocation() {
+            return m_location;
+        }
+
+        String getChecksum() {
+            return m_checksum;
+        }
+
+        long getSize() {
+            return m_size;
+        }
+
+        String getOpenChecksum() {
+            return m_openChecksum;
+        }
+
+        long getOpenSize() {
+            return m_openSize;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.api.RepositoryTransaction;
+
+public class AptRepositoryTest {
+    private static final Path BASE = Paths.get("target/repositories/AptRepositoryTest").toAbsolutePath();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/deb"), BASE.toFile());
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testReadControl() throws Exception {
+        final Map<String,String> control = DebControlReader.read(BASE.resolve("dists/nightly-1.11/main/binary-i386/iplike-pgsql84_1.0.8-1_i386.deb"));
+        assertEquals("iplike-pgsql84", control.get("Package"));
+        assertEquals("1.0.8-1", control.get("Version"));
+        assertEquals("i386", control.get("Architecture"));
+        assertEquals("postgresql-8.4 (>= 8.4.1), libc6 (>= 2.7-1), debconf (>= 0.5) | debconf-2.0", control.get("Depends"));
+        assertEquals("PostgreSQL complex IP Address text field query\n PostgreSQL function for doing complex IP address queries\n on a text field.", control.get("Description"));
+
+        final Map<String,String> grafana = DebControlReader.read(BASE.resolve("grafana-opennms-plugin_1.1.0_all.deb"));
+        assertEquals("grafana-opennms-plugin", grafana.get("Package"));
+        assertEquals("http://opennms.org", grafana.get("Homepage"));
+    }
+
+    @Test
+    public void testReadCorruptControl() throws Exception {
+        final Path deb = BASE.resolve("dists/nightly-1.11/main/binary-i386/iplike-pgsql84_1.0.8-1_i386.deb");
+        final byte[] good = Files.readAllBytes(deb);
+        // the size field of the first ar member header
+        for (final String size : new String[] { "-5        ", "9999999999" }) {
+            final byte[] bad = good.clone();
+            System.arraycopy(size.getBytes(StandardCharsets.US_ASCII), 0, bad, 8 + 48, 10);
+            Files.write(deb, bad);
+            assertUnreadable(deb);
+        }
+
+        // an uncompressed control.tar whose first entry (the control file, or one before it) has a negative size
+        final byte[] tar = new byte[512];
+        System.arraycopy("-1".getBytes(StandardCharsets.US_ASCII), 0, tar, 124, 2);
+        tar[156] = '0';
+        for (final String name : new String[] { "./control", "./md5sums" }) {
+            System.arraycopy(name.getBytes(StandardCharsets.US_ASCII), 0, tar, 0, name.length());
+            try (final OutputStream os = Files.newOutputStream(deb)) {
+                os.write("!<arch>\n".getBytes(StandardCharsets.US_ASCII));
+                os.write(String.format("%-16s%-12s%-6s%-6s%-8s%-10d`\n", "control.tar/", "0", "0", "0", "100644", tar.length).getBytes(StandardCharsets.US_ASCII));
+                os.write(tar);
+            }
+            assertUnreadable(deb);
+        }
+    }
+
+    private static void assertUnreadable(final Path deb) {
+        try {
+            DebControlReader.read(deb);
+            fail("control data should not be readable from " + deb);
+        } catch (final RepositoryException e) {
+            // expected: the package is skipped, not the whole index
+        }
+    }
+
+    @Test
+    public void testPackages() throws Exception {
+        final AptRepository repo = new AptRepository(BASE, "nightly-1.11");
+        assertEquals(BASE.resolve("dists/nightly-1.11"), repo.getRoot());
+
+        final PackageSet<DebPackage> packages = repo.getPackages();
+        assertEquals(3, packages.size());
+        final DebPackage opennms = packages.findNewestByNameAndArch("opennms", "all");
+        assertEquals("1.11.0", opennms.getVersion().getVersion());
+        assertEquals("0.20111216.14", opennms.getVersion().getRelease());
+        assertEquals("dists/nightly-1.11/main/binary-all/opennms_1.11.0-0.20111216.14_all.deb", opennms.getFilename());
+        assertEquals(Files.size(opennms.getPath()), opennms.getSize());
+        // listing does not checksum, or save anything in the repository
+        assertNull(opennms.getSHA256());
+        assertFalse(Files.exists(repo.getRoot().resolve(PackageMetadataCache.CACHE_DIR)));
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        final AptRepository repo = new AptRepository(BASE, "nightly-1.11");
+        final String keyId = "foo@bar.com";
+        final String passphrase = "12345";
+        final PGPSecretKey key = GPGUtils.generateKey(keyId, passphrase);
+        repo.index(new GPGInfo(keyId, passphrase, key));
+
+        final Path root = repo.getRoot();
+        assertTrue(Files.exists(root.resolve("Release.gpg")));
+
+        final List<Map<String,String>> i386 = readPackages(root.resolve("main/binary-i386/Packages"));
+        assertEquals(2, i386.size());
+        assertEquals("iplike-pgsql84", i386.get(0).get("Package"));
+        assertEquals("dists/nightly-1.11/main/binary-i386/iplike-pgsql84_1.0.8-1_i386.deb", i386.get(0).get("Filename"));
+        assertEquals(Long.toString(Files.size(BASE.resolve(i386.get(0).get("Filename")))), i386.get(0).get("Size"));
+        assertEquals(Digests.digest(BASE.resolve(i386.get(0).get("Filename")), "MD5"), i386.get(0).get("MD5sum"));
+        assertEquals("opennms", i386.get(1).get("Package"));
+        assertEquals("dists/nightly-1.11/main/binary-all/opennms_1.11.0-0.20111216.14_all.deb", i386.get(1).get("Filename"));
+
+        final List<Map<String,String>> amd64 = readPackages(root.resolve("main/binary-amd64/Packages"));
+        assertEquals(2, amd64.size());
+        assertEquals("amd64", amd64.get(0).get("Architecture"));
+
+        final List<Map<String,String>> armhf = readPackages(root.resolve("main/binary-armhf/Packages"));
+        assertEquals(1, armhf.size());
+        assertEquals("opennms", armhf.get(0).get("Package"));
+
+        // the gzipped copy has the same content
+        try (final InputStream is = new GZIPInputStream(Files.newInputStream(root.resolve("main/binary-i386/Packages.gz")))) {
+            assertEquals(new String(Files.readAllBytes(root.resolve("main/binary-i386/Packages")), StandardCharsets.UTF_8), IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+
+        final String release = new String(Files.readAllBytes(root.resolve("Release")), StandardCharsets.UTF_8);
+        final Map<String,String> fields = DebControlReader.parseControl(release);
+        assertEquals("OpenNMS", fields.get("Origin"));
+        assertEquals("OpenNMS Repository - nightly-1.11", fields.get("Label"));
+        assertEquals("nightly-1.11", fields.get("Suite"));
+        assertEquals("amd64 i386 armhf", fields.get("Architectures"));
+        assertEquals("main", fields.get("Components"));
+
+        final Path packages = root.resolve("main/binary-i386/Packages.gz");
+        final String line = " " + Digests.digest(packages, "SHA-256") + " " + String.format("%16d", Files.size(packages)) + " main/binary-i386/Packages.gz";
+        assertTrue(release, fields.get("SHA256").contains(line));
+        assertTrue(fields.get("MD5Sum").contains(" main/source/Sources.gz"));
+
+        // no symlink farm
+        assertFalse(Files.exists(root.resolve("main/binary-i386/opennms_1.11.0-0.20111216.14_all.deb")));
+
+        // published files are world-readable
+        for (final String file : new String[] { "Release", "Release.gpg", "main/binary-i386/Packages", "main/source/Sources" }) {
+            assertTrue(file, Files.getPosixFilePermissions(root.resolve(file)).contains(PosixFilePermission.OTHERS_READ));
+        }
+    }
+
+    @Test
+    public void testSuiteAndTransaction() throws Exception {
+        final AptRepository repo = new AptRepository(BASE, "opennms-1.8");
+        Files.write(repo.getRoot().resolve(".suite"), "stable\n".getBytes(StandardCharsets.UTF_8));
+        repo.index(null);
+        assertEquals(1, readPackages(repo.getRoot().resolve("main/binary-amd64/Packages")).size());
+
+        try (final RepositoryTransaction tx = repo.begin()) {
+            final Path staging = tx.getRepository().getRoot();
+            FileUtils.copyFileToDirectory(BASE.resolve("dists/nightly-1.11/main/binary-amd64/iplike-pgsql84_1.0.8-1_amd64.deb").toFile(), staging.resolve("main/binary-amd64").toFile());
+            tx.getRepository().index(null);
+            final List<Map<String,String>> staged = readPackages(staging.resolve("main/binary-amd64/Packages"));
+            assertEquals(2, staged.size());
+            assertEquals("dists/opennms-1.8/main/binary-amd64/iplike-pgsql84_1.0.8-1_amd64.deb", staged.get(0).get("Filename"));
+            assertEquals(1, readPackages(repo.getRoot().resolve("main/binary-amd64/Packages")).size());
+            tx.commit();
+        }
+
+        assertEquals(2, readPackages(repo.getRoot().resolve("main/binary-amd64/Packages")).size());
+        final Map<String,String> fields = DebControlReader.parseControl(new String(Files.readAllBytes(repo.getRoot().resolve("Release")), StandardCharsets.UTF_8));
+        assertEquals("stable", fields.get("Suite"));
+        assertEquals("opennms-1.8", fields.get("Codename"));
+    }
+
+    @Test
+    public void testCompressions() throws Exception {
+        final AptRepository repo = new AptRepository(BASE, "nightly-1.11");
+        repo.index(null);
+        final Path dir = repo.getRoot().resolve("main/binary-i386");
+        assertTrue(Files.exists(dir.resolve("Packages.gz")));
+
+        repo.setCompressions(Compression.XZ, Compression.ZSTD);
+        repo.index(null);
+        assertFalse(Files.exists(dir.resolve("Packages.gz")));
+
+        final String plain = new String(Files.readAllBytes(dir.resolve("Packages")), StandardCharsets.UTF_8);
+        final Map<String,String> fields = DebControlReader.parseControl(new String(Files.readAllBytes(repo.getRoot().resolve("Release")), StandardCharsets.UTF_8));
+        for (final Compression compression : repo.getCompressions()) {
+            final Path file = dir.resolve("Packages." + compression.getExtension());
+            try (final InputStream is = compression.decompress(Files.newInputStream(file))) {
+                assertEquals(plain, IOUtils.toString(is, StandardCharsets.UTF_8));
+            }
+            assertTrue(fields.get("SHA256").contains(" " + Digests.digest(file, "SHA-256") + " " + String.format("%16d", Files.size(file)) + " main/binary-i386/" + file.getFileName()));
+            assertTrue(file.toString(), Files.getPosixFilePermissions(file).contains(PosixFilePermission.OTHERS_READ));
+        }
+        assertFalse(fields.get("SHA256").contains("Packages.gz"));
+    }
+
+    private static List<Map<String,String>> readPackages(final Path file) throws IOException {
+        final List<Map<String,String>> ret = new ArrayList<>();
+        for (final String stanza : new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n\n")) {
+            if (!stanza.trim().isEmpty()) {
+                ret.add(DebControlReader.parseControl(stanza));
+            }
+        }
+        return ret;
+    }
+}
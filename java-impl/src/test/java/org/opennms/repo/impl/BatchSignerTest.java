@@ -0,0 +1,108 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.impl.BatchSigner.Outcome;
+
+public class BatchSignerTest {
+    private static final Path ROOT = Paths.get("target/repositories/BatchSignerTest").toAbsolutePath();
+    private static final String KEY_PASSPHRASE = "12345";
+
+    private final List<Path> m_files = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        Files.createDirectories(ROOT);
+        for (int i = 0; i < 20; i++) {
+            m_files.add(Files.write(ROOT.resolve("file-" + i + ".txt"), ("file " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(ROOT.toFile());
+    }
+
+    @Test
+    public void testSignAll() throws Exception {
+        final GPGInfo gpginfo = new GPGInfo("alice@example.com", KEY_PASSPHRASE, GPGUtils.generateKey("alice@example.com", KEY_PASSPHRASE));
+        final AtomicInteger progress = new AtomicInteger();
+        final List<Integer> totals = Collections.synchronizedList(new ArrayList<>());
+
+        try (final BatchSigner signer = new BatchSigner(gpginfo, 4)) {
+            final BatchSigner.Report report = signer.signAll(m_files, (file, outcome, completed, total) -> {
+                progress.incrementAndGet();
+                totals.add(total);
+            });
+            assertEquals(20, report.get(Outcome.SIGNED).size());
+            assertEquals(20, progress.get());
+            assertEquals(Collections.nCopies(20, 20), totals);
+            for (final Path file : m_files) {
+                final Path signature = BatchSigner.getSignatureFile(file);
+                assertTrue(new String(Files.readAllBytes(signature), StandardCharsets.UTF_8).startsWith("-----BEGIN PGP SIGNATURE-----"));
+                assertTrue(signer.hasValidSignature(file, signature));
+            }
+
+            // nothing has changed, so nothing is re-signed
+            assertEquals(20, signer.signAll(m_files, null).get(Outcome.SKIPPED).size());
+
+            // a modified file no longer matches its signature
+            Files.write(m_files.get(3), "changed\n".getBytes(StandardCharsets.UTF_8));
+            final BatchSigner.Report again = signer.signAll(m_files, null);
+            assertEquals(Collections.singletonList(m_files.get(3)), again.get(Outcome.SIGNED));
+            assertEquals(19, again.get(Outcome.SKIPPED).size());
+        }
+    }
+
+    @Test
+    public void testKeyRotation() throws Exception {
+        final GPGInfo oldKey = new GPGInfo("old@example.com", KEY_PASSPHRASE, GPGUtils.generateKey("old@example.com", KEY_PASSPHRASE));
+        final GPGInfo newKey = new GPGInfo("new@example.com", KEY_PASSPHRASE, GPGUtils.generateKey("new@example.com", KEY_PASSPHRASE));
+
+        try (final BatchSigner signer = new BatchSigner(oldKey, 2, false)) {
+            assertEquals(20, signer.signAll(m_files, null).get(Outcome.SIGNED).size());
+        }
+        try (final BatchSigner signer = new BatchSigner(newKey, 2)) {
+            assertFalse(signer.hasValidSignature(m_files.get(0), BatchSigner.getSignatureFile(m_files.get(0))));
+            assertEquals(20, signer.signAll(m_files, null).get(Outcome.SIGNED).size());
+            assertTrue(signer.hasValidSignature(m_files.get(0), BatchSigner.getSignatureFile(m_files.get(0))));
+        }
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        final GPGInfo gpginfo = new GPGInfo("alice@example.com", KEY_PASSPHRASE, GPGUtils.generateKey("alice@example.com", KEY_PASSPHRASE));
+        final List<Path> files = new ArrayList<>(m_files);
+        files.add(ROOT.resolve("missing.txt"));
+        // garbage where a signature should be is just re-signed
+        Files.write(BatchSigner.getSignatureFile(m_files.get(0)), "not a signature".getBytes(StandardCharsets.UTF_8));
+
+        final List<Outcome> outcomes = Collections.synchronizedList(new ArrayList<>());
+        try (final BatchSigner signer = new BatchSigner(gpginfo, 4)) {
+            final BatchSigner.Report report = signer.signAll(files, (file, outcome, completed, total) -> outcomes.add(outcome));
+            assertEquals(20, report.get(Outcome.SIGNED).size());
+            assertEquals(Collections.singletonList(ROOT.resolve("missing.txt")), report.get(Outcome.FAILED));
+            assertTrue(report.getFailures().containsKey(ROOT.resolve("missing.txt")));
+            assertEquals(21, outcomes.size());
+            assertTrue(outcomes.contains(Outcome.FAILED));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCompressorTest {
+    private static final Path BASE = Paths.get("target/repositories/BlockCompressorTest").toAbsolutePath();
+
+    private ForkJoinPool m_pool;
+    private Path m_source;
+    private byte[] m_data;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        Files.createDirectories(BASE);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<file>/usr/share/opennms/lib/opennms-").append(i % 977).append(".jar</file>\n");
+        }
+        m_data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        m_source = BASE.resolve("filelists.xml");
+        Files.write(m_source, m_data);
+        m_pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_pool != null) {
+            m_pool.shutdown();
+        }
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (final Compression compression : Compression.values()) {
+            // one stream, and many blocks (including a short last one)
+            for (final int blockSize : new int[] { BlockCompressor.DEFAULT_BLOCK_SIZE, 64 * 1024 }) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new BlockCompressor(m_pool, blockSize).compress(m_source, compression, out);
+                assertTrue(compression + " should compress", out.size() < m_data.length / 4);
+                try (final InputStream is = compression.decompress(new ByteArrayInputStream(out.toByteArray()))) {
+                    assertArrayEquals(compression + "/" + blockSize, m_data, IOUtils.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExactMultipleOfBlockSize() throws Exception {
+        final int blockSize = m_data.length / 4;
+        Files.write(m_source, Arrays.copyOf(m_data, blockSize * 4));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCompressor(m_pool, blockSize).compress(m_source, Compression.GZIP, out);
+        try (final InputStream is = Compression.GZIP.decompress(new ByteArrayInputStream(out.toByteArray()))) {
+            assertArrayEquals(Files.readAllBytes(m_source), IOUtils.toByteArray(is));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CommandBuilderTest {
+    @Test
+    public void testChattyCommand() throws Exception {
+        // far more than a pipe buffer on both streams, before exiting
+        final AtomicLong out = new AtomicLong();
+        final AtomicLong err = new AtomicLong();
+        final int exitValue = CommandBuilder.builder("/bin/sh")
+                .arg("-c", "yes | head -n 200000; yes | head -n 100000 >&2; exit 3")
+                .stdout(line -> out.incrementAndGet())
+                .stderr(line -> err.incrementAndGet())
+                .timeout(1, TimeUnit.MINUTES)
+                .run();
+        assertEquals(3, exitValue);
+        assertEquals(200000, out.get());
+        assertEquals(100000, err.get());
+    }
+
+    @Test
+    public void testEnvironment() throws Exception {
+        final List<String> output = Collections.synchronizedList(new ArrayList<>());
+        assertEquals(0, CommandBuilder.builder("/bin/sh").arg("-c", "echo \"$REPO_TEST\"; pwd").env("REPO_TEST", "hello world")
+                .directory(Paths.get("/tmp")).stdout(output::add).run());
+        assertEquals("hello world", output.get(0));
+        assertEquals("/tmp", output.get(1));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final long start = System.nanoTime();
+        try {
+            CommandBuilder.builder("/bin/sleep").arg("30").timeout(200, TimeUnit.MILLISECONDS).run();
+            fail("sleep should have timed out");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("did not finish"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+    }
+}
@@ -0,0 +1,100 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Ports t/OpenNMS-Release-DebVersion.t, plus dpkg edge cases.
+ */
+public class DebVersionTest {
+    private final DebVersion m_oneOhOne = new DebVersion(0, "1.0", "1");
+    private final DebVersion m_oneOhTwo = new DebVersion(0, "1.0", "2");
+    private final DebVersion m_twoOhOne = new DebVersion(0, "2.0", "1");
+    private final DebVersion m_twoOhTwo = new DebVersion(0, "2.0", "2");
+    private final DebVersion m_twoOhOneOne = new DebVersion(0, "2.0.1", "1");
+    private final DebVersion m_epochOne = new DebVersion(1, "1.0", "0");
+
+    @Test
+    public void testBasics() {
+        assertEquals("1.0", m_oneOhOne.getVersion());
+        assertEquals("1", m_oneOhOne.getRelease());
+        assertEquals(0, m_oneOhOne.getEpoch());
+        assertEquals("1.0-1", m_oneOhOne.toString());
+        assertEquals(m_epochOne, DebVersion.parse("1:1.0-0"));
+        assertEquals("1.0-beta", DebVersion.parse("1.0-beta-2").getVersion());
+    }
+
+    @Test
+    public void testCompare() {
+        assertCompare(-1, m_oneOhOne, m_oneOhTwo);
+        assertCompare(0, m_oneOhOne, m_oneOhOne);
+        assertCompare(1, m_twoOhOne, m_oneOhOne);
+        assertCompare(1, m_twoOhOneOne, m_twoOhOne);
+        assertCompare(1, m_twoOhOneOne, m_twoOhTwo);
+        assertCompare(1, m_epochOne, m_twoOhOneOne);
+
+        final DebVersion release = new DebVersion(0, "1.9.93", "1");
+        final DebVersion beta = new DebVersion(0, "1.9.93", "0.20111220.1");
+        final DebVersion beta2 = new DebVersion(0, "1.9.93", "0.20111220.2");
+        final DebVersion epoch = new DebVersion(1, "1.9.93", "0");
+        assertCompare(1, release, beta);
+        assertCompare(1, release, beta2);
+        assertCompare(-1, beta, beta2);
+        assertTrue(release.equals(release));
+        assertTrue(release.isNewerThan(beta));
+        assertTrue(beta.isOlderThan(beta2));
+        assertTrue(epoch.isNewerThan(release));
+        assertTrue(epoch.isNewerThan(beta2));
+        assertFalse(beta2.isNewerThan(epoch));
+
+        final DebVersion oneEightEighteen = new DebVersion(0, "1.8.18", "0.20120117.66");
+        final DebVersion oneTenTwo = new DebVersion(0, "1.10.2", "0.20120430.165");
+        assertTrue(oneTenTwo.isNewerThan(oneEightEighteen));
+    }
+
+    @Test
+    public void testVerrevcmp() {
+        assertVerrevcmp(0, "1.0", "1.0");
+        assertVerrevcmp(0, "1.0", "1.00");
+        assertVerrevcmp(0, "", "0");
+        assertVerrevcmp(-1, "1.0~rc1", "1.0");
+        assertVerrevcmp(-1, "1.0~~", "1.0~");
+        assertVerrevcmp(-1, "1.0~", "1.0");
+        assertVerrevcmp(1, "1.0+b1", "1.0");
+        assertVerrevcmp(1, "1.0a", "1.0");
+        assertVerrevcmp(1, "1.0.", "1.0");
+        assertVerrevcmp(-1, "1.0a", "1.0+");
+        assertVerrevcmp(-1, "1.0a", "1.0.1");
+        assertVerrevcmp(1, "a", "1");
+        assertVerrevcmp(1, "1.10", "1.9");
+    }
+
+    @Test
+    public void testSortKey() {
+        final String[] segments = { "0", "1", "01", "10", "2", "a", "b", "rc", "~", "+", ".", "-" };
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final DebVersion a = new DebVersion(random.nextInt(2), RPMVersionTest.randomString(random, segments), RPMVersionTest.randomString(random, segments));
+            final DebVersion b = new DebVersion(random.nextInt(2), RPMVersionTest.randomString(random, segments), RPMVersionTest.randomString(random, segments));
+            assertEquals(a + " <=> " + b, Integer.signum(a.compareTo(b)), Integer.signum(SortKeys.compare(a.getSortKey(), b.getSortKey())));
+        }
+    }
+
+    private static void assertCompare(final int expected, final DebVersion a, final DebVersion b) {
+        assertEquals(a + " <=> " + b, expected, Integer.signum(a.compareTo(b)));
+        assertEquals(a + " <=> " + b + " (sort key)", expected, Integer.signum(SortKeys.compare(a.getSortKey(), b.getSortKey())));
+    }
+
+    private static void assertVerrevcmp(final int expected, final String a, final String b) {
+        assertEquals(a + " <=> " + b, expected, Integer.signum(DebVersion.verrevcmp(a, b)));
+        assertEquals(b + " <=> " + a, -expected, Integer.signum(DebVersion.verrevcmp(b, a)));
+        final DebVersion va = new DebVersion(0, a, null);
+        final DebVersion vb = new DebVersion(0, b, null);
+        assertEquals(a + " <=> " + b + " (sort key)", expected, Integer.signum(SortKeys.compare(va.getSortKey(), vb.getSortKey())));
+    }
+}
@@ -0,0 +1,118 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.Deduplicator.Group;
+import org.opennms.repo.impl.Deduplicator.Result;
+
+public class DeduplicatorTest {
+    private static final Path BASE = Paths.get("target/repositories/DeduplicatorTest").toAbsolutePath();
+    private static final String I386 = "opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String X86_64 = "opennms/x86_64/iplike-1.0.7-1.x86_64.rpm";
+
+    private ForkJoinPool m_pool;
+    private FileHasher m_hasher;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        m_pool = new ForkJoinPool(2);
+        m_hasher = new FileHasher(2);
+        FileUtils.copyDirectory(new File("../t/packages/rpm"), BASE.resolve("rpm").toFile());
+        // a second release that got its own copies of the bleeding packages
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), BASE.resolve("rpm/copy/rhel5").toFile());
+        for (final String repo : new String[] { "stable/common", "stable/rhel5", "bleeding/common", "bleeding/rhel5", "copy/rhel5" }) {
+            Files.createDirectories(BASE.resolve("rpm").resolve(repo).resolve("repodata"));
+        }
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_hasher.close();
+        }
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    private static Path bleeding(final String path) {
+        return BASE.resolve("rpm/bleeding/rhel5").resolve(path);
+    }
+
+    private static Path copy(final String path) {
+        return BASE.resolve("rpm/copy/rhel5").resolve(path);
+    }
+
+    @Test
+    public void testFindDuplicates() throws Exception {
+        final List<Group> groups = new Deduplicator(BASE, m_hasher, m_pool).findDuplicates();
+        assertEquals(2, groups.size());
+        for (final Group group : groups) {
+            assertEquals(2, group.getCopies());
+            assertEquals(1, group.getDuplicates().size());
+            assertEquals(Digests.digest(BASE.resolve(group.getKept()), "SHA-256"), group.getSha256());
+        }
+        // nothing is linked yet, and nothing is saved
+        assertFalse(Files.isSameFile(bleeding(I386), copy(I386)));
+        assertFalse(Files.exists(BASE.resolve(PackageMetadataCache.CACHE_DIR)));
+        assertFalse(Files.exists(BASE.resolve("rpm/bleeding").resolve(PackageMetadataCache.CACHE_DIR)));
+    }
+
+    @Test
+    public void testDeduplicate() throws Exception {
+        final byte[] rpm = Files.readAllBytes(copy(I386));
+        final long size = Files.size(bleeding(I386)) + Files.size(bleeding(X86_64));
+
+        // only files sharing a size with another file are checksummed
+        final Deduplicator dedupe = new Deduplicator(BASE, m_hasher, m_pool);
+        final Result first = dedupe.deduplicate();
+        assertEquals(7, first.getFiles());
+        assertEquals(4, first.getHashed());
+        assertEquals(2, first.getGroups().size());
+        assertEquals(2, first.getLinked());
+        assertEquals(size, first.getBytesSaved());
+        assertTrue(Files.isSameFile(bleeding(I386), copy(I386)));
+        assertTrue(Files.isSameFile(bleeding(X86_64), copy(X86_64)));
+        assertArrayEquals(rpm, Files.readAllBytes(copy(I386)));
+        assertTrue(Files.exists(dedupe.getIndexFile()));
+
+        // a new run (with a cold hasher) reads nothing it has seen before
+        final Result second = new Deduplicator(BASE, new FileHasher(1), m_pool).deduplicate();
+        assertEquals(0, second.getHashed());
+        assertEquals(0, second.getGroups().size());
+        assertEquals(0, second.getLinked());
+
+        // another copy is linked to the existing pair; a file that merely has the same size is not
+        final Path another = BASE.resolve("rpm/stable/rhel5/opennms/i386/iplike-1.0.7-1.i386.rpm");
+        final Path changed = BASE.resolve("rpm/stable/rhel5/opennms/i386/iplike-1.0.7-2.i386.rpm");
+        Files.write(another, rpm);
+        final byte[] modified = rpm.clone();
+        modified[modified.length - 1] ^= 1;
+        Files.write(changed, modified);
+
+        final Result third = new Deduplicator(BASE, new FileHasher(1), m_pool).deduplicate();
+        assertEquals(2, third.getHashed());
+        assertEquals(1, third.getLinked());
+        assertEquals(rpm.length, third.getBytesSaved());
+        assertEquals("rpm/bleeding/rhel5/" + I386, third.getGroups().get(0).getKept());
+        assertTrue(Files.isSameFile(bleeding(I386), another));
+        assertFalse(Files.isSameFile(bleeding(I386), changed));
+        assertArrayEquals(modified, Files.readAllBytes(changed));
+        assertEquals(3, LinkUtils.getLinkCount(bleeding(I386)));
+    }
+}
@@ -0,0 +1,135 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.YumRepodataGenerator.ChecksumType;
+
+public class DeltaRpmGeneratorTest {
+    private static final Path BASE = Paths.get("target/repositories/DeltaRpmGeneratorTest").toAbsolutePath();
+    private static final Path BLEEDING = BASE.resolve("bleeding/common");
+    private static final Path STABLE = BASE.resolve("stable/common");
+
+    private final AtomicInteger m_builds = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/common"), BLEEDING.toFile());
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable/common"), STABLE.toFile());
+        Files.createDirectories(BASE.resolve("obsolete/rhel5"));
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    private DeltaRpmGenerator newGenerator() {
+        final DeltaRpmGenerator deltas = new DeltaRpmGenerator(BLEEDING, DeltaRpmGenerator.findOldPackageDirs(BLEEDING));
+        // makedeltarpm is not usually installed on build machines
+        deltas.setBuilder((oldRpm, newRpm, delta) -> {
+            m_builds.incrementAndGet();
+            Files.write(delta, ("delta from " + oldRpm.getFileName() + " to " + newRpm.getFileName()).getBytes(StandardCharsets.UTF_8));
+            return "opennms-1.8.16-1-0123456789abcdef";
+        });
+        return deltas;
+    }
+
+    @Test
+    public void testFindOldPackageDirs() throws Exception {
+        assertEquals(Collections.singletonList(STABLE), DeltaRpmGenerator.findOldPackageDirs(BLEEDING));
+        assertEquals(Collections.emptyList(), DeltaRpmGenerator.findOldPackageDirs(STABLE));
+        assertEquals(Collections.singletonList(BASE.resolve("obsolete/rhel5")), DeltaRpmGenerator.findOldPackageDirs(BASE.resolve("branches/foo/rhel5")));
+    }
+
+    @Test
+    public void testPrestodelta() throws Exception {
+        final YumRepodataGenerator generator = new YumRepodataGenerator(BLEEDING);
+        generator.setDeltaGenerator(newGenerator());
+        generator.generate();
+
+        assertEquals(1, m_builds.get());
+        final Path drpm = BLEEDING.resolve("drpms/opennms-1.8.16-1_1.11.0-0.20111220.1.noarch.drpm");
+        assertTrue(Files.exists(drpm));
+
+        final String repomd = new String(Files.readAllBytes(BLEEDING.resolve("repodata/repomd.xml")), StandardCharsets.UTF_8);
+        assertTrue(repomd, repomd.contains("<data type=\"prestodelta\">"));
+
+        final String prestodelta = readMetadata("prestodelta");
+        assertTrue(prestodelta, prestodelta.contains("<newpackage name=\"opennms\" epoch=\"0\" version=\"1.11.0\" release=\"0.20111220.1\" arch=\"noarch\">"));
+        assertTrue(prestodelta, prestodelta.contains("<delta oldepoch=\"0\" oldversion=\"1.8.16\" oldrelease=\"1\">"));
+        assertTrue(prestodelta, prestodelta.contains("<filename>drpms/opennms-1.8.16-1_1.11.0-0.20111220.1.noarch.drpm</filename>"));
+        assertTrue(prestodelta, prestodelta.contains("<sequence>opennms-1.8.16-1-0123456789abcdef</sequence>"));
+        assertTrue(prestodelta, prestodelta.contains("<size>" + Files.size(drpm) + "</size>"));
+        assertTrue(prestodelta, prestodelta.contains("<checksum type=\"sha\">" + Digests.digest(drpm, "SHA-1") + "</checksum>"));
+
+        // the delta is reused as long as neither package changes
+        generator.generate();
+        assertEquals(1, m_builds.get());
+        assertTrue(readMetadata("prestodelta").contains("<sequence>opennms-1.8.16-1-0123456789abcdef</sequence>"));
+
+        final Path oldRpm = STABLE.resolve("opennms/opennms-1.8.16-1.noarch.rpm");
+        Files.setLastModifiedTime(oldRpm, FileTime.fromMillis(Files.getLastModifiedTime(oldRpm).toMillis() + 5000));
+        generator.generate();
+        assertEquals(2, m_builds.get());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        final DeltaRpmGenerator deltas = newGenerator();
+        final List<RPMPackage> packages = new YumRepodataGenerator(BLEEDING).getPackages();
+
+        assertEquals(1, deltas.generate(packages, ChecksumType.SHA256).size());
+        assertTrue(Files.exists(BLEEDING.resolve("drpms/opennms-1.8.16-1_1.11.0-0.20111220.1.noarch.drpm")));
+
+        // too big: no deltas, and the old one is cleaned up
+        deltas.setMaxDeltaRpmSize(1024);
+        assertEquals(0, deltas.generate(packages, ChecksumType.SHA256).size());
+        try (final Stream<Path> stream = Files.list(BLEEDING.resolve("drpms"))) {
+            assertEquals(0, stream.count());
+        }
+
+        deltas.setMaxDeltaRpmSize(DeltaRpmGenerator.DEFAULT_MAX_DELTA_RPM_SIZE);
+        deltas.setNumDeltas(0);
+        assertEquals(0, deltas.generate(packages, ChecksumType.SHA256).size());
+
+        // the newest package never gets a delta against itself or anything newer
+        final DeltaRpmGenerator reversed = new DeltaRpmGenerator(STABLE, Arrays.asList(BLEEDING));
+        reversed.setBuilder((oldRpm, newRpm, delta) -> {
+            throw new AssertionError("should not build " + delta);
+        });
+        assertEquals(0, reversed.generate(new YumRepodataGenerator(STABLE).getPackages(), ChecksumType.SHA).size());
+        assertFalse(Files.exists(STABLE.resolve("drpms")));
+    }
+
+    private static String readMetadata(final String type) throws IOException {
+        try (final Stream<Path> stream = Files.list(BLEEDING.resolve("repodata"))) {
+            final Path file = stream.filter(p -> p.getFileName().toString().endsWith("-" + type + ".xml.gz")).findFirst().get();
+            try (final InputStream is = new GZIPInputStream(Files.newInputStream(file))) {
+                return IOUtils.toString(is, StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
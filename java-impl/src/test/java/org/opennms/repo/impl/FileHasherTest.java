@@ -0,0 +1,160 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileHasherTest {
+    private static final Path ROOT = Paths.get("target/repositories/FileHasherTest").toAbsolutePath();
+
+    private FileHasher m_hasher;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), ROOT.toFile());
+        m_hasher = new FileHasher(2);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_hasher != null) {
+            m_hasher.close();
+        }
+        FileUtils.deleteDirectory(ROOT.toFile());
+    }
+
+    @Test
+    public void testDigestAllMatchesDigest() throws Exception {
+        // big enough to be memory-mapped in more than one window
+        final Path large = ROOT.resolve("large.bin");
+        final byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (final OutputStream os = Files.newOutputStream(large)) {
+            for (int i = 0; i < 300; i++) {
+                os.write(block);
+            }
+        }
+        final Path small = Files.write(ROOT.resolve("small.txt"), "hello\n".getBytes("UTF-8"));
+        final Path empty = Files.write(ROOT.resolve("empty.txt"), new byte[0]);
+
+        for (final Path file : new Path[] { large, small, empty }) {
+            final String[] checksums = Digests.digestAll(file, "MD5", "SHA-1", "SHA-256");
+            assertEquals(Digests.digest(file, "MD5"), checksums[0]);
+            assertEquals(Digests.digest(file, "SHA-1"), checksums[1]);
+            assertEquals(Digests.digest(file, "SHA-256"), checksums[2]);
+        }
+        assertEquals("b1946ac92492d2347c6235b4d2611184", Digests.digestAll(small, "MD5")[0]);
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", Digests.digestAll(empty, "SHA-256")[0]);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        final Path file = Files.write(ROOT.resolve("file.txt"), "hello\n".getBytes("UTF-8"));
+
+        final FileChecksums first = m_hasher.hash(file, "MD5", "SHA-256");
+        assertEquals(1, m_hasher.getMisses());
+        assertEquals(6, first.getSize());
+        assertEquals(Digests.digest(file, "SHA-256"), first.get("SHA-256"));
+
+        assertSame(first, m_hasher.hash(file, "SHA-256"));
+        assertEquals(1, m_hasher.getHits());
+
+        // a new algorithm only computes the missing one, and keeps the others
+        final FileChecksums second = m_hasher.hash(file, "MD5", "SHA-1");
+        assertEquals(2, m_hasher.getMisses());
+        assertEquals(first.get("SHA-256"), second.get("SHA-256"));
+        assertEquals(Digests.digest(file, "SHA-1"), second.get("SHA-1"));
+        assertEquals(12, m_hasher.getBytesRead());
+
+        // a changed file is re-read
+        Files.write(file, "goodbye\n".getBytes("UTF-8"));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        final FileChecksums third = m_hasher.hash(file, "SHA-256");
+        assertNotSame(second, third);
+        assertEquals(Digests.digest(file, "SHA-256"), third.get("SHA-256"));
+        assertEquals(null, third.get("SHA-1"));
+        assertEquals(1, m_hasher.getCacheSize());
+
+        m_hasher.invalidate(file);
+        assertEquals(0, m_hasher.getCacheSize());
+    }
+
+    @Test
+    public void testHashAll() throws Exception {
+        final List<Path> files = new ArrayList<>();
+        try (final Stream<Path> stream = Files.walk(ROOT)) {
+            stream.filter(p -> p.toString().endsWith(".rpm")).sorted().forEach(files::add);
+        }
+        final Map<Path,FileChecksums> checksums = m_hasher.hashAll(files, "SHA-1", "SHA-256");
+        assertEquals(files, new ArrayList<>(checksums.keySet()));
+        for (final Path file : files) {
+            assertEquals(Digests.digest(file, "SHA-256"), checksums.get(file).get("SHA-256"));
+            assertEquals(Files.size(file), checksums.get(file).getSize());
+        }
+        m_hasher.hashAll(files, "SHA-256");
+        assertEquals(files.size(), m_hasher.getHits());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        try (final FileHasher hasher = new FileHasher(1, 2)) {
+            final Path a = Files.write(ROOT.resolve("a.txt"), "a\n".getBytes("UTF-8"));
+            final Path b = Files.write(ROOT.resolve("b.txt"), "bb\n".getBytes("UTF-8"));
+            final Path c = Files.write(ROOT.resolve("c.txt"), "ccc\n".getBytes("UTF-8"));
+            hasher.hash(a, "SHA-256");
+            hasher.hash(b, "SHA-256");
+            hasher.hash(a, "SHA-256");
+            hasher.hash(c, "SHA-256");
+            assertEquals(2, hasher.getCacheSize());
+
+            // b was the least recently used, so it is the one read again
+            hasher.hash(a, "SHA-256");
+            hasher.hash(c, "SHA-256");
+            assertEquals(3, hasher.getMisses());
+            hasher.hash(b, "SHA-256");
+            assertEquals(4, hasher.getMisses());
+        }
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception {
+        final Path file = ROOT.resolve("rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<FileChecksums>> tasks = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                tasks.add(executor.submit(() -> m_hasher.hash(file, "SHA-256")));
+            }
+            for (final Future<FileChecksums> task : tasks) {
+                assertEquals(Digests.digest(file, "SHA-256"), task.get().get("SHA-256"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // the file is read once, however many callers ask for it at the same time
+        assertEquals(1, m_hasher.getMisses());
+        assertEquals(31, m_hasher.getHits());
+    }
+}
@@ -1,27 +1,39 @@
 package org.opennms.repo.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.InputStream;
 import java.io.StringBufferInputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.io.IOUtils;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.junit.Test;
 import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.RepositoryException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,7 +44,7 @@ public class GPGUtilsTest {
     private static final String KEY_EMAIL = "bob@example.com";
     private static final String KEY_PASSPHRASE = "12345";
 
-    private static final String OPENNMS_PUBKEY_WITH_SIGNATURES = "-----BEGIN PGP PUBLIC KEY BLOCK-----\n" +
+    static final String OPENNMS_PUBKEY_WITH_SIGNATURES = "-----BEGIN PGP PUBLIC KEY BLOCK-----\n" +
             "Version: GnuPG v1\n" +
             "\n" +
             "mQGiBE8cWjoRBACVT11pxtPwvUeP3EbCG56IRnkUyEhdf0Daj9wGeFbY9I6nRr31\n" +
@@ -115,6 +127,7 @@ public class GPGUtilsTest {
 
         assertTrue(output.exists());
         assertTrue(output.length() > 0);
+        assertTrue(Files.getPosixFilePermissions(output.toPath()).contains(PosixFilePermission.OTHERS_READ));
 
         Collection<String> encrypted = Collections.emptyList();
         try (final InputStream is = new FileInputStream(output)) {
@@ -126,6 +139,66 @@ public class GPGUtilsTest {
     }
 
 
+    @Test
+    public void testSignFileFailure() throws Exception {
+        final PGPSecretKey key = GPGUtils.generateKey(KEY_EMAIL, KEY_PASSPHRASE);
+        final File input = File.createTempFile("encryptme", ".txt");
+        input.deleteOnExit();
+        final File output = new File(input.toString() + ".asc");
+
+        // no private key: signing fails, and says which file it was signing
+        try {
+            GPGUtils.detach_sign(input.toPath(), output.toPath(), new GPGInfo(KEY_EMAIL, key.getPublicKey()), false);
+            fail("signing without a private key should fail");
+        } catch (final RepositoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(input.toString()));
+        }
+        assertFalse(output.exists());
+        assertEquals(0, input.getParentFile().listFiles((dir, name) -> name.startsWith("." + output.getName())).length);
+    }
+
+    @Test
+    public void testSignStream() throws Exception {
+        final PGPSecretKey key = GPGUtils.generateKey(KEY_EMAIL, KEY_PASSPHRASE);
+        final GPGInfo gpginfo = new GPGInfo(KEY_EMAIL, KEY_PASSPHRASE, key);
+        final byte[] data = "blah\n".getBytes("UTF-8");
+
+        final ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        GPGUtils.detach_sign(new ByteArrayInputStream(data), signature, gpginfo, true);
+
+        assertTrue(new String(signature.toByteArray(), "UTF-8").startsWith("-----BEGIN PGP SIGNATURE-----"));
+        assertTrue(verify(data, signature.toByteArray(), key.getPublicKey()));
+        assertFalse(verify("bleh\n".getBytes("UTF-8"), signature.toByteArray(), key.getPublicKey()));
+    }
+
+    @Test
+    public void testSignMappedFile() throws Exception {
+        final PGPSecretKey key = GPGUtils.generateKey(KEY_EMAIL, KEY_PASSPHRASE);
+        final File input = File.createTempFile("encryptme", ".bin");
+        input.deleteOnExit();
+
+        // large enough to take the memory-mapped path
+        final byte[] data = new byte[(int)GPGUtils.MAP_THRESHOLD * 3 + 17];
+        new Random(0).nextBytes(data);
+        Files.write(input.toPath(), data);
+
+        final File output = new File(input.toString() + ".asc");
+        output.deleteOnExit();
+        GPGUtils.detach_sign(input.toPath(), output.toPath(), new GPGInfo(KEY_EMAIL, KEY_PASSPHRASE, key), false);
+
+        assertTrue(verify(data, Files.readAllBytes(output.toPath()), key.getPublicKey()));
+    }
+
+    private static boolean verify(final byte[] data, final byte[] signature, final PGPPublicKey publicKey) throws Exception {
+        try (final InputStream is = PGPUtil.getDecoderStream(new ByteArrayInputStream(signature))) {
+            final PGPSignatureList sigs = (PGPSignatureList) new JcaPGPObjectFactory(is).nextObject();
+            final PGPSignature sig = sigs.get(0);
+            sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), publicKey);
+            sig.update(data);
+            return sig.verify();
+        }
+    }
+
     @Test
     @SuppressWarnings("rawtypes")
     public void testExportPublicKey() throws Exception {
@@ -0,0 +1,124 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.api.RepositoryIndexException;
+import org.opennms.repo.impl.IndexOrchestrator.Result;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+
+public class IndexDaemonTest {
+    private static final Path BASE = Paths.get("target/repositories/IndexDaemonTest").toAbsolutePath();
+
+    private final BlockingQueue<Result> m_results = new LinkedBlockingQueue<>();
+    private IndexOrchestrator m_orchestrator;
+    private IndexDaemon m_daemon;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), BASE.resolve("bleeding").toFile());
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable/rhel5"), BASE.resolve("stable").toFile());
+        m_orchestrator = new IndexOrchestrator(2, 2);
+        m_daemon = new IndexDaemon(m_orchestrator, null);
+        m_daemon.setDebounce(300);
+        m_daemon.addListener(m_results::add);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_daemon != null) {
+            m_daemon.close();
+            m_orchestrator.close();
+        }
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testIndexOnChange() throws Exception {
+        final Path root = BASE.resolve("bleeding");
+        m_daemon.watch(new RPMRepository(root, IndexEngine.NATIVE));
+        m_daemon.start();
+
+        // catches up on start
+        final Result initial = m_results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(initial);
+        assertTrue(initial.isSuccess());
+        assertTrue(Files.exists(root.resolve("repodata/repomd.xml")));
+
+        // writing the indexes is not a change
+        assertNull(m_results.poll(1, TimeUnit.SECONDS));
+
+        // a burst of uploads, including to a new directory, is indexed once
+        final Path noarch = root.resolve("opennms/noarch");
+        Files.createDirectories(noarch);
+        Thread.sleep(100);
+        Files.copy(Paths.get("../t/packages/rpm/stable/common/opennms/opennms-1.8.16-1.noarch.rpm"), noarch.resolve("opennms-1.8.16-1.noarch.rpm"));
+        Files.copy(Paths.get("../t/packages/rpm/stable/rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm"), root.resolve("opennms/i386/iplike-2.0.2-1.i386.rpm"));
+        final Result changed = m_results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(changed);
+        assertTrue(changed.isSuccess());
+        assertNull(m_results.poll(1, TimeUnit.SECONDS));
+        assertEquals(4, new RPMRepository(root).getPackages().size());
+    }
+
+    @Test
+    public void testSerializedPerRepository() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger[] perRepo = { new AtomicInteger(), new AtomicInteger() };
+        final AtomicInteger maxPerRepo = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            final AtomicInteger mine = perRepo[i];
+            m_daemon.watch(new RPMRepository(BASE.resolve(i == 0 ? "bleeding" : "stable"), IndexEngine.NATIVE) {
+                @Override
+                public void index(final GPGInfo gpginfo) throws RepositoryIndexException {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    maxPerRepo.accumulateAndGet(mine.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(500);
+                        super.index(gpginfo);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        mine.decrementAndGet();
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+        m_daemon.setDebounce(50);
+        m_daemon.start();
+
+        // keep changing one repository while it is being indexed
+        final Path marker = BASE.resolve("bleeding/opennms/marker");
+        for (int i = 0; i < 10; i++) {
+            Files.write(marker, new byte[] { (byte)i });
+            Thread.sleep(100);
+        }
+
+        // the initial runs, plus at least one to pick up the changes
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(m_results.poll(30, TimeUnit.SECONDS));
+        }
+        assertEquals(1, maxPerRepo.get());
+        assertEquals(2, maxRunning.get());
+    }
+}
@@ -0,0 +1,106 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.IndexMetrics.Counter;
+import org.opennms.repo.impl.IndexMetrics.Outcome;
+import org.opennms.repo.impl.IndexMetrics.Phase;
+import org.opennms.repo.impl.IndexMetrics.Report;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+
+public class IndexMetricsTest {
+    private static final Path BASE = Paths.get("target/repositories/IndexMetricsTest").toAbsolutePath();
+
+    private final List<Report> m_reports = new CopyOnWriteArrayList<>();
+    private final MetricsListener m_listener = report -> {
+        if (report.getRoot().startsWith(BASE)) {
+            m_reports.add(report);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        IndexStats.getInstance().addListener(m_listener);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        IndexStats.getInstance().removeListener(m_listener);
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testRpmRun() throws Exception {
+        final Path root = BASE.resolve("rpm");
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), root.toFile());
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(IndexStats.OBJECT_NAME);
+        final long runs = (Long)server.getAttribute(name, "Runs");
+        final long skipped = (Long)server.getAttribute(name, "SkippedRuns");
+
+        final RPMRepository repo = new RPMRepository(root, IndexEngine.NATIVE);
+        repo.setIncremental(true);
+        repo.index(null);
+        assertEquals(1, m_reports.size());
+        final Report report = m_reports.get(0);
+        assertEquals(Outcome.INDEXED, report.getOutcome());
+        assertEquals(Long.valueOf(2), report.getCounters().get(Counter.PACKAGES));
+        assertEquals(Files.size(root.resolve("common/opennms/opennms-1.8.16-1.noarch.rpm")) + Files.size(root.resolve("rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm")),
+                (long)report.getCounters().get(Counter.BYTES_HASHED));
+        for (final Phase phase : new Phase[] { Phase.SCAN, Phase.PARSE, Phase.HASH, Phase.WRITE, Phase.COMPRESS }) {
+            assertTrue(phase.name(), report.getPhases().get(phase) > 0);
+        }
+        assertEquals(0L, (long)report.getPhases().get(Phase.SIGN));
+        assertTrue(report.getCounters().get(Counter.BYTES_COMPRESSED) > 0);
+        assertTrue(report.getCounters().get(Counter.BYTES_COMPRESSED) < report.getCounters().get(Counter.BYTES_WRITTEN));
+        // the first run has nothing cached
+        assertEquals(0.0, report.getCacheHitRate(), 0.0);
+        assertEquals(Long.valueOf(2), report.getCounters().get(Counter.CACHE_MISSES));
+
+        final Path reportFile = root.resolve(PackageMetadataCache.CACHE_DIR).resolve(IndexMetrics.REPORT_FILE);
+        final String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"outcome\": \"indexed\""));
+        assertTrue(json, json.contains("\"packages\": 2"));
+
+        // an unchanged repository is a skipped run
+        repo.index(null);
+        assertEquals(Outcome.SKIPPED, m_reports.get(1).getOutcome());
+        assertTrue(new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8).contains("\"outcome\": \"skipped\""));
+
+        assertEquals(runs + 2, (long)(Long)server.getAttribute(name, "Runs"));
+        assertEquals(skipped + 1, (long)(Long)server.getAttribute(name, "SkippedRuns"));
+        assertEquals(root.toString(), server.getAttribute(name, "LastRepository"));
+    }
+
+    @Test
+    public void testAptRun() throws Exception {
+        FileUtils.copyDirectory(new File("../t/packages/deb/dists/nightly-1.11"), BASE.resolve("deb/dists/nightly-1.11").toFile());
+        new AptRepository(BASE.resolve("deb"), "nightly-1.11").index(null);
+
+        assertEquals(1, m_reports.size());
+        final Report report = m_reports.get(0);
+        assertEquals(Outcome.INDEXED, report.getOutcome());
+        assertEquals(Long.valueOf(3), report.getCounters().get(Counter.PACKAGES));
+        assertTrue(report.getPhases().get(Phase.PARSE) > 0);
+        assertTrue(report.getPhases().get(Phase.COMPRESS) > 0);
+    }
+}
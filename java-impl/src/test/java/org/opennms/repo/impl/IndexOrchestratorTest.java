@@ -0,0 +1,114 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.Repository;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+
+public class IndexOrchestratorTest {
+    private static final Path BASE = Paths.get("target/repositories/IndexOrchestratorTest").toAbsolutePath();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm"), BASE.resolve("rpm").toFile());
+        FileUtils.copyDirectory(new File("../t/packages/deb/dists"), BASE.resolve("deb/dists").toFile());
+        for (final String repo : new String[] { "stable/common", "stable/rhel5", "bleeding/common", "bleeding/rhel5" }) {
+            Files.createDirectories(BASE.resolve("rpm").resolve(repo).resolve("repodata"));
+        }
+        for (final String release : new String[] { "opennms-1.8", "nightly-1.11" }) {
+            Files.createFile(BASE.resolve("deb/dists").resolve(release).resolve("Release"));
+        }
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testFindRepositories() throws Exception {
+        // neither hidden directories nor a release without a Release file are repositories
+        Files.createDirectories(BASE.resolve("rpm/stable/.common.txn-1234/repodata"));
+        Files.createDirectories(BASE.resolve("deb/dists/unreleased/main"));
+
+        final List<Path> roots = new ArrayList<>();
+        for (final Repository repo : IndexOrchestrator.findRepositories(BASE)) {
+            roots.add(BASE.relativize(repo.getRoot()));
+        }
+        assertEquals(6, roots.size());
+        assertEquals(Paths.get("deb/dists/nightly-1.11"), roots.get(0));
+        assertEquals(Paths.get("deb/dists/opennms-1.8"), roots.get(1));
+        assertEquals(Paths.get("rpm/bleeding/common"), roots.get(2));
+        assertEquals(Paths.get("rpm/stable/rhel5"), roots.get(5));
+
+        // discovered repositories are indexed in-process, on the orchestrator's pool and hasher
+        for (final RPMRepository rpm : IndexOrchestrator.findYumRepositories(BASE)) {
+            assertEquals(IndexEngine.NATIVE, rpm.getIndexEngine());
+        }
+
+        final AptRepository apt = IndexOrchestrator.findAptRepositories(BASE).get(0);
+        assertEquals(BASE.resolve("deb"), apt.getBase());
+        assertEquals("nightly-1.11", apt.getRelease());
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        // share a package between two releases, the way promotion does
+        final Path shared = BASE.resolve("rpm/stable/common/opennms/opennms-1.8.16-1.noarch.rpm");
+        Files.createLink(BASE.resolve("rpm/bleeding/common/opennms/opennms-1.8.16-1.noarch.rpm"), shared);
+
+        final long total;
+        try (final Stream<Path> stream = Files.walk(BASE)) {
+            total = stream.filter(p -> p.toString().endsWith(".rpm") || p.toString().endsWith(".deb")).mapToLong(p -> p.toFile().length()).sum();
+        }
+
+        try (final IndexOrchestrator orchestrator = new IndexOrchestrator(3, 2)) {
+            final IndexOrchestrator.Report report = orchestrator.index(BASE, null);
+            assertEquals(report.toString(), 0, report.getFailures().size());
+            assertEquals(6, report.getResults().size());
+            assertTrue(report.toString().contains("rpm/stable/rhel5"));
+
+            // the hard-linked package was only read once
+            assertEquals(total - Files.size(shared), orchestrator.getHasher().getBytesRead());
+            assertEquals(1, orchestrator.getHasher().getHits());
+        }
+
+        assertTrue(Files.exists(BASE.resolve("rpm/bleeding/common/repodata/repomd.xml")));
+        assertTrue(Files.exists(BASE.resolve("deb/dists/opennms-1.8/main/binary-i386/Packages.gz")));
+    }
+
+    @Test
+    public void testFailureDoesNotStopOthers() throws Exception {
+        final List<Repository> repos = new ArrayList<>(IndexOrchestrator.findAptRepositories(BASE));
+        // repodata is a file, so the metadata cannot be written
+        final RPMRepository broken = new RPMRepository(BASE.resolve("rpm/stable/common"), IndexEngine.NATIVE);
+        Files.delete(broken.getRoot().resolve("repodata"));
+        Files.write(broken.getRoot().resolve("repodata"), new byte[0]);
+        repos.add(broken);
+
+        try (final IndexOrchestrator orchestrator = new IndexOrchestrator(2, 2)) {
+            final IndexOrchestrator.Report report = orchestrator.index(repos, null);
+            assertEquals(1, report.getFailures().size());
+            assertEquals(broken, report.getFailures().get(0).getRepository());
+            assertTrue(report.getResults().get(0).isSuccess());
+            assertFalse(report.getFailures().get(0).isSuccess());
+        }
+        assertTrue(Files.exists(BASE.resolve("deb/dists/nightly-1.11/main/binary-amd64/Packages")));
+    }
+}
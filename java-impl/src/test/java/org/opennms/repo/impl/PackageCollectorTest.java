@@ -0,0 +1,174 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.PackageCollector.Plan;
+import org.opennms.repo.impl.PackageCollector.Result;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+
+public class PackageCollectorTest {
+    private static final Path BASE = Paths.get("target/repositories/PackageCollectorTest").toAbsolutePath();
+    private static final Path FIRST = BASE.resolve("first");
+    private static final Path SECOND = BASE.resolve("second");
+    private static final String OLD_I386 = "opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String NEW_I386 = "opennms/i386/iplike-2.0.2-1.i386.rpm";
+    private static final String X86_64 = "opennms/x86_64/iplike-1.0.7-1.x86_64.rpm";
+
+    private IndexOrchestrator m_orchestrator;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), FIRST.toFile());
+        Files.copy(Paths.get("../t/packages/rpm/stable/rhel5").resolve(NEW_I386), FIRST.resolve(NEW_I386));
+        m_orchestrator = new IndexOrchestrator(2, 2);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_orchestrator != null) {
+            m_orchestrator.close();
+        }
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        final RetentionPolicy policy = RetentionPolicy.parse(Arrays.asList(
+                "# retention",
+                "opennms-docs  keep=1",
+                "opennms*      keep=3  max-age=30d  # releases",
+                "",
+                "*             max-age=12h"));
+        assertEquals(3, policy.getRules().size());
+        assertEquals(1, policy.getRule("opennms-docs").getKeep());
+        assertEquals(3, policy.getRule("opennms-core").getKeep());
+        assertEquals(TimeUnit.DAYS.toMillis(30), policy.getRule("opennms").getMaxAge());
+        assertEquals(-1, policy.getRule("iplike").getKeep());
+        assertEquals(TimeUnit.HOURS.toMillis(12), policy.getRule("iplike").getMaxAge());
+        assertNull(RetentionPolicy.parse(Arrays.asList("opennms* keep=2")).getRule("iplike"));
+
+        for (final String invalid : new String[] { "* keep=0", "* max-age=3", "* keep=1 forever" }) {
+            try {
+                RetentionPolicy.parse(Collections.singletonList(invalid));
+                fail("should not have parsed: " + invalid);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testKeep() throws Exception {
+        final RPMRepository repo = new RPMRepository(FIRST, IndexEngine.NATIVE);
+        repo.index(null);
+
+        final PackageCollector collector = new PackageCollector(RetentionPolicy.parse(Arrays.asList("iplike keep=1")), m_orchestrator);
+        final Plan plan = collector.plan(Collections.singletonList(repo));
+
+        // versions are counted per architecture: the only x86_64 build stays
+        assertEquals(1, plan.size());
+        assertEquals(FIRST.resolve(OLD_I386), plan.getDeletions().get(0).getPackage().getPath());
+        final long size = Files.size(FIRST.resolve(OLD_I386));
+        assertEquals(size, plan.getBytesReclaimable());
+        assertTrue(Files.exists(FIRST.resolve(OLD_I386)));
+
+        final Result result = collector.collect(plan, null);
+        assertEquals(1, result.getDeleted().size());
+        assertEquals(size, result.getBytesReclaimed());
+        assertTrue(result.getIndexReport().getFailures().isEmpty());
+        assertFalse(Files.exists(FIRST.resolve(OLD_I386)));
+        assertTrue(Files.exists(FIRST.resolve(NEW_I386)));
+        assertTrue(Files.exists(FIRST.resolve(X86_64)));
+        // re-indexed incrementally, but the caller's repository is left as it was
+        assertFalse(repo.isIncremental());
+
+        final String primary = readPrimary(FIRST);
+        assertFalse(primary.contains(OLD_I386));
+        assertTrue(primary.contains(NEW_I386));
+        assertTrue(primary.contains(X86_64));
+
+        // nothing left to remove
+        assertEquals(0, collector.plan(Collections.singletonList(repo)).size());
+    }
+
+    @Test
+    public void testHardLinks() throws Exception {
+        LinkUtils.linkTree(FIRST, SECOND, path -> false);
+        final RPMRepository first = new RPMRepository(FIRST, IndexEngine.NATIVE);
+        final RPMRepository second = new RPMRepository(SECOND, IndexEngine.NATIVE);
+        final PackageCollector collector = new PackageCollector(RetentionPolicy.parse(Arrays.asList("* keep=1")), m_orchestrator);
+        final long size = Files.size(FIRST.resolve(OLD_I386));
+
+        // the other release still links to it, so removing it from one frees nothing
+        final Plan one = collector.plan(Collections.singletonList(first));
+        assertEquals(1, one.size());
+        assertEquals(size, one.getBytesDeleted());
+        assertEquals(0, one.getBytesReclaimable());
+
+        final Plan both = collector.plan(Arrays.asList(first, second));
+        assertEquals(2, both.size());
+        assertEquals(2 * size, both.getBytesDeleted());
+        assertEquals(size, both.getBytesReclaimable());
+
+        final Result result = collector.collect(both, null);
+        assertEquals(2, result.getDeleted().size());
+        assertEquals(size, result.getBytesReclaimed());
+        assertEquals(2, result.getIndexReport().getResults().size());
+        assertFalse(Files.exists(SECOND.resolve(OLD_I386)));
+        assertFalse(readPrimary(SECOND).contains(OLD_I386));
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        final RPMRepository repo = new RPMRepository(FIRST, IndexEngine.NATIVE);
+        final PackageCollector collector = new PackageCollector(RetentionPolicy.parse(Arrays.asList("iplike max-age=1d")), m_orchestrator);
+        final long now = System.currentTimeMillis();
+
+        // everything is new (the fixtures were copied with their original dates)
+        for (final String path : new String[] { OLD_I386, NEW_I386, X86_64 }) {
+            Files.setLastModifiedTime(FIRST.resolve(path), FileTime.fromMillis(now));
+        }
+        assertEquals(0, collector.plan(Collections.singletonList(repo), now).size());
+
+        // an old build goes, but the newest version is kept however old it is
+        final FileTime old = FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(2));
+        Files.setLastModifiedTime(FIRST.resolve(OLD_I386), old);
+        Files.setLastModifiedTime(FIRST.resolve(X86_64), old);
+        final Plan plan = collector.plan(Collections.singletonList(repo), now);
+        assertEquals(1, plan.size());
+        assertEquals(FIRST.resolve(OLD_I386), plan.getDeletions().get(0).getPackage().getPath());
+    }
+
+    private static String readPrimary(final Path root) throws IOException {
+        final Path primary;
+        try (final Stream<Path> stream = Files.list(root.resolve("repodata"))) {
+            primary = stream.filter(path -> path.getFileName().toString().endsWith("primary.xml.gz")).findFirst().get();
+        }
+        try (final InputStream is = Compression.GZIP.decompress(Files.newInputStream(primary))) {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackageMetadataCacheTest {
+    private static final Path ROOT = Paths.get("target/repositories/PackageMetadataCacheTest");
+
+    @Before
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(ROOT.toFile());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        FileUtils.copyDirectory(new File("../t/packages/rpm"), ROOT.toFile());
+        final List<Path> rpms;
+        try (final Stream<Path> paths = Files.walk(ROOT)) {
+            rpms = paths.filter(p -> p.toString().endsWith(".rpm")).sorted().collect(Collectors.toList());
+        }
+
+        final PackageMetadataCache cache = PackageMetadataCache.forRepository(ROOT);
+        cache.load();
+        for (final Path rpm : rpms) {
+            final FileIdentity identity = FileIdentity.of(rpm, rpm.getFileName().toString());
+            assertNull(cache.get(rpm, identity, "sha"));
+            cache.put(identity, new RPMPackage(rpm, identity.getPath(), RPMHeaderReader.read(rpm), identity.getSize(), identity.getLastModified(), "sha", "abc123"));
+        }
+        cache.save();
+
+        // load, then save again from the mapped records, then load that
+        for (int pass = 0; pass < 2; pass++) {
+            cache.load();
+            for (final Path rpm : rpms) {
+                final FileIdentity identity = FileIdentity.of(rpm, rpm.getFileName().toString());
+                final RPMPackage cached = cache.get(rpm, identity, "sha");
+                assertNotNull(cached);
+                assertEquals("abc123", cached.getChecksum());
+                assertHeadersEqual(RPMHeaderReader.read(rpm), cached.getHeader());
+            }
+            assertEquals(rpms.size(), cache.getHits());
+            assertEquals(0, cache.getMisses());
+            cache.save();
+        }
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), ROOT.toFile());
+        final Path rpm = ROOT.resolve("common/opennms/opennms-1.8.16-1.noarch.rpm");
+
+        final PackageMetadataCache cache = PackageMetadataCache.forRepository(ROOT);
+        cache.load();
+        FileIdentity identity = FileIdentity.of(rpm, "opennms.rpm");
+        cache.put(identity, new RPMPackage(rpm, identity.getPath(), RPMHeaderReader.read(rpm), identity.getSize(), identity.getLastModified(), "sha", "abc123"));
+        cache.save();
+
+        cache.load();
+        assertNull(cache.get(rpm, identity, "sha256"));
+
+        Files.setLastModifiedTime(rpm, FileTime.fromMillis(identity.getLastModified() + 10000));
+        identity = FileIdentity.of(rpm, "opennms.rpm");
+        assertNull(cache.get(rpm, identity, "sha"));
+        assertEquals(2, cache.getMisses());
+
+        // nothing was hit or put, so the entry is pruned
+        cache.save();
+        cache.load();
+        Files.setLastModifiedTime(rpm, FileTime.fromMillis(identity.getLastModified() - 10000));
+        assertNull(cache.get(rpm, FileIdentity.of(rpm, "opennms.rpm"), "sha"));
+    }
+
+    @Test
+    public void testCorruptCache() throws Exception {
+        final PackageMetadataCache cache = PackageMetadataCache.forRepository(ROOT);
+        Files.createDirectories(cache.getFile().getParent());
+        Files.write(cache.getFile(), new byte[] { 0x52, 0x50, 0x4d, 0x43, 0, 0, 0, 1, 0, 0, 0, 5, 0, 0 });
+        cache.load();
+
+        final Path rpm = Paths.get("../t/packages/rpm/stable/common/opennms/opennms-1.8.16-1.noarch.rpm");
+        assertNull(cache.get(rpm, FileIdentity.of(rpm, "opennms.rpm"), "sha"));
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), ROOT.toFile());
+        final Path rpm = ROOT.resolve("opennms/i386/iplike-1.0.7-1.i386.rpm");
+        final FileIdentity identity = FileIdentity.of(rpm, "iplike.rpm");
+
+        final PackageMetadataCache cache = PackageMetadataCache.forRepository(ROOT);
+        cache.load();
+        cache.put(identity, new RPMPackage(rpm, identity.getPath(), RPMHeaderReader.read(rpm), identity.getSize(), identity.getLastModified(), "sha", "abc123"));
+        cache.save();
+        final byte[] good = Files.readAllBytes(cache.getFile());
+
+        // overwrite each position in turn with a negative and with a huge count, length or index:
+        // the record either still decodes, or is a miss, but never throws
+        for (final byte value : new byte[] { (byte)0xff, 0x7f }) {
+            for (int i = 12; i < good.length - 4; i++) {
+                final byte[] bad = good.clone();
+                Arrays.fill(bad, i, i + 4, value);
+                Files.write(cache.getFile(), bad);
+                cache.load();
+                cache.get(rpm, identity, "sha");
+            }
+        }
+    }
+
+    private static void assertHeadersEqual(final RPMHeader expected, final RPMHeader actual) {
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.getEpoch(), actual.getEpoch());
+        assertEquals(expected.getSummary(), actual.getSummary());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getUrl(), actual.getUrl());
+        assertEquals(expected.getLicense(), actual.getLicense());
+        assertEquals(expected.getVendor(), actual.getVendor());
+        assertEquals(expected.getGroup(), actual.getGroup());
+        assertEquals(expected.getBuildHost(), actual.getBuildHost());
+        assertEquals(expected.getSourceRpm(), actual.getSourceRpm());
+        assertEquals(expected.getPackager(), actual.getPackager());
+        assertEquals(expected.getBuildTime(), actual.getBuildTime());
+        assertEquals(expected.getInstalledSize(), actual.getInstalledSize());
+        assertEquals(expected.getArchiveSize(), actual.getArchiveSize());
+        assertEquals(expected.getHeaderStart(), actual.getHeaderStart());
+        assertEquals(expected.getHeaderEnd(), actual.getHeaderEnd());
+        assertEquals(expected.getProvides(), actual.getProvides());
+        assertEquals(expected.getRequires(), actual.getRequires());
+        assertEquals(expected.getConflicts(), actual.getConflicts());
+        assertEquals(expected.getObsoletes(), actual.getObsoletes());
+        assertEquals(expected.getFiles(), actual.getFiles());
+        for (int i = 0; i < expected.getFiles().size(); i++) {
+            assertEquals(expected.getFileType(i), actual.getFileType(i));
+        }
+        assertEquals(expected.getChangelogs().size(), actual.getChangelogs().size());
+        for (int i = 0; i < expected.getChangelogs().size(); i++) {
+            assertEquals(expected.getChangelogs().get(i).getTime(), actual.getChangelogs().get(i).getTime());
+            assertEquals(expected.getChangelogs().get(i).getAuthor(), actual.getChangelogs().get(i).getAuthor());
+            assertEquals(expected.getChangelogs().get(i).getText(), actual.getChangelogs().get(i).getText());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class PackageSetTest {
+    private static final Path RPM_PACKAGES = Paths.get("..", "t", "packages", "rpm");
+
+    private static final String IPLIKE_107_I386 = "bleeding/rhel5/opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String IPLIKE_107_X86_64 = "bleeding/rhel5/opennms/x86_64/iplike-1.0.7-1.x86_64.rpm";
+    private static final String IPLIKE_202_I386 = "stable/rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm";
+    private static final String OPENNMS_1816 = "stable/common/opennms/opennms-1.8.16-1.noarch.rpm";
+    private static final String OPENNMS_1110 = "bleeding/common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm";
+
+    @Test
+    public void testFind() throws Exception {
+        final PackageSet<RPMPackage> set = new PackageSet<>();
+        assertEquals(0, set.findAll().size());
+
+        set.add(rpm(IPLIKE_107_I386));
+        set.add(rpm(IPLIKE_202_I386));
+        set.add(rpm(OPENNMS_1816));
+        assertEquals(3, set.size());
+        assertEquals(3, set.findAll().size());
+        assertEquals(2, set.findNewest().size());
+        assertEquals(2, set.findByName("iplike").size());
+
+        List<RPMPackage> newest = set.findNewestByName("iplike");
+        assertEquals(1, newest.size());
+        assertEquals("iplike", newest.get(0).getName());
+        assertEquals("2.0.2", newest.get(0).getVersion().getVersion());
+
+        assertEquals(1, set.findByName("opennms").size());
+        newest = set.findNewestByName("opennms");
+        assertEquals("opennms", newest.get(0).getName());
+        assertEquals("1.8.16", newest.get(0).getVersion().getVersion());
+
+        assertTrue(set.findByName("foo").isEmpty());
+        assertNull(set.findNewestByNameAndArch("iplike", "x86_64"));
+
+        set.set(Collections.<RPMPackage>emptyList());
+        assertEquals(0, set.findAll().size());
+
+        set.set(Arrays.asList(rpm(OPENNMS_1110)));
+        assertEquals(1, set.findAll().size());
+        assertEquals("opennms", set.findAll().get(0).getName());
+    }
+
+    @Test
+    public void testObsolete() throws Exception {
+        final PackageSet<RPMPackage> set = new PackageSet<>(Arrays.asList(rpm(IPLIKE_202_I386)));
+        final RPMPackage old = rpm(IPLIKE_107_I386);
+        assertTrue(set.isObsolete(old));
+        assertFalse(set.isObsolete(rpm(IPLIKE_107_X86_64)));
+
+        set.add(old);
+        final List<RPMPackage> obsolete = set.findObsolete();
+        assertEquals(1, obsolete.size());
+        assertEquals("1.0.7", obsolete.get(0).getVersion().getVersion());
+
+        // removing the newest makes the old one current again
+        assertTrue(set.remove(rpm(IPLIKE_202_I386)));
+        assertTrue(set.findObsolete().isEmpty());
+        assertEquals("1.0.7", set.findNewestByNameAndArch("iplike", "i386").getVersion().getVersion());
+        assertFalse(set.remove(rpm(IPLIKE_202_I386)));
+    }
+
+    @Test
+    public void testNewestByArch() throws Exception {
+        final PackageSet<RPMPackage> set = new PackageSet<>();
+        set.add(rpm(IPLIKE_107_X86_64));
+        set.add(rpm(IPLIKE_107_I386));
+        set.add(rpm(IPLIKE_202_I386));
+        assertEquals(3, set.findAll().size());
+
+        final List<RPMPackage> newest = set.findNewest();
+        assertEquals(2, newest.size());
+        assertEquals("i386", newest.get(0).getArch());
+        assertEquals("2.0.2", newest.get(0).getVersion().getVersion());
+        assertEquals("x86_64", newest.get(1).getArch());
+        assertEquals("1.0.7", newest.get(1).getVersion().getVersion());
+
+        // adding the same path again replaces rather than duplicates
+        set.add(rpm(IPLIKE_107_I386));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void testHasNewerThan() throws Exception {
+        final PackageSet<RPMPackage> stable = new PackageSet<>(Arrays.asList(rpm(OPENNMS_1816), rpm(IPLIKE_202_I386)));
+        final PackageSet<RPMPackage> bleeding = new PackageSet<>(Arrays.asList(rpm(OPENNMS_1110), rpm(IPLIKE_107_I386)));
+
+        assertTrue(bleeding.hasNewerThan(stable));
+        assertTrue(stable.hasNewerThan(bleeding));
+
+        bleeding.add(rpm(IPLIKE_202_I386));
+        assertTrue(bleeding.hasNewerThan(stable));
+        assertFalse(new PackageSet<>(Arrays.asList(rpm(IPLIKE_107_I386))).hasNewerThan(bleeding));
+        assertTrue(new PackageSet<>(Arrays.asList(rpm(IPLIKE_107_X86_64))).hasNewerThan(bleeding));
+    }
+
+    @Test
+    public void testRepositoryPackages() throws Exception {
+        final Path root = Paths.get("target/repositories/PackageSetTest/bleeding").toAbsolutePath();
+        FileUtils.deleteDirectory(root.toFile());
+        FileUtils.copyDirectory(RPM_PACKAGES.resolve("bleeding").toFile(), root.toFile());
+
+        final PackageSet<RPMPackage> packages = new RPMRepository(root).getPackages();
+        assertEquals(3, packages.size());
+        assertNotNull(packages.findNewestByNameAndArch("opennms", "noarch"));
+        assertEquals(2, packages.findNewestByName("iplike").size());
+
+        // listing only reads headers, and leaves the repository as it was
+        for (final RPMPackage pkg : packages) {
+            assertNull(pkg.getChecksum());
+        }
+        assertFalse(Files.exists(root.resolve(PackageMetadataCache.CACHE_DIR)));
+    }
+
+    private static RPMPackage rpm(final String path) throws Exception {
+        final Path file = RPM_PACKAGES.resolve(path);
+        return new RPMPackage(file, path, RPMHeaderReader.read(file), Files.size(file), Files.getLastModifiedTime(file).toMillis(), null, null);
+    }
+}
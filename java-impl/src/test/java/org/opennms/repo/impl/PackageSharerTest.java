@@ -0,0 +1,88 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.SharePlan;
+import org.opennms.repo.api.SharePlan.Action;
+
+public class PackageSharerTest {
+    private static final Path BASE = Paths.get("target/repositories/PackageSharerTest").toAbsolutePath();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm"), BASE.toFile());
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        final RPMRepository stable = new RPMRepository(BASE.resolve("stable/rhel5"));
+        final RPMRepository bleeding = new RPMRepository(BASE.resolve("bleeding/rhel5"));
+
+        final SharePlan plan = bleeding.planShare(stable);
+        assertEquals(1, plan.size());
+        final Action action = plan.getActions().get(0);
+        assertEquals("iplike", action.getPackage().getName());
+        assertEquals(BASE.resolve("bleeding/rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm"), action.getTarget());
+        assertNotNull(action.getReplaces());
+        assertEquals("1.0.7", action.getReplaces().getVersion().getVersion());
+
+        // a plan is only a dry run
+        assertFalse(Files.exists(action.getTarget()));
+
+        // nothing in bleeding is newer than stable's iplike, and x86_64 is only in bleeding
+        assertTrue(stable.planShare(bleeding).getActions().stream().noneMatch(a -> a.getPackage().getName().equals("iplike") && a.getPackage().getArch().equals("i386")));
+    }
+
+    @Test
+    public void testShare() throws Exception {
+        final RPMRepository stable = new RPMRepository(BASE.resolve("stable/common"));
+        final RPMRepository bleeding = new RPMRepository(BASE.resolve("bleeding/common"));
+
+        assertTrue(bleeding.planShare(stable).isEmpty());
+
+        final SharePlan plan = stable.planShare(bleeding);
+        assertEquals(1, plan.size());
+        assertEquals("1.8.16", plan.getActions().get(0).getReplaces().getVersion().getVersion());
+        stable.share(plan);
+
+        final Path shared = BASE.resolve("stable/common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm");
+        assertTrue(Files.exists(shared));
+        assertEquals(2, ((Number)Files.getAttribute(shared, "unix:nlink")).intValue());
+        assertEquals(2, stable.getPackages().size());
+        assertTrue(stable.planShare(bleeding).isEmpty());
+    }
+
+    @Test
+    public void testExcludeShare() throws Exception {
+        final RPMRepository stable = new RPMRepository(BASE.resolve("stable/common"));
+        final RPMRepository bleeding = new RPMRepository(BASE.resolve("bleeding/common"));
+
+        Files.write(stable.getRoot().resolve(PackageSharer.EXCLUDE_SHARE), Arrays.asList("", "opennms"), StandardCharsets.UTF_8);
+        assertTrue(stable.planShare(bleeding).isEmpty());
+        // only the target's exclusions apply
+        Files.write(bleeding.getRoot().resolve(PackageSharer.EXCLUDE_SHARE), Arrays.asList("iplike"), StandardCharsets.UTF_8);
+        Files.delete(stable.getRoot().resolve(PackageSharer.EXCLUDE_SHARE));
+        assertEquals(1, stable.planShare(bleeding).size());
+    }
+}
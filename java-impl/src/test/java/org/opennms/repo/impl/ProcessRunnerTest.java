@@ -0,0 +1,80 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProcessRunnerTest {
+    private static final Path BASE = Paths.get("target/ProcessRunnerTest").toAbsolutePath();
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        Files.createDirectories(BASE);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(ProcessRunner.getInstance().start(CommandBuilder.builder("/bin/sh").arg("-c", "sleep 1; exit " + i)));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), futures.get(i).get(30, TimeUnit.SECONDS));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final CompletableFuture<Integer> future = ProcessRunner.getInstance().start(CommandBuilder.builder("/bin/sleep").arg("30").timeout(200, TimeUnit.MILLISECONDS));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("sleep should have timed out");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testCancelKillsProcess() throws Exception {
+        final Path pidfile = BASE.resolve("pid");
+        final CompletableFuture<Integer> future = ProcessRunner.getInstance().start(CommandBuilder.builder("/bin/sh").arg("-c", "echo $$ > " + pidfile + "; exec sleep 30"));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!Files.exists(pidfile) || Files.size(pidfile) == 0) {
+            assertTrue("the command never started", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        final Path proc = Paths.get("/proc", new String(Files.readAllBytes(pidfile), StandardCharsets.UTF_8).trim());
+        assertTrue(Files.exists(proc));
+
+        assertTrue(future.cancel(true));
+        while (Files.exists(proc) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(Files.exists(proc));
+    }
+}
@@ -0,0 +1,158 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+import org.opennms.repo.api.RepositoryException;
+
+public class RPMHeaderReaderTest {
+    private static final Path RPM_PACKAGES = Paths.get("..", "t", "packages", "rpm");
+
+    @Test
+    public void testReadNoarchPackage() throws Exception {
+        final RPMHeader header = RPMHeaderReader.read(RPM_PACKAGES.resolve("stable/common/opennms/opennms-1.8.16-1.noarch.rpm"));
+
+        assertEquals("opennms", header.getName());
+        assertNull(header.getEpoch());
+        assertEquals("1.8.16", header.getVersion());
+        assertEquals("1", header.getRelease());
+        assertEquals("noarch", header.getArch());
+        assertEquals("opennms-1.8.16-1.src.rpm", header.getSourceRpm());
+        assertEquals(1320784164L, header.getBuildTime());
+        assertEquals("opennms-1.8.16-1.noarch", header.toString());
+
+        assertEquals(736, header.getHeaderStart());
+        assertEquals(2952, header.getHeaderEnd());
+
+        assertEquals(1, header.getProvides().size());
+        assertEquals("opennms", header.getProvides().get(0).getName());
+
+        final List<RPMDependency> requires = header.getRequires();
+        assertEquals(5, requires.size());
+        assertEquals("opennms-webui", requires.get(0).getName());
+        assertEquals("GE", requires.get(0).getComparison());
+        assertEquals("1.8.16", requires.get(0).getVersion());
+        assertEquals("1", requires.get(0).getRelease());
+        assertEquals("postgresql-server", requires.get(2).getName());
+        assertEquals("7.4", requires.get(2).getVersion());
+
+        assertTrue(header.getFiles().isEmpty());
+        assertEquals(1, header.getChangelogs().size());
+        assertEquals("Benjamin Reed <ranger@opennms.org>", header.getChangelogs().get(0).getAuthor());
+    }
+
+    @Test
+    public void testReadBinaryPackage() throws Exception {
+        final RPMHeader header = RPMHeaderReader.read(RPM_PACKAGES.resolve("bleeding/rhel5/opennms/x86_64/iplike-1.0.7-1.x86_64.rpm"));
+
+        assertEquals("iplike", header.getName());
+        assertEquals("1.0.7", header.getVersion());
+        assertEquals("1", header.getRelease());
+        assertEquals("x86_64", header.getArch());
+        assertEquals(31088, header.getInstalledSize());
+        assertEquals(4081, header.getHeaderEnd());
+
+        assertEquals("iplike.so()(64bit)", header.getProvides().get(0).getName());
+        assertNull(header.getProvides().get(0).getComparison());
+
+        final RPMDependency sh = header.getRequires().get(0);
+        assertEquals("/bin/sh", sh.getName());
+        assertTrue(sh.isPre());
+        final RPMDependency libc = header.getRequires().get(2);
+        assertEquals("libc.so.6()(64bit)", libc.getName());
+        assertFalse(libc.isPre());
+
+        final List<String> files = header.getFiles();
+        assertEquals(4, files.size());
+        assertEquals("/usr/lib64/iplike.a", files.get(0));
+        assertEquals("/usr/sbin/install_iplike.sh", files.get(3));
+        assertEquals(RPMHeader.FileType.FILE, header.getFileType(3));
+    }
+
+    @Test
+    public void testReadAllSamplePackages() throws Exception {
+        Files.walk(RPM_PACKAGES).filter(p -> p.toString().endsWith(".rpm")).forEach(p -> {
+            try {
+                final RPMHeader header = RPMHeaderReader.read(p);
+                assertEquals(p.getFileName().toString(), header.toString() + ".rpm");
+                assertTrue(header.getHeaderEnd() < Files.size(p));
+            } catch (final Exception e) {
+                throw new AssertionError("Failed to read " + p, e);
+            }
+        });
+    }
+
+    @Test(expected=RepositoryException.class)
+    public void testReadNonRPM() throws Exception {
+        final Path notAnRpm = Files.createTempFile("not-an-rpm", ".rpm");
+        try {
+            Files.write(notAnRpm, new byte[200]);
+            RPMHeaderReader.read(notAnRpm);
+        } finally {
+            Files.delete(notAnRpm);
+        }
+    }
+
+    @Test
+    public void testReadCorruptCounts() throws Exception {
+        // counts that are negative, or larger than the whole data store
+        assertCorrupt((header, entry) -> header.putInt(entry + 12, -1), RPMHeaderReader.RPMTAG_BASENAMES);
+        assertCorrupt((header, entry) -> header.putInt(entry + 12, Integer.MAX_VALUE), RPMHeaderReader.RPMTAG_BASENAMES);
+        assertCorrupt((header, entry) -> header.putInt(entry + 12, Integer.MAX_VALUE), RPMHeaderReader.RPMTAG_FILEMODES);
+        assertCorrupt((header, entry) -> header.putInt(entry + 8, -4), RPMHeaderReader.RPMTAG_FILEMODES);
+    }
+
+    @Test
+    public void testReadCorruptDirectoryIndex() throws Exception {
+        assertCorrupt((header, entry) -> header.putInt(dataOffset(header, entry), 1000), RPMHeaderReader.RPMTAG_DIRINDEXES);
+        assertCorrupt((header, entry) -> header.putInt(dataOffset(header, entry), -1), RPMHeaderReader.RPMTAG_DIRINDEXES);
+    }
+
+    /**
+     * Copy a sample package, let the corruption modify the main header's index entry
+     * for the given tag, and check that reading it fails with a RepositoryException.
+     */
+    private static void assertCorrupt(final BiConsumer<ByteBuffer, Integer> corruption, final int tag) throws Exception {
+        final Path source = RPM_PACKAGES.resolve("bleeding/rhel5/opennms/x86_64/iplike-1.0.7-1.x86_64.rpm");
+        final RPMHeader original = RPMHeaderReader.read(source);
+        final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(source));
+        final ByteBuffer header = ByteBuffer.wrap(contents.array(), (int)original.getHeaderStart(), (int)(original.getHeaderEnd() - original.getHeaderStart())).slice();
+        corruption.accept(header, findEntry(header, tag));
+
+        final Path corrupt = Files.createTempFile("corrupt", ".rpm");
+        try {
+            Files.write(corrupt, contents.array());
+            RPMHeaderReader.read(corrupt);
+            throw new AssertionError("Corrupt tag " + tag + " should have failed.");
+        } catch (final RepositoryException e) {
+            // expected
+        } finally {
+            Files.delete(corrupt);
+        }
+    }
+
+    private static int findEntry(final ByteBuffer header, final int tag) {
+        final int entries = header.getInt(8);
+        for (int i = 0; i < entries; i++) {
+            final int entry = RPMHeaderReader.HEADER_INTRO_SIZE + i * RPMHeaderReader.INDEX_ENTRY_SIZE;
+            if (header.getInt(entry) == tag) {
+                return entry;
+            }
+        }
+        throw new AssertionError("Tag " + tag + " not found.");
+    }
+
+    private static int dataOffset(final ByteBuffer header, final int entry) {
+        return RPMHeaderReader.HEADER_INTRO_SIZE + header.getInt(8) * RPMHeaderReader.INDEX_ENTRY_SIZE + header.getInt(entry + 8);
+    }
+}
@@ -1,13 +1,25 @@
 package org.opennms.repo.impl;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.junit.After;
@@ -17,6 +29,9 @@ import org.opennms.repo.api.GPGInfo;
 import org.opennms.repo.api.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 public class RPMRepositoryTest {
     private static final Logger LOG = LoggerFactory.getLogger(RPMRepositoryTest.class);
@@ -43,6 +58,175 @@ public class RPMRepositoryTest {
         assertFileExists("target/repositories/testCreateRepository/repodata/repomd.xml.key");
     }
 
+    @Test
+    public void testCreateRepositoryNative() throws Exception {
+        Repository repo = new RPMRepository(Paths.get("target/repositories/testCreateRepositoryNative"), RPMRepository.IndexEngine.NATIVE);
+        assertFalse(repo.exists());
+
+        final String keyId = "foo@bar.com";
+        final String passphrase = "12345";
+        final PGPSecretKey key = GPGUtils.generateKey(keyId, passphrase);
+        final GPGInfo gpginfo = new GPGInfo(keyId, passphrase, key);
+        repo.index(gpginfo);
+        assertFileExists("target/repositories/testCreateRepositoryNative/repodata");
+        assertFileExists("target/repositories/testCreateRepositoryNative/repodata/repomd.xml");
+        assertFileExists("target/repositories/testCreateRepositoryNative/repodata/repomd.xml.asc");
+        assertFileExists("target/repositories/testCreateRepositoryNative/repodata/repomd.xml.key");
+    }
+
+    @Test
+    public void testIndexPackagesNative() throws Exception {
+        final Path root = Paths.get("target/repositories/testIndexPackagesNative");
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), root.toFile());
+
+        final Repository repo = new RPMRepository(root, RPMRepository.IndexEngine.NATIVE);
+        repo.index(null);
+
+        final Document repomd = parse(root.resolve("repodata/repomd.xml"));
+        final NodeList data = repomd.getElementsByTagName("data");
+        assertEquals(3, data.getLength());
+
+        final Map<String,Element> entries = new HashMap<>();
+        for (int i = 0; i < data.getLength(); i++) {
+            final Element element = (Element)data.item(i);
+            entries.put(element.getAttribute("type"), element);
+        }
+        assertTrue(entries.keySet().containsAll(Arrays.asList("primary", "filelists", "other")));
+
+        final Element primaryEntry = entries.get("primary");
+        final String href = ((Element)primaryEntry.getElementsByTagName("location").item(0)).getAttribute("href");
+        final Path primaryFile = root.resolve(href);
+        assertFileExists(primaryFile.toString());
+        assertEquals(Digests.digest(primaryFile, "SHA-1"), primaryEntry.getElementsByTagName("checksum").item(0).getTextContent());
+        assertEquals(Long.toString(Files.size(primaryFile)), primaryEntry.getElementsByTagName("size").item(0).getTextContent());
+
+        final Document primary = parse(primaryFile);
+        assertEquals("2", primary.getDocumentElement().getAttribute("packages"));
+        final NodeList packages = primary.getElementsByTagName("package");
+        assertEquals(2, packages.getLength());
+
+        final Element iplike = (Element)packages.item(1);
+        assertEquals("iplike", iplike.getElementsByTagName("name").item(0).getTextContent());
+        assertEquals("rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm", ((Element)iplike.getElementsByTagName("location").item(0)).getAttribute("href"));
+        assertEquals(Digests.digest(root.resolve("rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm"), "SHA-1"), iplike.getElementsByTagName("checksum").item(0).getTextContent());
+        assertEquals("/usr/sbin/install_iplike.sh", iplike.getElementsByTagName("file").item(0).getTextContent());
+
+        final Element filelistsEntry = entries.get("filelists");
+        final Document filelists = parse(root.resolve(((Element)filelistsEntry.getElementsByTagName("location").item(0)).getAttribute("href")));
+        assertEquals(3, ((Element)filelists.getElementsByTagName("package").item(1)).getElementsByTagName("file").getLength());
+    }
+
+    @Test
+    public void testIndexCompressionsNative() throws Exception {
+        final Path root = Paths.get("target/repositories/testIndexCompressionsNative");
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), root.toFile());
+
+        final RPMRepository repo = new RPMRepository(root, RPMRepository.IndexEngine.NATIVE);
+        repo.setCompressions(Compression.GZIP, Compression.XZ, Compression.ZSTD);
+        repo.index(null);
+
+        final NodeList data = parse(root.resolve("repodata/repomd.xml")).getElementsByTagName("data");
+        assertEquals(9, data.getLength());
+        final Map<String,Element> entries = new HashMap<>();
+        for (int i = 0; i < data.getLength(); i++) {
+            final Element element = (Element)data.item(i);
+            entries.put(element.getAttribute("type"), element);
+        }
+        assertTrue(entries.keySet().containsAll(Arrays.asList("primary", "primary_xz", "primary_zst", "filelists_xz", "other_zst")));
+
+        // every variant is listed with its own checksum, and decompresses to the same document
+        final String openChecksum = entries.get("primary").getElementsByTagName("open-checksum").item(0).getTextContent();
+        for (final String type : Arrays.asList("primary_xz", "primary_zst")) {
+            final Element entry = entries.get(type);
+            final Path file = root.resolve(((Element)entry.getElementsByTagName("location").item(0)).getAttribute("href"));
+            assertEquals(Digests.digest(file, "SHA-1"), entry.getElementsByTagName("checksum").item(0).getTextContent());
+            assertEquals(openChecksum, entry.getElementsByTagName("open-checksum").item(0).getTextContent());
+            try (final InputStream is = Compression.forFilename(file.toString()).decompress(Files.newInputStream(file))) {
+                assertEquals(openChecksum, Digests.toHex(Digests.getInstance("SHA-1").digest(IOUtils.toByteArray(is))));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexSkipsUnchanged() throws Exception {
+        final Path root = Paths.get("target/repositories/testIndexSkipsUnchanged").toAbsolutePath();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), root.toFile());
+        final Path repomd = root.resolve("repodata/repomd.xml");
+        final Path signature = root.resolve("repodata/repomd.xml.asc");
+
+        final RPMRepository repo = new RPMRepository(root, RPMRepository.IndexEngine.NATIVE);
+        final GPGInfo gpginfo = new GPGInfo("foo@bar.com", "12345", GPGUtils.generateKey("foo@bar.com", "12345"));
+        repo.index(gpginfo);
+        assertTrue(Files.exists(root.resolve(PackageMetadataCache.CACHE_DIR).resolve(RepositoryState.STATE_FILE)));
+        final byte[] original = Files.readAllBytes(repomd);
+        final long modified = Files.getLastModifiedTime(repomd).toMillis();
+        Thread.sleep(1100);
+
+        // nothing changed: nothing is rewritten
+        repo.index(gpginfo);
+        assertEquals(modified, Files.getLastModifiedTime(repomd).toMillis());
+
+        // a damaged index is regenerated, and signed again since it is new
+        Files.write(repomd, "garbage".getBytes(StandardCharsets.UTF_8));
+        repo.index(gpginfo);
+        assertFalse(Arrays.equals(original, Files.readAllBytes(repomd)));
+        try (final BatchSigner signer = new BatchSigner(gpginfo, 1, false)) {
+            assertTrue(signer.hasValidSignature(repomd, signature));
+        }
+
+        // so is a repository with a new package in it
+        final byte[] beforeAdd = Files.readAllBytes(repomd);
+        FileUtils.copyFileToDirectory(new File("../t/packages/rpm/bleeding/common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm"), root.resolve("common/opennms").toFile());
+        repo.index(gpginfo);
+        assertFalse(Arrays.equals(beforeAdd, Files.readAllBytes(repomd)));
+        final String href = ((Element)parse(repomd).getElementsByTagName("location").item(0)).getAttribute("href");
+        assertEquals("3", parse(root.resolve(href)).getDocumentElement().getAttribute("packages"));
+
+        // and changing the options counts as a change
+        final long beforeOptions = Files.getLastModifiedTime(repomd).toMillis();
+        Thread.sleep(1100);
+        repo.setCompressions(Compression.XZ);
+        repo.index(gpginfo);
+        assertTrue(Files.getLastModifiedTime(repomd).toMillis() > beforeOptions);
+    }
+
+    @Test
+    public void testIndexPackagesIncremental() throws Exception {
+        final Path root = Paths.get("target/repositories/testIndexPackagesIncremental");
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), root.toFile());
+
+        final RPMRepository repo = new RPMRepository(root, RPMRepository.IndexEngine.NATIVE);
+        repo.setIncremental(true);
+        repo.index(null);
+        assertFileExists(root.resolve(".repocache/packages.bin").toString());
+        final String firstPrimary = parse(root.resolve("repodata/repomd.xml")).getElementsByTagName("open-checksum").item(0).getTextContent();
+
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/common"), root.resolve("common").toFile());
+
+        final PackageMetadataCache cache = PackageMetadataCache.forRepository(root);
+        final YumRepodataGenerator generator = new YumRepodataGenerator(root);
+        generator.setCache(cache);
+        generator.generate();
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        final Document primary = parse(root.resolve(((Element)parse(root.resolve("repodata/repomd.xml")).getElementsByTagName("location").item(0)).getAttribute("href")));
+        assertEquals("3", primary.getDocumentElement().getAttribute("packages"));
+
+        // removing the new package again gives the same metadata as the first run
+        Files.delete(root.resolve("common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm"));
+        repo.index(null);
+        assertEquals(firstPrimary, parse(root.resolve("repodata/repomd.xml")).getElementsByTagName("open-checksum").item(0).getTextContent());
+    }
+
+    private static Document parse(final Path file) throws Exception {
+        try (final InputStream is = file.toString().endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(file)) : Files.newInputStream(file)) {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(is);
+        }
+    }
+
     private void assertFileExists(final String path) {
         final Path p = Paths.get(path);
         assertTrue("File/directory '" + path + "' must exist.", p.toFile().exists());
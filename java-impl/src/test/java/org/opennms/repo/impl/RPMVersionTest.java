@@ -0,0 +1,113 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Ports t/OpenNMS-Release-RPMVersion.t, plus rpmvercmp edge cases.
+ */
+public class RPMVersionTest {
+    private final RPMVersion m_oneOhOne = new RPMVersion(0, "1.0", "1");
+    private final RPMVersion m_oneOhTwo = new RPMVersion(0, "1.0", "2");
+    private final RPMVersion m_twoOhOne = new RPMVersion(0, "2.0", "1");
+    private final RPMVersion m_twoOhTwo = new RPMVersion(0, "2.0", "2");
+    private final RPMVersion m_twoOhOneOne = new RPMVersion(0, "2.0.1", "1");
+    private final RPMVersion m_epochOne = new RPMVersion(1, "1.0", "0");
+
+    @Test
+    public void testBasics() {
+        assertEquals("1.0", m_oneOhOne.getVersion());
+        assertEquals("1", m_oneOhOne.getRelease());
+        assertEquals(0, m_oneOhOne.getEpoch());
+        assertEquals("1.0-1", m_oneOhOne.toString());
+        assertEquals("1:1.0-0", m_epochOne.toString());
+        assertEquals(m_epochOne, RPMVersion.parse("1:1.0-0"));
+    }
+
+    @Test
+    public void testCompare() {
+        assertCompare(-1, m_oneOhOne, m_oneOhTwo);
+        assertCompare(0, m_oneOhOne, m_oneOhOne);
+        assertCompare(1, m_twoOhOne, m_oneOhOne);
+        assertCompare(1, m_twoOhOneOne, m_twoOhOne);
+        assertCompare(1, m_twoOhOneOne, m_twoOhTwo);
+        assertCompare(1, m_epochOne, m_twoOhOneOne);
+
+        final RPMVersion release = new RPMVersion(0, "1.9.93", "1");
+        final RPMVersion beta = new RPMVersion(0, "1.9.93", "0.20111220.1");
+        final RPMVersion beta2 = new RPMVersion(0, "1.9.93", "0.20111220.2");
+        final RPMVersion epoch = new RPMVersion(1, "1.9.93", "0");
+        assertCompare(1, release, beta);
+        assertCompare(1, release, beta2);
+        assertCompare(-1, beta, beta2);
+        assertTrue(release.equals(release));
+        assertTrue(release.isNewerThan(beta));
+        assertTrue(beta.isOlderThan(beta2));
+        assertTrue(epoch.isNewerThan(release));
+        assertTrue(epoch.isNewerThan(beta2));
+        assertFalse(beta2.isNewerThan(epoch));
+    }
+
+    @Test
+    public void testRpmvercmp() {
+        // cases from rpm's own test suite
+        assertVercmp(0, "1.0", "1.0");
+        assertVercmp(-1, "1.0", "2.0");
+        assertVercmp(1, "2.0.1", "2.0");
+        assertVercmp(1, "2.0.1a", "2.0.1");
+        assertVercmp(-1, "5.5p1", "5.5p2");
+        assertVercmp(1, "5.5p10", "5.5p1");
+        assertVercmp(-1, "10xyz", "10.1xyz");
+        assertVercmp(0, "xyz10", "xyz10");
+        assertVercmp(1, "xyz.4", "xyz.3");
+        assertVercmp(-1, "xyz.4", "8");
+        assertVercmp(0, "1b.fc17", "1.b.fc17");
+        assertVercmp(-1, "1.0~rc1", "1.0");
+        assertVercmp(-1, "1.0~rc1", "1.0~rc2");
+        assertVercmp(-1, "1.0~rc1~git123", "1.0~rc1");
+        assertVercmp(1, "1.0^", "1.0");
+        assertVercmp(-1, "1.0^git1", "1.01");
+        assertVercmp(1, "1.0^git1", "1.0~rc1");
+        assertVercmp(0, "1.010", "1.10");
+        assertVercmp(-1, "2a", "2.0");
+        assertVercmp(-1, "a", "1");
+    }
+
+    @Test
+    public void testSortKey() {
+        final String[] segments = { "0", "1", "01", "10", "2", "a", "b", "rc", "~", "^", ".", "_" };
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final RPMVersion a = new RPMVersion(random.nextInt(2), randomString(random, segments), randomString(random, segments));
+            final RPMVersion b = new RPMVersion(random.nextInt(2), randomString(random, segments), randomString(random, segments));
+            assertEquals(a + " <=> " + b, Integer.signum(a.compareTo(b)), Integer.signum(SortKeys.compare(a.getSortKey(), b.getSortKey())));
+        }
+    }
+
+    static String randomString(final Random random, final String[] segments) {
+        final StringBuilder sb = new StringBuilder();
+        final int count = random.nextInt(5);
+        for (int i = 0; i < count; i++) {
+            sb.append(segments[random.nextInt(segments.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static void assertCompare(final int expected, final RPMVersion a, final RPMVersion b) {
+        assertEquals(a + " <=> " + b, expected, Integer.signum(a.compareTo(b)));
+        assertEquals(a + " <=> " + b + " (sort key)", expected, Integer.signum(SortKeys.compare(a.getSortKey(), b.getSortKey())));
+    }
+
+    private static void assertVercmp(final int expected, final String a, final String b) {
+        assertEquals(a + " <=> " + b, expected, RPMVersion.rpmvercmp(a, b));
+        assertEquals(b + " <=> " + a, -expected, RPMVersion.rpmvercmp(b, a));
+        final RPMVersion va = new RPMVersion(0, a, null);
+        final RPMVersion vb = new RPMVersion(0, b, null);
+        assertEquals(a + " <=> " + b + " (sort key)", expected, Integer.signum(SortKeys.compare(va.getSortKey(), vb.getSortKey())));
+    }
+}
@@ -0,0 +1,167 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.RepositoryException;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+import org.opennms.repo.impl.RemoteRepository.SyncResult;
+
+public class RemoteRepositoryTest {
+    private static final Path BASE = Paths.get("target/repositories/RemoteRepositoryTest").toAbsolutePath();
+    private static final Path LOCAL = BASE.resolve("local");
+    private static final Path REMOTE = BASE.resolve("remote");
+    private static final String I386 = "opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String X86_64 = "opennms/x86_64/iplike-1.0.7-1.x86_64.rpm";
+
+    private final AtomicLong m_bytesWritten = new AtomicLong();
+    private final List<String> m_renamed = Collections.synchronizedList(new ArrayList<>());
+    private String m_failOn;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), LOCAL.toFile());
+        Files.createDirectories(REMOTE);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    /**
+     * Records the order files are put in place, and can be made to fail an upload.
+     */
+    private class RecordingTransport extends LocalTransport {
+        private RecordingTransport() {
+            super(REMOTE, m_bytesWritten);
+        }
+
+        @Override
+        public void upload(final Path local, final String path, final long offset) throws IOException {
+            if (m_failOn != null && path.contains(m_failOn)) {
+                throw new IOException("connection reset");
+            }
+            super.upload(local, path, offset);
+        }
+
+        @Override
+        public void rename(final String from, final String to) throws IOException {
+            super.rename(from, to);
+            m_renamed.add(to);
+        }
+    }
+
+    private RemoteRepository newRepository() {
+        final RemoteRepository repo = new RemoteRepository(new RPMRepository(LOCAL, IndexEngine.NATIVE), RecordingTransport::new);
+        repo.setChannels(3);
+        return repo;
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        final RemoteRepository repo = newRepository();
+        repo.index(null);
+
+        assertRemoteMatchesLocal();
+        assertTrue(Files.exists(REMOTE.resolve(RemoteRepository.MANIFEST)));
+
+        // packages first, then repodata, then repomd.xml, then the manifest
+        final int repomd = m_renamed.indexOf("repodata/repomd.xml");
+        assertEquals(m_renamed.size() - 2, repomd);
+        assertTrue(m_renamed.indexOf(I386) < m_renamed.indexOf(m_renamed.stream().filter(p -> p.endsWith("primary.xml.gz")).findFirst().get()));
+        assertEquals(RemoteRepository.MANIFEST, m_renamed.get(m_renamed.size() - 1));
+
+        // nothing changed: nothing to send
+        final long written = m_bytesWritten.get();
+        final SyncResult unchanged = repo.sync();
+        assertEquals(0, unchanged.getUploaded().size());
+        assertEquals(0, unchanged.getDeleted().size());
+        assertEquals(written, m_bytesWritten.get());
+
+        // replace one package; only it and the repodata go over, and the old files are removed
+        Files.copy(Paths.get("../t/packages/rpm/stable/rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm"), LOCAL.resolve("opennms/i386/iplike-2.0.2-1.i386.rpm"));
+        Files.delete(LOCAL.resolve(X86_64));
+        repo.getLocal().index(null);
+        final SyncResult changed = repo.sync();
+        assertTrue(changed.getUploaded().contains("opennms/i386/iplike-2.0.2-1.i386.rpm"));
+        assertFalse(changed.getUploaded().contains(I386));
+        assertTrue(changed.getDeleted().contains(X86_64));
+        assertRemoteMatchesLocal();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final RemoteRepository repo = newRepository();
+        repo.getLocal().index(null);
+
+        // a previous sync got halfway through a package
+        final byte[] rpm = Files.readAllBytes(LOCAL.resolve(I386));
+        final Path part = REMOTE.resolve(RemoteRepository.getPartName(I386, Digests.digest(LOCAL.resolve(I386), "SHA-256")));
+        Files.createDirectories(part.getParent());
+        Files.write(part, Arrays.copyOf(rpm, rpm.length / 2));
+
+        // ...and this one fails before the indexes are published
+        m_failOn = "repomd.xml";
+        try {
+            repo.sync();
+            fail("sync should have failed");
+        } catch (final RepositoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("repomd.xml"));
+        }
+        assertFalse(Files.exists(REMOTE.resolve("repodata/repomd.xml")));
+        assertArrayEquals(rpm, Files.readAllBytes(REMOTE.resolve(I386)));
+        long expected = Files.size(REMOTE.resolve(RemoteRepository.MANIFEST)) - rpm.length / 2;
+        for (final String path : listVisible(LOCAL)) {
+            if (!path.endsWith("repomd.xml")) {
+                expected += Files.size(LOCAL.resolve(path));
+            }
+        }
+        assertEquals(expected, m_bytesWritten.get());
+
+        // the retry only sends what did not make it
+        m_failOn = null;
+        final SyncResult retry = repo.sync();
+        assertEquals(Files.size(LOCAL.resolve("repodata/repomd.xml")), retry.getBytesUploaded());
+        assertRemoteMatchesLocal();
+    }
+
+    private static void assertRemoteMatchesLocal() throws IOException {
+        final Set<String> local = listVisible(LOCAL);
+        assertEquals(local, listVisible(REMOTE));
+        for (final String path : local) {
+            assertArrayEquals(path, Files.readAllBytes(LOCAL.resolve(path)), Files.readAllBytes(REMOTE.resolve(path)));
+        }
+    }
+
+    private static Set<String> listVisible(final Path root) throws IOException {
+        try (final Stream<Path> stream = Files.walk(root)) {
+            return stream.filter(Files::isRegularFile)
+                    .map(path -> root.relativize(path).toString())
+                    .filter(path -> !path.startsWith(".") && !path.contains("/."))
+                    .collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepositoryScannerTest {
+    private static final Path ROOT = Paths.get("target/repositories/RepositoryScannerTest").toAbsolutePath();
+
+    private ForkJoinPool m_pool;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        m_pool = new ForkJoinPool(4);
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding"), ROOT.toFile());
+        Files.createDirectories(ROOT.resolve(".hidden"));
+        Files.copy(ROOT.resolve("common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm"), ROOT.resolve(".hidden/opennms-1.11.0-0.20111220.1.noarch.rpm"));
+        Files.createFile(ROOT.resolve("common/opennms/README.txt"));
+        // as the first saved scan would, so that does not count as a change to the root
+        Files.createDirectories(ROOT.resolve(PackageMetadataCache.CACHE_DIR));
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (m_pool != null) {
+            m_pool.shutdown();
+        }
+        FileUtils.deleteDirectory(ROOT.toFile());
+    }
+
+    private static List<Path> find() throws IOException {
+        try (final Stream<Path> paths = Files.walk(ROOT)) {
+            return paths.filter(p -> p.toString().endsWith(".rpm") && !ROOT.relativize(p).toString().startsWith(".")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * A scanner that trusts any directory that has not changed since the last scan started;
+     * the tests make their changes a moment before scanning.
+     */
+    private RepositoryScanner newScanner() throws InterruptedException {
+        Thread.sleep(20);
+        final RepositoryScanner scanner = new RepositoryScanner(ROOT, ".rpm", m_pool);
+        scanner.setRacyMillis(0);
+        return scanner;
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        final RepositoryScanner scanner = newScanner();
+        final List<Path> packages = scanner.scan();
+        assertEquals(3, packages.size());
+        assertEquals(find(), packages);
+        assertTrue(Files.exists(scanner.getFile()));
+        // root, common, common/opennms, rhel5, rhel5/opennms, rhel5/opennms/i386, rhel5/opennms/x86_64
+        assertEquals(7, scanner.getListed());
+
+        // nothing changed: every directory is stat'ed, none is listed
+        final RepositoryScanner reopened = newScanner();
+        assertEquals(packages, reopened.scan());
+        assertEquals(0, reopened.getListed());
+    }
+
+    @Test
+    public void testRescanChangedDirectories() throws Exception {
+        newScanner().scan();
+
+        // a new package, and a new directory with a package in it
+        Files.copy(ROOT.resolve("rhel5/opennms/i386/iplike-1.0.7-1.i386.rpm"), ROOT.resolve("common/opennms/iplike-1.0.7-1.i386.rpm"));
+        Files.createDirectories(ROOT.resolve("rhel5/opennms/noarch"));
+        Files.copy(ROOT.resolve("common/opennms/opennms-1.11.0-0.20111220.1.noarch.rpm"), ROOT.resolve("rhel5/opennms/noarch/opennms-1.11.0-0.20111220.1.noarch.rpm"));
+
+        final RepositoryScanner scanner = newScanner();
+        List<Path> packages = scanner.scan();
+        assertEquals(find(), packages);
+        assertEquals(5, packages.size());
+        // common/opennms, rhel5/opennms and the new rhel5/opennms/noarch
+        assertEquals(3, scanner.getListed());
+
+        // a directory that is removed is dropped
+        FileUtils.deleteDirectory(ROOT.resolve("rhel5/opennms/x86_64").toFile());
+        Thread.sleep(20);
+        packages = scanner.scan();
+        assertEquals(find(), packages);
+        assertEquals(4, packages.size());
+        assertEquals(1, scanner.getListed());
+    }
+
+    @Test
+    public void testPreservedDates() throws Exception {
+        newScanner().scan();
+
+        // copied in with its modification time kept, as cp -p or rsync -t would
+        final Path dir = ROOT.resolve("common/opennms");
+        final FileTime modified = Files.getLastModifiedTime(dir);
+        Files.copy(ROOT.resolve("rhel5/opennms/i386/iplike-1.0.7-1.i386.rpm"), dir.resolve("iplike-1.0.7-1.i386.rpm"));
+        Files.setLastModifiedTime(dir, modified);
+
+        final RepositoryScanner scanner = newScanner();
+        assertEquals(find(), scanner.scan());
+        assertEquals(1, scanner.getListed());
+    }
+
+    @Test
+    public void testRecentChangesAreListed() throws Exception {
+        final RepositoryScanner scanner = new RepositoryScanner(ROOT, ".rpm", m_pool);
+        scanner.scan();
+
+        // everything was changed just before the last scan, so none of it can be trusted yet
+        scanner.scan();
+        assertEquals(7, scanner.getListed());
+    }
+
+    @Test
+    public void testCorruptScan() throws Exception {
+        final RepositoryScanner scanner = newScanner();
+        final List<Path> packages = scanner.scan();
+        Files.write(scanner.getFile(), new byte[] { 0x52, 0x53, 0x43, 0x4e, 0, 0, 0, 1, 0, 0 });
+
+        final RepositoryScanner reopened = newScanner();
+        assertEquals(packages, reopened.scan());
+        assertEquals(7, reopened.getListed());
+    }
+
+    @Test
+    public void testCorruptRecords() throws Exception {
+        final RepositoryScanner scanner = newScanner();
+        scanner.scan();
+        final byte[] good = Files.readAllBytes(scanner.getFile());
+
+        // overwrite each position in turn with a negative and with a huge count, length or time:
+        // a damaged record is listed again (or at worst scanned wrongly), but never fails the scan
+        final RepositoryScanner reopened = newScanner();
+        reopened.setReadOnly(true);
+        for (final byte value : new byte[] { (byte)0xff, 0x7f }) {
+            for (int i = 8; i < good.length - 4; i++) {
+                final byte[] bad = good.clone();
+                Arrays.fill(bad, i, i + 4, value);
+                Files.write(scanner.getFile(), bad);
+                reopened.scan();
+            }
+        }
+        Files.write(scanner.getFile(), good);
+        assertEquals(find(), reopened.scan());
+        assertEquals(0, reopened.getListed());
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        final RepositoryScanner scanner = newScanner();
+        scanner.setReadOnly(true);
+        assertEquals(find(), scanner.scan());
+        assertFalse(Files.exists(scanner.getFile()));
+
+        // a saved scan is still used, but not updated
+        newScanner().scan();
+        final byte[] saved = Files.readAllBytes(scanner.getFile());
+        Files.copy(ROOT.resolve("rhel5/opennms/i386/iplike-1.0.7-1.i386.rpm"), ROOT.resolve("common/opennms/iplike-1.0.7-1.i386.rpm"));
+
+        final RepositoryScanner reopened = newScanner();
+        reopened.setReadOnly(true);
+        assertEquals(find(), reopened.scan());
+        assertEquals(1, reopened.getListed());
+        assertArrayEquals(saved, Files.readAllBytes(scanner.getFile()));
+    }
+}
@@ -0,0 +1,234 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.GPGInfo;
+import org.opennms.repo.impl.RPMRepository.IndexEngine;
+import org.opennms.repo.impl.SignatureVerifier.Report;
+import org.opennms.repo.impl.SignatureVerifier.Scope;
+import org.opennms.repo.impl.SignatureVerifier.Status;
+import org.opennms.repo.impl.SignatureVerifier.Verification;
+
+public class SignatureVerifierTest {
+    private static final Path ROOT = Paths.get("target/repositories/SignatureVerifierTest").toAbsolutePath();
+    private static final String I386 = "opennms/i386/iplike-1.0.7-1.i386.rpm";
+    private static final String KEY_PASSPHRASE = "12345";
+
+    private KeyringCache m_keys;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/bleeding/rhel5"), ROOT.toFile());
+        m_keys = new KeyringCache();
+        // the key the test packages were signed with
+        m_keys.load(new ByteArrayInputStream(GPGUtilsTest.OPENNMS_PUBKEY_WITH_SIGNATURES.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(ROOT.toFile());
+    }
+
+    private static Status getStatus(final List<Verification> verifications, final Scope scope) {
+        for (final Verification verification : verifications) {
+            if (verification.getScope() == scope && verification.getStatus() != Status.UNKNOWN_KEY) {
+                return verification.getStatus();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testKeyring() throws Exception {
+        final Path keyring = Files.write(ROOT.resolve("opennms.asc"), GPGUtilsTest.OPENNMS_PUBKEY_WITH_SIGNATURES.getBytes(StandardCharsets.US_ASCII));
+        final KeyringCache keys = new KeyringCache();
+        final int loaded = keys.load(keyring);
+        assertEquals(2, loaded);
+        assertEquals(loaded, keys.size());
+        // unchanged: not parsed again
+        assertEquals(0, keys.load(keyring));
+
+        // a key added to the keyring, and then removed from it again
+        final byte[] opennms = IOUtils.toByteArray(PGPUtil.getDecoderStream(new ByteArrayInputStream(GPGUtilsTest.OPENNMS_PUBKEY_WITH_SIGNATURES.getBytes(StandardCharsets.US_ASCII))));
+        final PGPPublicKey alice = GPGUtils.generateKey("alice@example.com", KEY_PASSPHRASE).getPublicKey();
+        Files.write(keyring, opennms);
+        Files.write(keyring, alice.getEncoded(), StandardOpenOption.APPEND);
+        assertEquals(1, keys.load(keyring));
+        assertEquals(3, keys.size());
+        Files.write(keyring, opennms);
+        assertEquals(0, keys.load(keyring));
+        assertEquals(2, keys.size());
+        assertNull(keys.getKey(alice.getKeyID()));
+    }
+
+    @Test
+    public void testRpm() throws Exception {
+        try (final SignatureVerifier verifier = new SignatureVerifier(m_keys, 2)) {
+            final List<Verification> signatures = verifier.verifyRpm(ROOT.resolve(I386));
+            assertEquals(signatures.toString(), Status.VALID, getStatus(signatures, Scope.RPM_HEADER));
+            assertEquals(signatures.toString(), Status.VALID, getStatus(signatures, Scope.RPM_HEADER_AND_PAYLOAD));
+
+            // damage the payload: the header is still intact, but the package is not
+            final byte[] rpm = Files.readAllBytes(ROOT.resolve(I386));
+            rpm[rpm.length - 1] ^= 1;
+            Files.write(ROOT.resolve(I386), rpm);
+            final List<Verification> damaged = verifier.verifyRpm(ROOT.resolve(I386));
+            assertEquals(Status.VALID, getStatus(damaged, Scope.RPM_HEADER));
+            assertEquals(Status.BAD, getStatus(damaged, Scope.RPM_HEADER_AND_PAYLOAD));
+            assertFalse(verifier.verifyAll(Collections.singletonList(ROOT.resolve(I386))).isValid());
+        }
+
+        // nobody we know signed it
+        try (final SignatureVerifier verifier = new SignatureVerifier(new KeyringCache(), 1)) {
+            final Report report = verifier.verifyAll(Arrays.asList(ROOT.resolve("opennms/x86_64/iplike-1.0.7-1.x86_64.rpm")));
+            assertEquals(1, report.getFailures().size());
+            for (final Verification verification : report.getResults().values().iterator().next()) {
+                assertEquals(Status.UNKNOWN_KEY, verification.getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void testVerifyTree() throws Exception {
+        final GPGInfo gpginfo = new GPGInfo("alice@example.com", KEY_PASSPHRASE, GPGUtils.generateKey("alice@example.com", KEY_PASSPHRASE));
+        new RPMRepository(ROOT, IndexEngine.NATIVE).index(gpginfo);
+        m_keys.add(gpginfo);
+
+        try (final SignatureVerifier verifier = new SignatureVerifier(m_keys, 2)) {
+            final Report report = verifier.verifyTree(ROOT);
+            assertTrue(report.toString(), report.isValid());
+            assertEquals(3, report.getResults().size());
+            assertEquals(Status.VALID, report.getResults().get(ROOT.resolve("repodata/repomd.xml")).get(0).getStatus());
+
+            // an edited repomd.xml, and a file whose .asc is not a signature at all
+            Files.write(ROOT.resolve("repodata/repomd.xml"), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            final Path unsigned = ROOT.resolve("opennms/i386/unsigned.txt");
+            Files.write(unsigned, "hello\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(BatchSigner.getSignatureFile(unsigned), "not a signature\n".getBytes(StandardCharsets.UTF_8));
+
+            final Report tampered = verifier.verifyTree(ROOT);
+            assertEquals(Arrays.asList(ROOT.resolve("opennms/i386/unsigned.txt"), ROOT.resolve("repodata/repomd.xml")), tampered.getFailures());
+            assertEquals(Status.BAD, tampered.getResults().get(ROOT.resolve("repodata/repomd.xml")).get(0).getStatus());
+        }
+    }
+
+    @Test
+    public void testRevokedKey() throws Exception {
+        final PGPSecretKey secret = GPGUtils.generateKey("bob@example.com", KEY_PASSPHRASE);
+        final GPGInfo gpginfo = new GPGInfo("bob@example.com", KEY_PASSPHRASE, secret);
+        final Path file = Files.write(ROOT.resolve("signed.txt"), "hello\n".getBytes(StandardCharsets.UTF_8));
+        GPGUtils.detach_sign(file, BatchSigner.getSignatureFile(file), gpginfo, true);
+        m_keys.add(gpginfo);
+
+        try (final SignatureVerifier verifier = new SignatureVerifier(m_keys, 1)) {
+            assertEquals(Status.VALID, verifier.verify(file).get(0).getStatus());
+
+            // the keyring is reloaded with a revocation: the new key replaces the old one
+            final PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(secret.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256).setProvider("BC"));
+            generator.init(PGPSignature.KEY_REVOCATION, gpginfo.getPrivateKey());
+            final PGPPublicKey revoked = PGPPublicKey.addCertification(secret.getPublicKey(), generator.generateCertification(secret.getPublicKey()));
+            assertFalse(m_keys.add(revoked));
+
+            final Verification verification = verifier.verify(file).get(0);
+            assertEquals(Status.BAD, verification.getStatus());
+            assertTrue(verification.getMessage(), verification.getMessage().contains("revoked"));
+        }
+    }
+
+    @Test
+    public void testRevokedPrimaryKey() throws Exception {
+        // a primary key, and a subkey that does the signing
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(1024);
+        final PGPKeyPair primary = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        final PGPKeyPair signing = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        final PGPDigestCalculator sha1 = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        final PGPKeyRingGenerator rings = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, primary, "dave@example.com", sha1, null, null,
+                new JcaPGPContentSignerBuilder(primary.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1).setProvider("BC").build(KEY_PASSPHRASE.toCharArray()));
+        rings.addSubKey(signing);
+        final PGPPublicKeyRing ring = rings.generatePublicKeyRing();
+        final PGPSecretKey subkey = rings.generateSecretKeyRing().getSecretKey(signing.getKeyID());
+        assertEquals(2, m_keys.load(new ByteArrayInputStream(ring.getEncoded())));
+
+        final GPGInfo gpginfo = new GPGInfo("dave@example.com", KEY_PASSPHRASE, subkey);
+        final Path file = Files.write(ROOT.resolve("signed.txt"), "hello\n".getBytes(StandardCharsets.UTF_8));
+        GPGUtils.detach_sign(file, BatchSigner.getSignatureFile(file), gpginfo, true);
+        try (final SignatureVerifier verifier = new SignatureVerifier(m_keys, 1)) {
+            assertEquals(Status.VALID, verifier.verify(file).get(0).getStatus());
+
+            // the primary key is revoked; the subkey itself is not
+            final PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(primary.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256).setProvider("BC"));
+            generator.init(PGPSignature.KEY_REVOCATION, primary.getPrivateKey());
+            assertFalse(m_keys.add(PGPPublicKey.addCertification(ring.getPublicKey(), generator.generateCertification(ring.getPublicKey()))));
+
+            final Verification verification = verifier.verify(file).get(0);
+            assertEquals(Status.BAD, verification.getStatus());
+            assertTrue(verification.getMessage(), verification.getMessage().contains(KeyringCache.toString(primary.getKeyID()) + " has been revoked"));
+        }
+    }
+
+    @Test
+    public void testExpiredKey() throws Exception {
+        // created an hour ago, and only valid for a minute
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(1024);
+        final PGPKeyPair pair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        final PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+        subpackets.setKeyExpirationTime(false, 60);
+        final PGPDigestCalculator sha1 = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        final PGPSecretKey secret = new PGPSecretKey(PGPSignature.POSITIVE_CERTIFICATION, pair, "carol@example.com", sha1, subpackets.generate(), null,
+                new JcaPGPContentSignerBuilder(pair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1).setProvider("BC").build(KEY_PASSPHRASE.toCharArray()));
+        final GPGInfo gpginfo = new GPGInfo("carol@example.com", KEY_PASSPHRASE, secret);
+        m_keys.add(gpginfo);
+
+        final Path file = Files.write(ROOT.resolve("signed.txt"), "hello\n".getBytes(StandardCharsets.UTF_8));
+        GPGUtils.detach_sign(file, BatchSigner.getSignatureFile(file), gpginfo, true);
+        try (final SignatureVerifier verifier = new SignatureVerifier(m_keys, 1)) {
+            final Verification verification = verifier.verify(file).get(0);
+            assertEquals(Status.BAD, verification.getStatus());
+            assertTrue(verification.getMessage(), verification.getMessage().contains("expired"));
+        }
+    }
+}
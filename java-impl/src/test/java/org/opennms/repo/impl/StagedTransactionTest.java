@@ -0,0 +1,160 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.api.RepositoryTransaction;
+
+public class StagedTransactionTest {
+    private static final Path BASE = Paths.get("target/repositories/StagedTransactionTest").toAbsolutePath();
+    private static final Path ROOT = BASE.resolve("stable");
+    private static final String IPLIKE = "rhel5/opennms/i386/iplike-2.0.2-1.i386.rpm";
+    private static final String OPENNMS = "opennms-1.11.0-0.20111220.1.noarch.rpm";
+
+    @Before
+    public void setUp() throws Exception {
+        cleanUp();
+        FileUtils.copyDirectory(new File("../t/packages/rpm/stable"), ROOT.toFile());
+        new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE).index(null);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        final RPMRepository repo = new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE);
+        final byte[] repomd = Files.readAllBytes(ROOT.resolve("repodata/repomd.xml"));
+
+        try (final RepositoryTransaction tx = repo.begin()) {
+            final Path staging = tx.getRepository().getRoot();
+            assertNotEquals(ROOT, staging);
+            assertEquals(ROOT.getParent(), staging.getParent());
+
+            // packages are linked, repodata is not
+            assertEquals(Files.getAttribute(ROOT.resolve(IPLIKE), "unix:ino"), Files.getAttribute(staging.resolve(IPLIKE), "unix:ino"));
+            assertNotEquals(Files.getAttribute(ROOT.resolve("repodata/repomd.xml"), "unix:ino"), Files.getAttribute(staging.resolve("repodata/repomd.xml"), "unix:ino"));
+
+            Files.copy(Paths.get("../t/packages/rpm/bleeding/common/opennms", OPENNMS), staging.resolve("common/opennms").resolve(OPENNMS));
+            tx.getRepository().index(null);
+
+            assertFalse(Files.exists(ROOT.resolve("common/opennms").resolve(OPENNMS)));
+            assertTrue(Files.exists(staging.resolve("common/opennms").resolve(OPENNMS)));
+            assertTrue(Arrays.equals(repomd, Files.readAllBytes(ROOT.resolve("repodata/repomd.xml"))));
+
+            tx.commit();
+            assertTrue(tx.isFinished());
+            assertFalse(Files.exists(staging));
+        }
+
+        assertTrue(Files.exists(ROOT.resolve("common/opennms").resolve(OPENNMS)));
+        assertFalse(Arrays.equals(repomd, Files.readAllBytes(ROOT.resolve("repodata/repomd.xml"))));
+        assertEquals(1, BASE.toFile().list().length);
+    }
+
+    @Test
+    public void testPermissions() throws Exception {
+        final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rwxr-x--x");
+        Files.setPosixFilePermissions(ROOT, permissions);
+
+        final RPMRepository repo = new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE);
+        try (final RepositoryTransaction tx = repo.begin()) {
+            final Path staging = tx.getRepository().getRoot();
+            assertEquals(permissions, Files.getPosixFilePermissions(staging));
+            assertEquals(Files.getOwner(ROOT), Files.getOwner(staging));
+            tx.commit();
+        }
+        assertEquals(permissions, Files.getPosixFilePermissions(ROOT));
+    }
+
+    @Test
+    public void testCommitThroughSymlink() throws Exception {
+        // the root is a link to a directory beside it
+        final Path previous = BASE.resolve("stable-1");
+        Files.move(ROOT, previous);
+        Files.createSymbolicLink(ROOT, previous.getFileName());
+
+        final RPMRepository repo = new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE);
+        final Path staging;
+        try (final RepositoryTransaction tx = repo.begin()) {
+            staging = tx.getRepository().getRoot();
+            assertEquals(Files.getAttribute(previous.resolve(IPLIKE), "unix:ino"), Files.getAttribute(staging.resolve(IPLIKE), "unix:ino"));
+            Files.copy(Paths.get("../t/packages/rpm/bleeding/common/opennms", OPENNMS), staging.resolve("common/opennms").resolve(OPENNMS));
+            tx.getRepository().index(null);
+            tx.commit();
+        }
+
+        // the link now points at the staged tree, and the old directory is gone
+        assertTrue(Files.isSymbolicLink(ROOT));
+        assertEquals(staging.getFileName(), Files.readSymbolicLink(ROOT));
+        assertTrue(Files.exists(ROOT.resolve("common/opennms").resolve(OPENNMS)));
+        assertFalse(Files.exists(previous));
+        assertEquals(2, BASE.toFile().list().length);
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        final RPMRepository repo = new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE);
+        final Path staging;
+        try (final RepositoryTransaction tx = repo.begin()) {
+            staging = tx.getRepository().getRoot();
+            Files.delete(staging.resolve(IPLIKE));
+            // closing without committing aborts
+        }
+        assertFalse(Files.exists(staging));
+        assertTrue(Files.exists(ROOT.resolve(IPLIKE)));
+        assertEquals(1, BASE.toFile().list().length);
+    }
+
+    @Test
+    public void testPrepareWrite() throws Exception {
+        final RPMRepository repo = new RPMRepository(ROOT, RPMRepository.IndexEngine.NATIVE);
+        final byte[] original = Files.readAllBytes(ROOT.resolve(IPLIKE));
+        try (final RepositoryTransaction tx = repo.begin()) {
+            final Path staged = tx.prepareWrite(Paths.get(IPLIKE));
+            assertEquals(1, LinkUtils.getLinkCount(staged));
+            Files.write(staged, "changed".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            assertTrue(Arrays.equals(original, Files.readAllBytes(ROOT.resolve(IPLIKE))));
+            tx.abort();
+        }
+    }
+
+    @Test
+    public void testNewRepository() throws Exception {
+        final RPMRepository repo = new RPMRepository(BASE.resolve("new"), RPMRepository.IndexEngine.NATIVE);
+        assertFalse(repo.exists());
+        try (final RepositoryTransaction tx = repo.begin()) {
+            tx.getRepository().index(null);
+            assertFalse(repo.exists());
+            tx.commit();
+        }
+        assertTrue(Files.exists(repo.getRoot().resolve("repodata/repomd.xml")));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testFinished() throws Exception {
+        final RepositoryTransaction tx = new RPMRepository(ROOT).begin();
+        tx.abort();
+        tx.commit();
+    }
+}
@@ -0,0 +1,116 @@
+package org.opennms.repo.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.repo.impl.ToolRegistry.Tool;
+
+public class ToolRegistryTest {
+    private static final Path BASE = Paths.get("target/ToolRegistryTest").toAbsolutePath();
+    private static final Path BIN = BASE.resolve("bin");
+    private static final Path PROBES = BASE.resolve("probes");
+
+    private ToolRegistry m_registry;
+
+    @Before
+    public void setUp() throws IOException {
+        cleanUp();
+        Files.createDirectories(BIN);
+        m_registry = new ToolRegistry(() -> Arrays.asList(BASE.resolve("empty"), BIN));
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(BASE.toFile());
+    }
+
+    private static void writeTool(final String help) throws IOException {
+        final Path tool = BIN.resolve("faketool");
+        Files.write(tool, ("#!/bin/sh\necho probed >> " + PROBES + "\ncat <<EOF\n" + help + "\nEOF\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(tool, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    private static int countProbes() throws IOException {
+        return Files.exists(PROBES) ? Files.readAllLines(PROBES).size() : 0;
+    }
+
+    @Test
+    public void testProbeOnce() throws Exception {
+        writeTool("Usage: faketool [options]\n  -q, --quiet     be quiet\n  --checksum=SUMTYPE\n  --update");
+        final Tool tool = m_registry.get("faketool");
+        assertEquals(BIN.resolve("faketool"), tool.getPath());
+        assertEquals(0, countProbes());
+
+        assertTrue(tool.supports("--checksum"));
+        assertTrue(tool.supports("--update"));
+        assertTrue(tool.supports("-q"));
+        assertFalse(tool.supports("--deltas"));
+
+        // the same tool, and not probed again
+        assertSame(tool, m_registry.get("faketool"));
+        assertTrue(m_registry.get("faketool").supports("--quiet"));
+        assertEquals(1, countProbes());
+        assertEquals(BIN.resolve("faketool").toString(), m_registry.which("faketool"));
+    }
+
+    @Test
+    public void testReprobeWhenReplaced() throws Exception {
+        writeTool("  --update");
+        assertFalse(m_registry.get("faketool").supports("--deltas"));
+
+        writeTool("  --update\n  --deltas");
+        Files.setLastModifiedTime(BIN.resolve("faketool"), FileTime.fromMillis(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)));
+        assertTrue(m_registry.get("faketool").supports("--deltas"));
+        assertEquals(2, countProbes());
+
+        Files.delete(BIN.resolve("faketool"));
+        assertNull(m_registry.get("faketool"));
+    }
+
+    @Test
+    public void testFailedProbeIsNotCached() throws Exception {
+        writeTool("  --update");
+        final Tool tool = m_registry.get("faketool");
+
+        // moved away after it was found, so --help can't be run
+        final Path moved = BASE.resolve("faketool");
+        Files.move(BIN.resolve("faketool"), moved);
+        assertFalse(tool.supports("--update"));
+
+        // back again, unchanged: the next call probes it
+        Files.move(moved, BIN.resolve("faketool"));
+        assertSame(tool, m_registry.get("faketool"));
+        assertTrue(tool.supports("--update"));
+        assertEquals(1, countProbes());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        assertNull(m_registry.get("faketool"));
+
+        // remembered for a while...
+        writeTool("");
+        assertNull(m_registry.get("faketool"));
+
+        // ...unless the registry is cleared
+        m_registry.clear();
+        assertEquals(BIN.resolve("faketool"), m_registry.get("faketool").getPath());
+    }
+}